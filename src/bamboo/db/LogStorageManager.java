@@ -0,0 +1,752 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import bamboo.util.Pair;
+import seda.sandStorm.api.ConfigDataIF;
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.api.SinkIF;
+import static bamboo.util.StringUtil.*;
+
+/**
+ * A pure-Java replacement for the BerkeleyDB tables behind {@link
+ * StorageManager}, handling exactly the same events.  To use it, name
+ * <code>bamboo.db.LogStorageManager</code> as the class of the
+ * StorageManager stage; other stages cannot tell the difference.
+ *
+ * <p>Every put, remove, and move to or from the recycling bin is appended to
+ * a {@link SegmentLog} under <code>homedir</code>, and never rewritten in
+ * place.  The by_time, by_guid, by_guid_and_data_hash, and by_expiry
+ * tables, the recycling bin, and the per-client storage counts are all kept
+ * as sorted indexes in memory and rebuilt by replaying the log at startup.  Sealed
+ * segments whose fraction of live bytes falls below
+ * <code>compaction_threshold</code> are compacted in the background: live
+ * tuples are copied to the end of the log, expired ones are dropped, and the
+ * segment file is deleted.  Logs are forced to disk on the same schedule as
+ * BerkeleyDB checkpoints; as with BerkeleyDB in NOSYNC mode, tuples lost in
+ * a crash are recovered by the epidemic algorithms in Bamboo.
+ *
+ * <p>Since the indexes belong to the stage, the virtual nodes of a process
+ * do not share a log; each keeps its own in the directory StorageManager
+ * gives it, under the shared <code>homedir</code>.
+ *
+ * @version $Id$
+ */
+public class LogStorageManager extends StorageManager {
+
+    public static final byte PUT = 1;
+    public static final byte DELETE = 2;
+    public static final byte RECYCLE_PUT = 3;
+    public static final byte RECYCLE_DELETE = 4;
+
+    /**
+     * Orders keys as the by_guid table does: by guid first, then as the
+     * primary table does.
+     */
+    public static final Comparator<Key> GUID_ORDER = new Comparator<Key>() {
+        public int compare (Key a, Key b) {
+            int result = a.guid.compareTo (b.guid);
+            if (result != 0)
+                return result;
+            return a.compareTo (b);
+        }
+    };
+
+    /**
+     * Orders keys as the by_guid_and_data_hash table does; keys that differ
+     * only in their time, ttl, put/remove bit, or client are equal.
+     */
+    public static final Comparator<Key> GUID_AND_HASH_ORDER =
+        new Comparator<Key>() {
+        public int compare (Key a, Key b) {
+            int result = a.guid.compareTo (b.guid);
+            if (result != 0)
+                return result;
+            for (int i = 0; i < a.secret_hash.length; ++i) {
+                if ((result = a.secret_hash [i] - b.secret_hash [i]) != 0)
+                    return result;
+            }
+            for (int i = 0; i < a.data_hash.length; ++i) {
+                if ((result = a.data_hash [i] - b.data_hash [i]) != 0)
+                    return result;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Orders keys as the by_expiry table does: by expiry time first, then
+     * as the primary table does.
+     */
+    public static final Comparator<Key> EXPIRY_ORDER = new Comparator<Key>() {
+        public int compare (Key a, Key b) {
+            long ae = a.expiryTime (), be = b.expiryTime ();
+            if (ae < be)
+                return -1;
+            if (ae > be)
+                return 1;
+            return a.compareTo (b);
+        }
+    };
+
+    /**
+     * An index entry; shared by all the indexes a tuple is in, so that
+     * compaction only has to update the locator once.
+     */
+    protected static class Entry {
+        public Key key;
+        public SegmentLog.Locator loc;
+        public Entry (Key k, SegmentLog.Locator l) { key = k; loc = l; }
+    }
+
+    protected static class LGBGCont {
+        public BigInteger guid;
+        public Key last;
+        public boolean primary;
+        public Key placemark;
+        public LGBGCont (BigInteger g, Key l, boolean p, Key pl) {
+            guid = g; last = l; primary = p; placemark = pl;
+        }
+    }
+
+    protected static class LGBTCont {
+        public Key last;
+        public long low, high;
+        public LGBTCont (Key l, long lo, long h) {
+            last = l; low = lo; high = h;
+        }
+    }
+
+    protected static class LIBGCont {
+        public Key last;
+        public BigInteger low, high;
+        public LIBGCont (Key l, BigInteger lo, BigInteger h) {
+            last = l; low = lo; high = h;
+        }
+    }
+
+    protected SegmentLog log;
+    protected double compaction_threshold;
+
+    protected TreeMap<Key,Entry> time_index = new TreeMap<Key,Entry>();
+    protected TreeMap<Key,Entry> guid_index =
+        new TreeMap<Key,Entry>(GUID_ORDER);
+    protected TreeMap<Key,Entry> guid_and_hash_index =
+        new TreeMap<Key,Entry>(GUID_AND_HASH_ORDER);
+    protected TreeMap<Key,Entry> expiry_index =
+        new TreeMap<Key,Entry>(EXPIRY_ORDER);
+    protected TreeMap<Key,Entry> recycling_index =
+        new TreeMap<Key,Entry>(GUID_ORDER);
+    protected Map<InetAddress,Long> client_usage =
+        new HashMap<InetAddress,Long>();
+
+    protected long compactions, compaction_bytes_reclaimed;
+
+    protected void open_database (ConfigDataIF config, String homedir)
+        throws Exception {
+
+        int segment_size =
+            configGetInt(config, "segment_size", 64*1024*1024);
+        compaction_threshold =
+            configGetDouble(config, "compaction_threshold", 0.5);
+
+        long start_ms = now_ms ();
+        logger.info ("Replaying log");
+        log = new SegmentLog (new File (homedir), segment_size);
+
+        // Find the most recent record for each key.  Compaction moves
+        // records between segments, so this is not necessarily the last one
+        // in log order.
+
+        final Map<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>> primary =
+            new HashMap<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>>();
+        final Map<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>> recycled =
+            new HashMap<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>>();
+        log.replay (new SegmentLog.RecordVisitor () {
+            public void visit (long seq, byte type, Key k,
+                               SegmentLog.Locator loc) {
+                Map<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>> m =
+                    ((type == PUT) || (type == DELETE)) ? primary : recycled;
+                Pair<Long,Pair<Byte,SegmentLog.Locator>> existing = m.get (k);
+                if ((existing == null)
+                    || (existing.first.longValue () < seq)) {
+                    m.put (k, Pair.create (new Long (seq),
+                                Pair.create (new Byte (type), loc)));
+                }
+            }
+        });
+
+        for (Map.Entry<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>> e :
+                 primary.entrySet ()) {
+            Key k = e.getKey ();
+            Pair<Byte,SegmentLog.Locator> p = e.getValue ().second;
+            if ((p.first.byteValue () == PUT) && (! key_expired (k))) {
+                add_primary (k, p.second);
+                Long old = client_usage.get (k.client_id);
+                client_usage.put (k.client_id, new Long (
+                            (old == null ? 0 : old.longValue ())
+                            + p.second.size + Key.SIZE));
+            }
+        }
+        for (Map.Entry<Key,Pair<Long,Pair<Byte,SegmentLog.Locator>>> e :
+                 recycled.entrySet ()) {
+            Key k = e.getKey ();
+            Pair<Byte,SegmentLog.Locator> p = e.getValue ().second;
+            if ((p.first.byteValue () == RECYCLE_PUT) && (! key_expired (k))) {
+                recycling_index.put (k, new Entry (k, p.second));
+                log.add_live (p.second);
+            }
+        }
+
+        logger.info ("Replayed " + log.segment_count () + " segments with "
+                + time_index.size () + " tuples and "
+                + recycling_index.size () + " recycled tuples in "
+                + ((now_ms () - start_ms) / 1000.0) + " seconds");
+    }
+
+    protected Thread shutdown_hook () {
+        return new Thread () {
+            public void run () {
+                logger.info ("shutdown hook syncing log");
+                log.sync ();
+                logger.info ("shutdown hook sync complete");
+            }
+        };
+    }
+
+    /**
+     * The in-memory indexes and the log aren't thread safe, so even reads
+     * hold the write lock when there is more than one worker thread.
+     */
+    protected boolean read_only (QueueElementIF item) {
+        return false;
+    }
+
+    protected BigInteger continuation_guid (Object continuation) {
+        if (continuation instanceof LGBGCont)
+            return ((LGBGCont) continuation).guid;
+        if (continuation instanceof LIBGCont)
+            return ((LIBGCont) continuation).low;
+        return null;
+    }
+
+    protected void the_real_handle_event (QueueElementIF item) {
+        if (item instanceof SyncAlarm) {
+            log.sync ();
+            classifier.dispatch_later (item, 30*1000 + rand.nextInt (60*1000));
+        }
+        else {
+            if (item instanceof Alarm)
+                compact ();
+            super.the_real_handle_event (item);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //                    Index maintenance
+    //
+    /////////////////////////////////////////////////////////////////
+
+    protected void add_primary (Key k, SegmentLog.Locator loc) {
+        Entry e = new Entry (k, loc);
+        time_index.put (k, e);
+        guid_index.put (k, e);
+        guid_and_hash_index.put (k, e);
+        expiry_index.put (k, e);
+        log.add_live (loc);
+    }
+
+    /**
+     * Removes a tuple from the primary indexes.  A tombstone must be
+     * written unless the tuple has expired, since otherwise an older record
+     * for the same key would come back to life on replay.  Expired tuples
+     * need no tombstone: every record for a key has the same expiry time,
+     * and replay ignores expired records.
+     */
+    protected Entry remove_primary (Key k, boolean tombstone) {
+        Entry e = time_index.remove (k);
+        guid_index.remove (k);
+        guid_and_hash_index.remove (k);
+        expiry_index.remove (k);
+        log.remove_live (e.loc);
+        if (tombstone) {
+            try { log.append (DELETE, k, null); }
+            catch (IOException ex) { BUG (ex); }
+        }
+        storage_changed (false /* removed */, k, e.loc.size);
+        return e;
+    }
+
+    protected void remove_recycled (Key k, boolean tombstone) {
+        Entry e = recycling_index.remove (k);
+        log.remove_live (e.loc);
+        if (tombstone) {
+            try { log.append (RECYCLE_DELETE, k, null); }
+            catch (IOException ex) { BUG (ex); }
+        }
+    }
+
+    protected void drop_expired (Key k) {
+        Entry e = remove_primary (k, false);
+        log_dropped (k, e.loc.size, false);
+        if (value_cache != null)
+            value_cache.invalidate (k.guid);
+    }
+
+    protected void storage_changed (boolean added, Key k, int size) {
+        Long old = client_usage.get (k.client_id);
+        long old_usage = (old == null) ? 0 : old.longValue ();
+        long new_usage = added
+            ? old_usage + size + Key.SIZE : old_usage - size - Key.SIZE;
+        client_usage.put (k.client_id, new Long (new_usage));
+        notify_monitors (added, k, size);
+    }
+
+    public void handle_add_monitor (AddMonitor event) {
+        storage_monitors.add(event.monitor);
+        if (logger.isDebugEnabled())
+            logger.debug ("added monitor " + event.monitor);
+        for (Map.Entry<InetAddress,Long> e : client_usage.entrySet ()) {
+            notify_storage_changed (event.monitor, true, e.getKey (),
+                                    e.getValue ().longValue ());
+        }
+    }
+
+    /**
+     * Returns the first unexpired entry in <code>index</code> at or after
+     * <code>from</code> (strictly after, if <code>inclusive</code> is
+     * false), dropping any expired entries passed over along the way.
+     */
+    protected Entry next_live (TreeMap<Key,Entry> index, Key from,
+                               boolean inclusive) {
+        LinkedList<Key> expired = null;
+        Entry result = null;
+        for (Entry e : index.tailMap (from).values ()) {
+            if ((! inclusive) && (index.comparator () == null
+                        ? e.key.compareTo (from) == 0
+                        : index.comparator ().compare (e.key, from) == 0))
+                continue;
+            if (key_expired (e.key)) {
+                if (expired == null)
+                    expired = new LinkedList<Key>();
+                expired.addLast (e.key);
+                continue;
+            }
+            result = e;
+            break;
+        }
+        if (expired != null) {
+            for (Key k : expired) {
+                if (index == recycling_index) {
+                    if (logger.isDebugEnabled ())
+                        logger.debug ("dropping recycled k=" + k);
+                    remove_recycled (k, false);
+                }
+                else {
+                    if (logger.isDebugEnabled ())
+                        logger.debug ("dropping k=" + k);
+                    drop_expired (k);
+                }
+            }
+        }
+        return result;
+    }
+
+    protected void handle_expiry_sweep (ExpirySweep item) {
+        if (to_bdb_thread_size () > expiry_sweep_max_queue) {
+            classifier.dispatch_later (item, expiry_sweep_interval);
+            return;
+        }
+
+        long start_ms = timer_ms ();
+        long now_usec = now_ms () * 1000;
+        int tuples = 0;
+        long bytes = 0;
+        while ((tuples < expiry_sweep_batch) && (! expiry_index.isEmpty ())) {
+            Key k = expiry_index.firstKey ();
+            if (k.expiryTime () >= now_usec)
+                break;
+            Entry e = remove_primary (k, false);
+            log_dropped (k, e.loc.size, false);
+            ++tuples;
+            bytes += e.loc.size + Key.SIZE;
+        }
+        finish_expiry_sweep (item, tuples, bytes, start_ms);
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //                          Puts
+    //
+    /////////////////////////////////////////////////////////////////
+
+    protected void handle_put_req (PutReq req) {
+        application_enqueue (req.comp_q, put_in_log (req));
+    }
+
+    /**
+     * Each put is a single append, so there is no transaction to share;
+     * the batch is just applied in order.
+     */
+    protected void handle_put_batch (LinkedList<PutReq> batch) {
+        ++put_batch_count;
+        put_batch_puts += batch.size ();
+        if (batch.size () > put_batch_max)
+            put_batch_max = batch.size ();
+        for (PutReq req : batch)
+            application_enqueue (req.comp_q, put_in_log (req));
+    }
+
+    /**
+     * Mirrors StorageManager.put_in_xact: there is at most one put or one
+     * remove stored for each (guid, secret_hash, data_hash) triple.
+     */
+    protected PutResp put_in_log (PutReq req) {
+        if (logger.isDebugEnabled())
+            logger.debug("doing put, key=" + req.key);
+
+        Key inval_put_key = null;
+        ByteBuffer inval_put_data = null;
+        Key inval_rm_key = null;
+        ByteBuffer inval_rm_data = null;
+        boolean do_put = true;
+
+        Entry existing = guid_and_hash_index.get (req.key);
+        if (existing != null) {
+            Key k = existing.key;
+            if (logger.isDebugEnabled ())
+                logger.debug ("existing tuple key=" + k);
+
+            if (req.key.compareTo (k) == 0) {
+                // They're the same.
+                do_put = false;
+            }
+            else if (req.key.put && k.put) {
+                if (req.key.expiryTime() <= k.expiryTime()) {
+                    // This put will expire before the existing put.
+                    do_put = false;
+                    inval_put_key = req.key;
+                    inval_put_data = req.data;
+                }
+                else {
+                    inval_put_key = k;
+                    inval_put_data = log.read (existing.loc);
+                    remove_primary (k, true);
+                }
+            }
+            else if (req.key.put && (! k.put)) {
+                // We have an existing remove.  Lose the new put.
+                do_put = false;
+                inval_put_key = req.key;
+                inval_put_data = req.data;
+            }
+            else if ((! req.key.put) && (! k.put)) {
+                if (req.key.expiryTime() <= k.expiryTime()) {
+                    // This remove will expire before the existing remove.
+                    do_put = false;
+                    inval_rm_key = req.key;
+                    inval_rm_data = req.data;
+                }
+                else {
+                    inval_rm_key = k;
+                    inval_rm_data = log.read (existing.loc);
+                    remove_primary (k, true);
+                }
+            }
+            else {
+                // This remove invalidates the existing put.
+                inval_put_key = k;
+                inval_put_data = log.read (existing.loc);
+                remove_primary (k, true);
+            }
+        }
+
+        if (do_put) {
+            SegmentLog.Locator loc = null;
+            try { loc = log.append (PUT, req.key, req.data); }
+            catch (IOException e) { BUG (e); }
+            add_primary (req.key, loc);
+            storage_changed (true /* added */, req.key, loc.size);
+            log_put (req.key, loc.size, inval_put_key, inval_rm_key);
+        }
+
+        return new PutResp (inval_put_key, inval_put_data,
+		inval_rm_key, inval_rm_data, req.user_data);
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //                          Gets
+    //
+    /////////////////////////////////////////////////////////////////
+
+    protected void handle_get_by_key_req (GetByKeyReq req) {
+	if (key_expired(req.key)) {
+	    if (logger.isDebugEnabled ())
+                logger.debug("dropping in handle_get_by_key_req");
+	    handle_discard_req (new DiscardReq(req.key, false));
+	    application_enqueue(req.comp_q,
+                                new GetByKeyResp (req.key, (ByteBuffer) null,
+                                                  req.user_data));
+	    return;
+	}
+
+        Entry e = time_index.get (req.key);
+        application_enqueue (req.comp_q, new GetByKeyResp (
+                    req.key, (e == null) ? null : log.read (e.loc),
+                    req.user_data));
+    }
+
+    protected Key guid_start_key (BigInteger guid, Key placemark) {
+        if ((placemark == null) || (placemark.equals (ZERO_KEY))) {
+            // If no placemark, start at the beginning.
+            return new Key(0L, 0, guid, ZERO_HASH, ZERO_HASH, false,
+                           ZERO_CLIENT);
+        }
+        return placemark;
+    }
+
+    protected void handle_get_by_guid_req (GetByGuidReq req) {
+        LGBGCont cont = new LGBGCont (req.guid, null, req.primary,
+                                      req.placemark);
+        finish_get_by_guid (cont, guid_start_key (req.guid, req.placemark),
+                            true, req.comp_q, req.user_data);
+    }
+
+    protected void handle_get_by_guid_cont (GetByGuidCont req) {
+        LGBGCont cont = (LGBGCont) req.continuation;
+        if ((! cont.primary) && req.del
+            && recycling_index.containsKey (cont.last)) {
+            remove_recycled (cont.last, true);
+        }
+        if (req.comp_q != null)
+            finish_get_by_guid (cont, cont.last, false, req.comp_q,
+                                req.user_data);
+    }
+
+    protected void finish_get_by_guid (LGBGCont cont, Key from,
+                                       boolean inclusive, SinkIF comp_q,
+                                       Object user_data) {
+        TreeMap<Key,Entry> index = cont.primary ? guid_index : recycling_index;
+        Entry e = next_live (index, from, inclusive);
+        if (cont.primary && (e != null) && (cont.placemark != null)
+            && (e.key.compareTo (cont.placemark) == 0)) {
+            if (logger.isDebugEnabled ())
+                logger.debug ("first key equal to placemark.  Skipping it.");
+            e = next_live (index, e.key, false);
+        }
+        if ((e == null) || (cont.primary && ! e.key.guid.equals (cont.guid))) {
+            application_enqueue (comp_q,
+                    new GetByGuidResp (null, null, null, user_data));
+        }
+        else {
+            cont.last = e.key;
+            application_enqueue (comp_q,
+                    new GetByGuidResp (e.key, log.read (e.loc), cont,
+                                       user_data));
+        }
+    }
+
+    protected void handle_get_by_guid_batch_req (GetByGuidBatchReq req) {
+        LinkedList<Pair<Key,ByteBuffer>> values =
+            new LinkedList<Pair<Key,ByteBuffer>>();
+        boolean all_read = true;
+        int size = 0;
+        Key from = guid_start_key (req.guid, req.placemark);
+        Entry e = next_live (guid_index, from, true);
+        while ((e != null) && e.key.guid.equals (req.guid)) {
+            if (((req.placemark == null)
+                 || (e.key.compareTo (req.placemark) != 0))
+                && e.key.put) {
+                int vsize = e.loc.size + req.per_value_overhead;
+                if ((size + vsize > req.maxbytes)
+                    || (values.size () >= req.maxvals)) {
+                    all_read = false;
+                    break;
+                }
+                size += vsize;
+                values.addLast (Pair.create (e.key, log.read (e.loc)));
+            }
+            e = next_live (guid_index, e.key, false);
+        }
+        finish_get_by_guid_batch (req, values, all_read);
+    }
+
+    protected void handle_get_by_time_req (GetByTimeReq req) {
+        Key k = new Key(req.low, 0, ZERO_GUID, ZERO_HASH, ZERO_HASH, false,
+                        ZERO_CLIENT);
+        finish_get_by_time (new LGBTCont (null, req.low, req.high), k, true,
+                            req.comp_q, req.user_data);
+    }
+
+    protected void handle_get_by_time_cont (GetByTimeCont req) {
+        LGBTCont cont = (LGBTCont) req.continuation;
+        if (req.comp_q != null)
+            finish_get_by_time (cont, cont.last, false, req.comp_q,
+                                req.user_data);
+    }
+
+    protected void finish_get_by_time (LGBTCont cont, Key from,
+                                       boolean inclusive, SinkIF comp_q,
+                                       Object user_data) {
+        LinkedList<Key> keys = new LinkedList<Key>();
+        Entry e = next_live (time_index, from, inclusive);
+        while ((e != null) && (e.key.time_usec <= cont.high)) {
+            keys.addLast (e.key);
+            if (keys.size () >= 33)
+                break;
+            e = next_live (time_index, e.key, false);
+        }
+        if (keys.isEmpty ()) {
+            application_enqueue (comp_q,
+                    new GetByTimeResp (null, null, user_data));
+        }
+        else {
+            cont.last = keys.getLast ();
+            application_enqueue (comp_q,
+                    new GetByTimeResp (keys, cont, user_data));
+        }
+    }
+
+    protected void handle_iterate_by_guid_req (IterateByGuidReq req) {
+        Key k = new Key (0L, 0, req.low, ZERO_HASH, ZERO_HASH, false,
+                         ZERO_CLIENT);
+        finish_iterate_by_guid (new LIBGCont (null, req.low, req.high), k,
+                                true, req.comp_q, req.user_data);
+    }
+
+    protected void handle_iterate_by_guid_cont (IterateByGuidCont req) {
+        LIBGCont cont = (LIBGCont) req.continuation;
+        if (req.comp_q != null)
+            finish_iterate_by_guid (cont, cont.last, false, req.comp_q,
+                                    req.user_data);
+    }
+
+    protected void finish_iterate_by_guid (LIBGCont cont, Key from,
+                                           boolean inclusive, SinkIF comp_q,
+                                           Object user_data) {
+        Entry e = next_live (guid_index, from, inclusive);
+        if ((e == null) || (e.key.guid.compareTo (cont.high) > 0)) {
+            application_enqueue (comp_q,
+                    new IterateByGuidResp (null, null, null, user_data));
+        }
+        else {
+            cont.last = e.key;
+            application_enqueue (comp_q,
+                    new IterateByGuidResp (e.key, log.read (e.loc), cont,
+                                           user_data));
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //                    Discards and compaction
+    //
+    /////////////////////////////////////////////////////////////////
+
+    protected void handle_discard_req (DiscardReq req) {
+        if (! time_index.containsKey (req.key)) {
+            if (logger.isDebugEnabled())
+                logger.debug ("could not find key " + req.key);
+            return;
+        }
+
+        Entry e = remove_primary (req.key, true);
+        log_dropped (req.key, e.loc.size, req.recycle);
+
+        if (req.recycle) {
+            SegmentLog.Locator loc = null;
+            try { loc = log.append (RECYCLE_PUT, req.key, log.read (e.loc)); }
+            catch (IOException ex) { BUG (ex); }
+            recycling_index.put (req.key, new Entry (req.key, loc));
+            log.add_live (loc);
+        }
+    }
+
+    /**
+     * Compacts the sealed segment with the fewest live bytes, if it is
+     * below the compaction threshold.  Live tuples are copied to the end
+     * of the log with their original sequence numbers, expired ones are
+     * dropped, and tombstones are kept only while some other segment might
+     * still hold a record they shadow.
+     */
+    protected void compact () {
+        final int id = log.compaction_candidate (compaction_threshold);
+        if (id < 0)
+            return;
+
+        long start_ms = now_ms ();
+        long before = log.total_bytes ();
+        log.scan (id, new SegmentLog.RecordVisitor () {
+            public void visit (long seq, byte type, Key k,
+                               SegmentLog.Locator loc) {
+                if ((type == PUT) || (type == RECYCLE_PUT)) {
+                    TreeMap<Key,Entry> index =
+                        (type == PUT) ? time_index : recycling_index;
+                    Entry e = index.get (k);
+                    if ((e == null) || (e.loc.segment != id)
+                        || (e.loc.offset != loc.offset))
+                        return;
+                    if (key_expired (k)) {
+                        if (type == PUT)
+                            drop_expired (k);
+                        else
+                            remove_recycled (k, false);
+                        return;
+                    }
+                    try { e.loc = log.append (seq, type, k, log.read (loc)); }
+                    catch (IOException ex) { BUG (ex); }
+                    log.add_live (e.loc);
+                }
+                else if (log.older_records_exist (id, seq)) {
+                    try { log.append (seq, type, k, null); }
+                    catch (IOException ex) { BUG (ex); }
+                }
+            }
+        });
+
+        // Make sure the copies are on disk before removing the originals.
+        log.sync ();
+        try { log.delete_segment (id); }
+        catch (IOException ex) { BUG (ex); }
+
+        long reclaimed = before - log.total_bytes ();
+        ++compactions;
+        compaction_bytes_reclaimed += reclaimed;
+        if (logger.isInfoEnabled ()) {
+            StringBuffer buf = new StringBuffer (150);
+            buf.append ("compacted segment ");
+            buf.append (id);
+            buf.append (", reclaimed ");
+            byte_cnt_to_sbuf (reclaimed, buf);
+            buf.append (" in ");
+            buf.append (now_ms () - start_ms);
+            buf.append (" ms, total reclaimed ");
+            byte_cnt_to_sbuf (
+                    compaction_bytes_reclaimed, buf);
+            buf.append (" in ");
+            buf.append (compactions);
+            buf.append (" compactions, ");
+            buf.append (log.segment_count ());
+            buf.append (" segments");
+            logger.info (buf);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.db;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import bamboo.util.GuidTools;
+import bamboo.util.StandardStage;
+import seda.sandStorm.api.ConfigDataIF;
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.api.SingleThreadedEventHandlerIF;
+import seda.sandStorm.api.StagesInitializedSignal;
+import static bamboo.db.StorageManager.*;
+
+/**
+ * A regression test and put benchmark for the StorageManager stage.  It
+ * puts <code>put_count</code> values of <code>value_size</code> bytes
+ * under <code>guid_count</code> guids, all at once, and prints how many
+ * puts per second the stage handled.  It then checks that every value can
+ * be read back by key, that each guid's values are found by guid, and that
+ * all of them are found by time.
+ *
+ * <p>If the stage is a LogStorageManager, it goes on to discard three
+ * quarters of the values, moving some to the recycling bin, and to compact
+ * the segments that leaves mostly empty; checks the reads again, along with
+ * the recycling bin; and finally replays the log into a second
+ * LogStorageManager and checks that its indexes, per-client counts, and
+ * values match.  The stage's <code>homedir</code> must be empty at
+ * startup.  Any mismatch is fatal; if all is well, the test prints "all
+ * tests passed" and exits.  Naming <code>bamboo.db.StorageManager</code>
+ * as the stage's class instead gives the same put benchmark for
+ * BerkeleyDB.
+ *
+ * @version $Id$
+ */
+public class LogStorageManagerTest extends StandardStage
+implements SingleThreadedEventHandlerIF {
+
+    protected ConfigDataIF config;
+    protected StorageManager sm;
+    protected LogStorageManager lsm;
+    protected Random rand;
+    protected MessageDigest md;
+    protected int put_count, value_size, guid_count;
+
+    protected long now;
+    protected BigInteger [] guids;
+    protected TreeMap<Key,ByteBuffer> expected = new TreeMap<Key,ByteBuffer>();
+    protected TreeMap<Key,ByteBuffer> recycled = new TreeMap<Key,ByteBuffer>();
+
+    // Which pass of checks is running: 0 before compaction, 1 after.
+    protected int pass;
+    protected int outstanding;
+    protected long start_ms;
+    protected LinkedList<Key> by_time;
+    protected TreeMap<BigInteger,TreeSet<Key>> by_guid;
+    protected TreeMap<Key,ByteBuffer> bin;
+
+    public LogStorageManagerTest () {
+        event_types = new Class [] {
+            StagesInitializedSignal.class,
+            StorageManager.PutResp.class,
+            StorageManager.GetByKeyResp.class,
+            StorageManager.GetByGuidResp.class,
+            StorageManager.GetByTimeResp.class
+        };
+    }
+
+    public void init (ConfigDataIF cfg) throws Exception {
+        super.init (cfg);
+        config = cfg;
+        put_count = configGetInt (config, "put_count", 2000);
+        value_size = configGetInt (config, "value_size", 1024);
+        guid_count = configGetInt (config, "guid_count", 100);
+        rand = new Random (1);
+        md = MessageDigest.getInstance ("SHA");
+    }
+
+    protected byte [] data_hash (ByteBuffer data) {
+        md.update (data.array (), data.arrayOffset (), data.limit ());
+        return md.digest ();
+    }
+
+    public void handleEvent (QueueElementIF item) {
+        if (item instanceof StagesInitializedSignal) {
+            try {
+                sm = (StorageManager) lookup_stage (config, "StorageManager");
+            }
+            catch (Exception e) {
+                BUG (e);
+            }
+            if (sm instanceof LogStorageManager) {
+                lsm = (LogStorageManager) sm;
+                if (! lsm.time_index.isEmpty ())
+                    BUG ("remove " + lsm.homedir () + " before the test");
+            }
+            start_puts ();
+        }
+        else if (item instanceof StorageManager.PutResp) {
+            handle_put_resp ((StorageManager.PutResp) item);
+        }
+        else if (item instanceof StorageManager.GetByKeyResp) {
+            handle_get_by_key_resp ((StorageManager.GetByKeyResp) item);
+        }
+        else if (item instanceof StorageManager.GetByTimeResp) {
+            handle_get_by_time_resp ((StorageManager.GetByTimeResp) item);
+        }
+        else if (item instanceof StorageManager.GetByGuidResp) {
+            handle_get_by_guid_resp ((StorageManager.GetByGuidResp) item);
+        }
+        else {
+            throw new IllegalArgumentException (item.getClass ().getName ());
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //                          Puts
+    //
+    /////////////////////////////////////////////////////////////////
+
+    protected void start_puts () {
+        now = now_ms () * 1000;
+        guids = new BigInteger [guid_count];
+        for (int i = 0; i < guids.length; ++i)
+            guids [i] = GuidTools.random_guid (rand);
+
+        // Make the values first, so as to time only the puts.
+        ArrayList<PutReq> puts = new ArrayList<PutReq>(put_count);
+        for (int i = 0; i < put_count; ++i) {
+            byte [] bytes = new byte [value_size];
+            rand.nextBytes (bytes);
+            ByteBuffer data = ByteBuffer.wrap (bytes);
+            Key key = new Key (now + i, 3600, guids [i % guids.length],
+                               ZERO_HASH, data_hash (data), true, ZERO_CLIENT);
+            expected.put (key, data);
+            puts.add (new PutReq (key, data, my_sink, null));
+        }
+
+        outstanding = put_count;
+        start_ms = timer_ms ();
+        for (PutReq req : puts)
+            dispatch (req);
+    }
+
+    protected void handle_put_resp (StorageManager.PutResp resp) {
+        if ((resp.inval_put_key != null) || (resp.inval_rm_key != null))
+            BUG ("put invalidated " + resp.inval_put_key + " "
+                 + resp.inval_rm_key);
+        if (--outstanding > 0)
+            return;
+        long ms = Math.max (1, timer_ms () - start_ms);
+        logger.info (sm.getClass ().getName () + ": " + put_count
+                + " puts of " + value_size + " bytes in " + ms + " ms, "
+                + (put_count * 1000L / ms) + " puts/s");
+        if (lsm == null) {
+            logger.info ("not a LogStorageManager; skipping the other tests");
+            System.exit (0);
+        }
+        start_checks ();
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //                          Reads
+    //
+    /////////////////////////////////////////////////////////////////
+
+    /**
+     * Reads every value by key, then all of them by time, then each
+     * guid's by guid, and then the recycling bin; checks_done is called
+     * when all of them match.
+     */
+    protected void start_checks () {
+        outstanding = expected.size ();
+        for (Key k : expected.keySet ())
+            dispatch (new GetByKeyReq (k, my_sink, null));
+    }
+
+    protected void handle_get_by_key_resp (StorageManager.GetByKeyResp resp) {
+        ByteBuffer want = expected.get (resp.key);
+        if ((resp.data == null) || (! resp.data.equals (want)))
+            BUG ("wrong value for " + resp.key + " by key");
+        if (--outstanding > 0)
+            return;
+        by_time = new LinkedList<Key>();
+        dispatch (new GetByTimeReq (now, now + put_count, my_sink, null));
+    }
+
+    protected void handle_get_by_time_resp (
+            StorageManager.GetByTimeResp resp) {
+        if (resp.continuation != null) {
+            by_time.addAll (resp.keys);
+            dispatch (new GetByTimeCont (resp.continuation, my_sink, null));
+            return;
+        }
+        if (! by_time.equals (new LinkedList<Key>(expected.keySet ())))
+            BUG ("found " + by_time.size () + " keys by time, expected "
+                 + expected.size ());
+
+        by_guid = new TreeMap<BigInteger,TreeSet<Key>>();
+        outstanding = guids.length;
+        for (int i = 0; i < guids.length; ++i) {
+            by_guid.put (guids [i], new TreeSet<Key>());
+            dispatch (new GetByGuidReq (guids [i], true, null, my_sink,
+                                        guids [i]));
+        }
+    }
+
+    protected void handle_get_by_guid_resp (
+            StorageManager.GetByGuidResp resp) {
+        if (resp.user_data == null) {
+            // Reading the recycling bin.
+            if (resp.continuation != null) {
+                bin.put (resp.key, resp.data);
+                dispatch (new GetByGuidCont (resp.continuation, false,
+                                             my_sink, null));
+            }
+            else {
+                if (! bin.equals (recycled))
+                    BUG ("found " + bin.size () + " recycled values, "
+                         + "expected " + recycled.size ());
+                checks_done ();
+            }
+            return;
+        }
+
+        BigInteger guid = (BigInteger) resp.user_data;
+        if (resp.continuation != null) {
+            if (! resp.data.equals (expected.get (resp.key)))
+                BUG ("wrong value for " + resp.key + " by guid");
+            by_guid.get (guid).add (resp.key);
+            dispatch (new GetByGuidCont (resp.continuation, my_sink, guid));
+            return;
+        }
+        if (--outstanding > 0)
+            return;
+
+        TreeMap<BigInteger,TreeSet<Key>> want =
+            new TreeMap<BigInteger,TreeSet<Key>>();
+        for (int i = 0; i < guids.length; ++i)
+            want.put (guids [i], new TreeSet<Key>());
+        for (Key k : expected.keySet ())
+            want.get (k.guid).add (k);
+        if (! by_guid.equals (want))
+            BUG ("values found by guid don't match");
+
+        bin = new TreeMap<Key,ByteBuffer>();
+        dispatch (new GetByGuidReq (ZERO_GUID, false, null, my_sink, null));
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //
+    //              Discards, compaction, and replay
+    //
+    /////////////////////////////////////////////////////////////////
+
+    protected void checks_done () {
+        logger.info ("checks passed with " + expected.size () + " values and "
+                     + recycled.size () + " recycled values, "
+                     + lsm.log.segment_count () + " segments");
+        if (pass++ == 0) {
+            discard_and_compact ();
+        }
+        else {
+            if (lsm.compactions == 0)
+                BUG ("no segments were compacted");
+            check_replay ();
+            logger.info ("all tests passed");
+            System.exit (0);
+        }
+    }
+
+    /**
+     * Discards three values in four, recycling one in eight, and then has
+     * the stage compact as many segments as there were.  Since the stage
+     * handles requests in order, the checks that follow see the result.
+     */
+    protected void discard_and_compact () {
+        int segments = lsm.log.segment_count ();
+        int i = 0;
+        Iterator<Map.Entry<Key,ByteBuffer>> j = expected.entrySet ().iterator ();
+        while (j.hasNext ()) {
+            Map.Entry<Key,ByteBuffer> e = j.next ();
+            if (i % 4 != 0) {
+                boolean recycle = (i % 8 == 1);
+                dispatch (new DiscardReq (e.getKey (), recycle));
+                if (recycle)
+                    recycled.put (e.getKey (), e.getValue ());
+                j.remove ();
+            }
+            ++i;
+        }
+        for (i = 0; i < segments; ++i)
+            dispatch (new StorageManager.Alarm ());
+        start_checks ();
+    }
+
+    /**
+     * Builds a second LogStorageManager's indexes from the log on disk, as
+     * if after a restart, and checks that they match ours.
+     */
+    protected void check_replay () {
+        LogStorageManager replayed = new LogStorageManager ();
+        try {
+            replayed.open_database (config, lsm.homedir ());
+        }
+        catch (Exception e) {
+            BUG (e);
+        }
+        if (! replayed.time_index.keySet ().equals (expected.keySet ()))
+            BUG ("replayed " + replayed.time_index.size ()
+                 + " values, expected " + expected.size ());
+        if ((replayed.guid_index.size () != expected.size ())
+            || (replayed.guid_and_hash_index.size () != expected.size ())
+            || (replayed.expiry_index.size () != expected.size ()))
+            BUG ("replayed secondary indexes have the wrong size");
+        if (! replayed.recycling_index.keySet ().equals (recycled.keySet ()))
+            BUG ("replayed " + replayed.recycling_index.size ()
+                 + " recycled values, expected " + recycled.size ());
+        if (! replayed.client_usage.equals (lsm.client_usage))
+            BUG ("replayed client usage " + replayed.client_usage
+                 + " doesn't match " + lsm.client_usage);
+        for (Map.Entry<Key,ByteBuffer> e : expected.entrySet ()) {
+            LogStorageManager.Entry r = replayed.time_index.get (e.getKey ());
+            if (! replayed.log.read (r.loc).equals (e.getValue ()))
+                BUG ("wrong value for " + e.getKey () + " after replay");
+        }
+        for (Map.Entry<Key,ByteBuffer> e : recycled.entrySet ()) {
+            LogStorageManager.Entry r =
+                replayed.recycling_index.get (e.getKey ());
+            if (! replayed.log.read (r.loc).equals (e.getValue ()))
+                BUG ("wrong recycled value for " + e.getKey ()
+                     + " after replay");
+        }
+        logger.info ("replay matches, with " + replayed.log.segment_count ()
+                     + " segments after " + lsm.compactions + " compactions");
+    }
+}
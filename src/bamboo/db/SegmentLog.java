@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records spread over a sequence of fixed-size,
+ * memory-mapped segment files, used by {@link LogStorageManager}.
+ *
+ * <p>Each record is laid out as follows:
+ * <table>
+ * <tr><td>Bytes</td><td>Data</td></tr>
+ * <tr><td> 0-3 </td><td>length of the rest of the record</td></tr>
+ * <tr><td> 4-7 </td><td>CRC32 of the rest of the record</td></tr>
+ * <tr><td> 8-15</td><td>sequence number</td></tr>
+ * <tr><td> 16  </td><td>record type</td></tr>
+ * <tr><td> 17-93</td><td>StorageManager.Key in its on-disk format</td></tr>
+ * <tr><td> 94- </td><td>data</td></tr>
+ * </table>
+ * Segment files are zero-filled when created, so a length of zero marks the
+ * end of the records in a segment; a bad checksum marks a write that was
+ * torn by a crash, and everything after it in that segment is ignored.
+ * Records are never modified in place.  Because compaction copies live
+ * records forward into newer segments, log order is not record order;
+ * sequence numbers are what say which of two records for the same key is
+ * the more recent.
+ *
+ * <p>This class is not thread safe; the LogStorageManager only calls it
+ * from its database thread.
+ *
+ * @version $Id$
+ */
+public class SegmentLog {
+
+    public static final int HEADER_SIZE = 17 + StorageManager.Key.SIZE;
+
+    /**
+     * The location of a record in the log.
+     */
+    public static class Locator {
+        public int segment;
+        public int offset;
+        public int size;
+        public Locator (int g, int o, int s) {
+            segment = g; offset = o; size = s;
+        }
+        public String toString () {
+            return "(Locator segment=" + segment + " offset=" + offset
+                + " size=" + size + ")";
+        }
+    }
+
+    /**
+     * Called once for every intact record in the log by {@link #replay}.
+     */
+    public interface RecordVisitor {
+        void visit (long seq, byte type, StorageManager.Key key,
+                    Locator loc);
+    }
+
+    protected static class Segment {
+        public int id;
+        public File file;
+        public MappedByteBuffer map;
+        public int write_pos;
+        public int live_bytes;
+        public long min_seq = Long.MAX_VALUE;
+        public boolean dirty;
+        public Segment (int i, File f, MappedByteBuffer m) {
+            id = i; file = f; map = m;
+        }
+    }
+
+    protected File directory;
+    protected int segment_size;
+    protected TreeMap<Integer,Segment> segments =
+        new TreeMap<Integer,Segment>();
+    protected Segment active;
+    protected long next_seq = 1;
+    protected CRC32 crc = new CRC32 ();
+    protected byte [] key_buf = new byte [StorageManager.Key.SIZE];
+
+    public SegmentLog (File dir, int seg_size) throws IOException {
+        directory = dir; segment_size = seg_size;
+        File [] files = directory.listFiles ();
+        if (files != null) {
+            for (int i = 0; i < files.length; ++i) {
+                String name = files [i].getName ();
+                if (name.startsWith ("segment-") && name.endsWith (".log")) {
+                    int id = Integer.parseInt (
+                            name.substring (8, name.length () - 4));
+                    segments.put (new Integer (id),
+                                  new Segment (id, files [i],
+                                               map (files [i], 0)));
+                }
+            }
+        }
+    }
+
+    protected static MappedByteBuffer map (File f, int size)
+        throws IOException {
+        RandomAccessFile raf = new RandomAccessFile (f, "rw");
+        try {
+            if (raf.length () < size)
+                raf.setLength (size);
+            FileChannel ch = raf.getChannel ();
+            return ch.map (FileChannel.MapMode.READ_WRITE, 0, raf.length ());
+        }
+        finally {
+            raf.close ();
+        }
+    }
+
+    /**
+     * Reads every intact record in every segment, in segment order, and
+     * positions the log for appending after the last of them.  Must be
+     * called once before any other method.
+     */
+    public void replay (RecordVisitor v) {
+        for (Segment seg : segments.values ()) {
+            ByteBuffer bb = seg.map.duplicate ();
+            int pos = 0;
+            while (pos + 8 <= bb.capacity ()) {
+                int len = bb.getInt (pos);
+                if ((len < HEADER_SIZE - 8) || (pos + 8 + len > bb.capacity ()))
+                    break;
+                if (checksum (bb, pos + 8, len) != bb.getInt (pos + 4))
+                    break;
+                long seq = bb.getLong (pos + 8);
+                byte type = bb.get (pos + 16);
+                bb.position (pos + 17);
+                bb.get (key_buf);
+                StorageManager.Key k =
+                    new StorageManager.Key (ByteBuffer.wrap (key_buf));
+                if (seq < seg.min_seq)
+                    seg.min_seq = seq;
+                if (seq >= next_seq)
+                    next_seq = seq + 1;
+                v.visit (seq, type, k,
+                         new Locator (seg.id, pos, len - (HEADER_SIZE - 8)));
+                pos += 8 + len;
+            }
+            seg.write_pos = pos;
+            active = seg;
+        }
+    }
+
+    protected int checksum (ByteBuffer bb, int pos, int len) {
+        crc.reset ();
+        if (bb.hasArray ()) {
+            crc.update (bb.array (), bb.arrayOffset () + pos, len);
+        }
+        else {
+            byte [] tmp = new byte [len];
+            ByteBuffer dup = bb.duplicate ();
+            dup.position (pos);
+            dup.get (tmp);
+            crc.update (tmp, 0, len);
+        }
+        return (int) crc.getValue ();
+    }
+
+    /**
+     * Appends a record with a new sequence number.
+     */
+    public Locator append (byte type, StorageManager.Key k, ByteBuffer data)
+        throws IOException {
+        return append (next_seq++, type, k, data);
+    }
+
+    /**
+     * Appends a record with the given sequence number; used to copy
+     * records forward during compaction.
+     */
+    public Locator append (long seq, byte type, StorageManager.Key k,
+                           ByteBuffer data) throws IOException {
+        int dlen = (data == null) ? 0 : data.limit () - data.position ();
+        int total = HEADER_SIZE + dlen;
+        if ((active == null)
+            || (active.write_pos + total + 4 > active.map.capacity ())) {
+            int id = (active == null) ? 0 : active.id + 1;
+            File f = new File (directory,
+                               "segment-" + pad (id) + ".log");
+            // Leave room for the zero that marks the end of the segment.
+            active = new Segment (id, f,
+                    map (f, Math.max (segment_size, total + 4)));
+            segments.put (new Integer (id), active);
+        }
+
+        int pos = active.write_pos;
+        ByteBuffer bb = active.map.duplicate ();
+        bb.position (pos + 8);
+        bb.putLong (seq);
+        bb.put (type);
+        k.to_byte_buffer (bb);
+        if (dlen > 0)
+            bb.put (data.duplicate ());
+        bb.putInt (pos + 4, checksum (bb, pos + 8, total - 8));
+        // Write the length last, so that a partial record is never valid.
+        bb.putInt (pos, total - 8);
+
+        active.write_pos += total;
+        active.dirty = true;
+        if (seq < active.min_seq)
+            active.min_seq = seq;
+        return new Locator (active.id, pos, dlen);
+    }
+
+    protected static String pad (int id) {
+        String s = Integer.toString (id);
+        while (s.length () < 8)
+            s = "0" + s;
+        return s;
+    }
+
+    /**
+     * Returns a copy of the data stored in the record at the given location.
+     */
+    public ByteBuffer read (Locator loc) {
+        Segment seg = segments.get (new Integer (loc.segment));
+        byte [] result = new byte [loc.size];
+        ByteBuffer bb = seg.map.duplicate ();
+        bb.position (loc.offset + HEADER_SIZE);
+        bb.get (result);
+        return ByteBuffer.wrap (result);
+    }
+
+    /**
+     * Returns the sequence number of the record at the given location.
+     */
+    public long seq (Locator loc) {
+        return segments.get (new Integer (loc.segment)).map.getLong (
+                loc.offset + 8);
+    }
+
+    public void add_live (Locator loc) {
+        segments.get (new Integer (loc.segment)).live_bytes +=
+            HEADER_SIZE + loc.size;
+    }
+
+    public void remove_live (Locator loc) {
+        segments.get (new Integer (loc.segment)).live_bytes -=
+            HEADER_SIZE + loc.size;
+    }
+
+    /**
+     * Returns the id of the sealed (non-active) segment with the smallest
+     * fraction of live bytes, if that fraction is below
+     * <code>threshold</code>; otherwise returns -1.
+     */
+    public int compaction_candidate (double threshold) {
+        int result = -1;
+        double best = threshold;
+        for (Segment seg : segments.values ()) {
+            if (seg == active)
+                continue;
+            double frac = ((double) seg.live_bytes) / seg.map.capacity ();
+            if (frac < best) {
+                best = frac;
+                result = seg.id;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether any segment other than the given one might hold a record
+     * with a sequence number less than <code>seq</code>; if not, a
+     * tombstone with that sequence number no longer shadows anything.
+     */
+    public boolean older_records_exist (int except, long seq) {
+        for (Segment seg : segments.values ()) {
+            if ((seg.id != except) && (seg.min_seq < seq))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Calls <code>v</code> on every record in the given segment, in log
+     * order.
+     */
+    public void scan (int id, RecordVisitor v) {
+        Segment seg = segments.get (new Integer (id));
+        ByteBuffer bb = seg.map.duplicate ();
+        int pos = 0;
+        while (pos < seg.write_pos) {
+            int len = bb.getInt (pos);
+            long seq = bb.getLong (pos + 8);
+            byte type = bb.get (pos + 16);
+            bb.position (pos + 17);
+            bb.get (key_buf);
+            StorageManager.Key k =
+                new StorageManager.Key (ByteBuffer.wrap (key_buf));
+            v.visit (seq, type, k,
+                     new Locator (seg.id, pos, len - (HEADER_SIZE - 8)));
+            pos += 8 + len;
+        }
+    }
+
+    /**
+     * Removes a segment, all of whose live records must already have been
+     * copied elsewhere.
+     */
+    public void delete_segment (int id) throws IOException {
+        Segment seg = segments.remove (new Integer (id));
+        assert seg != active;
+        seg.map = null;
+        if (! seg.file.delete ())
+            throw new IOException ("could not delete " + seg.file);
+    }
+
+    /**
+     * Flushes all modified segments to disk.
+     */
+    public void sync () {
+        Iterator<Segment> i = segments.values ().iterator ();
+        while (i.hasNext ()) {
+            Segment seg = i.next ();
+            if (seg.dirty) {
+                seg.map.force ();
+                seg.dirty = false;
+            }
+        }
+    }
+
+    public int segment_count () { return segments.size (); }
+
+    public long total_bytes () {
+        long result = 0;
+        for (Segment seg : segments.values ())
+            result += seg.write_pos;
+        return result;
+    }
+
+    public long live_bytes () {
+        long result = 0;
+        for (Segment seg : segments.values ())
+            result += seg.live_bytes;
+        return result;
+    }
+}
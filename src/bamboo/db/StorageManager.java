@@ -10,7 +10,9 @@ package bamboo.db;
 import bamboo.lss.ASyncCore;
 import bamboo.lss.NioInputBuffer;
 import bamboo.lss.NioOutputBuffer;
+import bamboo.util.AccessLog;
 import bamboo.util.GuidTools;
+import bamboo.util.Pair;
 import bamboo.util.StandardStage;
 import com.sleepycat.db.*;
 import java.io.File;
@@ -83,6 +85,16 @@ implements SingleThreadedEventHandlerIF {
         void storage_changed (boolean added, InetAddress client_id, long size);
     }
 
+    /**
+     * A <code>StorageMonitor</code> that also wants to know which keys are
+     * added to and removed from the database, as by puts, discards, and
+     * the expiration of data.  Only changes made after it is registered
+     * are reported, in the order they were made, in the main thread.
+     */
+    public interface KeyMonitor extends StorageMonitor {
+        void key_changed (boolean added, Key key);
+    }
+
     protected boolean print_open_cursors = false;
 
     protected Set storage_monitors = new HashSet ();
@@ -160,31 +172,59 @@ implements SingleThreadedEventHandlerIF {
         ByteBuffer bb = ByteBuffer.wrap (new_bytes);
         bb.putLong (new_usage);
 
-        if (logger.isInfoEnabled()) {
-            StringBuffer buf = new StringBuffer(256);
-            buf.append("client ");
-            buf.append(fk.client_id.getHostAddress());
-            buf.append(", ");
-            buf.append((added ? "+" : "-"));
-            buf.append(size + Key.SIZE);
-            buf.append(" bytes, old=");
-            byte_cnt_to_sbuf(old_usage, buf);
-            buf.append(", new=");
-            byte_cnt_to_sbuf(new_usage, buf);
-            logger.info(buf);
+        AccessLog.Record r = usage_log.record ();
+        if (r != null) {
+            r.a = fk.client_id;
+            r.x = added ? 1 : 0;
+            r.y = size + Key.SIZE;
+            r.z = old_usage;
+            r.w = new_usage;
+            r.log ();
         }
 
         Dbt newval = new Dbt (new_bytes);
         try { retval = client_counts.put (xact, key, newval, 0); }
         catch (DbException e) { BUG(e); }
 
+        notify_monitors (added, fk, size);
+    }
+
+    protected AccessLog.Type usage_log = new AccessLog.Type ("usage", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
+            buf.append("client ");
+            buf.append(((InetAddress) r.a).getHostAddress());
+            buf.append(", ");
+            buf.append(((r.x != 0) ? "+" : "-"));
+            buf.append(r.y);
+            buf.append(" bytes, old=");
+            byte_cnt_to_sbuf(r.z, buf);
+            buf.append(", new=");
+            byte_cnt_to_sbuf(r.w, buf);
+        }
+    };
+
+    /**
+     * Tells all the registered monitors that <code>k</code>, whose data is
+     * <code>size</code> bytes long, was added or removed.
+     */
+    protected void notify_monitors (boolean added, Key k, int size) {
         Iterator si = storage_monitors.iterator();
         while (si.hasNext()) {
-            notify_storage_changed ((StorageMonitor) si.next(),
-                    added, fk.client_id, size + Key.SIZE);
+            StorageMonitor sm = (StorageMonitor) si.next();
+            notify_storage_changed (sm, added, k.client_id, size + Key.SIZE);
+            if (sm instanceof KeyMonitor)
+                notify_key_changed ((KeyMonitor) sm, added, k);
         }
     }
 
+    public void notify_key_changed (final KeyMonitor km,
+                                    final boolean added, final Key k) {
+        // Get back into main thread.
+        acore.registerTimer(0, new Runnable() {
+            public void run() { km.key_changed(added, k); }
+        });
+    }
+
     public void notify_storage_changed (final StorageMonitor sm, 
                                         final boolean added, 
                                         final InetAddress client_id, 
@@ -482,18 +522,78 @@ implements SingleThreadedEventHandlerIF {
         }
     }
 
+    /**
+     * Get as many of the puts (but not removes) in the primary database
+     * whose keys contain the given guid and are greater than the given
+     * placemark as will fit in one response.  At most <code>maxvals</code>
+     * values are returned, and the sum over all values returned of
+     * <code>per_value_overhead</code> plus the length of each value is kept
+     * at or below <code>maxbytes</code>.  Unlike a GetByGuidReq, no cursor
+     * is left open between requests; to read further, issue a new request
+     * with the largest key returned as the placemark.
+     */
+    public static class GetByGuidBatchReq implements QueueElementIF {
+        public BigInteger guid;
+        public Key placemark;
+        public int maxvals;
+        public int maxbytes;
+        public int per_value_overhead;
+        public SinkIF comp_q;
+        public Object user_data;
+        public GetByGuidBatchReq (BigInteger g, Key pl, int mv, int mb,
+                                  int pvo, SinkIF s, Object ud) {
+            guid = g; placemark = pl; maxvals = mv; maxbytes = mb;
+            per_value_overhead = pvo; comp_q = s; user_data = ud;
+        }
+        public String toString () {
+            return "(GetByGuidBatchReq guid=" + GuidTools.guid_to_string (guid)
+                + " placemark=" + placemark + " maxvals=" + maxvals
+                + " maxbytes=" + maxbytes + " comp_q=" + comp_q + ")";
+        }
+    }
+
+    /**
+     * The result of a GetByGuidBatchReq, in key order.  If
+     * <code>all_read</code> is true, there are no more matching values after
+     * the last one returned; otherwise, some were left out because of the
+     * limits in the request.
+     */
+    public static class GetByGuidBatchResp implements QueueElementIF {
+        public LinkedList<Pair<Key,ByteBuffer>> values;
+        public boolean all_read;
+        public Object user_data;
+        public GetByGuidBatchResp (LinkedList<Pair<Key,ByteBuffer>> v,
+                                   boolean a, Object ud) {
+            values = v; all_read = a; user_data = ud;
+        }
+        public String toString () {
+            return "(GetByGuidBatchResp values.size=" + values.size ()
+                + " all_read=" + all_read + ")";
+        }
+    }
+
     /**
      * Get all the data in the database whose keys have timestamps in the
      * range [low, high].  Think of this a creating an iterator on a
      * selection operator, and calling next once.
+     *
+     * <p>When drop_expired_inline is false, expired data still on disk are
+     * skipped unless <code>include_expired</code> is set.  Set it to see
+     * every key the expiry sweep has yet to remove, which is what a
+     * KeyMonitor has been told of.
      */
     public static class GetByTimeReq implements QueueElementIF {
 	public long low, high;
 	public SinkIF comp_q;
         public Object user_data;
+        public boolean include_expired;
 	public GetByTimeReq (long l, long h, SinkIF s, Object ud) {
 	    low = l; high = h; comp_q = s; user_data = ud;
 	}
+	public GetByTimeReq (long l, long h, boolean ie, SinkIF s, Object ud) {
+	    this (l, h, s, ud);
+            include_expired = ie;
+	}
 	public String toString () {
 	    return "(GetByTimeReq low=" + Long.toHexString (low) + " high=" +
                 Long.toHexString (high) + " comp_q=" + comp_q + ")";
@@ -630,13 +730,15 @@ implements SingleThreadedEventHandlerIF {
     protected static class GBTCont {
 	public Dbt key;
 	public long low, high;
-	public GBTCont (Dbt k, long l, long h) {
-	    key = k; low = l; high = h;
+        public boolean include_expired;
+	public GBTCont (Dbt k, long l, long h, boolean ie) {
+	    key = k; low = l; high = h; include_expired = ie;
 	}
     }
 
     protected static class Alarm implements QueueElementIF {}
     protected static class SyncAlarm implements QueueElementIF {}
+    protected static class ExpirySweep implements QueueElementIF {}
 
     protected class ShutdownHook extends Thread {
         public void run() {
@@ -652,24 +754,54 @@ implements SingleThreadedEventHandlerIF {
         }
     }
 
+    protected String homedir;
+
+    /**
+     * The directory of the BerkeleyDB environment.  A node alone in its
+     * process keeps its tables there too.  The virtual nodes of a process
+     * (see DustDevil) share one environment, and so one cache, log, and
+     * lock table; each but the first keeps its tables in a subdirectory
+     * <code>vnode-</code><i>n</i> of it.
+     */
+    protected String env_dir;
+    protected int virtual_nodes;
+
+    /**
+     * The environments open in this process, by directory.
+     */
+    protected static Map<String,DbEnv> shared_envs =
+        new HashMap<String,DbEnv>();
+
+    /**
+     * Returns the directory this node's tables are kept in.
+     */
+    public String homedir () {
+        return homedir;
+    }
+
     protected Db client_counts;
     protected Db by_time;
     protected Db by_guid;
     protected Db by_guid_and_data_hash;
+    protected Db by_expiry;
     protected Db recycling;
     protected DbEnv env;
-    protected LinkedList to_bdb_thread = new LinkedList ();
+    protected DbWorker [] workers = new DbWorker [0];
+    protected LinkedList early_events = new LinkedList ();
+    protected Object write_lock = new Object ();
     protected Map open_cursors = new HashMap ();
 
     public StorageManager () {
         event_types = new Class [] {
             Alarm.class,
             SyncAlarm.class,
+            ExpirySweep.class,
             EnqueueEvent.class,
             PutReq.class,
             GetByKeyReq.class,
             GetByGuidReq.class,
             GetByGuidCont.class,
+            GetByGuidBatchReq.class,
             GetByTimeReq.class,
             GetByTimeCont.class,
 	    IterateByGuidReq.class,
@@ -704,6 +836,29 @@ implements SingleThreadedEventHandlerIF {
             }
         };
 
+    /**
+     * The by_expiry index is keyed by the 8-byte expiry time (in
+     * microseconds since the epoch) of each tuple, so that expired tuples
+     * can be found without scanning the whole database.
+     */
+    DbSecondaryKeyCreate expiry_key_creator =
+        new DbSecondaryKeyCreate () {
+            public int secondaryKeyCreate(Db secdb, Dbt key, Dbt data,
+                                          Dbt result) {
+                ByteBuffer bb = ByteBuffer.wrap (key.getData (),
+                                                 key.getOffset (), 12);
+                long time_usec = bb.getLong ();
+                int ttl_sec = bb.getInt ();
+                byte [] buf = new byte [8];
+                ByteBuffer.wrap (buf).putLong (
+                        time_usec + ((long) ttl_sec) * 1000000);
+                result.setData (buf);
+                result.setOffset (0);
+                result.setSize (buf.length);
+                return 0;
+            }
+        };
+
     protected Random rand;
 
     public void init (ConfigDataIF config) throws Exception {
@@ -712,7 +867,11 @@ implements SingleThreadedEventHandlerIF {
 
 	// Initialize tables
 
-        String homedir = config_get_string (config, "homedir");
+        env_dir = config_get_string (config, "homedir");
+        virtual_nodes = configGetInt(config, "virtual_nodes", 1);
+        int virtual_node = configGetInt(config, "virtual_node", 0);
+        homedir = (virtual_node == 0)
+            ? env_dir : env_dir + "/vnode-" + virtual_node;
         File directory = new File(homedir);
 
         // Create the directory if it doesn't exist.
@@ -729,24 +888,105 @@ implements SingleThreadedEventHandlerIF {
         }
 	boolean print_open_cursors = 
 	    config_get_boolean(config, "print_open_cursors");
-        int cache_size = config_get_int(config, "libdb_cache_size");
-        if (cache_size == -1)
-            cache_size = 1024 * 1024;
-
-        // Open the environment.
-        env = new DbEnv(0);
-        env.setCacheSize(cache_size, 1);
-        env.setFlags(Db.DB_TXN_NOSYNC, true);
-        env.setFlags(Db.DB_LOG_AUTOREMOVE, true);
-        env.open(homedir, Db.DB_INIT_MPOOL | Db.DB_INIT_TXN | Db.DB_INIT_LOCK | 
-                Db.DB_RECOVER | Db.DB_CREATE, 0);
+        db_threads = configGetInt(config, "db_threads", 1);
+        drop_expired_inline = (db_threads == 1);
+        expiry_sweep_batch = configGetInt(config, "expiry_sweep_batch", 1000);
+        expiry_sweep_xact_tuples =
+            configGetInt(config, "expiry_sweep_xact_tuples", 32);
+        if (expiry_sweep_xact_tuples < 1)
+            expiry_sweep_xact_tuples = 1;
+        expiry_sweep_period =
+            configGetInt(config, "expiry_sweep_period", 60*1000);
+        expiry_sweep_interval =
+            configGetInt(config, "expiry_sweep_interval", 1000);
+        expiry_sweep_max_queue =
+            configGetInt(config, "expiry_sweep_max_queue", 10);
+        max_put_batch_count = configGetInt(config, "max_put_batch_count", 16);
+        max_put_batch_bytes =
+            configGetInt(config, "max_put_batch_bytes", 1024*1024);
+        long value_cache_bytes =
+            configGetInt(config, "value_cache_bytes", 0);
+        if (value_cache_bytes > 0)
+            value_cache = new ValueCache (value_cache_bytes);
+        config_access_log (config, usage_log);
+        config_access_log (config, put_log);
+        config_access_log (config, drop_log);
+
+        if ((db_threads > 1) && (expiry_sweep_batch <= 0)) {
+            logger.warn ("with db_threads > 1 and no expiry sweeps, "
+                    + "expired tuples are only removed by discards");
+        }
+
+        open_database (config, homedir);
+
+        // Start the BerekelyDB threads.
+
+        if (! sim_running) {
+            workers = new DbWorker [db_threads];
+            for (int i = 0; i < workers.length; ++i) {
+                workers [i] = new DbWorker (i);
+                workers [i].setName ("StorageManager.BerkeleyDbThread-"
+                        + (workers.length == 1 ? "" : i + "-") + my_node_id);
+                workers [i].start ();
+            }
+            while (! early_events.isEmpty ())
+                handleEvent ((QueueElementIF) early_events.removeFirst ());
+        }
+
+        // Setup the shutdown hook.
+
+        Runtime.getRuntime().addShutdownHook(shutdown_hook ());
+
+        rand = new Random (now_ms () ^ my_node_id.hashCode ());
+        classifier.dispatch_later (new SyncAlarm (), 
+                30*1000 + rand.nextInt (60*1000));
+        classifier.dispatch_later (new Alarm (), 
+                30*1000 + rand.nextInt (60*1000));
+        if (expiry_sweep_batch > 0) {
+            classifier.dispatch_later (new ExpirySweep (),
+                    rand.nextInt (expiry_sweep_period));
+        }
+    }
+
+    /**
+     * Opens (and, if necessary, recovers) the BerkeleyDB environment and
+     * tables under <code>homedir</code>.  Called from init before the
+     * database thread is started; subclasses that store tuples some other
+     * way override this.
+     */
+    protected void open_database (ConfigDataIF config, String homedir)
+        throws Exception {
+
+        // The environment is shared by the threads of every virtual node.
+        int thread_flag = ((db_threads > 1) || (virtual_nodes > 1))
+            ? Db.DB_THREAD : 0;
+
+        synchronized (shared_envs) {
+            env = shared_envs.get (env_dir);
+            if (env == null) {
+                int cache_size = config_get_int(config, "libdb_cache_size");
+                if (cache_size == -1)
+                    cache_size = 1024 * 1024;
+
+                // Open the environment.
+                env = new DbEnv(0);
+                env.setCacheSize(cache_size, 1);
+                env.setFlags(Db.DB_TXN_NOSYNC, true);
+                env.setFlags(Db.DB_LOG_AUTOREMOVE, true);
+                env.open(env_dir, Db.DB_INIT_MPOOL | Db.DB_INIT_TXN
+                         | Db.DB_INIT_LOCK | Db.DB_RECOVER | Db.DB_CREATE
+                         | thread_flag, 0);
+                shared_envs.put (env_dir, env);
+            }
+        }
 
         // Open the client counts DB.
 
         DbTxn txn = env.txnBegin(null, Db.DB_TXN_SYNC);
         client_counts = new Db(env, 0);
-        client_counts.open(txn, "client_counts.db", null, Db.DB_BTREE,
-                Db.DB_CREATE | Db.DB_DIRTY_READ, 0);
+        client_counts.open(txn, homedir + "/client_counts.db", null,
+                Db.DB_BTREE,
+                Db.DB_CREATE | Db.DB_DIRTY_READ | thread_flag, 0);
         txn.commit(Db.DB_TXN_SYNC);
 
         // Open the primary DB.
@@ -754,14 +994,14 @@ implements SingleThreadedEventHandlerIF {
         txn = env.txnBegin(null, Db.DB_TXN_SYNC);
         by_time = new Db(env, 0);
         by_time.open(txn, homedir+"/by_time.db", null, Db.DB_BTREE,
-                     Db.DB_CREATE | Db.DB_DIRTY_READ, 0);
+                     Db.DB_CREATE | Db.DB_DIRTY_READ | thread_flag, 0);
 
         // Open the by-guid index.
 
         by_guid = new Db(env, 0);
         by_guid.setFlags(Db.DB_DUPSORT);
         by_guid.open(txn, homedir+"/by_guid.db", null, Db.DB_BTREE,
-                     Db.DB_CREATE | Db.DB_DIRTY_READ, 0);
+                     Db.DB_CREATE | Db.DB_DIRTY_READ | thread_flag, 0);
         by_time.associate(txn, by_guid, guid_key_creator, 0);
 
         // Open the by-guid-and-data-hash index.
@@ -770,10 +1010,19 @@ implements SingleThreadedEventHandlerIF {
         by_guid_and_data_hash.setFlags(Db.DB_DUPSORT);
         by_guid_and_data_hash.open(txn, homedir+"/by_guid_and_data_hash.db",
                                    null, Db.DB_BTREE,
-                                   Db.DB_CREATE | Db.DB_DIRTY_READ, 0);
+                                   Db.DB_CREATE | Db.DB_DIRTY_READ
+                                   | thread_flag, 0);
         by_time.associate(txn, by_guid_and_data_hash,
                           guid_and_data_hash_key_creator, 0);
 
+        // Open the by-expiry index, building it from the primary DB if this
+        // is the first time it has been opened on an existing database.
+
+        by_expiry = new Db(env, 0);
+        by_expiry.setFlags(Db.DB_DUPSORT);
+        by_expiry.open(txn, homedir+"/by_expiry.db", null, Db.DB_BTREE,
+                       Db.DB_CREATE | Db.DB_DIRTY_READ | thread_flag, 0);
+        by_time.associate(txn, by_expiry, expiry_key_creator, Db.DB_CREATE);
 
         txn.commit(Db.DB_TXN_SYNC);
 
@@ -782,7 +1031,7 @@ implements SingleThreadedEventHandlerIF {
         txn = env.txnBegin(null, Db.DB_TXN_SYNC);
         recycling = new Db(env, 0);
         recycling.open(txn, homedir+"/recycling.db", null, Db.DB_BTREE,
-                       Db.DB_CREATE | Db.DB_DIRTY_READ, 0);
+                       Db.DB_CREATE | Db.DB_DIRTY_READ | thread_flag, 0);
         txn.commit(Db.DB_TXN_SYNC);
 
         // Clean the log.
@@ -831,60 +1080,257 @@ implements SingleThreadedEventHandlerIF {
 
             System.exit (1);
         }
- 
-        // Start the BerekelyDB thread.
+    }
 
-        if (! sim_running) {
-            Thread t = new Thread () {
-                public void run () {
-                    try {
-                        while (true) {
-                            QueueElementIF head = null;
-                            int sz = 0;
-                            synchronized (to_bdb_thread) {
-                                while (to_bdb_thread.isEmpty()) {
-                                    try { to_bdb_thread.wait(); }
-                                    catch (InterruptedException e) {}
-                                }
-                                head = (QueueElementIF)
-                                    to_bdb_thread.removeFirst();
-                                sz = to_bdb_thread.size ();
-                                last_dequeue_ms = timer_ms ();
-                            }
-                            if (logger.isDebugEnabled ())
-                                logger.debug ("to_bdb_thread.size()=" + sz);
-                            the_real_handle_event(head);
+    protected Thread shutdown_hook () {
+        return new ShutdownHook ();
+    }
+
+    // For the expiry sweeper.
+    protected int expiry_sweep_batch;
+    protected int expiry_sweep_xact_tuples;
+    protected int expiry_sweep_period;
+    protected int expiry_sweep_interval;
+    protected int expiry_sweep_max_queue;
+    protected long expiry_sweeps, expiry_swept_tuples, expiry_swept_bytes;
+
+    // For put group commit.
+    protected int max_put_batch_count;
+    protected int max_put_batch_bytes;
+    protected long put_batch_count, put_batch_puts, put_batch_max;
+
+    // For the worker threads.
+    protected int db_threads;
+
+    /**
+     * Caches the values under recently read guids, or null if
+     * value_cache_bytes is zero.
+     */
+    protected ValueCache value_cache;
+
+    public ValueCache value_cache () { return value_cache; }
+
+    /**
+     * If true, reads delete the expired tuples they come across, as they
+     * always have.  With more than one worker thread, reads skip them
+     * instead, so that they never write and can run alongside each other
+     * and the writer; the expiry sweeper removes them.
+     */
+    protected boolean drop_expired_inline = true;
+
+    protected static class QueuedEvent {
+        public QueueElementIF item;
+        public long enqueue_ms;
+        public QueuedEvent (QueueElementIF i, long e) {
+            item = i; enqueue_ms = e;
+        }
+    }
+
+    /**
+     * One of the threads that call the_real_handle_event, with its own
+     * queue.  Requests are assigned to workers by the leading bits of their
+     * guids (see worker_for), so requests for any one guid are handled in
+     * the order they arrive.  Requests that may write to the database also
+     * hold write_lock while they run, so there is only ever one writer; see
+     * read_only.
+     */
+    protected class DbWorker extends Thread {
+        public int index;
+        public LinkedList<QueuedEvent> queue = new LinkedList<QueuedEvent>();
+
+        // For the watchdog timer.
+        public long last_dequeue_ms;
+
+        public long handled, total_wait_ms, total_service_ms, max_service_ms;
+
+        public DbWorker (int i) { index = i; }
+
+        public void run () {
+            try {
+                while (true) {
+                    QueuedEvent head = null;
+                    LinkedList<PutReq> batch = null;
+                    int sz = 0;
+                    long start_ms = 0;
+                    synchronized (queue) {
+                        while (queue.isEmpty()) {
+                            try { queue.wait(); }
+                            catch (InterruptedException e) {}
                         }
+                        head = queue.removeFirst();
+                        if ((head.item instanceof PutReq)
+                            && (! queue.isEmpty ())
+                            && (queue.getFirst ().item instanceof PutReq)
+                            && (max_put_batch_count > 1)) {
+                            batch = drain_put_batch (
+                                    queue, (PutReq) head.item);
+                        }
+                        sz = queue.size ();
+                        start_ms = last_dequeue_ms = timer_ms ();
                     }
-                    catch (OutOfMemoryError e) {
-                        bamboo.lss.DustDevilSink.reserve = null;
-                        System.gc ();
-                        logger.fatal ("uncaught error", e);
-                        System.exit (1);
+                    if (logger.isDebugEnabled ())
+                        logger.debug ("to_bdb_thread.size()=" + sz);
+                    if (batch == null) {
+                        run_event (head.item);
+                        end_write (head.item);
                     }
-                    catch (Throwable e) {
-                        logger.fatal ("uncaught exception", e);
-                        System.exit (1);
+                    else {
+                        if (workers.length == 1)
+                            handle_put_batch (batch);
+                        else {
+                            synchronized (write_lock) {
+                                handle_put_batch (batch);
+                            }
+                        }
+                        for (PutReq req : batch)
+                            end_write (req);
+                    }
+                    long end_ms = timer_ms ();
+                    synchronized (queue) {
+                        ++handled;
+                        total_wait_ms += start_ms - head.enqueue_ms;
+                        total_service_ms += end_ms - start_ms;
+                        if (end_ms - start_ms > max_service_ms)
+                            max_service_ms = end_ms - start_ms;
                     }
                 }
-            };
-            t.setName ("StorageManager.BerkeleyDbThread-"+my_node_id);
-            t.start ();
+            }
+            catch (OutOfMemoryError e) {
+                bamboo.lss.DustDevilSink.reserve = null;
+                System.gc ();
+                logger.fatal ("uncaught error", e);
+                System.exit (1);
+            }
+            catch (Throwable e) {
+                logger.fatal ("uncaught exception", e);
+                System.exit (1);
+            }
         }
 
-        // Setup the shutdown hook.
+        public void stats_to_sbuf (StringBuffer buf) {
+            synchronized (queue) {
+                buf.append ("worker ");
+                buf.append (index);
+                buf.append (": queue=");
+                buf.append (queue.size ());
+                buf.append (" handled=");
+                buf.append (handled);
+                if (handled > 0) {
+                    buf.append (" avg wait=");
+                    buf.append (total_wait_ms / handled);
+                    buf.append (" ms avg service=");
+                    buf.append (total_service_ms / handled);
+                    buf.append (" ms max service=");
+                    buf.append (max_service_ms);
+                    buf.append (" ms");
+                }
+            }
+        }
+    }
 
-        Runtime.getRuntime().addShutdownHook(new ShutdownHook());
+    /**
+     * Runs a single request in the calling worker thread, holding
+     * write_lock unless the request is read only.
+     */
+    protected void run_event (QueueElementIF item) {
+        if ((workers.length > 1) && (! read_only (item))) {
+            synchronized (write_lock) {
+                the_real_handle_event (item);
+            }
+        }
+        else {
+            the_real_handle_event (item);
+        }
+    }
 
-        rand = new Random (now_ms () ^ my_node_id.hashCode ());
-        classifier.dispatch_later (new SyncAlarm (), 
-                30*1000 + rand.nextInt (60*1000));
-        classifier.dispatch_later (new Alarm (), 
-                30*1000 + rand.nextInt (60*1000));
+    /**
+     * Whether a request can never write to the database, and so can run
+     * without write_lock.  This is only the case for reads when
+     * drop_expired_inline is false.
+     */
+    protected boolean read_only (QueueElementIF item) {
+        if (drop_expired_inline)
+            return false;
+        if (item instanceof GetByGuidCont)
+            return ! ((GetByGuidCont) item).del;
+        return (item instanceof GetByKeyReq)
+            || (item instanceof GetByGuidReq)
+            || (item instanceof GetByGuidBatchReq)
+            || (item instanceof GetByTimeReq)
+            || (item instanceof GetByTimeCont)
+            || (item instanceof IterateByGuidReq)
+            || (item instanceof IterateByGuidCont);
+    }
+
+    /**
+     * Picks the worker for a request from the leading bits of the guid it
+     * concerns, so that each worker owns a contiguous range of guids.
+     * Requests that don't concern a single guid go to worker 0.
+     */
+    protected DbWorker worker_for (QueueElementIF item) {
+        if (workers.length == 1)
+            return workers [0];
+        BigInteger guid = null;
+        if (item instanceof PutReq)
+            guid = ((PutReq) item).key.guid;
+        else if (item instanceof GetByKeyReq)
+            guid = ((GetByKeyReq) item).key.guid;
+        else if (item instanceof DiscardReq)
+            guid = ((DiscardReq) item).key.guid;
+        else if (item instanceof GetByGuidReq)
+            guid = ((GetByGuidReq) item).guid;
+        else if (item instanceof GetByGuidBatchReq)
+            guid = ((GetByGuidBatchReq) item).guid;
+        else if (item instanceof IterateByGuidReq)
+            guid = ((IterateByGuidReq) item).low;
+        else if (item instanceof GetByGuidCont)
+            guid = continuation_guid (((GetByGuidCont) item).continuation);
+        else if (item instanceof IterateByGuidCont)
+            guid = continuation_guid (
+                    ((IterateByGuidCont) item).continuation);
+        if (guid == null)
+            return workers [0];
+        int prefix = guid.shiftRight (160 - 16).intValue ();
+        return workers [(prefix * workers.length) >>> 16];
     }
 
-    // For the watchdog timer.
-    public long last_dequeue_ms;
+    /**
+     * Returns the guid a GetByGuidCont or IterateByGuidCont continuation
+     * is positioned at, or null if it isn't one of ours.
+     */
+    protected BigInteger continuation_guid (Object continuation) {
+        if (continuation instanceof GBGCont)
+            return ((GBGCont) continuation).guid;
+        if (continuation instanceof IBGCont)
+            return ((IBGCont) continuation).low;
+        return null;
+    }
+
+    /**
+     * Removes the PutReqs immediately following <code>head</code> from the
+     * front of a worker's queue, up to the configured count and byte
+     * limits.  Only a contiguous run is taken, so puts are never reordered
+     * with respect to other requests.  The caller must hold the lock on
+     * the queue.
+     */
+    protected LinkedList<PutReq> drain_put_batch (
+            LinkedList<QueuedEvent> queue, PutReq head) {
+        LinkedList<PutReq> batch = new LinkedList<PutReq>();
+        batch.addLast (head);
+        int bytes = head.data.limit () + Key.SIZE;
+        while ((! queue.isEmpty ())
+               && (queue.getFirst ().item instanceof PutReq)
+               && (batch.size () < max_put_batch_count)) {
+            PutReq next = (PutReq) queue.getFirst ().item;
+            int next_bytes = next.data.limit () + Key.SIZE;
+            if (bytes + next_bytes > max_put_batch_bytes)
+                break;
+            queue.removeFirst ();
+            batch.addLast (next);
+            bytes += next_bytes;
+        }
+        return batch;
+    }
 
     public void handleEvent (QueueElementIF item) {
         if (item instanceof EnqueueEvent) {
@@ -898,49 +1344,172 @@ implements SingleThreadedEventHandlerIF {
         }
         else {
             if (logger.isDebugEnabled ()) logger.debug ("got " + item);
+            if ((workers.length == 0) && (! sim_running)) {
+                // Another stage's init may call us before our own has
+                // started the database threads; hold its events until then.
+                early_events.addLast (item);
+                return;
+            }
+            if ((value_cache != null)
+                && (item instanceof GetByGuidBatchReq)
+                && serve_from_cache ((GetByGuidBatchReq) item)) {
+                return;
+            }
+            begin_write (item);
             if (sim_running) {
                 the_real_handle_event (item);
+                end_write (item);
             }
             else {
+                DbWorker w = worker_for (item);
                 long now_ms = 0;
                 long last_ms = 0;
                 int count = 0;
-                synchronized (to_bdb_thread) {
-                    to_bdb_thread.addLast (item);
-                    to_bdb_thread.notifyAll ();
-                    count = to_bdb_thread.size ();
+                synchronized (w.queue) {
                     now_ms = timer_ms ();
+                    w.queue.addLast (new QueuedEvent (item, now_ms));
+                    w.queue.notifyAll ();
+                    count = w.queue.size ();
                     if (count == 1)
-                        last_dequeue_ms = now_ms;
-                    last_ms = last_dequeue_ms;
+                        w.last_dequeue_ms = now_ms;
+                    last_ms = w.last_dequeue_ms;
                 }
 
-                if (count > 0) { 
+                if (count > 0) {
                     if (now_ms - last_ms > 180*1000) {
-                        logger.fatal ("BerkeleyDB thread " 
-				+ Thread.currentThread().getName()
+                        logger.fatal ("BerkeleyDB thread "
+				+ w.getName()
 				+ " blocked. "
                                 + " now_ms=" + now_ms
                                 + " last_dequeue_ms=" + last_ms
                                 + ".  There are at least " + count
-                                + " outstanding requests.  " 
+                                + " outstanding requests.  "
+                                + worker_stats ()
                                 + "Committing suicide.");
                         System.exit (1);
                     }
                     if (now_ms - last_ms > 60*1000) {
-                        logger.warn ("BerkeleyDB thread " 
-				+ Thread.currentThread().getName()
+                        logger.warn ("BerkeleyDB thread "
+				+ w.getName()
 				+ " appears blocked. "
                                 + " now_ms=" + now_ms
                                 + " last_dequeue_ms=" + last_ms
                                 + ".  There are at least " + count
-                                + " outstanding requests.");
+                                + " outstanding requests.  "
+                                + worker_stats ());
                     }
                 }
             }
         }
     }
 
+    /**
+     * Returns the guid whose values a request may change, or null if it
+     * doesn't change any.
+     */
+    protected BigInteger written_guid (QueueElementIF item) {
+        if (item instanceof PutReq)
+            return ((PutReq) item).key.guid;
+        if (item instanceof DiscardReq)
+            return ((DiscardReq) item).key.guid;
+        if ((item instanceof GetByGuidCont) && ((GetByGuidCont) item).del)
+            return continuation_guid (((GetByGuidCont) item).continuation);
+        return null;
+    }
+
+    protected void begin_write (QueueElementIF item) {
+        if (value_cache != null) {
+            BigInteger guid = written_guid (item);
+            if (guid != null)
+                value_cache.begin_write (guid);
+        }
+    }
+
+    protected void end_write (QueueElementIF item) {
+        if (value_cache != null) {
+            BigInteger guid = written_guid (item);
+            if (guid != null)
+                value_cache.end_write (guid);
+        }
+    }
+
+    /**
+     * Answers a GetByGuidBatchReq from the value cache, if its guid is
+     * there and its placemark (if any) is one of the cached keys.  Called
+     * from the stage thread.  Returns false if the request must go to the
+     * database instead.
+     */
+    protected boolean serve_from_cache (GetByGuidBatchReq req) {
+        LinkedList<Pair<Key,ByteBuffer>> cached =
+            value_cache.lookup (req.guid);
+        if (cached == null)
+            return false;
+
+        Iterator<Pair<Key,ByteBuffer>> i = cached.iterator ();
+        if ((req.placemark != null) && (! req.placemark.equals (ZERO_KEY))) {
+            boolean found = false;
+            while (i.hasNext ()) {
+                if (i.next ().first.equals (req.placemark)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (! found)
+                return false;
+        }
+
+        LinkedList<Pair<Key,ByteBuffer>> values =
+            new LinkedList<Pair<Key,ByteBuffer>>();
+        boolean all_read = true;
+        int size = 0;
+        while (i.hasNext ()) {
+            Pair<Key,ByteBuffer> p = i.next ();
+            if (key_expired (p.first))
+                continue;
+            int vsize = p.second.remaining () + req.per_value_overhead;
+            if ((size + vsize > req.maxbytes)
+                || (values.size () >= req.maxvals)) {
+                all_read = false;
+                break;
+            }
+            size += vsize;
+            values.addLast (Pair.create (p.first, p.second.duplicate ()));
+        }
+
+        try {
+            req.comp_q.enqueue (
+                    new GetByGuidBatchResp (values, all_read, req.user_data));
+        }
+        catch (SinkException e) {
+            BUG ("couldn't enqueue " + e);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the result of a GetByGuidBatchReq that was read from the
+     * database, first caching it if it holds every value under the guid.
+     */
+    protected void finish_get_by_guid_batch (
+            GetByGuidBatchReq req, LinkedList<Pair<Key,ByteBuffer>> values,
+            boolean all_read) {
+        if ((value_cache != null) && all_read
+            && ((req.placemark == null) || req.placemark.equals (ZERO_KEY))) {
+            value_cache.fill (req.guid, values);
+        }
+        application_enqueue (req.comp_q,
+                new GetByGuidBatchResp (values, all_read, req.user_data));
+    }
+
+    protected String worker_stats () {
+        StringBuffer buf = new StringBuffer (100 * workers.length);
+        for (int i = 0; i < workers.length; ++i) {
+            workers [i].stats_to_sbuf (buf);
+            buf.append (".  ");
+        }
+        return buf.toString ();
+    }
+
     /**
      * This function is only ever called from within the Berkeley DB thread
      * launched from the init () function; as such, it can safely block.  To
@@ -962,6 +1531,9 @@ implements SingleThreadedEventHandlerIF {
         else if (item instanceof GetByGuidCont) {
             handle_get_by_guid_cont ((GetByGuidCont) item);
         }
+        else if (item instanceof GetByGuidBatchReq) {
+            handle_get_by_guid_batch_req ((GetByGuidBatchReq) item);
+        }
         else if (item instanceof GetByTimeReq) {
             handle_get_by_time_req ((GetByTimeReq) item);
         }
@@ -985,8 +1557,16 @@ implements SingleThreadedEventHandlerIF {
             logger.info ("checkpoint done");
             classifier.dispatch_later (item, 30*1000 + rand.nextInt (60*1000));
         }
+        else if (item instanceof ExpirySweep) {
+            handle_expiry_sweep ((ExpirySweep) item);
+        }
         else if (item instanceof Alarm) {
             check_open_cursors ();
+            log_put_batch_stats ();
+            if ((value_cache != null) && logger.isInfoEnabled ())
+                logger.info (value_cache);
+            if ((workers.length > 1) && logger.isInfoEnabled ())
+                logger.info (worker_stats ());
             classifier.dispatch_later (item, 30*1000 + rand.nextInt (60*1000));
         }
         else if (item instanceof AddMonitor) {
@@ -1001,28 +1581,94 @@ implements SingleThreadedEventHandlerIF {
     }
 
     protected void check_open_cursors () { 
-	if(print_open_cursors)
-	    logger.info (open_cursors.size () + " open cursors");
+	if(print_open_cursors) {
+            synchronized (open_cursors) {
+                logger.info (open_cursors.size () + " open cursors");
+            }
+        }
+    }
+
+    protected void log_put_batch_stats () {
+        if (put_batch_count > 0) {
+            logger.info ("put batches=" + put_batch_count + " puts="
+                    + put_batch_puts + " avg batch size="
+                    + (put_batch_puts / put_batch_count)
+                    + " max batch size=" + put_batch_max);
+        }
     }
 
     protected Dbc open_cursor (Db db, DbTxn xact, String source) {
         assert source != null;
         Long open_time_ms = new Long (timer_ms ());
         Dbc cursor = null;
-        try { cursor = db.cursor(xact, (xact == null ? 0 : Db.DB_DIRTY_READ)); }
+        // With more than one thread, readers never wait for the writer.
+        int flags = ((xact != null) || (workers.length > 1))
+            ? Db.DB_DIRTY_READ : 0;
+        try { cursor = db.cursor(xact, flags); }
         catch (DbException e) { BUG (e); }
-        open_cursors.put (cursor, new Object [] {source, open_time_ms});
+        synchronized (open_cursors) {
+            open_cursors.put (cursor, new Object [] {source, open_time_ms});
+        }
         return cursor;
     }
 
     protected void close_cursor (Dbc cursor) {
-        Object removed = open_cursors.remove (cursor);
+        Object removed = null;
+        synchronized (open_cursors) {
+            removed = open_cursors.remove (cursor);
+        }
         assert removed != null;
         try { cursor.close (); }
         catch (DbException e) { BUG (e); }
     }
 
     protected void handle_put_req (PutReq req) {
+        DbTxn xact = null;
+        try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
+        catch (DbException e) { BUG(e); }
+
+        PutResp resp = put_in_xact (req, xact);
+
+	try { xact.commit(Db.DB_TXN_NOSYNC); }
+	catch (DbException e) { BUG (e); }
+
+        application_enqueue (req.comp_q, resp);
+    }
+
+    /**
+     * Applies a run of puts under a single transaction, so that a burst of
+     * puts costs one commit rather than one per put.  The puts are applied
+     * in order, and each sees the effects of those before it, so the
+     * conflict resolution in put_in_xact is the same as if they had been
+     * done one at a time.  The responses are sent only after the commit.
+     * Each put holds locks in the primary, every secondary and
+     * client_counts until then, and virtual nodes share one lock table, so
+     * max_put_batch_count is kept well below what would exhaust
+     * BerkeleyDB's default lock limits.
+     */
+    protected void handle_put_batch (LinkedList<PutReq> batch) {
+        DbTxn xact = null;
+        try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
+        catch (DbException e) { BUG(e); }
+
+        LinkedList<PutResp> resps = new LinkedList<PutResp>();
+        for (PutReq req : batch)
+            resps.addLast (put_in_xact (req, xact));
+
+	try { xact.commit(Db.DB_TXN_NOSYNC); }
+	catch (DbException e) { BUG (e); }
+
+        ++put_batch_count;
+        put_batch_puts += batch.size ();
+        if (batch.size () > put_batch_max)
+            put_batch_max = batch.size ();
+
+        Iterator<PutResp> i = resps.iterator ();
+        for (PutReq req : batch)
+            application_enqueue (req.comp_q, i.next ());
+    }
+
+    protected PutResp put_in_xact (PutReq req, DbTxn xact) {
 
         // There should be at most one put or one remove stored in the
         // database for this (guid, secret_hash, data_hash) triple.  We need
@@ -1036,12 +1682,8 @@ implements SingleThreadedEventHandlerIF {
         // safe since if the tuple is lost, it will be recovered by the
         // epidemic algorithms in Bamboo.
 
-        DbTxn xact = null;
-
         if (logger.isDebugEnabled())
             logger.debug("doing put, key=" + req.key);
-        try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
-        catch (DbException e) { BUG(e); }
 
         Key inval_put_key = null;
         ByteBuffer inval_put_data = null;
@@ -1190,51 +1832,209 @@ implements SingleThreadedEventHandlerIF {
             storage_changed (true /* added */, req.key, data.getSize(), xact);
             assert retval == 0;
 
-            if (logger.isInfoEnabled ()) {
-                int len = 100
-                    + ((inval_put_key == null) ? 0 : 50)
-                    + ((inval_rm_key == null) ? 0 : 50);
-                StringBuffer buf = new StringBuffer (len);
-                if (req.key.put)
-                    buf.append ("put key=0x");
-                else
-                    buf.append ("rem key=0x");
-                buf.append (GuidTools.guid_to_string (req.key.guid));
-                buf.append (" time_usec=0x");
-                buf.append (Long.toHexString (req.key.time_usec));
-                buf.append (" ttl=");
-                buf.append (req.key.ttl_sec);
-                buf.append (" client_id=");
-                buf.append (req.key.client_id.getHostAddress ());
-                buf.append (" secret_hash=0x");
-                buf.append (bytes_to_str(req.key.secret_hash, 0, 4));
+            log_put (req.key, data.getSize (), inval_put_key, inval_rm_key);
+        }
+
+        return new PutResp (inval_put_key, inval_put_data,
+		inval_rm_key, inval_rm_data, req.user_data);
+    }
+
+    /**
+     * Logs a tuple added to the database, along with the existing tuple it
+     * overwrote, if any.
+     */
+    protected void log_put (Key key, int size, Key inval_put_key,
+                            Key inval_rm_key) {
+        AccessLog.Record r = put_log.record ();
+        if (r != null) {
+            r.a = key;
+            r.b = inval_put_key;
+            r.c = inval_rm_key;
+            r.x = size;
+            r.log ();
+        }
+    }
+
+    protected AccessLog.Type put_log = new AccessLog.Type ("put", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
+            Key key = (Key) r.a;
+            Key inval_put_key = (Key) r.b;
+            Key inval_rm_key = (Key) r.c;
+            if (key.put)
+                buf.append ("put key=0x");
+            else
+                buf.append ("rem key=0x");
+            buf.append (GuidTools.guid_to_string (key.guid));
+            buf.append (" time_usec=0x");
+            buf.append (Long.toHexString (key.time_usec));
+            buf.append (" ttl=");
+            buf.append (key.ttl_sec);
+            buf.append (" client_id=");
+            buf.append (key.client_id.getHostAddress ());
+            buf.append (" secret_hash=0x");
+            buf.append (bytes_to_str(key.secret_hash, 0, 4));
+            buf.append (" data_hash=0x");
+            buf.append (bytes_to_str(key.data_hash, 0, 4));
+            buf.append (" size=");
+            buf.append (r.x);
+            if (inval_put_key != null) {
+                buf.append (" overwrites old put secret_hash=0x");
+                buf.append (bytes_to_str(inval_put_key.secret_hash, 0, 4));
                 buf.append (" data_hash=0x");
-                buf.append (bytes_to_str(req.key.data_hash, 0, 4));
-                buf.append (" size=");
-                buf.append (data.getSize ());
-                if (inval_put_key != null) {
-                    buf.append (" overwrites old put secret_hash=0x");
-                    buf.append (bytes_to_str(inval_put_key.secret_hash, 0, 4));
-                    buf.append (" data_hash=0x");
-                    buf.append (bytes_to_str(inval_put_key.data_hash, 0, 4));
-                }
-                else if (inval_rm_key != null) {
-                    buf.append (" overwrites old rem secret_hash=0x");
-                    buf.append (bytes_to_str(inval_rm_key.secret_hash, 0, 4));
-                    buf.append (" data_hash=0x");
-                    buf.append (bytes_to_str(inval_rm_key.data_hash, 0, 4));
-                }
-                logger.info (buf);
+                buf.append (bytes_to_str(inval_put_key.data_hash, 0, 4));
+            }
+            else if (inval_rm_key != null) {
+                buf.append (" overwrites old rem secret_hash=0x");
+                buf.append (bytes_to_str(inval_rm_key.secret_hash, 0, 4));
+                buf.append (" data_hash=0x");
+                buf.append (bytes_to_str(inval_rm_key.data_hash, 0, 4));
             }
         }
+    };
 
-	try { xact.commit(Db.DB_TXN_NOSYNC); }
-	catch (DbException e) { BUG (e); }
+    /**
+     * Logs a tuple removed from the database, either because it expired or
+     * because it was moved to the recycling bin.
+     */
+    protected void log_dropped (Key k, int size, boolean recycle) {
+        AccessLog.Record r = drop_log.record ();
+        if (r != null) {
+            r.a = k;
+            r.x = size;
+            r.y = recycle ? 1 : 0;
+            r.log ();
+        }
+    }
 
-        PutResp resp = new PutResp (inval_put_key, inval_put_data,
-		inval_rm_key, inval_rm_data, req.user_data);
+    protected AccessLog.Type drop_log = new AccessLog.Type ("drop", logger) {
+        public void format (AccessLog.Record r, StringBuffer sbuf) {
+            Key k = (Key) r.a;
+            if (r.y != 0)
+                sbuf.append ("recycling key=0x");
+            else
+                sbuf.append ("dropping expired key=0x");
+            sbuf.append (GuidTools.guid_to_string (k.guid));
+            sbuf.append (" time_usec=0x");
+            sbuf.append (Long.toHexString (k.time_usec));
+            sbuf.append (" ttl=");
+            sbuf.append (k.ttl_sec);
+            sbuf.append (" client_id=");
+            sbuf.append (k.client_id.getHostAddress ());
+            sbuf.append (" data_hash=0x");
+            sbuf.append (bytes_to_str(k.data_hash, 0, 4));
+            sbuf.append (" size=");
+            sbuf.append (r.x);
+        }
+    };
 
-        application_enqueue (req.comp_q, resp);
+    /**
+     * Deletes up to expiry_sweep_batch expired tuples, oldest expiry time
+     * first, using the by_expiry index.  If there are more requests waiting
+     * for the database thread than expiry_sweep_max_queue, the sweep is put
+     * off so that it never delays them much; if the batch fills up, the
+     * next sweep comes after expiry_sweep_interval rather than a full
+     * expiry_sweep_period, so that a backlog is worked off in small steps.
+     * Each tuple holds locks in five databases until its transaction
+     * commits, so the batch is committed every expiry_sweep_xact_tuples
+     * tuples to stay well inside BerkeleyDB's default lock table.
+     */
+    protected void handle_expiry_sweep (ExpirySweep item) {
+        if (to_bdb_thread_size () > expiry_sweep_max_queue) {
+            classifier.dispatch_later (item, expiry_sweep_interval);
+            return;
+        }
+
+        long start_ms = timer_ms ();
+        long now_usec = now_ms () * 1000;
+        int tuples = 0;
+        long bytes = 0;
+
+        DbTxn xact = null;
+        try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
+        catch (DbException e) { BUG(e); }
+        Dbc cursor = open_cursor(by_expiry, xact, "handle_expiry_sweep");
+        Dbt skey = new Dbt ();
+        Dbt pkey = new Dbt ();
+        Dbt data = new Dbt ();
+        int r = 0;
+        try { r = cursor.get(skey, pkey, data, Db.DB_FIRST); }
+        catch (DbException e) { BUG(e); }
+
+        while ((r != Db.DB_NOTFOUND) && (tuples < expiry_sweep_batch)) {
+            assert r == 0 : r;
+            Key k = new Key(pkey);
+            if (k.expiryTime () >= now_usec)
+                break;
+            // Deleting through a secondary cursor removes the tuple from
+            // the primary and all the other secondaries, too.
+            drop_expired_data (xact, cursor, k, data.getSize ());
+            ++tuples;
+            bytes += data.getSize () + Key.SIZE;
+            if (tuples % expiry_sweep_xact_tuples == 0) {
+                // Release this transaction's locks.  The tuples dropped so
+                // far are gone, so the next is again the first.
+                close_cursor (cursor);
+                try { xact.commit(Db.DB_TXN_NOSYNC); }
+                catch (DbException e) { BUG(e); }
+                try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
+                catch (DbException e) { BUG(e); }
+                cursor = open_cursor(by_expiry, xact, "handle_expiry_sweep");
+                try { r = cursor.get(skey, pkey, data, Db.DB_FIRST); }
+                catch (DbException e) { BUG(e); }
+            }
+            else {
+                try { r = cursor.get(skey, pkey, data, Db.DB_NEXT); }
+                catch (DbException e) { BUG(e); }
+            }
+        }
+
+        close_cursor (cursor);
+        try { xact.commit(Db.DB_TXN_NOSYNC); }
+        catch (DbException e) { BUG(e); }
+
+        finish_expiry_sweep (item, tuples, bytes, start_ms);
+    }
+
+    /**
+     * The number of requests waiting for any of the database threads.
+     */
+    protected int to_bdb_thread_size () {
+        int result = 0;
+        for (int i = 0; i < workers.length; ++i) {
+            synchronized (workers [i].queue) {
+                result += workers [i].queue.size ();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records the statistics for a sweep and schedules the next one.
+     */
+    protected void finish_expiry_sweep (ExpirySweep item, int tuples,
+                                        long bytes, long start_ms) {
+        ++expiry_sweeps;
+        expiry_swept_tuples += tuples;
+        expiry_swept_bytes += bytes;
+        if ((tuples > 0) && logger.isInfoEnabled ()) {
+            StringBuffer buf = new StringBuffer (150);
+            buf.append ("expiry sweep dropped ");
+            buf.append (tuples);
+            buf.append (" tuples, reclaimed ");
+            byte_cnt_to_sbuf (bytes, buf);
+            buf.append (" in ");
+            buf.append (timer_ms () - start_ms);
+            buf.append (" ms; total ");
+            buf.append (expiry_swept_tuples);
+            buf.append (" tuples, ");
+            byte_cnt_to_sbuf (expiry_swept_bytes, buf);
+            buf.append (" in ");
+            buf.append (expiry_sweeps);
+            buf.append (" sweeps");
+            logger.info (buf);
+        }
+        classifier.dispatch_later (item, (tuples == expiry_sweep_batch)
+                ? expiry_sweep_interval : expiry_sweep_period);
     }
 
     protected boolean key_expired(Key k) {
@@ -1250,9 +2050,11 @@ implements SingleThreadedEventHandlerIF {
 
 	// key itself tells us if expired; expire w/o fetching if so
 	if (key_expired(req.key)) {
-	    if (logger.isDebugEnabled ())
-                logger.debug("dropping in handle_get_by_key_req");
-	    the_real_handle_event (new DiscardReq(req.key, false));
+            if (drop_expired_inline) {
+                if (logger.isDebugEnabled ())
+                    logger.debug("dropping in handle_get_by_key_req");
+                the_real_handle_event (new DiscardReq(req.key, false));
+            }
 	    application_enqueue(req.comp_q,
                                 new GetByKeyResp (req.key, (ByteBuffer) null,
                                                   req.user_data));
@@ -1440,28 +2242,93 @@ implements SingleThreadedEventHandlerIF {
         }
     }
 
+    /**
+     * Reads values for a single guid out of the by_guid index in one pass,
+     * dropping expired tuples and skipping removes as it goes, so that the
+     * caller gets a whole response's worth of values with a single trip
+     * through the BerkeleyDB thread.
+     */
+    protected void handle_get_by_guid_batch_req (GetByGuidBatchReq req) {
+        Key k = req.placemark;
+        if ((k == null) || (k.equals (ZERO_KEY))) {
+            // If no placemark, start at the beginning.
+            k = new Key(0L, 0, req.guid, ZERO_HASH, ZERO_HASH, false,
+                        ZERO_CLIENT);
+        }
+
+        byte [] buf = new byte [Key.SIZE];
+        k.to_byte_buffer (ByteBuffer.wrap (buf));
+        primary_key_to_recycling_key (buf);
+        Dbt key = new Dbt (buf);
+        key.setSize (buf.length);
+
+        DbTxn xact = null;
+        try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
+        catch (DbException e) { BUG(e); }
+        Dbc cursor = open_cursor(by_guid, xact, "handle_get_by_guid_batch_req");
+
+        LinkedList<Pair<Key,ByteBuffer>> values =
+            new LinkedList<Pair<Key,ByteBuffer>>();
+        boolean all_read = true;
+        int size = 0;
+        Dbt pkey = new Dbt ();
+        Dbt data = new Dbt ();
+        int r = 0;
+        try { r = cursor.get(key, pkey, data, Db.DB_SET_RANGE); }
+        catch (DbException e) { BUG(e); }
+
+        while (r != Db.DB_NOTFOUND) {
+            assert r == 0 : r;
+            Key next = new Key(pkey);
+            if (! next.guid.equals (req.guid))
+                break;
+
+            if (key_expired(next)) {
+                if (drop_expired_inline) {
+                    if (logger.isDebugEnabled ())
+                        logger.debug("dropping in get_by_guid_batch k="+next);
+                    drop_expired_data (xact, cursor, next, data.getSize ());
+                }
+            }
+            else if ((req.placemark != null)
+                     && (next.compareTo (req.placemark) == 0)) {
+                if (logger.isDebugEnabled ())
+                    logger.debug ("first key equal to placemark.  Skipping.");
+            }
+            else if (next.put) {
+                int vsize = data.getSize () + req.per_value_overhead;
+                if ((size + vsize > req.maxbytes)
+                    || (values.size () >= req.maxvals)) {
+                    all_read = false;
+                    break;
+                }
+                size += vsize;
+                values.addLast (Pair.create (next, ByteBuffer.wrap (
+                                data.getData (), data.getOffset (),
+                                data.getSize ())));
+                // The returned buffer aliases the Dbt's array.
+                data = new Dbt ();
+            }
+
+            try { r = cursor.get(key, pkey, data, Db.DB_NEXT); }
+            catch (DbException e) { BUG(e); }
+        }
+
+        close_cursor (cursor);
+        try { xact.commit(Db.DB_TXN_NOSYNC); }
+        catch (DbException e) { BUG(e); }
+
+        finish_get_by_guid_batch (req, values, all_read);
+    }
+
     protected void drop_expired_data (DbTxn xact, Dbc cursor, Key k, int size) {
         try { cursor.delete (0); } 
         catch (DbException e) { BUG(e); }
 
         storage_changed(false /* removed */, k, size, xact);
-
-        if (logger.isInfoEnabled ()) {
-            StringBuffer sbuf = new StringBuffer (105);
-            sbuf.append ("dropping expired key=0x");
-            sbuf.append (GuidTools.guid_to_string (k.guid));
-            sbuf.append (" time_usec=0x");
-            sbuf.append (Long.toHexString (k.time_usec));
-            sbuf.append (" ttl=");
-            sbuf.append (k.ttl_sec);
-            sbuf.append (" client_id=");
-            sbuf.append (k.client_id.getHostAddress ());
-            sbuf.append (" data_hash=0x");
-            sbuf.append (bytes_to_str(k.data_hash, 0, 4));
-            sbuf.append (" size=");
-            sbuf.append (size);
-            logger.info (sbuf);
-        }
+        log_dropped (k, size, false);
+        if (value_cache != null)
+            value_cache.invalidate (k.guid);
     }
 
     protected boolean finish_get_by_guid(GBGCont cont, DbTxn xact, Dbc cursor,
@@ -1477,6 +2344,8 @@ implements SingleThreadedEventHandlerIF {
 
         Key k = new Key(pkey);
         if (key_expired(k)) {
+            if (! drop_expired_inline)
+                return false; // skip it
             // drop it, grab next
             if (logger.isDebugEnabled ())
                 logger.debug("dropping in do_get_by_guid k=" +k);
@@ -1539,6 +2408,8 @@ implements SingleThreadedEventHandlerIF {
 
         Key k = new Key (new Dbt(kbuf, 0, kbuf.length));
         if (key_expired(k)) {
+            if (! drop_expired_inline)
+                return false; // skip it
             // drop it, grab next one
             if (logger.isDebugEnabled ())
                 logger.debug ("dropping in do_get_by_guid_recycling");
@@ -1566,7 +2437,8 @@ implements SingleThreadedEventHandlerIF {
         try { xact = env.txnBegin(null, Db.DB_TXN_NOSYNC); }
         catch (DbException e) { BUG(e); }
         Dbc cursor = open_cursor (by_time, xact, "handle_get_by_time_req");
-        GBTCont cont = new GBTCont (key, req.low, req.high);
+        GBTCont cont =
+            new GBTCont (key, req.low, req.high, req.include_expired);
         int retval = 0;
         Dbt data = new Dbt ();
         data.setFlags(Db.DB_DBT_PARTIAL);
@@ -1647,7 +2519,13 @@ implements SingleThreadedEventHandlerIF {
             Key k = new Key (cont.key);
             assert k.time_usec >= cont.low : k.time_usec + " " + cont.low;
 
-            if (key_expired(k)) {
+            if (key_expired(k) && (! drop_expired_inline)
+                && (! cont.include_expired)) {
+                // skip it
+                try { retval = cursor.get(cont.key, data, Db.DB_NEXT); }
+                catch (DbException e) { BUG(e); }
+            }
+            else if (key_expired(k) && drop_expired_inline) {
                 // drop it, grab next one
                 if (logger.isDebugEnabled())
                     logger.debug("dropping in do_get_by_time");
@@ -1788,6 +2666,8 @@ implements SingleThreadedEventHandlerIF {
 	  GuidTools.guid_to_string(cont.low);
 
         if (key_expired(k)) {
+            if (! drop_expired_inline)
+                return false; // skip it
             // drop it, grab next
             if (logger.isDebugEnabled ())
                 logger.debug("dropping in do_iterate_by_guid k=" +k);
@@ -1846,25 +2726,7 @@ implements SingleThreadedEventHandlerIF {
 
             storage_changed(false /* removed */, req.key, data.getSize(), xact);
 
-            if (logger.isInfoEnabled ()) {
-                StringBuffer sbuf = new StringBuffer (105);
-                if (req.recycle)
-                    sbuf.append ("recycling key=0x");
-                else
-                    sbuf.append ("dropping expired key=0x");
-                sbuf.append (GuidTools.guid_to_string (req.key.guid));
-                sbuf.append (" time_usec=0x");
-                sbuf.append (Long.toHexString (req.key.time_usec));
-                sbuf.append (" ttl=");
-                sbuf.append (req.key.ttl_sec);
-                sbuf.append (" client_id=");
-                sbuf.append (req.key.client_id.getHostAddress ());
-                sbuf.append (" data_hash=0x");
-                sbuf.append (bytes_to_str(req.key.data_hash, 0, 4));
-                sbuf.append (" size=");
-                sbuf.append (data.getSize ());
-                logger.info (sbuf);
-            }
+            log_dropped (req.key, data.getSize (), req.recycle);
 
             if (req.recycle) {
 
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.db;
+
+import bamboo.util.Pair;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache, used by {@link StorageManager}, from guids to
+ * the complete list of values stored under each, in key order.
+ *
+ * <p>The cache must never return a list that is missing a write that was
+ * accepted before the lookup.  So the StorageManager calls {@link
+ * #begin_write} when it accepts a request that may change the values under
+ * a guid, and {@link #end_write} once the request has been applied.  This
+ * removes any entry for the guid, and {@link #fill} ignores it until all of
+ * its writes have been applied, since a read that raced with them might
+ * have missed them.
+ *
+ * <p>Entries may hold values that have since expired; callers must skip
+ * them.  All methods are synchronized, since lookups happen in the stage
+ * thread and fills and writes in the database threads.
+ *
+ * @version $Id$
+ */
+public class ValueCache {
+
+    /**
+     * A rough count of the bytes each cached value costs in addition to its
+     * data.
+     */
+    public static final int VALUE_OVERHEAD = StorageManager.Key.SIZE + 64;
+
+    protected static class Entry {
+        public LinkedList<Pair<StorageManager.Key,ByteBuffer>> values;
+        public long bytes;
+        public Entry (LinkedList<Pair<StorageManager.Key,ByteBuffer>> v,
+                      long b) {
+            values = v; bytes = b;
+        }
+    }
+
+    protected long capacity;
+    protected long bytes;
+    protected LinkedHashMap<BigInteger,Entry> entries =
+        new LinkedHashMap<BigInteger,Entry> (16, 0.75f, true);
+    protected HashMap<BigInteger,Integer> pending_writes =
+        new HashMap<BigInteger,Integer> ();
+
+    protected long hits, misses, evictions, invalidations;
+
+    public ValueCache (long cap) {
+        capacity = cap;
+    }
+
+    /**
+     * Returns the cached values for <code>guid</code>, or null if there
+     * are none.  The list and its buffers must not be modified.
+     */
+    public synchronized LinkedList<Pair<StorageManager.Key,ByteBuffer>>
+        lookup (BigInteger guid) {
+        Entry e = entries.get (guid);
+        if (e == null) {
+            ++misses;
+            return null;
+        }
+        ++hits;
+        return e.values;
+    }
+
+    /**
+     * Caches the complete list of values under <code>guid</code>, unless
+     * there are writes to it outstanding or the list is too big to be
+     * worth caching.  The cache keeps its own duplicates of the buffers.
+     */
+    public synchronized void fill (
+            BigInteger guid,
+            LinkedList<Pair<StorageManager.Key,ByteBuffer>> values) {
+        if (pending_writes.containsKey (guid))
+            return;
+        LinkedList<Pair<StorageManager.Key,ByteBuffer>> copy =
+            new LinkedList<Pair<StorageManager.Key,ByteBuffer>> ();
+        long size = 0;
+        for (Pair<StorageManager.Key,ByteBuffer> p : values) {
+            size += p.second.remaining () + VALUE_OVERHEAD;
+            copy.addLast (Pair.create (p.first, p.second.duplicate ()));
+        }
+        // Don't let one guid push out a large part of the cache.
+        if (size > capacity / 8)
+            return;
+        remove (guid);
+        entries.put (guid, new Entry (copy, size));
+        bytes += size;
+        Iterator<Map.Entry<BigInteger,Entry>> i =
+            entries.entrySet ().iterator ();
+        while ((bytes > capacity) && i.hasNext ()) {
+            Map.Entry<BigInteger,Entry> eldest = i.next ();
+            bytes -= eldest.getValue ().bytes;
+            i.remove ();
+            ++evictions;
+        }
+    }
+
+    public synchronized void begin_write (BigInteger guid) {
+        Integer count = pending_writes.get (guid);
+        pending_writes.put (guid, new Integer (
+                    (count == null) ? 1 : count.intValue () + 1));
+        invalidate (guid);
+    }
+
+    public synchronized void end_write (BigInteger guid) {
+        Integer count = pending_writes.get (guid);
+        assert count != null : guid;
+        if (count.intValue () == 1)
+            pending_writes.remove (guid);
+        else
+            pending_writes.put (guid, new Integer (count.intValue () - 1));
+    }
+
+    /**
+     * Removes any entry for <code>guid</code>, such as when one of its
+     * values expires.
+     */
+    public synchronized void invalidate (BigInteger guid) {
+        if (remove (guid))
+            ++invalidations;
+    }
+
+    protected boolean remove (BigInteger guid) {
+        Entry e = entries.remove (guid);
+        if (e == null)
+            return false;
+        bytes -= e.bytes;
+        return true;
+    }
+
+    public synchronized long hits () { return hits; }
+    public synchronized long misses () { return misses; }
+    public synchronized long evictions () { return evictions; }
+    public synchronized long invalidations () { return invalidations; }
+    public synchronized long bytes () { return bytes; }
+    public synchronized int size () { return entries.size (); }
+    public long capacity () { return capacity; }
+
+    public synchronized String toString () {
+        return "(ValueCache size=" + entries.size () + " bytes=" + bytes
+            + " capacity=" + capacity + " hits=" + hits + " misses=" + misses
+            + " evictions=" + evictions + " invalidations=" + invalidations
+            + ")";
+    }
+}
@@ -26,6 +26,7 @@ import bamboo.lss.Rpc;
 import bamboo.router.NeighborInfo;
 import bamboo.router.RouteMsg;
 import bamboo.router.Router;
+import bamboo.util.AccessLog;
 import bamboo.util.GuidTools;
 import bamboo.util.Pair;
 import bamboo.util.StringUtil;
@@ -59,7 +60,7 @@ import seda.sandStorm.api.ConfigDataIF;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.SingleThreadedEventHandlerIF;
 import seda.sandStorm.api.SinkIF;
-import static bamboo.db.StorageManager.GetByGuidReq;
+import static bamboo.db.StorageManager.GetByGuidBatchReq;
 import static bamboo.db.StorageManager.Key;
 import static bamboo.db.StorageManager.ZERO_HASH;
 import static bamboo.db.StorageManager.ZERO_KEY;
@@ -112,6 +113,17 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
     }
     protected static final int MAX_GET_RESP_SIZE = calcMaxGetRespSize();
 
+    /**
+     * The serialized size of a GetValue, not counting the value itself.
+     */
+    protected static int calcGetValueOverhead() {
+        GetValue gv = new GetValue(ByteBuffer.allocate(0), 0, new byte[20]);
+        CountBuffer cb = new CountBuffer();
+        gv.serialize(cb);
+        return cb.size();
+    }
+    protected static final int GET_VALUE_OVERHEAD = calcGetValueOverhead();
+
     private static final boolean sendGetValues = true;
 
     protected Rpc rpc;
@@ -196,18 +208,62 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
             else
                 client_to_usage.put(client_id, new Long(new_usage));
         }
-        if (logger.isInfoEnabled()) {
-            StringBuffer buf = new StringBuffer(100);
+        AccessLog.Record r = usage_log.record();
+        if (r != null) {
+            r.a = client_id;
+            r.x = new_usage;
+            r.y = total_usage;
+            r.log();
+        }
+    }
+
+    protected AccessLog.Type usage_log =
+        new AccessLog.Type("client_usage", logger) {
+        public void format(AccessLog.Record r, StringBuffer buf) {
             buf.append("client ");
-            buf.append(client_id.getHostAddress());
+            buf.append(((InetAddress) r.a).getHostAddress());
             buf.append(" usage now ");
-            StringUtil.byte_cnt_to_sbuf(new_usage, buf);
+            StringUtil.byte_cnt_to_sbuf(r.x, buf);
             buf.append(" of ");
-            StringUtil.byte_cnt_to_sbuf(total_usage, buf);
+            StringUtil.byte_cnt_to_sbuf(r.y, buf);
             buf.append(" total.");
-            logger.info(buf.toString());
         }
-    }
+    };
+
+    /**
+     * Logs what happened to a GetRespMsg on its way back to the client,
+     * here and in ReturnToClient.  <code>r.a</code> says what happened,
+     * <code>r.b</code> is the key, <code>r.c</code> the return address and
+     * <code>r.x</code> the seq.  If <code>r.z</code> is set, the return
+     * address is printed again after "to", followed by <code>r.d</code>
+     * and the node in <code>r.e</code>, if any; <code>r.y</code> is the
+     * latency in ms, or -1.
+     */
+    protected AccessLog.Type get_resp_log =
+        new AccessLog.Type("get_resp", logger) {
+        public void format(AccessLog.Record r, StringBuffer sbuf) {
+            sbuf.append(r.a);
+            sbuf.append(" get resp key=0x");
+            sbuf.append(GuidTools.guid_to_string((BigInteger) r.b));
+            sbuf.append(" return addr=");
+            sbuf.append(r.c);
+            sbuf.append(" seq=");
+            sbuf.append(r.x);
+            if (r.z != 0) {
+                sbuf.append(" to ");
+                sbuf.append(r.c);
+            }
+            if (r.d != null)
+                sbuf.append(r.d);
+            if (r.e != null)
+                StringUtil.addr_to_sbuf((InetSocketAddress) r.e, sbuf);
+            if (r.y >= 0) {
+                sbuf.append(" in ");
+                sbuf.append(r.y);
+                sbuf.append(" ms");
+            }
+        }
+    };
 
     protected boolean below_fair_share(InetAddress client,
                                        int size, int ttl_sec) {
@@ -570,7 +626,7 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
     }
 
     protected int storage_size(PutReqPayload payload) {
-        return payload.value.limit() + StorageManager.Key.SIZE;
+        return dmgr.storedSize(payload.value.limit()) + StorageManager.Key.SIZE;
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -1094,6 +1150,8 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
                 slop_cap [i] = slop_size;
         }
         compute_rates();
+        config_access_log(config, usage_log);
+        config_access_log(config, get_resp_log);
         acore.registerTimer(0, ready);
     }
 
@@ -1106,7 +1164,8 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
             vivaldi = Vivaldi.instance(my_node_id);
             rand = new Random(my_node_id.hashCode() ^ now_ms());
             returnToClient = 
-                new ReturnToClient(logger, network, rpc, acore, router, rand);
+                new ReturnToClient(logger, get_resp_log, network, rpc, acore,
+                                   router, rand);
             try {
                 network.registerReceiver(DiskSizeMsg.class, handleDiskSizeMsg);
                 network.registerReceiver(RecurGetReq.class,handleRecurGetReq);
@@ -1173,8 +1232,9 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
             else if (item instanceof PutOrRemoveResp) {
                 handle_put_or_remove_resp( (PutOrRemoveResp) item);
             }
-            else if (item instanceof StorageManager.GetByGuidResp) {
-                handle_get_by_guid_resp( (StorageManager.GetByGuidResp) item);
+            else if (item instanceof StorageManager.GetByGuidBatchResp) {
+                handle_get_by_guid_batch_resp(
+                        (StorageManager.GetByGuidBatchResp) item);
             }
             else {
                 throw new IllegalArgumentException(
@@ -1293,14 +1353,15 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
             return;
         }
 
-        StringBuffer sbuf = new StringBuffer(200);
-        sbuf.append("received get resp key=0x");
-        sbuf.append(GuidTools.guid_to_string(msg.key));
-        sbuf.append(" return addr=");
-        sbuf.append(my_node_id);
-        sbuf.append(" seq=");
-        sbuf.append(msg.seq);
-        logger.info(sbuf.toString());
+        AccessLog.Record r = get_resp_log.record();
+        if (r != null) {
+            r.a = "received";
+            r.b = msg.key;
+            r.c = my_node_id;
+            r.x = msg.seq;
+            r.y = -1;
+            r.log();
+        }
 
         GetReq req = (GetReq) pair.first;
         GetResp outb = new GetResp(
@@ -1387,90 +1448,51 @@ implements SingleThreadedEventHandlerIF, StorageManager.StorageMonitor  {
     //
     /////////////////////////////////////////////////////////////////
 
-    protected static class GetValuesState {
-        public LinkedList<Pair<Key,ByteBuffer>> values = 
-            new LinkedList<Pair<Key,ByteBuffer>>();
-        public int size;
-        public int maxvals;
-        public StorageManager.Key largest_key = StorageManager.ZERO_KEY;
-        public Thunk2<LinkedList<Pair<Key,ByteBuffer>>,Boolean> done;
-        public GetValuesState(int m, 
-                Thunk2<LinkedList<Pair<Key,ByteBuffer>>,Boolean> d) { 
-            maxvals = m; done = d; 
-        }
-    }
-
-    protected void getValues(BigInteger key, Key placemark, int maxvals,
-            Thunk2<LinkedList<Pair<Key,ByteBuffer>>,Boolean> done) {
-        maxvals &= MAXVALS_MASK;
-        GetValuesState state = new GetValuesState(maxvals, done);
-        GetByGuidReq outb = new GetByGuidReq(key, true /* primary */,
-                                             placemark, my_sink, state);
-        dispatch(outb);
-    }
-
     /**
-     * Returns all values whose keys are
-     * greater than the given placemark, if any.  Returns a placemark equal to
-     * the largest key of the values returned, or all zeros if no values are
-     * returned.  All zeros is appropriate as a lower open limit on placemarks
-     * since time_usec cannot be zero in any real key.
+     * Reads as many values under the given key as will fit in a single get
+     * response with one StorageManager.GetByGuidBatchReq, rather than
+     * walking the by_guid cursor one value per round trip through the
+     * BerkeleyDB thread.  Removes are skipped inside the storage manager.
+     * Returns values whose keys are greater than the given placemark, if
+     * any, and whether all such values were read.
      * <p>
      * Using the standard StorageManager.Key.compareTo function, instead of a
      * Comparator that compares guids first, works here because all values for
      * a given get have the same guid.
+     * <p>
+     * If the DataManager stores erasure-coded fragments, each fragment read
+     * is about 1/k the size of its value, plus a small header, so we scale
+     * the byte budget the same way, and have the DataManager rebuild the
+     * values before returning them.  The budget is rounded down and the
+     * per-value overhead up, so that values that fit the budget as
+     * fragments also fit MAX_GET_RESP_SIZE once rebuilt.
      */
-    protected void handle_get_by_guid_resp(StorageManager.GetByGuidResp resp) {
-        GetValuesState state = (GetValuesState) resp.user_data;
-        boolean allRead = false;
-
-        if (resp.continuation != null) {
-            if (resp.key.put == false) {
-                // Don't return removes.  The continuation is non-null, so
-                // check for more values.
-                StorageManager.GetByGuidCont outb =
-                    new StorageManager.GetByGuidCont(
-                            resp.continuation, my_sink, state);
-                dispatch(outb);
-                return;
-            }
+    protected void getValues(BigInteger key, Key placemark, int maxvals,
+            Thunk2<LinkedList<Pair<Key,ByteBuffer>>,Boolean> done) {
+        maxvals &= MAXVALS_MASK;
+        int k = dmgr.fragmentsNeeded();
+        GetByGuidBatchReq outb = new GetByGuidBatchReq(key, placemark, 
+                maxvals, dmgr.storedSize(MAX_GET_RESP_SIZE - (k - 1)), 
+                (GET_VALUE_OVERHEAD + k - 1) / k, my_sink, done);
+        dispatch(outb);
+    }
 
-            // TODO: it's stupid that we create this and then throw it away.
-            // We might as well make this the values type...
-            GetValue gv = new GetValue(resp.data,
-                    resp.key.ttlRemaining(now_ms()),
-                    resp.key.secret_hash);
-            CountBuffer cb = new CountBuffer();
-            gv.serialize(cb);
-
-            if ((state.size + cb.size() <= MAX_GET_RESP_SIZE)
-                && (state.values.size() < state.maxvals)) {
-
-                state.size += cb.size();
-                state.values.addLast(Pair.create(resp.key, resp.data));
-                // There may still be more values; we need to check for them.
-                StorageManager.GetByGuidCont outb =
-                    new StorageManager.GetByGuidCont(resp.continuation, 
-                                                     my_sink, state);
-                dispatch(outb);
-                return;
-            }
-            else {
-                // There were more values, but we can't return them.  Close
-                // the cursor.
-                StorageManager.GetByGuidCont outb =
-                    new StorageManager.GetByGuidCont(
-                    resp.continuation, null, null);
-                dispatch(outb);
-            }
+    protected void handle_get_by_guid_batch_resp(
+            StorageManager.GetByGuidBatchResp resp) {
+        final Thunk2<LinkedList<Pair<Key,ByteBuffer>>,Boolean> done = 
+            (Thunk2<LinkedList<Pair<Key,ByteBuffer>>,Boolean>) resp.user_data;
+        final Boolean all_read = new Boolean(resp.all_read);
+        if (dmgr.erasureCoded()) {
+            dmgr.reconstruct(resp.values, 
+                    new Thunk1<LinkedList<Pair<Key,ByteBuffer>>>() {
+                public void run(LinkedList<Pair<Key,ByteBuffer>> values) {
+                    done.run(values, all_read);
+                }
+            });
         }
         else {
-            // Cursor already closed, and there are no more values.
-            allRead = true;
+            done.run(resp.values, all_read);
         }
-
-        // All done.  Run the callback.
-        state.done.run(state.values, new Boolean(allRead));
     }
 
     /////////////////////////////////////////////////////////////////
@@ -12,6 +12,7 @@ import bamboo.lss.NioMultiplePacketInputBuffer;
 import bamboo.sim.EventQueue;
 import bamboo.sim.Network;
 import bamboo.sim.Simulator;
+import bamboo.util.AccessLog;
 import bamboo.util.GuidTools;
 import bamboo.util.XdrByteBufferEncodingStream;
 import bamboo.util.XdrClone;
@@ -630,6 +631,12 @@ implements SingleThreadedEventHandlerIF {
         super.init (config);
 
         md = MessageDigest.getInstance ("SHA");
+        config_access_log (config, put_req_log);
+        config_access_log (config, put_resp_log);
+        config_access_log (config, rm_req_log);
+        config_access_log (config, rm_resp_log);
+        config_access_log (config, get_req_log);
+        config_access_log (config, get_resp_log);
         allow_unauth_rm = config_get_boolean(config, "allow_unauth_rm");
         assert !allow_unauth_rm : "allow_unauth_rm no longer supported";
         server_port = config.getInt("port");
@@ -1169,36 +1176,81 @@ implements SingleThreadedEventHandlerIF {
     }
 
     protected MessageDigest md;
+
+    /**
+     * Appends the first four bytes of <code>secret_hash</code>, or of the
+     * zero hash if it is null, in hex.
+     */
+    protected static void secret_hash_to_sbuf (byte [] secret_hash,
+                                               StringBuffer buf) {
+        if (secret_hash == null)
+            bytes_to_sbuf (StorageManager.ZERO_HASH, 0, 4, false, buf);
+        else
+            bytes_to_sbuf(secret_hash, 0, min(secret_hash.length, 4), 
+                          false, buf);
+    }
+
+    /**
+     * Appends the client, library, application, xact_id and key that
+     * start the logs of every request and response.
+     */
+    protected static void request_to_sbuf (AccessLog.Record r, 
+                                           StringBuffer buf) {
+        buf.append (r.a);
+        buf.append (" client_library=\"");
+        buf.append (r.b);
+        buf.append ("\" application=\"");
+        buf.append (r.c);
+        buf.append ("\" xact_id=0x");
+        buf.append (Integer.toHexString ((int) r.x));
+        buf.append (" key=0x");
+        buf.append (GuidTools.guid_to_string ((BigInteger) r.d));
+    }
+
+    protected AccessLog.Record record_request (AccessLog.Type t, int xact_id,
+            BigInteger key, String client, String client_lib, 
+            String application) {
+        AccessLog.Record r = t.record ();
+        if (r != null) {
+            r.a = client;
+            r.b = client_lib;
+            r.c = application;
+            r.d = key;
+            r.x = xact_id;
+        }
+        return r;
+    }
+
     protected void log_put_req (int xact_id, Dht.PutReq req, String client,
                                  byte [] value_hash,
                                  String client_lib, String application) {
-        if (logger.isInfoEnabled ()) {
-            StringBuffer buf = new StringBuffer (100);
+        AccessLog.Record r = record_request (put_req_log, xact_id, req.key,
+                client, client_lib, application);
+        if (r != null) {
+            r.e = req.secret_hash;
+            r.f = value_hash;
+            r.y = req.value.limit ();
+            r.z = req.ttl_sec;
+            r.log ();
+        }
+    }
+
+    protected AccessLog.Type put_req_log = 
+        new AccessLog.Type ("put_req", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
             buf.append ("put req client=");
-            buf.append (client);
-            buf.append (" client_library=\"");
-            buf.append (client_lib);
-            buf.append ("\" application=\"");
-            buf.append (application);
-            buf.append ("\" xact_id=0x");
-            buf.append (Integer.toHexString (xact_id));
-            buf.append (" key=0x");
-            buf.append (GuidTools.guid_to_string (req.key));
+            request_to_sbuf (r, buf);
             buf.append (" secret_hash=0x");
-            if (req.secret_hash == null)
-                bytes_to_sbuf (StorageManager.ZERO_HASH, 0, 4, false, buf);
-            else
-                bytes_to_sbuf(req.secret_hash, 0, 
-                              min(req.secret_hash.length, 4), false, buf);
+            secret_hash_to_sbuf ((byte []) r.e, buf);
             buf.append (" value_hash=0x");
+            byte [] value_hash = (byte []) r.f;
             bytes_to_sbuf(value_hash, 0, min(value_hash.length, 4), false, buf);
             buf.append (" size=");
-            buf.append (req.value.limit ());
+            buf.append (r.y);
             buf.append (" ttl=");
-            buf.append (req.ttl_sec);
-            logger.info (buf);
+            buf.append (r.z);
         }
-    }
+    };
 
     protected Thunk8<Integer,Dht.PutReq,Dht.PutResp,String,Long,
                             byte[],String,String> log_put_resp = 
@@ -1210,72 +1262,95 @@ implements SingleThreadedEventHandlerIF {
                         byte [] value_hash,
                         String client_lib, String application) {
 
-            if (logger.isInfoEnabled()) {
-                StringBuffer buf = new StringBuffer(200);
-                buf.append ("put resp client=");
-                buf.append (client);
-                buf.append (" client_library=\"");
-                buf.append (client_lib);
-                buf.append ("\" application=\"");
-                buf.append (application);
-                buf.append ("\" xact_id=0x");
-                buf.append (Integer.toHexString(xact_id));
-                buf.append (" key=0x");
-                buf.append (GuidTools.guid_to_string (req.key));
-                buf.append (" value hash=0x");
-                if (req.secret_hash == null)
-                    bytes_to_sbuf (StorageManager.ZERO_HASH, 0, 4, false, buf);
-                else
-                    bytes_to_sbuf(req.secret_hash, 0, 
-                                  min(req.secret_hash.length, 4), false, buf);
-                buf.append (" value hash=0x");
-                bytes_to_sbuf(value_hash, 0, min(value_hash.length, 4), 
-                              false, buf);
-                buf.append (" size=");
-                buf.append (req.value.limit ());
-                buf.append (" ttl=");
-                buf.append (req.ttl_sec);
-                buf.append (" stat=");
-                buf.append (resp.result);
-                buf.append (" lat=");
-                buf.append (timer_ms () - start_ms.longValue ());
-                buf.append (" ms");
-                logger.info(buf);
+            AccessLog.Record r = record_request (put_resp_log, 
+                    xact_id.intValue (), req.key, client, client_lib, 
+                    application);
+            if (r != null) {
+                r.e = req.secret_hash;
+                r.f = value_hash;
+                r.y = req.value.limit ();
+                r.z = req.ttl_sec;
+                r.v = resp.result;
+                r.w = timer_ms () - start_ms.longValue ();
+                r.log ();
             }
         }
     };
 
+    protected AccessLog.Type put_resp_log = 
+        new AccessLog.Type ("put_resp", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
+            buf.append ("put resp client=");
+            request_to_sbuf (r, buf);
+            buf.append (" value hash=0x");
+            secret_hash_to_sbuf ((byte []) r.e, buf);
+            buf.append (" value hash=0x");
+            byte [] value_hash = (byte []) r.f;
+            bytes_to_sbuf(value_hash, 0, min(value_hash.length, 4), 
+                          false, buf);
+            buf.append (" size=");
+            buf.append (r.y);
+            buf.append (" ttl=");
+            buf.append (r.z);
+            buf.append (" stat=");
+            buf.append (r.v);
+            buf.append (" lat=");
+            buf.append (r.w);
+            buf.append (" ms");
+        }
+    };
+
+    /**
+     * Fills in the fields of a remove request common to the logs of the
+     * request and response.
+     */
+    protected void record_rm (AccessLog.Record r, Dht.PutReq req) {
+        assert req.value.hasArray();
+        r.e = req.secret_hash;
+        r.f = req.value_hash;
+        r.g = req.value.duplicate ();
+        r.y = req.ttl_sec;
+    }
+
+    protected void rm_to_sbuf (AccessLog.Record r, StringBuffer buf) {
+        buf.append (" secret_hash=0x");
+        secret_hash_to_sbuf ((byte []) r.e, buf);
+        buf.append (" value_hash=0x");
+        byte [] value_hash = (byte []) r.f;
+        bytes_to_sbuf(value_hash, 0, min(value_hash.length, 4), false, buf);
+        buf.append (" secret=0x");
+        ByteBuffer secret = (ByteBuffer) r.g;
+        bytes_to_sbuf(secret.array(), 
+                      secret.arrayOffset() + secret.position(), 
+                      secret.limit() - secret.position(), 
+                      false, buf);
+        buf.append (" ttl=");
+        buf.append (r.y);
+    }
+
     protected void log_rm_req(int xact_id, Dht.PutReq req, String client,
                               String client_lib, String application) {
-        if (logger.isInfoEnabled ()) {
-            StringBuffer buf = new StringBuffer (100);
+        AccessLog.Record r = record_request (rm_req_log, xact_id, req.key,
+                client, client_lib, application);
+        if (r != null) {
+            record_rm (r, req);
+            r.log ();
+        }
+    }
+
+    protected AccessLog.Type rm_req_log = 
+        new AccessLog.Type ("rm_req", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
             buf.append ("rm req client=");
-            buf.append (client);
+            buf.append (r.a);
             buf.append (" xact_id=0x");
-            buf.append (Integer.toHexString (xact_id));
+            buf.append (Integer.toHexString ((int) r.x));
             buf.append (" key=0x");
-            buf.append (GuidTools.guid_to_string (req.key));
-            buf.append (" secret_hash=0x");
-            if (req.secret_hash == null)
-                bytes_to_sbuf (StorageManager.ZERO_HASH, 0, 4, false, buf);
-            else
-                bytes_to_sbuf(req.secret_hash, 0, 
-                              min(req.secret_hash.length, 4), false, buf);
-            buf.append (" value_hash=0x");
-            bytes_to_sbuf(req.value_hash, 0, min(req.value_hash.length, 4), 
-                          false, buf);
-            buf.append (" secret=0x");
-            assert req.value.hasArray();
-            bytes_to_sbuf(req.value.array(), 
-                          req.value.arrayOffset() + req.value.position(), 
-                          req.value.limit() - req.value.position(), 
-                          false, buf);
-            buf.append (" ttl=");
-            buf.append (req.ttl_sec);
+            buf.append (GuidTools.guid_to_string ((BigInteger) r.d));
+            rm_to_sbuf (r, buf);
             buf.append ("s");
-            logger.info (buf);
         }
-    }
+    };
 
     protected Thunk7<Integer,Dht.PutReq,Dht.PutResp,String,Long,
                             String,String> log_rm_resp = 
@@ -1286,71 +1361,62 @@ implements SingleThreadedEventHandlerIF {
                         String client, Long start_ms, String client_lib, 
                         String application) {
 
-            if (logger.isInfoEnabled()) {
-                StringBuffer buf = new StringBuffer(200);
-                buf.append ("rm resp client=");
-                buf.append (client);
-                buf.append (" client_library=\"");
-                buf.append (client_lib);
-                buf.append ("\" application=\"");
-                buf.append (application);
-                buf.append ("\" xact_id=0x");
-                buf.append (Integer.toHexString(xact_id));
-                buf.append (" key=0x");
-                buf.append (GuidTools.guid_to_string (req.key));
-                buf.append (" secret_hash=0x");
-                if (req.secret_hash == null)
-                    bytes_to_sbuf (StorageManager.ZERO_HASH, 0, 4, false, buf);
-                else
-                    bytes_to_sbuf(req.secret_hash, 0, 
-                                  min(req.secret_hash.length, 4), false, buf);
-                buf.append (" value_hash=0x");
-                bytes_to_sbuf(req.value_hash, 0, min(req.value_hash.length, 4), 
-                              false, buf);
-                buf.append (" secret=0x");
-                assert req.value.hasArray();
-                bytes_to_sbuf(req.value.array(), 
-                              req.value.arrayOffset() + req.value.position(), 
-                              req.value.limit() - req.value.position(), 
-                              false, buf);
-                buf.append (" ttl=");
-                buf.append (req.ttl_sec);
-                buf.append (" stat=");
-                buf.append (resp.result);
-                buf.append (" lat=");
-                buf.append (timer_ms () - start_ms.longValue ());
-                buf.append (" ms");
-                logger.info(buf);
+            AccessLog.Record r = record_request (rm_resp_log, 
+                    xact_id.intValue (), req.key, client, client_lib, 
+                    application);
+            if (r != null) {
+                record_rm (r, req);
+                r.v = resp.result;
+                r.w = timer_ms () - start_ms.longValue ();
+                r.log ();
             }
         }
     };
 
+    protected AccessLog.Type rm_resp_log = 
+        new AccessLog.Type ("rm_resp", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
+            buf.append ("rm resp client=");
+            request_to_sbuf (r, buf);
+            rm_to_sbuf (r, buf);
+            buf.append (" stat=");
+            buf.append (r.v);
+            buf.append (" lat=");
+            buf.append (r.w);
+            buf.append (" ms");
+        }
+    };
+
+    protected void placemark_to_sbuf (Object placemark, StringBuffer buf) {
+        if ((placemark == null) || placemark.equals(ZERO_KEY))
+            buf.append("NONE");
+        else
+            buf.append(placemark);
+    }
 
     protected void log_get_req (int xact_id, Dht.GetReq req, String client,
             String client_lib, String application) {
-        if (logger.isInfoEnabled()) {
-            StringBuffer buf = new StringBuffer(200);
+        AccessLog.Record r = record_request (get_req_log, xact_id, req.key,
+                client, client_lib, application);
+        if (r != null) {
+            r.e = req.placemark;
+            r.y = req.maxvals;
+            r.log ();
+        }
+    }
+
+    protected AccessLog.Type get_req_log = 
+        new AccessLog.Type ("get_req", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
             buf.append("get req client=");
-            buf.append(client);
-            buf.append (" client_library=\"");
-            buf.append (client_lib);
-            buf.append ("\" application=\"");
-            buf.append (application);
-            buf.append("\" xact_id=0x");
-            buf.append(Integer.toHexString(xact_id));
-            buf.append(" key=0x");
-            buf.append(GuidTools.guid_to_string(req.key));
+            request_to_sbuf (r, buf);
             buf.append(" maxvals=");
-            buf.append(req.maxvals);
+            buf.append(r.y);
             buf.append(" placemark=(");
-            if ((req.placemark == null) || req.placemark.equals(ZERO_KEY))
-                buf.append("NONE");
-            else
-                buf.append(req.placemark);
+            placemark_to_sbuf (r.e, buf);
             buf.append(")");
-            logger.info(buf);
         }
-    }
+    };
 
     protected Thunk7<Integer,Dht.GetReq,Dht.GetResp,String,Long,String,String>
         log_get_resp = new 
@@ -1360,69 +1426,78 @@ implements SingleThreadedEventHandlerIF {
                         String client, Long start_ms, 
                         String client_lib, String application) {
 
-            if (logger.isInfoEnabled()) {
-                StringBuffer buf = new StringBuffer(400);
-                buf.append("get resp client=");
-                buf.append(client);
-                buf.append (" client_library=\"");
-                buf.append (client_lib);
-                buf.append ("\" application=\"");
-                buf.append (application);
-                buf.append("\" xact_id=0x");
-                buf.append(Integer.toHexString(xact_id.intValue ()));
-                buf.append(" key=0x");
-                buf.append(GuidTools.guid_to_string(req.key));
-                buf.append(" maxvals=");
-                buf.append(req.maxvals);
-                buf.append(" req placemark=(");
-                if ((req.placemark == null) || req.placemark.equals(ZERO_KEY))
-                    buf.append("NONE");
-                else
-                    buf.append(req.placemark);
-                buf.append(") values=[");
-                Iterator i = resp.values.iterator ();
-                while (i.hasNext ()) {
-                    Object obj = i.next();
-                    GetValue gv = null;
-                    if (obj instanceof GetValue)
-                        gv = (GetValue) obj;
-                    else {
-                        ByteBuffer value = (ByteBuffer) obj;
-                        gv = new GetValue(value, -1, new byte[0]);
-                    }
-                    md.update (gv.value.array (), gv.value.arrayOffset (),
+            AccessLog.Record r = record_request (get_resp_log, 
+                    xact_id.intValue (), req.key, client, client_lib, 
+                    application);
+            if (r != null) {
+                r.e = req.placemark;
+                r.f = resp.values;
+                r.g = resp.placemark;
+                r.y = req.maxvals;
+                r.z = timer_ms () - start_ms.longValue ();
+                r.log ();
+            }
+        }
+    };
+
+    /**
+     * Logs a get response, with the size, secret hash, value hash and TTL
+     * of each value.  The values are hashed by the writer thread, with a
+     * MessageDigest of its own.
+     */
+    protected AccessLog.Type get_resp_log = 
+        new AccessLog.Type ("get_resp", logger) {
+        protected MessageDigest digest;
+        public void format (AccessLog.Record r, StringBuffer buf) {
+            if (digest == null) {
+                try { digest = MessageDigest.getInstance ("SHA"); }
+                catch (Exception e) { throw new RuntimeException (e); }
+            }
+            buf.append("get resp client=");
+            request_to_sbuf (r, buf);
+            buf.append(" maxvals=");
+            buf.append(r.y);
+            buf.append(" req placemark=(");
+            placemark_to_sbuf (r.e, buf);
+            buf.append(") values=[");
+            Iterator i = ((LinkedList) r.f).iterator ();
+            while (i.hasNext ()) {
+                Object obj = i.next();
+                GetValue gv = null;
+                if (obj instanceof GetValue)
+                    gv = (GetValue) obj;
+                else {
+                    ByteBuffer value = (ByteBuffer) obj;
+                    gv = new GetValue(value, -1, new byte[0]);
+                }
+                digest.update (gv.value.array (), gv.value.arrayOffset (),
                                gv.value.limit ());
-                    byte [] value_hash = md.digest ();
-                    buf.append ("(");
-                    buf.append (gv.value.limit ());
-                    if (gv.secretHash.length > 0) {
-                        buf.append (", ");
-                        buf.append (gv.hashAlgorithm);
-                        buf.append(" 0x");
-                        bytes_to_sbuf(gv.secretHash, 0,
-                                      min(gv.secretHash.length, 4), false, buf);
-                    }
-                    else 
-                        buf.append (", NONE");
-                    buf.append (", 0x");
-                    bytes_to_sbuf(value_hash, 0, 
-                                  min(value_hash.length, 4), false, buf);
+                byte [] value_hash = digest.digest ();
+                buf.append ("(");
+                buf.append (gv.value.limit ());
+                if (gv.secretHash.length > 0) {
                     buf.append (", ");
-                    buf.append (gv.ttlRemaining);
-                    buf.append (")");
-                    if (i.hasNext ())
-                        buf.append (", ");
+                    buf.append (gv.hashAlgorithm);
+                    buf.append(" 0x");
+                    bytes_to_sbuf(gv.secretHash, 0,
+                                  min(gv.secretHash.length, 4), false, buf);
                 }
-                buf.append("] resp placemark=(");
-                if ((resp.placemark == null) || resp.placemark.equals(ZERO_KEY))
-                    buf.append("NONE");
-                else
-                    buf.append(resp.placemark);
-                buf.append (") lat=");
-                buf.append (timer_ms () - start_ms.longValue ());
-                buf.append (" ms");
-                logger.info(buf);
+                else 
+                    buf.append (", NONE");
+                buf.append (", 0x");
+                bytes_to_sbuf(value_hash, 0, 
+                              min(value_hash.length, 4), false, buf);
+                buf.append (", ");
+                buf.append (gv.ttlRemaining);
+                buf.append (")");
+                if (i.hasNext ())
+                    buf.append (", ");
             }
+            buf.append("] resp placemark=(");
+            placemark_to_sbuf (r.g, buf);
+            buf.append (") lat=");
+            buf.append (r.z);
+            buf.append (" ms");
         }
     };
 
@@ -13,7 +13,7 @@ import bamboo.lss.PriorityQueue;
 import bamboo.lss.Rpc;
 import bamboo.router.NeighborInfo;
 import bamboo.router.Router;
-import bamboo.util.GuidTools;
+import bamboo.util.AccessLog;
 import java.net.InetSocketAddress;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -29,15 +29,17 @@ import static bamboo.util.StringUtil.*;
 public class ReturnToClient {
 
     protected Logger logger;
+    protected AccessLog.Type get_resp_log;
     protected Network network;
     protected Rpc rpc;
     protected ASyncCore acore;
     protected Router router;
     protected Random rand;
 
-    public ReturnToClient(Logger l, Network n, Rpc r, ASyncCore a, Router t, 
-                          Random d) {
-        logger = l; network = n; rpc = r; acore = a; router = t; rand = d;
+    public ReturnToClient(Logger l, AccessLog.Type g, Network n, Rpc r,
+                          ASyncCore a, Router t, Random d) {
+        logger = l; get_resp_log = g; network = n; rpc = r; acore = a;
+        router = t; rand = d;
         try {
             rpc.registerRequestHandler(
                     ForwardThroughLeafSetReq.class, fwdThruLSReq);
@@ -45,22 +47,32 @@ public class ReturnToClient {
         catch (DuplicateTypeException e) { assert false; }
     }
 
+    /**
+     * Logs what happened to <code>resp</code>; see Dht.get_resp_log.
+     */
+    protected void log_get_resp(String what, Dht.GetRespMsg resp, boolean to,
+                                String how, InetSocketAddress via,
+                                long start_time) {
+        AccessLog.Record r = get_resp_log.record();
+        if (r != null) {
+            r.a = what;
+            r.b = resp.key;
+            r.c = resp.peer;
+            r.x = resp.seq;
+            r.z = to ? 1 : 0;
+            r.d = how;
+            r.e = via;
+            r.y = (start_time < 0) ? -1 : acore.timerMillis() - start_time;
+            r.log();
+        }
+    }
+
     public void returnToClient(final NetworkMessage msg, Thunk1<Boolean> cb) {
         // To send a message back to a client, we first just send it directly.
         long start_time = acore.timerMillis();
         if (msg instanceof Dht.GetRespMsg) {
-            Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-            StringBuffer sbuf = new StringBuffer(200);
-            sbuf.append("sending get resp key=0x");
-            sbuf.append(GuidTools.guid_to_string(resp.key));
-            sbuf.append(" return addr=");
-            sbuf.append(msg.peer);
-            sbuf.append(" seq=");
-            sbuf.append(resp.seq);
-            sbuf.append(" to ");
-            sbuf.append(msg.peer);
-            sbuf.append(" directly");
-            logger.info(sbuf.toString());
+            log_get_resp("sending", (Dht.GetRespMsg) msg, true, " directly",
+                         null, -1);
         }
         network.send(msg, msg.peer, 5, curry(returnToClientResult, msg, 
                                              new Long(start_time), cb));
@@ -75,20 +87,8 @@ public class ReturnToClient {
                 // If that doesn't work, we try to forward it through each
                 // of the members of our leaf set.
                 if (msg instanceof Dht.GetRespMsg) {
-                    Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-                    StringBuffer sbuf = new StringBuffer(200);
-                    sbuf.append("failed to send get resp key=0x");
-                    sbuf.append(GuidTools.guid_to_string(resp.key));
-                    sbuf.append(" return addr=");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" seq=");
-                    sbuf.append(resp.seq);
-                    sbuf.append(" to ");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" directly in ");
-                    sbuf.append(acore.timerMillis() - start_time.longValue());
-                    sbuf.append(" ms");
-                    logger.info(sbuf.toString());
+                    log_get_resp("failed to send", (Dht.GetRespMsg) msg, true,
+                                 " directly", null, start_time.longValue());
                 }
                 else if (logger.isInfoEnabled ()) {
                     StringBuffer sbuf = new StringBuffer(100);
@@ -101,20 +101,8 @@ public class ReturnToClient {
             else {
                 if (cb != null) cb.run(new Boolean(true));
                 if (msg instanceof Dht.GetRespMsg) {
-                    Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-                    StringBuffer sbuf = new StringBuffer(200);
-                    sbuf.append("sent get resp key=0x");
-                    sbuf.append(GuidTools.guid_to_string(resp.key));
-                    sbuf.append(" return addr=");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" seq=");
-                    sbuf.append(resp.seq);
-                    sbuf.append(" to ");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" directly in ");
-                    sbuf.append(acore.timerMillis() - start_time.longValue());
-                    sbuf.append(" ms");
-                    logger.info(sbuf.toString());
+                    log_get_resp("sent", (Dht.GetRespMsg) msg, true,
+                                 " directly", null, start_time.longValue());
                 }
             }
         }
@@ -156,16 +144,9 @@ public class ReturnToClient {
                 // Everyone who is still in our leaf set is also in the
                 // possibly down set.
                 if (msg instanceof Dht.GetRespMsg) {
-                    Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-                    StringBuffer sbuf = new StringBuffer(200);
-                    sbuf.append("ran out of nodes to send get resp key=0x");
-                    sbuf.append(GuidTools.guid_to_string(resp.key));
-                    sbuf.append(" return addr=");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" seq=");
-                    sbuf.append(resp.seq);
-                    sbuf.append(" through");
-                    logger.info(sbuf.toString());
+                    log_get_resp("ran out of nodes to send",
+                                 (Dht.GetRespMsg) msg, false, " through",
+                                 null, -1);
                 }
                 else if (logger.isInfoEnabled ()) {
                     StringBuffer sbuf = new StringBuffer(200);
@@ -183,19 +164,8 @@ public class ReturnToClient {
                 while (which-- >= 0)
                     neighbor = j.next();
                 if (msg instanceof Dht.GetRespMsg) {
-                    Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-                    StringBuffer sbuf = new StringBuffer(200);
-                    sbuf.append("sending get resp key=0x");
-                    sbuf.append(GuidTools.guid_to_string(resp.key));
-                    sbuf.append(" return addr=");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" seq=");
-                    sbuf.append(resp.seq);
-                    sbuf.append(" to ");
-                    sbuf.append(msg.peer);
-                    sbuf.append(" through ");
-                    addr_to_sbuf(neighbor.node_id, sbuf);
-                    logger.info(sbuf.toString());
+                    log_get_resp("sending", (Dht.GetRespMsg) msg, true,
+                                 " through ", neighbor.node_id, -1);
                 }
                 else if (logger.isInfoEnabled ()) {
                     StringBuffer sbuf = new StringBuffer(200);
@@ -229,25 +199,9 @@ public class ReturnToClient {
                         Thunk1<Boolean> cb, QSBool result) {
             router.removeFromPossiblyDown(peer);
             if (msg instanceof Dht.GetRespMsg) {
-                Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-                StringBuffer sbuf = new StringBuffer(200);
-                if (result.boolValue ())
-                    sbuf.append("sent get resp key=0x");
-                else
-                    sbuf.append("failed to send get resp key=0x");
-                sbuf.append(GuidTools.guid_to_string(resp.key));
-                sbuf.append(" return addr=");
-                sbuf.append(msg.peer);
-                sbuf.append(" seq=");
-                sbuf.append(resp.seq);
-                sbuf.append(" to ");
-                sbuf.append(msg.peer);
-                sbuf.append(" through ");
-                addr_to_sbuf(peer.node_id, sbuf);
-                sbuf.append(" in ");
-                sbuf.append(acore.timerMillis() - start_time.longValue());
-                sbuf.append(" ms");
-                logger.info(sbuf.toString());
+                log_get_resp(result.boolValue () ? "sent" : "failed to send",
+                             (Dht.GetRespMsg) msg, true, " through ",
+                             peer.node_id, start_time.longValue());
             }
             if (result.boolValue ()) {
                 logger.debug ("remote forward succeeded");
@@ -271,22 +225,9 @@ public class ReturnToClient {
             logger.debug ("forward timed out");
             router.addToPossiblyDown(peer);
             if (msg instanceof Dht.GetRespMsg) {
-                Dht.GetRespMsg resp = (Dht.GetRespMsg) msg;
-                StringBuffer sbuf = new StringBuffer(200);
-                sbuf.append("timed out sending get resp key=0x");
-                sbuf.append(GuidTools.guid_to_string(resp.key));
-                sbuf.append(" return addr=");
-                sbuf.append(msg.peer);
-                sbuf.append(" seq=");
-                sbuf.append(resp.seq);
-                sbuf.append(" to ");
-                sbuf.append(msg.peer);
-                sbuf.append(" through ");
-                addr_to_sbuf(peer.node_id, sbuf);
-                sbuf.append(" in ");
-                sbuf.append(acore.timerMillis() - start_time.longValue());
-                sbuf.append(" ms");
-                logger.info(sbuf.toString());
+                log_get_resp("timed out sending", (Dht.GetRespMsg) msg, true,
+                             " through ", peer.node_id,
+                             start_time.longValue());
             }
             fwdThruLeafSet.run(msg, rem, cb);
         }
@@ -299,19 +240,8 @@ public class ReturnToClient {
             // Try to send the message to the client.
 
             if (req.payload instanceof Dht.GetRespMsg) {
-                Dht.GetRespMsg resp = (Dht.GetRespMsg) req.payload;
-                StringBuffer sbuf = new StringBuffer(200);
-                sbuf.append("sending get resp key=0x");
-                sbuf.append(GuidTools.guid_to_string(resp.key));
-                sbuf.append(" return addr=");
-                sbuf.append(req.payload.peer);
-                sbuf.append(" seq=");
-                sbuf.append(resp.seq);
-                sbuf.append(" to ");
-                sbuf.append(req.payload.peer);
-                sbuf.append(" on behalf of ");
-                addr_to_sbuf(src, sbuf);
-                logger.info(sbuf.toString());
+                log_get_resp("sending", (Dht.GetRespMsg) req.payload, true,
+                             " on behalf of ", src, -1);
             }
             else {
             logger.info ("forwarding " + req.payload + " to " +
@@ -335,25 +265,9 @@ public class ReturnToClient {
                 logger.debug ("forward failed");
 
             if (req.payload instanceof Dht.GetRespMsg) {
-                Dht.GetRespMsg resp = (Dht.GetRespMsg) req.payload;
-                StringBuffer sbuf = new StringBuffer(200);
-                if (success.booleanValue()) 
-                    sbuf.append("sent get resp key=0x");
-                else 
-                    sbuf.append("failed to send get resp key=0x");
-                sbuf.append(GuidTools.guid_to_string(resp.key));
-                sbuf.append(" return addr=");
-                sbuf.append(req.payload.peer);
-                sbuf.append(" seq=");
-                sbuf.append(resp.seq);
-                sbuf.append(" to ");
-                sbuf.append(req.payload.peer);
-                sbuf.append(" on behalf of ");
-                addr_to_sbuf(src, sbuf);
-                sbuf.append(" in ");
-                sbuf.append(acore.timerMillis() - start_time.longValue());
-                sbuf.append(" ms");
-                logger.info(sbuf.toString());
+                log_get_resp(success.booleanValue() ? "sent" : "failed to send",
+                             (Dht.GetRespMsg) req.payload, true,
+                             " on behalf of ", src, start_time.longValue());
             }
             // And report back whether it worked or not.
             rpc.sendResponse(new QSBool(success.booleanValue()), responseToken);
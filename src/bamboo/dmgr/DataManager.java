@@ -6,6 +6,14 @@
  */
 
 package bamboo.dmgr;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -34,7 +42,9 @@ import bamboo.api.BambooRouterAppRegReq;
 import bamboo.api.BambooRouterAppRegResp;
 import bamboo.db.StorageManager;
 import bamboo.lss.ASyncCore;
+import bamboo.util.AccessLog;
 import bamboo.util.GuidTools;
+import bamboo.util.ReedSolomon;
 import java.net.InetAddress;
 import ostore.util.ByteUtils;
 import static bamboo.db.StorageManager.Key;
@@ -49,11 +59,47 @@ import static java.lang.Math.round;
 /**
  * Manages the data stored on Bamboo nodes.
  *
+ * <p>By default, every replica stores the whole of each value.  If
+ * <code>erasure_k</code> is set, puts are instead erasure coded: the root
+ * splits each value into <code>erasure_n</code> fragments (2 *
+ * <code>erasure_k</code> by default), any <code>erasure_k</code> of which
+ * are enough to rebuild it, and keeps one and sends one to each replica.
+ * So that no two replicas hold the same fragment, desired_replicas is
+ * lowered to <code>erasure_n</code> (rounded down to an even number) if
+ * it is larger.
+ * Each replica stores its fragment under the same key (whose data hash is
+ * that of the whole value), so anti-entropy works as before, except that
+ * a replica missing a value rebuilds its own fragment from those of its
+ * neighbors rather than copying one.  Dht rebuilds values with {@link
+ * #reconstruct} before returning them.  All nodes in a deployment must
+ * use the same settings.
+ *
+ * <p>The Merkle trees used for anti-entropy are kept up to date as the
+ * storage manager reports keys added and removed, rather than rebuilt by
+ * scanning the database, and are written to <code>merkle_tree_file</code>
+ * (<code>merkle_trees</code> in the storage manager's directory, by
+ * default) every <code>merkle_snapshot_period</code> seconds, so that a
+ * node that restarts need not rebuild them at all.
+ *
+ * <p>Up to <code>max_ae_sessions</code> (4 by default) anti-entropy
+ * sessions run at once, each with a different neighbor, and ranges we are
+ * not known to be in sync with a neighbor over are chosen before the
+ * others.  How long it takes to get back in sync with every neighbor, and
+ * how much data that took, are shown on the WebInterface status page.
+ *
+ * <p>When a neighbor has many more keys under a Merkle tree node than we
+ * do, as it will when we have just joined, we ask it for the node's whole
+ * range with a FetchRangeReq.  It streams back the keys and values in
+ * chunks of up to 8 kB, no more than <code>bulk_transfer_window</code> of
+ * them unacknowledged at once, and we store those we don't have.  The
+ * difference that triggers this is <code>bulk_transfer_threshold</code>
+ * keys (256 by default; 0 turns it off).
+ *
  * @author Sean C. Rhea
  * @version $Id: DataManager.java,v 1.70 2005/07/08 21:39:50 srhea Exp $
  */
 public class DataManager extends bamboo.util.StandardStage
-implements SingleThreadedEventHandlerIF {
+implements SingleThreadedEventHandlerIF, StorageManager.KeyMonitor {
 
     protected static LinkedHashMap<InetSocketAddress,DataManager> instances =
         new LinkedHashMap<InetSocketAddress,DataManager>();
@@ -87,6 +133,12 @@ implements SingleThreadedEventHandlerIF {
     protected long put_give_up_time;
     protected int desired_replicas;
 
+    /**
+     * The erasure code puts are stored under, or null if values are
+     * replicated whole.
+     */
+    protected ReedSolomon rs;
+
     /**
      * Whether or not we do iterative routing for ReplicaSetReq messages.
      */
@@ -98,44 +150,6 @@ implements SingleThreadedEventHandlerIF {
      */
     protected BigInteger resp_low, resp_high;
 
-    protected BambooNeighborInfo random_ls_member () {
-
-	// TODO: weight by distance
-
-	if (preds == null) {
-	    if (logger.isDebugEnabled ())
-                logger.debug ("random_ls_member: no preds");
-	    return null;
-	}
-	if (preds.length == 0) {
-	    if (logger.isDebugEnabled ())
-                logger.debug ("random_ls_member: empty preds");
-	    return null;
-	}
-
-	// Find successors which are not also predecessors.
-
-	int which = preds.length;
-	for (int i = 0; i < succs.length; ++i) {
-	    if (succs [i].equals (preds [preds.length - 1]))
-		break;
-	    ++which;
-	}
-
-	which = rand.nextInt (which);
-	if (which < preds.length) {
-	    if (logger.isDebugEnabled ()) logger.debug (
-		    "random_ls_member: chose " + preds [which]);
-	    return preds [which];
-	}
-
-	which -= preds.length;
-
-	if (logger.isDebugEnabled ()) logger.debug (
-		"random_ls_member: chose " + succs [which]);
-	return succs [which];
-    }
-
     public DataManager () throws Exception {
 
 	ostore.util.TypeTable.register_type (ReplicaSetReq.class);
@@ -145,6 +159,7 @@ implements SingleThreadedEventHandlerIF {
 	    PutOrRemoveReq.class,
             AntiEntropyAlarm.class,
             DiscardAlarm.class,
+            TreeSnapshotAlarm.class,
             BambooRouteDeliver.class
 	};
 
@@ -159,7 +174,10 @@ implements SingleThreadedEventHandlerIF {
 	    FetchKeysReq.class,
 	    FetchKeysResp.class,
 	    FetchDataReq.class,
-	    FetchDataResp.class
+	    FetchDataResp.class,
+	    FetchRangeReq.class,
+	    FetchRangeResp.class,
+	    FetchRangeAck.class
 	};
 
         try { md = MessageDigest.getInstance ("SHA"); }
@@ -185,6 +203,10 @@ implements SingleThreadedEventHandlerIF {
 	if (ae_period == -1)
 	    ae_period = 1;
 	ae_period *= 1000;
+        max_ae_sessions = configGetInt (config, "max_ae_sessions", 4);
+        config_access_log (config, put_or_remove_log);
+        bulk_threshold = configGetInt (config, "bulk_transfer_threshold", 256);
+        bulk_window = configGetInt (config, "bulk_transfer_window", 8);
 
         required_acks = config_get_int (config, "required_acks");
         if (required_acks == -1)
@@ -198,6 +220,35 @@ implements SingleThreadedEventHandlerIF {
         put_give_up_time = config_get_int (config, "put_give_up_time");
         if (put_give_up_time == -1)
             put_give_up_time = 60*1000;
+
+        int erasure_k = configGetInt (config, "erasure_k", 0);
+        if (erasure_k > 0) {
+            int erasure_n = configGetInt (config, "erasure_n", 2 * erasure_k);
+            rs = new ReedSolomon (erasure_k, erasure_n);
+            // We and our replicas each need a different fragment.
+            int max_replicas = erasure_n & ~0x1;
+            if (desired_replicas > max_replicas) {
+                if (desired_replicas != Integer.MAX_VALUE - 1)
+                    logger.warn ("only " + erasure_n + " fragments, so "
+                            + "lowering desired_replicas from "
+                            + desired_replicas + " to " + max_replicas);
+                desired_replicas = max_replicas;
+            }
+        }
+
+        String sm_name = config_get_string (config, "storage_manager_stage");
+        if (sm_name == null)
+            sm_name = "StorageManager";
+        StorageManager sm = (StorageManager) lookup_stage (config, sm_name);
+        sm.register_monitor (this);
+
+        snapshot_period = configGetInt (config, "merkle_snapshot_period", 60);
+        snapshot_period *= 1000;
+        String tree_file = config_get_string (config, "merkle_tree_file");
+        if (tree_file != null)
+            snapshot_file = new File (tree_file);
+        else if (sm.homedir () != null)
+            snapshot_file = new File (sm.homedir (), "merkle_trees");
     }
 
     public void handleEvent (QueueElementIF item) {
@@ -247,6 +298,9 @@ implements SingleThreadedEventHandlerIF {
 	    else if (item instanceof DiscardAlarm) {
                  handle_discard_alarm ((DiscardAlarm) item);
             }
+	    else if (item instanceof TreeSnapshotAlarm) {
+                 handle_tree_snapshot_alarm ((TreeSnapshotAlarm) item);
+            }
 	    else if (item instanceof FetchMerkleTreeNodeReq) {
                  handle_fetch_merkle_tree_node_req (
                          (FetchMerkleTreeNodeReq) item);
@@ -271,6 +325,15 @@ implements SingleThreadedEventHandlerIF {
 	    else if (item instanceof FetchDataResp) {
                 handle_fetch_data_resp ((FetchDataResp) item);
             }
+            else if (item instanceof FetchRangeReq) {
+                handle_fetch_range_req ((FetchRangeReq) item);
+            }
+	    else if (item instanceof FetchRangeResp) {
+                handle_fetch_range_resp ((FetchRangeResp) item);
+            }
+	    else if (item instanceof FetchRangeAck) {
+                handle_fetch_range_ack ((FetchRangeAck) item);
+            }
 	    else if (item instanceof BambooRouteDeliver) {
                 BambooRouteDeliver deliver = (BambooRouteDeliver) item;
                 handle_replica_set_req ((ReplicaSetReq) deliver.payload);
@@ -291,6 +354,17 @@ implements SingleThreadedEventHandlerIF {
         my_neighbor_info = new BambooNeighborInfo (my_node_id, my_guid, 0.0);
         rand = new Random (my_guid.longValue ());
         initialized = true;
+        note_unsynced ();
+
+        if ((snapshot_file != null) && (snapshot_period > 0)) {
+            read_tree_snapshot ();
+            classifier.dispatch_later (new TreeSnapshotAlarm (),
+                    snapshot_period);
+        }
+        while (! key_changes.isEmpty ()) {
+            Pair p = (Pair) key_changes.removeFirst ();
+            key_changed (((Boolean) p.first).booleanValue (), (Key) p.second);
+        }
 
         while (! wait_q.isEmpty ())
             handleEvent ((QueueElementIF) wait_q.removeFirst ());
@@ -314,6 +388,8 @@ implements SingleThreadedEventHandlerIF {
 
     protected void handle_leaf_set_changed (BambooLeafSetChanged msg) {
 
+        note_unsynced ();
+
 	if (msg.preds.length == 0) {
 
 	    // We can only have no predecessors if we are the only node in
@@ -454,6 +530,7 @@ implements SingleThreadedEventHandlerIF {
 	public Set unacked;
 	public PutOrRemoveReq event;
         public byte [] hash;
+        public Map<NodeId,ByteBuffer> fragments; // if erasure coded
 	public PutOrRemoveState(long s, Set u, PutOrRemoveReq e, byte [] h) {
 	    start_time = s; unacked = u; event = e; hash = h;
             expected_ack_cnt = (u == null) ? 0 : u.size ();
@@ -494,6 +571,18 @@ implements SingleThreadedEventHandlerIF {
             }
         }
 
+        if ((rs != null) && e.put) {
+            // There are no more of us than fragments (see init), unless
+            // the guid falls exactly on ours and we send to both sides.
+            // We keep one fragment, so drop anyone left without one.
+            Iterator i = pa.iterator ();
+            for (int which = 1; i.hasNext (); ++which) {
+                i.next ();
+                if (which >= rs.n ())
+                    i.remove ();
+            }
+        }
+
         byte [] hash = e.value_hash;
         if (e.put) {
             md.update(e.value.array(), e.value.arrayOffset(), e.value.limit());
@@ -501,8 +590,9 @@ implements SingleThreadedEventHandlerIF {
         }
 
         Long seq = new Long (next_put_or_remove_seq++);
-        put_or_remove_acks.put(
-                seq, new PutOrRemoveState(timer_ms(), pa, e, hash));
+        PutOrRemoveState state = 
+            new PutOrRemoveState(timer_ms(), pa, e, hash);
+        put_or_remove_acks.put(seq, state);
 
         Key key = 
             new Key(e.time_usec, e.ttl_sec, e.guid, e.secret_hash, hash, 
@@ -522,28 +612,54 @@ implements SingleThreadedEventHandlerIF {
             }
         }
 
-        if (logger.isInfoEnabled ()) {
-            StringBuffer buf = new StringBuffer (200);
-            buf.append ("got ");
-            key.toStringBuffer(buf);
-            buf.append (" size=");
-            buf.append (e.value.limit());
-            buf.append (" as root");
-            logger.info (buf);
+        AccessLog.Record r = put_or_remove_log.record ();
+        if (r != null) {
+            r.a = key;
+            r.x = e.value.limit ();
+            r.log ();
+        }
+
+        ByteBuffer my_value = e.value;
+        if ((rs != null) && e.put) {
+            // We keep fragment 0, and give the others out in turn.
+            ByteBuffer [] frags = make_fragments (e.value);
+            my_value = frags [0];
+            state.fragments = new LinkedHashMap<NodeId,ByteBuffer> ();
+            int which = 0;
+            Iterator i = pa.iterator ();
+            while (i.hasNext ()) 
+                state.fragments.put ((NodeId) i.next (), frags [++which]);
         }
 
-        db_put(key, e.value, seq);
+        db_put(key, my_value, seq);
 
         if (pa != null) {
             Iterator i = pa.iterator ();
             while (i.hasNext ())
-                dispatch (new PutOrRemoveMsg ((NodeId) i.next (), e.time_usec,
-			  e.ttl_sec, e.guid, e.value, e.put,
-			  e.client_id, seq.longValue (), e.value_hash, 
-                          e.secret_hash));
+                dispatch (put_or_remove_msg ((NodeId) i.next (), state, seq));
         }
     }
 
+    /**
+     * Returns the message that gives the put or remove in
+     * <code>p</code> to <code>dest</code>.
+     */
+    protected PutOrRemoveMsg put_or_remove_msg (
+            NodeId dest, PutOrRemoveState p, Long seq) {
+        ByteBuffer value = p.event.value;
+        byte [] value_hash = p.event.value_hash;
+        if (p.fragments != null) {
+            value = p.fragments.get (dest);
+            value_hash = p.hash;
+        }
+        PutOrRemoveMsg result = new PutOrRemoveMsg (dest, p.event.time_usec, 
+                p.event.ttl_sec, p.event.guid, value, p.event.put, 
+                p.event.client_id, seq.longValue (), value_hash, 
+                p.event.secret_hash);
+        result.fragment = p.fragments != null;
+        return result;
+    }
+
     protected void next_check_put_or_remove_acks () {
         long next_time = 30*1000 + rand.nextInt (60*1000);
         acore.register_timer (next_time, check_put_or_remove_acks, null);
@@ -588,13 +704,8 @@ implements SingleThreadedEventHandlerIF {
                     // long seq = next_put_or_remove_seq++;
                     put_or_remove_acks.put (seq, p);
                     Iterator j = p.unacked.iterator ();
-                    while (j.hasNext ()) {
-                        dispatch (new PutOrRemoveMsg ((NodeId) j.next (),
-                                    p.event.time_usec, p.event.ttl_sec, 
-                                    p.event.guid, p.event.value, p.event.put, 
-                                    p.event.client_id, seq.longValue (), 
-                                    p.hash, p.event.secret_hash));
-                    }
+                    while (j.hasNext ()) 
+                        dispatch (put_or_remove_msg ((NodeId) j.next (), p, seq));
                 }
             }
             next_check_put_or_remove_acks (); 
@@ -610,11 +721,24 @@ implements SingleThreadedEventHandlerIF {
 		in_leaf_set_range (msg.guid));
 
         byte [] hash = msg.value_hash;
-        if (msg.put) {
+        if (msg.put && ! msg.fragment) {
             md.update(msg.value.array(), msg.value.arrayOffset(), 
                       msg.value.limit());
             hash = md.digest();
         }
+        else if (msg.put) {
+            // A fragment can't be checked against the hash of the whole
+            // value, so we take the root's word for it.  Whoever rebuilds
+            // the value checks it against this hash, so a bad hash or
+            // fragment makes that rebuild fail rather than return a wrong
+            // value.  We can check that it is a fragment of our code.
+            if ((rs == null) || (! valid_fragment (msg.value))) {
+                logger.warn ("got bad fragment for guid "
+                             + GuidTools.guid_to_string (msg.guid)
+                             + " from root " + msg.peer);
+                return;
+            }
+        }
 
         Key key = new Key(msg.time_usec, msg.ttl_sec, msg.guid,
                           msg.secret_hash, hash, msg.put, msg.client_id);
@@ -634,28 +758,36 @@ implements SingleThreadedEventHandlerIF {
             }
         }
 
-        if (logger.isInfoEnabled ()) {
-            StringBuffer buf = new StringBuffer (200);
-            buf.append ("got ");
-            key.toStringBuffer(buf);
-            buf.append (" size=");
-            buf.append (msg.value.limit ());
-            buf.append (" from root ");
-            addr_to_sbuf(msg.peer, buf);
-            logger.info (buf);
+        AccessLog.Record r = put_or_remove_log.record ();
+        if (r != null) {
+            r.a = key;
+            r.b = msg.peer;
+            r.x = msg.value.limit ();
+            r.log ();
         }
 
         db_put(key, msg.value, msg);
     }
 
-    protected void update_merkle_trees (StorageManager.PutResp resp) {
-        if (resp.inval_put_key != null)
-            invalidate_merkle_trees (resp.inval_put_key.guid,
-                                     resp.inval_put_key.time_usec);
-        if (resp.inval_rm_key != null)
-            invalidate_merkle_trees (resp.inval_rm_key.guid,
-                                     resp.inval_rm_key.time_usec);
-    }
+    /**
+     * Logs a put or remove we got as the root, or from the root if
+     * <code>r.b</code> is set.
+     */
+    protected AccessLog.Type put_or_remove_log =
+        new AccessLog.Type ("put_or_remove", logger) {
+        public void format (AccessLog.Record r, StringBuffer buf) {
+            buf.append ("got ");
+            ((Key) r.a).toStringBuffer(buf);
+            buf.append (" size=");
+            buf.append (r.x);
+            if (r.b == null)
+                buf.append (" as root");
+            else {
+                buf.append (" from root ");
+                addr_to_sbuf((InetSocketAddress) r.b, buf);
+            }
+        }
+    };
 
     protected void handle_put_resp (StorageManager.PutResp resp) {
         if (resp.user_data instanceof PutOrRemoveMsg) {
@@ -676,7 +808,6 @@ implements SingleThreadedEventHandlerIF {
         else {
             assert false : resp.user_data.getClass ().getName ();
         }
-        update_merkle_trees (resp);
     }
 
     protected void handle_pub_to_leaf_set_ack (PutOrRemoveAck msg) {
@@ -749,7 +880,6 @@ implements SingleThreadedEventHandlerIF {
     }
 
     protected void db_put(Key key, ByteBuffer value, Object user_data) {
-        invalidate_merkle_trees (key.guid, key.time_usec);
         StorageManager.PutReq outb = new StorageManager.PutReq (
                 key, value, my_sink, user_data);
         dispatch (outb);
@@ -759,6 +889,28 @@ implements SingleThreadedEventHandlerIF {
 
     protected int expansion;
     protected Map merkle_trees = new TreeMap ();
+
+    /**
+     * Trees read from <code>snapshot_file</code> at startup that no
+     * <code>TreeState</code> has taken over yet, by range.  They are kept
+     * up to date like the others until then.  Our leaf set may take a while
+     * to settle after we restart, so those still here when the first
+     * snapshot is taken are dropped then, rather than as soon as we stop
+     * sharing their ranges.
+     */
+    protected Map<GuidRange,MerkleTree> saved_trees =
+        new TreeMap<GuidRange,MerkleTree> ();
+
+    /**
+     * Changes reported by the storage manager before we were initialized.
+     */
+    protected LinkedList key_changes = new LinkedList ();
+
+    protected static class TreeSnapshotAlarm implements QueueElementIF {}
+    protected static final int SNAPSHOT_MAGIC = 0x4d6b5431;
+    protected File snapshot_file;
+    protected long snapshot_period;
+    protected boolean trees_changed;
     protected LinkedHashMap<GuidRange,LinkedHashMap<InetSocketAddress,Long>>
         synced_ranges = 
         new LinkedHashMap<GuidRange,LinkedHashMap<InetSocketAddress,Long>>();
@@ -907,15 +1059,29 @@ implements SingleThreadedEventHandlerIF {
         public LinkedList keys = new LinkedList ();
         public BigInteger low_guid, high_guid;
 
-        public TreeState (BigInteger lg, BigInteger hg) {
+        /**
+         * Set if a key in the range of the scan in progress is added or
+         * removed; the scan may or may not have seen the change, so it must
+         * be done over.
+         */
+        public boolean scan_dirty;
+
+        public TreeState (BigInteger lg, BigInteger hg, MerkleTree t) {
             low_guid = lg; high_guid = hg;
-            tree = new MerkleTree (expansion, md);
+            tree = (t == null) ? new MerkleTree (expansion, md) : t;
+        }
+
+        public void key_changed (boolean added, Key k) {
+            if ((fhs != null) && (k.time_usec >= fhs.range_low)
+                && (k.time_usec < fhs.range_high))
+                scan_dirty = true;
+            tree.update (k.time_usec, tree.leaf_hash (key_bytes (k)), added);
         }
 
         public void wait_for_ready (TreeReadyCB cb) {
             waiting.addLast (cb);
             if (waiting.size () == 1) {
-                fhs = tree.root ().fill_holes (null, now_ms ());
+                fhs = tree.root ().fill_holes (null);
                 handle_fhs (tree);
             }
         }
@@ -934,9 +1100,12 @@ implements SingleThreadedEventHandlerIF {
             else {
                 assert ! waiting.isEmpty () : "fhs=" + fhs;
                 keys = new LinkedList ();
+                scan_dirty = false;
+                // Count expired keys until the expiry sweep removes them,
+                // as key_changed does.
                 StorageManager.GetByTimeReq req =
-                    new StorageManager.GetByTimeReq (
-                            fhs.range_low, fhs.range_high, my_sink, this);
+                    new StorageManager.GetByTimeReq (fhs.range_low,
+                            fhs.range_high - 1, true, my_sink, this);
                 dispatch (req);
             }
         }
@@ -954,21 +1123,22 @@ implements SingleThreadedEventHandlerIF {
             if (resp.continuation == null) {
                 // All read.
                 if (logger.isDebugEnabled ()) logger.debug ("all keys read");
+                if (scan_dirty) {
+                    if (logger.isDebugEnabled ())
+                        logger.debug ("range changed during scan");
+                    handle_fhs (tree);
+                    return;
+                }
                 fhs.leaves_below = keys.size ();
                 Iterator i = keys.iterator ();
-		long earliest_exp_usec = Long.MAX_VALUE;
+                byte [] sum = tree.empty_hash ();
                 while (i.hasNext ()) {
                     StorageManager.Key k = (StorageManager.Key) i.next ();
-                    byte [] bytes = new byte [StorageManager.Key.SIZE];
-                    k.to_byte_buffer (ByteBuffer.wrap (bytes, 0, bytes.length));
-		    long e = k.expiryTime();
-		    if (e < earliest_exp_usec)
-			earliest_exp_usec = e;
-                    md.update (bytes);
+                    MerkleTree.add (sum, tree.leaf_hash (key_bytes (k)));
                 }
-                fhs.digest = md.digest ();
-		fhs.earliest_expiry_usec = earliest_exp_usec;
-                fhs = tree.root ().fill_holes (fhs, now_ms ());
+                fhs.digest = sum;
+                trees_changed = true;
+                fhs = tree.root ().fill_holes (fhs);
                 handle_fhs (tree);
             }
             else {
@@ -995,7 +1165,7 @@ implements SingleThreadedEventHandlerIF {
                             keys.size () + " max=" + fhs.max_leaves_below);
                     fhs.leaves_below = keys.size ();
                     fhs.digest = null;
-                    fhs = tree.root ().fill_holes (fhs, now_ms ());
+                    fhs = tree.root ().fill_holes (fhs);
                     handle_fhs (tree);
                 }
                 else {
@@ -1024,6 +1194,9 @@ implements SingleThreadedEventHandlerIF {
             TreeState ts = (TreeState) resp.user_data;
             ts.handle_key (resp);
         }
+        else if (resp.user_data instanceof RangeStream) {
+            handle_range_stream_keys ((RangeStream) resp.user_data, resp);
+        }
         else {
             handle_fetch_keys_get_resp (resp);
         }
@@ -1033,22 +1206,164 @@ implements SingleThreadedEventHandlerIF {
         GuidRange p = new GuidRange (low_guid, high_guid);
         if (merkle_trees.containsKey (p))
             return (TreeState) merkle_trees.get (p);
-        TreeState result = new TreeState (low_guid, high_guid);
+        MerkleTree saved = saved_trees.remove (p);
+        if ((saved != null) && logger.isInfoEnabled ())
+            logger.info ("using saved tree for " + p);
+        TreeState result = new TreeState (low_guid, high_guid, saved);
         merkle_trees.put (p, result);
         return result;
     }
 
-    protected void invalidate_merkle_trees (BigInteger guid, long time_usec) {
-        Iterator i = merkle_trees.keySet ().iterator ();
-        while (i.hasNext ()) {
-            GuidRange p = (GuidRange) i.next ();
-            if (in_range_mod (p.low, p.high, guid)) {
-                if (logger.isDebugEnabled ())
-                    logger.debug ("invalidating tree");
-                TreeState ts = (TreeState) merkle_trees.get (p);
-                ts.tree.root ().invalidate_path (time_usec);
+    protected static byte [] key_bytes (Key k) {
+        byte [] bytes = new byte [Key.SIZE];
+        k.to_byte_buffer (ByteBuffer.wrap (bytes, 0, bytes.length));
+        return bytes;
+    }
+
+    public void storage_changed (boolean added, InetAddress client_id,
+                                 long size) {
+        // We only care which keys changed; see key_changed.
+    }
+
+    /**
+     * Adds <code>k</code> to, or removes it from, every tree whose range
+     * includes it.
+     */
+    public void key_changed (boolean added, Key k) {
+        if (! initialized) {
+            key_changes.addLast (new Pair (new Boolean (added), k));
+            return;
+        }
+        for (Iterator i = merkle_trees.values ().iterator (); i.hasNext (); ) {
+            TreeState ts = (TreeState) i.next ();
+            if (in_range_mod (ts.low_guid, ts.high_guid, k.guid)) {
+                ts.key_changed (added, k);
+                trees_changed = true;
+            }
+        }
+        for (Map.Entry<GuidRange,MerkleTree> e : saved_trees.entrySet ()) {
+            GuidRange r = e.getKey ();
+            if (in_range_mod (r.low, r.high, k.guid)) {
+                MerkleTree tree = e.getValue ();
+                tree.update (k.time_usec, tree.leaf_hash (key_bytes (k)),
+                             added);
+            }
+        }
+    }
+
+    protected void handle_tree_snapshot_alarm (TreeSnapshotAlarm alarm) {
+        if (! saved_trees.isEmpty ()) {
+            if (logger.isInfoEnabled ())
+                logger.info ("dropping " + saved_trees.size ()
+                             + " unused saved trees");
+            saved_trees.clear ();
+        }
+        if (trees_changed) {
+            trees_changed = false;
+            write_tree_snapshot ();
+        }
+        classifier.dispatch_later (alarm, snapshot_period);
+    }
+
+    /**
+     * Writes those of our trees that are valid from the root down to
+     * <code>snapshot_file</code>.  The file is written under another name
+     * and renamed, so a crash never leaves half of one behind.
+     */
+    protected void write_tree_snapshot () {
+        long start_ms = timer_ms ();
+        File tmp = new File (snapshot_file.getPath () + ".tmp");
+        int count = 0;
+        try {
+            DataOutputStream out = new DataOutputStream (
+                    new BufferedOutputStream (new FileOutputStream (tmp)));
+            try {
+                out.writeInt (SNAPSHOT_MAGIC);
+                out.writeInt (expansion);
+                for (Iterator i = merkle_trees.values ().iterator ();
+                     i.hasNext (); ) {
+                    TreeState ts = (TreeState) i.next ();
+                    if (ts.tree.root ().valid ()) {
+                        out.writeBoolean (true);
+                        write_guid (out, ts.low_guid);
+                        write_guid (out, ts.high_guid);
+                        ts.tree.write (out);
+                        ++count;
+                    }
+                }
+                out.writeBoolean (false);
+            }
+            finally {
+                out.close ();
             }
+            if ((! tmp.renameTo (snapshot_file))
+                && ((! snapshot_file.delete ())
+                    || (! tmp.renameTo (snapshot_file))))
+                throw new IOException ("could not rename " + tmp);
         }
+        catch (IOException e) {
+            logger.warn ("could not write " + snapshot_file + ": " + e);
+            return;
+        }
+        if (logger.isDebugEnabled ())
+            logger.debug ("wrote " + count + " trees to " + snapshot_file
+                          + " in " + (timer_ms () - start_ms) + " ms");
+    }
+
+    /**
+     * Reads the trees written by the last <code>write_tree_snapshot</code>
+     * into <code>saved_trees</code>.  Any changes made after it ran, but
+     * before we restarted, are lost, and the trees are wrong by those
+     * keys; anti-entropy finds no data to fetch for the leaves they are
+     * under, and rescans them.
+     */
+    protected void read_tree_snapshot () {
+        if (! snapshot_file.exists ())
+            return;
+        try {
+            DataInputStream in = new DataInputStream (
+                    new BufferedInputStream (
+                        new FileInputStream (snapshot_file)));
+            try {
+                if (in.readInt () != SNAPSHOT_MAGIC)
+                    throw new IOException ("bad magic number");
+                if (in.readInt () != expansion) {
+                    logger.info ("ignoring " + snapshot_file
+                                 + ": merkle_tree_expansion has changed");
+                    return;
+                }
+                while (in.readBoolean ()) {
+                    GuidRange r = new GuidRange (read_guid (in),
+                                                 read_guid (in));
+                    saved_trees.put (r, MerkleTree.read (in, md));
+                }
+            }
+            finally {
+                in.close ();
+            }
+        }
+        catch (IOException e) {
+            logger.warn ("could not read " + snapshot_file + ": " + e);
+            saved_trees.clear ();
+            return;
+        }
+        if (logger.isInfoEnabled ())
+            logger.info ("read " + saved_trees.size () + " trees from "
+                         + snapshot_file);
+    }
+
+    protected static void write_guid (DataOutputStream out, BigInteger guid)
+        throws IOException {
+        byte [] bytes = guid.toByteArray ();
+        out.writeShort (bytes.length);
+        out.write (bytes);
+    }
+
+    protected static BigInteger read_guid (DataInputStream in)
+        throws IOException {
+        byte [] bytes = new byte [in.readUnsignedShort ()];
+        in.readFully (bytes);
+        return new BigInteger (bytes);
     }
 
     //////////////////// CLIENT-SIDE ANTI_ENTROPY STATE /////////////////////
@@ -1056,37 +1371,232 @@ implements SingleThreadedEventHandlerIF {
     protected static class AntiEntropyAlarm implements QueueElementIF {}
     protected long next_fetch_seq;
     protected long next_fetch_keys_seq;
-    protected AntiEntropyState ae_state;
     protected static class AntiEntropyState {
         public BambooNeighborInfo ni;
         public BigInteger low_guid, high_guid;
         public GuidRange guid_range;
         public int current_level;
         public long current_low_time;
-        public long fetch_node_seq;
+        public long fetch_node_seq = -1;
+        public long start_ms;
         public long last_activity_ms;
-        public long fetch_keys_seq;
+        public long fetch_keys_seq = -1;
         public Set fetched_keys = new TreeSet ();
         public Set fetched_data = new TreeSet ();
+        public boolean missing_data;
         public LinkedList nodes_to_do = new LinkedList ();
+        public long bulk_seq = -1;
+        public int bulk_chunks_done, bulk_chunk_count, bulk_items;
+        public boolean finished;
         public String toString () { return "AE-" + hashCode (); }
     }
 
-    protected void choose_db (BambooNeighborInfo other) {
-        SortedSet choices = calc_shared_dbs (other);
-        int which = rand.nextInt (choices.size ());
-        int orig = which;
-        Iterator i = choices.iterator ();
-        while (which-- > 0)
-            i.next ();
-        GuidRange range = (GuidRange) i.next ();
-        ae_state.low_guid = range.low;
-        ae_state.high_guid = range.high;
-        ae_state.guid_range = range;
+    /**
+     * The anti-entropy sessions under way, at most
+     * <code>max_ae_sessions</code> of them, each with a different
+     * neighbor.
+     */
+    protected LinkedList<AntiEntropyState> ae_sessions =
+        new LinkedList<AntiEntropyState> ();
+    protected int max_ae_sessions;
+
+    protected long ae_sessions_done, ae_sessions_timed_out;
+    protected long ae_session_ms;
+    protected long keys_repaired, bytes_repaired;
+
+    /**
+     * When a neighbor has at least <code>bulk_threshold</code> more keys
+     * under a node than we do, we fetch the node's whole range from it
+     * with a FetchRangeReq, rather than walking down to its leaves and
+     * fetching them a key at a time.  Zero turns this off.
+     */
+    protected int bulk_threshold;
+    protected int bulk_window;
+    protected long bulk_transfers;
+
+    /**
+     * When we last found ourselves out of sync with a neighbor over some
+     * range, after having been in sync with all of them over every range,
+     * or -1 if we are in sync with all of them now.
+     */
+    protected long unsynced_since_ms = -1;
+    protected long last_convergence_ms = -1;
+
+    protected AntiEntropyState session_for_node_seq (NodeId peer, long seq) {
+        for (AntiEntropyState ae : ae_sessions) {
+            if ((ae.fetch_node_seq == seq) && peer.equals (ae.ni.node_id))
+                return ae;
+        }
+        return null;
+    }
+
+    protected void end_session (AntiEntropyState ae) {
+        ae.finished = true;
+        ae_sessions.remove (ae);
+    }
+
+    /**
+     * Returns our leaf set members, each only once.
+     */
+    protected LinkedHashMap<NodeId,BambooNeighborInfo> ls_members () {
+        LinkedHashMap<NodeId,BambooNeighborInfo> result =
+            new LinkedHashMap<NodeId,BambooNeighborInfo> ();
+        if (preds != null) {
+            for (int i = 0; i < preds.length; ++i) {
+                result.put (preds [i].node_id, preds [i]);
+                result.put (succs [i].node_id, succs [i]);
+            }
+        }
+        result.remove (my_node_id);
+        return result;
+    }
+
+    /**
+     * Starts anti-entropy sessions until there are
+     * <code>max_ae_sessions</code> of them or no neighbor is left without
+     * one.  Each is with a neighbor over a range we share with it, chosen
+     * at random from those we are not in sync over, if there are any, and
+     * from all of them if not.
+     */
+    protected void start_ae_sessions () {
+        Set<NodeId> busy = new TreeSet<NodeId> ();
+        for (AntiEntropyState ae : ae_sessions)
+            busy.add (ae.ni.node_id);
+
+        LinkedList<Pair> unsynced = new LinkedList<Pair> ();
+        LinkedList<Pair> others = new LinkedList<Pair> ();
+        for (BambooNeighborInfo ni : ls_members ().values ()) {
+            if (busy.contains (ni.node_id))
+                continue;
+            for (Iterator i = calc_shared_dbs (ni).iterator (); i.hasNext (); ) {
+                GuidRange range = (GuidRange) i.next ();
+                LinkedHashMap<InetSocketAddress,Long> s =
+                    synced_ranges.get (range);
+                if ((s == null) || (! s.containsKey (ni.node_id)))
+                    unsynced.add (new Pair (ni, range));
+                else
+                    others.add (new Pair (ni, range));
+            }
+        }
+
+        while (ae_sessions.size () < max_ae_sessions) {
+            LinkedList<Pair> choices = unsynced.isEmpty () ? others : unsynced;
+            if (choices.isEmpty ())
+                break;
+            Pair p = choices.remove (rand.nextInt (choices.size ()));
+            BambooNeighborInfo ni = (BambooNeighborInfo) p.first;
+            if (busy.add (ni.node_id))
+                start_ae_session (ni, (GuidRange) p.second);
+        }
+    }
+
+    protected void start_ae_session (BambooNeighborInfo ni, GuidRange range) {
+        final AntiEntropyState ae = new AntiEntropyState ();
+        ae.ni = ni;
+        ae.low_guid = range.low;
+        ae.high_guid = range.high;
+        ae.guid_range = range;
+        ae.start_ms = ae.last_activity_ms = timer_ms ();
+        ae_sessions.addLast (ae);
         if (logger.isDebugEnabled ())
-            logger.debug ("which=" + orig + " chose range [" +
-                GuidTools.guid_to_string (range.low) + ", " +
-                GuidTools.guid_to_string (range.high) + "]");
+            logger.debug (ae + " with " + ni + " over " + range);
+
+        TreeState ts = tree_state (ae.low_guid, ae.high_guid);
+
+        // The root is always at the same level and low_time for a given
+        // expansion factor.
+        ae.current_level = ts.tree.root ().level ();
+        ae.current_low_time = ts.tree.root ().range_low ();
+
+        if (ts.tree.root ().valid ()) {
+            if (logger.isDebugEnabled ())
+                logger.debug (ae + " tree is ready");
+            handle_ae_tree_ready (ae, ts.tree);
+        }
+        else {
+            if (logger.isDebugEnabled ()) logger.debug (
+                    ae + " getting tree ready");
+            ts.wait_for_ready (new TreeReadyCB () {
+                public void tree_ready (MerkleTree tree) {
+                    handle_ae_tree_ready (ae, tree);
+                }
+            });
+        }
+    }
+
+    /**
+     * Notes that we may no longer be in sync with all of our neighbors.
+     */
+    protected void note_unsynced () {
+        if (unsynced_since_ms == -1)
+            unsynced_since_ms = timer_ms ();
+    }
+
+    /**
+     * Called when we sync with a neighbor over a range; if we are now in
+     * sync with all of them over every range, records how long it took.
+     */
+    protected void check_converged () {
+        if (unsynced_since_ms == -1)
+            return;
+        for (BambooNeighborInfo ni : ls_members ().values ()) {
+            for (Iterator i = calc_shared_dbs (ni).iterator (); i.hasNext (); ) {
+                LinkedHashMap<InetSocketAddress,Long> s =
+                    synced_ranges.get (i.next ());
+                if ((s == null) || (! s.containsKey (ni.node_id)))
+                    return;
+            }
+        }
+        last_convergence_ms = timer_ms () - unsynced_since_ms;
+        unsynced_since_ms = -1;
+        if (logger.isInfoEnabled ())
+            logger.info ("in sync with all neighbors after "
+                         + last_convergence_ms + " ms; "
+                         + ae_sessions_done + " sessions done, "
+                         + ae_sessions_timed_out + " timed out, "
+                         + keys_repaired + " keys (" + bytes_repaired
+                         + " bytes) repaired");
+    }
+
+    /**
+     * The number of anti-entropy sessions under way.
+     */
+    public int antiEntropySessions () { return ae_sessions.size (); }
+
+    public long antiEntropySessionsDone () { return ae_sessions_done; }
+
+    public long antiEntropySessionsTimedOut () {
+        return ae_sessions_timed_out;
+    }
+
+    /**
+     * The average length of the anti-entropy sessions done, in
+     * milliseconds.
+     */
+    public long antiEntropySessionMs () {
+        return (ae_sessions_done == 0) ? 0 : ae_session_ms / ae_sessions_done;
+    }
+
+    /**
+     * The number of values (or fragments) anti-entropy has stored.
+     */
+    public long keysRepaired () { return keys_repaired; }
+
+    public long bytesRepaired () { return bytes_repaired; }
+
+    /**
+     * How long it last took us to get in sync with all of our neighbors,
+     * over every range, after falling out of sync with any of them, in
+     * milliseconds; -1 if we never have.
+     */
+    public long lastConvergenceMs () { return last_convergence_ms; }
+
+    /**
+     * How long we have been out of sync with some neighbor, in
+     * milliseconds; -1 if we aren't.
+     */
+    public long unsyncedMs () {
+        return (unsynced_since_ms == -1) ? -1 : timer_ms () - unsynced_since_ms;
     }
 
     public boolean synced(BigInteger key, InetSocketAddress neighbor) {
@@ -1180,6 +1690,7 @@ implements SingleThreadedEventHandlerIF {
     };
 
     protected void unsynced(GuidRange range, InetSocketAddress neighbor) {
+        note_unsynced();
         LinkedHashMap<InetSocketAddress,Long> s = synced_ranges.get(range);
         if (s == null) {
             if (logger.isDebugEnabled ())
@@ -1197,91 +1708,60 @@ implements SingleThreadedEventHandlerIF {
     }
 
     protected void handle_ae_alarm (AntiEntropyAlarm alarm) {
-        if (ae_state != null) {
-            // See if we should time it out.
-
-            if (ae_state.last_activity_ms + 30000 < timer_ms ()) {
-                logger.warn("anti-entropy with " + ae_state.ni.node_id 
+        // Time out those that have stalled.
+        for (Iterator<AntiEntropyState> i = ae_sessions.iterator ();
+             i.hasNext (); ) {
+            AntiEntropyState ae = i.next ();
+            if (ae.last_activity_ms + 30000 < timer_ms ()) {
+                logger.warn("anti-entropy with " + ae.ni.node_id 
                             + " timed out");
-                unsynced(ae_state.guid_range, ae_state.ni.node_id);
-                ae_state = null;
+                unsynced(ae.guid_range, ae.ni.node_id);
+                ae.finished = true;
+                i.remove ();
+                ++ae_sessions_timed_out;
             }
         }
 
-        if (ae_state == null) {
+        expire_range_streams ();
 
-            // Start a new one.
-
-            BambooNeighborInfo ni = random_ls_member ();
-
-            if (ni == null) {
-                if (logger.isDebugEnabled ()) logger.debug ("no neighbors");
-                classifier.dispatch_later (alarm,
-			ae_period + rand.nextInt (ae_period));
-                return;
-            }
-
-            ae_state = new AntiEntropyState ();
-            ae_state.ni = ni;
-            ae_state.last_activity_ms = timer_ms ();
-
-            choose_db (ni);
-
-            TreeState ts = tree_state (ae_state.low_guid, ae_state.high_guid);
-
-            // The root is always at the same level and low_time for a given
-            // expansion factor.
-            ae_state.current_level = ts.tree.root ().level ();
-            ae_state.current_low_time = ts.tree.root ().range_low ();
-
-            if (ts.tree.root ().valid (now_ms ())) {
-                if (logger.isDebugEnabled ())
-                    logger.debug (ae_state + " tree is ready");
-                handle_ae_tree_ready (ts.tree);
-            }
-            else {
-                if (logger.isDebugEnabled ()) logger.debug (
-			ae_state + " getting tree ready");
-                ts.wait_for_ready (new TreeReadyCB () {
-                    public void tree_ready (MerkleTree tree) {
-                        handle_ae_tree_ready (tree);
-                    }
-                });
-            }
+        if (preds == null) {
+            if (logger.isDebugEnabled ()) logger.debug ("no neighbors");
+        }
+        else {
+            start_ae_sessions ();
         }
 
-        classifier.dispatch_later (
-            new AntiEntropyAlarm (), ae_period + rand.nextInt (ae_period));
+        classifier.dispatch_later (alarm, ae_period + rand.nextInt (ae_period));
     }
 
-    protected void handle_ae_tree_ready (MerkleTree tree) {
+    protected void handle_ae_tree_ready (AntiEntropyState ae, MerkleTree tree) {
 
-        if (ae_state == null) {
+        if (ae.finished) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    "ae_state == null, must have timed out");
+                    ae + " finished, must have timed out");
             return;
         }
 
-        if (logger.isDebugEnabled ()) logger.debug (ae_state + " tree ready");
+        if (logger.isDebugEnabled ()) logger.debug (ae + " tree ready");
 
         MerkleTree.Node node = tree.node (
-                ae_state.current_level, ae_state.current_low_time);
+                ae.current_level, ae.current_low_time);
 
         if (node == null) {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " tree has changed");
-            goto_next_node ();
+                logger.debug (ae + " tree has changed");
+            goto_next_node (ae);
             return;
         }
 
-        ae_state.fetch_node_seq = next_fetch_seq++;
-        ae_state.last_activity_ms = timer_ms ();
+        ae.fetch_node_seq = next_fetch_seq++;
+        ae.last_activity_ms = timer_ms ();
 
         FetchMerkleTreeNodeReq req = new FetchMerkleTreeNodeReq (
-                ae_state.ni.node_id, my_guid, ae_state.low_guid,
-                ae_state.high_guid, expansion, ae_state.current_level,
-                ae_state.current_low_time, node.hash (),
-                ae_state.fetch_node_seq);
+                ae.ni.node_id, my_guid, ae.low_guid,
+                ae.high_guid, expansion, ae.current_level,
+                ae.current_low_time, node.hash (),
+                ae.fetch_node_seq);
 
         dispatch (req);
     }
@@ -1289,82 +1769,76 @@ implements SingleThreadedEventHandlerIF {
     protected void handle_fetch_merkle_tree_node_resp (
             final FetchMerkleTreeNodeResp resp) {
 
-        if (ae_state == null) {
+        final AntiEntropyState ae = session_for_node_seq (resp.peer, resp.seq);
+        if (ae == null) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    ae_state + " not expecting " + resp);
+                    "not expecting " + resp);
             return;
         }
 
-        if (! resp.peer.equals (ae_state.ni.node_id)) {
+        if (! resp.peer.equals (ae.ni.node_id)) {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " " + resp +
-		    " has bad peer != " + ae_state.ni);
+                logger.debug (ae + " " + resp +
+		    " has bad peer != " + ae.ni);
             return;
         }
 
-        if (resp.seq != ae_state.fetch_node_seq) {
-            if (logger.isDebugEnabled ()) logger.debug (ae_state + " " + resp
-                    + " has bad seq != " + ae_state.fetch_node_seq);
-            return;
-        }
+        ae.last_activity_ms = timer_ms ();
 
-        ae_state.last_activity_ms = timer_ms ();
+        TreeState ts = tree_state (ae.low_guid, ae.high_guid);
 
-        TreeState ts = tree_state (ae_state.low_guid, ae_state.high_guid);
-
-        if (ts.tree.root ().valid (now_ms ())) {
+        if (ts.tree.root ().valid ()) {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " tree is ready");
-            handle_ae_tree_ready_resp (ts.tree, resp);
+                logger.debug (ae + " tree is ready");
+            handle_ae_tree_ready_resp (ae, ts.tree, resp);
         }
         else {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " getting tree ready");
+                logger.debug (ae + " getting tree ready");
             ts.wait_for_ready (new TreeReadyCB () {
                 public FetchMerkleTreeNodeResp r = resp;
                 public void tree_ready (MerkleTree tree) {
-                    handle_ae_tree_ready_resp (tree, r);
+                    handle_ae_tree_ready_resp (ae, tree, r);
                 }
             });
         }
     }
 
-    protected void handle_ae_tree_ready_resp (
+    protected void handle_ae_tree_ready_resp (AntiEntropyState ae,
             MerkleTree tree, FetchMerkleTreeNodeResp resp) {
 
-        if (ae_state == null) {
+        if (ae.finished) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    "ae_state == null, must have timed out");
+                    ae + " finished, must have timed out");
             return;
         }
 
-        ae_state.last_activity_ms = timer_ms ();
+        ae.last_activity_ms = timer_ms ();
 
         MerkleTree.Node node = tree.node (
-                ae_state.current_level, ae_state.current_low_time);
+                ae.current_level, ae.current_low_time);
 
         if (node == null) {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " tree has changed");
-            goto_next_node ();
+                logger.debug (ae + " tree has changed");
+            goto_next_node (ae);
             return;
         }
 
         if (Arrays.equals (resp.hash, node.hash ())) {
-            if (logger.isDebugEnabled ()) logger.debug (ae_state + " match");
-            goto_next_node ();
+            if (logger.isDebugEnabled ()) logger.debug (ae + " match");
+            goto_next_node (ae);
             return;
         }
 
-        if (logger.isDebugEnabled ()) logger.debug (ae_state + " mismatch");
+        if (logger.isDebugEnabled ()) logger.debug (ae + " mismatch");
 
-        if ((resp.children == null) || node.children_are_leaves ()) {
-            ae_state.fetch_keys_seq = next_fetch_keys_seq++;
-            FetchKeysReq req = new FetchKeysReq (ae_state.ni.node_id,
-                    ae_state.low_guid, ae_state.high_guid,
-                    node.range_low (), node.range_high (),
-                    ae_state.fetch_keys_seq);
-            dispatch (req);
+        if ((bulk_threshold > 0)
+            && (resp.leaves_below - node.leaves_below () >= bulk_threshold)) {
+            start_bulk_fetch (ae, node, resp.leaves_below);
+        }
+        else if ((resp.children == null) || node.children_are_leaves ()) {
+            fetch_keys (ae, node);
         }
         else {
             Iterator i = resp.children.iterator ();
@@ -1372,8 +1846,8 @@ implements SingleThreadedEventHandlerIF {
             while (i.hasNext ()) {
                 if (! j.hasNext ()) {
                     if (logger.isDebugEnabled ()) logger.debug (
-                            ae_state + " mismatch in number of children");
-                    goto_next_node ();
+                            ae + " mismatch in number of children");
+                    goto_next_node (ae);
                     return;
                 }
 
@@ -1382,93 +1856,109 @@ implements SingleThreadedEventHandlerIF {
 
                 if (Arrays.equals (other_hash, child.hash ())) {
                     if (logger.isDebugEnabled ()) logger.debug (
-			    ae_state + " match on " + child);
+			    ae + " match on " + child);
                 }
                 else {
                     if (logger.isDebugEnabled ()) logger.debug (
-			    ae_state + " mismatch on " + child);
-                    ae_state.nodes_to_do.addLast (new Pair (
+			    ae + " mismatch on " + child);
+                    ae.nodes_to_do.addLast (new Pair (
                                 new Integer (child.level ()),
                                 new Long (child.range_low ())));
                 }
             }
 
-            goto_next_node ();
+            goto_next_node (ae);
         }
     }
 
+    protected void fetch_keys (AntiEntropyState ae, MerkleTree.Node node) {
+        ae.fetch_keys_seq = next_fetch_keys_seq++;
+        FetchKeysReq req = new FetchKeysReq (ae.ni.node_id,
+                ae.low_guid, ae.high_guid,
+                node.range_low (), node.range_high (),
+                ae.fetch_keys_seq);
+        dispatch (req);
+    }
+
     protected void handle_fetch_merkle_tree_node_reject (
             FetchMerkleTreeNodeReject reject) {
-        if (ae_state == null) {
+        AntiEntropyState ae = session_for_node_seq (reject.peer, reject.seq);
+        if (ae == null) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    ae_state + " unexpected " + reject);
+                    "unexpected " + reject);
             return;
         }
 
-        ae_state.last_activity_ms = timer_ms ();
+        ae.last_activity_ms = timer_ms ();
 
         if (reject.reason == FetchMerkleTreeNodeReject.BAD_GUID_RANGE) {
             // Our leaf set was probably in transition.
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " bad range");
-            unsynced(ae_state.guid_range, ae_state.ni.node_id);
-            ae_state = null;
+                logger.debug (ae + " bad range");
+            unsynced(ae.guid_range, ae.ni.node_id);
+            end_session (ae);
         }
         else if (reject.reason == FetchMerkleTreeNodeReject.NO_SUCH_NODE) {
             // Try the next one.
-            goto_next_node ();
+            goto_next_node (ae);
         }
         else {
             logger.warn("got unexpected reject reason " + reject.reason 
-                         + " from " + ae_state.ni);
-            unsynced(ae_state.guid_range, ae_state.ni.node_id);
-            ae_state = null;
+                         + " from " + ae.ni);
+            unsynced(ae.guid_range, ae.ni.node_id);
+            end_session (ae);
         }
     }
 
     protected void handle_fetch_keys_resp (FetchKeysResp resp) {
-        if (ae_state == null) {
+        AntiEntropyState ae = null;
+        for (AntiEntropyState s : ae_sessions) {
+            if ((s.fetch_keys_seq == resp.seq)
+                && resp.peer.equals (s.ni.node_id)) {
+                ae = s;
+                break;
+            }
+        }
+        if (ae == null) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    "ae_state == null, must have timed out: " + resp);
+                    "no session, must have timed out: " + resp);
             return;
         }
 
-        ae_state.last_activity_ms = timer_ms ();
-
-        if (resp.seq != ae_state.fetch_keys_seq) {
-            logger.debug (ae_state + " " + resp + " has bad seq != " +
-                    ae_state.fetch_node_seq);
-            return;
-        }
+        ae.last_activity_ms = timer_ms ();
         if (resp.keys == null) {
-            // They don't have any data to give us.  We must have mismatched
-            // because we have data they don't.  Go on to the next node.
+            // They don't have any data to give us.  Either we have data they
+            // don't, or our tree is wrong.
 
-            goto_next_node ();
+            recheck_node (ae);
+            goto_next_node (ae);
             return;
         }
 
-        ae_state.fetched_keys.addAll (resp.keys);
+        ae.missing_data = false;
+        ae.fetched_keys.addAll (resp.keys);
         Iterator i = resp.keys.iterator ();
         while (i.hasNext ()) {
             StorageManager.Key k = (StorageManager.Key) i.next ();
-            dispatch (new StorageManager.GetByKeyReq (k, my_sink, ae_state));
+            dispatch (new StorageManager.GetByKeyReq (k, my_sink, ae));
         }
     }
 
-    protected void handle_fetch_keys_check (StorageManager.GetByKeyResp resp) {
-        if (ae_state == null) {
+    protected void handle_fetch_keys_check (AntiEntropyState ae,
+            StorageManager.GetByKeyResp resp) {
+        if (ae.finished) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    "ae_state == null, must have timed out: " + resp);
+                    ae + " finished, must have timed out: " + resp);
             return;
         }
 
-        if (ae_state.fetched_keys.remove (resp.key)) {
+        if (ae.fetched_keys.remove (resp.key)) {
             if (resp.data == null) {
                 // We don't have this data item, so we need to get it.
 
-                ae_state.fetched_data.add (resp.key);
-                dispatch (new FetchDataReq (ae_state.ni.node_id, resp.key));
+                ae.missing_data = true;
+                ae.fetched_data.add (resp.key);
+                dispatch (new FetchDataReq (ae.ni.node_id, resp.key));
             }
             else {
                 // We already have this data item.
@@ -1478,60 +1968,80 @@ implements SingleThreadedEventHandlerIF {
             logger.debug ("unexpected GetByKeyResp");
         }
 
-        if (ae_state.fetched_keys.isEmpty () &&
-            ae_state.fetched_data.isEmpty ()) {
+        if (ae.fetched_keys.isEmpty () &&
+            ae.fetched_data.isEmpty ()) {
 
             // We're done fetching keys and data.
 
-            goto_next_node ();
+            if (! ae.missing_data)
+                recheck_node (ae);
+            goto_next_node (ae);
+        }
+    }
+
+    /**
+     * Called when the node anti-entropy is working on didn't match, but
+     * our neighbor had nothing we were missing under it.  That is expected
+     * if we have data they don't, but it also happens if our tree is wrong:
+     * if we lost changes when we last restarted, or missed some
+     * altogether.  Since we can't tell the two apart, and the node's range
+     * is small, we rescan it.
+     */
+    protected void recheck_node (AntiEntropyState ae) {
+        TreeState ts = tree_state (ae.low_guid, ae.high_guid);
+        MerkleTree.Node node = ts.tree.node (
+                ae.current_level, ae.current_low_time);
+        if ((node != null) && node.valid ()) {
+            if (logger.isDebugEnabled ())
+                logger.debug (ae + " rechecking " + node);
+            ts.tree.rescan (node);
         }
     }
 
-    protected void goto_next_node () {
+    protected void goto_next_node (final AntiEntropyState ae) {
 
         if (logger.isDebugEnabled ())
-            logger.debug (ae_state + " goto_next_node");
-
-        assert ae_state != null;
+            logger.debug (ae + " goto_next_node");
 
-        TreeState ts = tree_state (ae_state.low_guid, ae_state.high_guid);
-        if (ts.tree.root ().valid (now_ms ())) {
+        TreeState ts = tree_state (ae.low_guid, ae.high_guid);
+        if (ts.tree.root ().valid ()) {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " tree is ready");
-            goto_next_node_ready (ts.tree);
+                logger.debug (ae + " tree is ready");
+            goto_next_node_ready (ae, ts.tree);
         }
         else {
             if (logger.isDebugEnabled ())
-                logger.debug (ae_state + " getting tree ready");
+                logger.debug (ae + " getting tree ready");
             ts.wait_for_ready (new TreeReadyCB () {
                 public void tree_ready (MerkleTree tree) {
-                    goto_next_node_ready (tree);
+                    goto_next_node_ready (ae, tree);
                 }
             });
         }
     }
 
-    protected void goto_next_node_ready (MerkleTree tree) {
+    protected void goto_next_node_ready (AntiEntropyState ae,
+            MerkleTree tree) {
 
         if (logger.isDebugEnabled ())
-            logger.debug (ae_state + " goto_next_node_ready");
+            logger.debug (ae + " goto_next_node_ready");
 
-        if (ae_state == null) {
+        if (ae.finished) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    "ae_state == null, must have timed out");
+                    ae + " finished, must have timed out");
             return;
         }
 
         MerkleTree.Node node = null;
-        while (! ae_state.nodes_to_do.isEmpty ()) {
+        while (! ae.nodes_to_do.isEmpty ()) {
 
-            Pair p = (Pair) ae_state.nodes_to_do.removeFirst ();
+            Pair p = (Pair) ae.nodes_to_do.removeFirst ();
             int level = ((Integer) p.first).intValue ();
             long low_time = ((Long) p.second).longValue ();
             node = tree.node (level, low_time);
             if (node == null) {
                 if (logger.isDebugEnabled ()) logger.debug (
-                        ae_state + " no longer a node");
+                        ae + " no longer a node");
             }
             else {
                 break;
@@ -1539,91 +2049,244 @@ implements SingleThreadedEventHandlerIF {
         }
 
         if (node == null) {
-            if (logger.isDebugEnabled ()) logger.debug (ae_state +
+            if (logger.isDebugEnabled ()) logger.debug (ae +
                     " all nodes finished--ae done");
-            synced(ae_state.guid_range, ae_state.ni.node_id);
-            ae_state = null;
+            synced(ae.guid_range, ae.ni.node_id);
+            end_session (ae);
+            ++ae_sessions_done;
+            ae_session_ms += timer_ms () - ae.start_ms;
+            check_converged ();
             return;
         }
 
-        ae_state.current_level = node.level ();
-        ae_state.current_low_time = node.range_low ();
-        handle_ae_tree_ready (tree);
+        ae.current_level = node.level ();
+        ae.current_low_time = node.range_low ();
+        handle_ae_tree_ready (ae, tree);
     }
 
     protected void handle_get_by_key_resp (StorageManager.GetByKeyResp resp) {
         if (resp.user_data instanceof AntiEntropyState) {
-            if (resp.user_data == ae_state)
-                handle_fetch_keys_check (resp);
+            AntiEntropyState ae = (AntiEntropyState) resp.user_data;
+            if (! ae.finished)
+                handle_fetch_keys_check (ae, resp);
             else
                 ; // must have timed out so just drop it (no cursor to close)
         }
         else if (resp.user_data instanceof FetchDataReq) {
             handle_fetch_data_req_have_data (resp);
         }
+        else if (resp.user_data instanceof RangeStream) {
+            handle_range_stream_data ((RangeStream) resp.user_data, resp);
+        }
+        else if (resp.user_data instanceof RangeChunk) {
+            handle_range_chunk_check ((RangeChunk) resp.user_data, resp);
+        }
         else {
             assert false : resp.user_data.getClass ().getName ();
         }
     }
 
     protected void handle_fetch_data_resp (FetchDataResp resp) {
-        if (ae_state == null) {
+        AntiEntropyState ae = null;
+        for (AntiEntropyState s : ae_sessions) {
+            if (resp.peer.equals (s.ni.node_id)
+                && s.fetched_data.contains (resp.key)) {
+                ae = s;
+                break;
+            }
+        }
+        if ((rs != null) && (ae == null)) {
+            FragmentFetch f = fragment_fetches.get (resp.key);
+            if (f != null) {
+                add_fragment (f, resp.peer, resp.data);
+                return;
+            }
+        }
+        if (ae == null) {
             if (logger.isDebugEnabled ()) logger.debug (
-		    ae_state + " unexpected " + resp);
+		    "unexpected " + resp);
             return;
         }
+
+        ae.fetched_data.remove (resp.key);
+        ae.last_activity_ms = timer_ms ();
         if (resp.data == null) {
             if (logger.isDebugEnabled ()) logger.debug (
-		    ae_state + " no data in " + resp);
-            return;
+		    ae + " no data in " + resp);
+        }
+        else {
+            store_fetched (ae, resp.key, resp.data, resp.peer);
         }
 
-        if (ae_state.fetched_data.remove (resp.key) &&
-	    ((resp.key.expiryTime()) > ((long) now_ms() * 1000))) {
+        if (ae.fetched_keys.isEmpty () &&
+            ae.fetched_data.isEmpty ()) {
+            goto_next_node (ae);
+        }
+    }
 
-            boolean valid = true;
-            if (!resp.key.put) {
-                byte [] secretHash = md.digest(resp.data.array());
-                if (!Arrays.equals(resp.key.secret_hash, secretHash)) {
-                    StringBuffer buf = new StringBuffer (200);
-                    buf.append ("got bad remove ");
-                    resp.key.toStringBuffer(buf);
-                    buf.append (" hash(data)=0x");
-                    bytes_to_sbuf(secretHash, 0, 4, buf);
-                    buf.append (" from neighbor ");
-                    addr_to_sbuf(resp.peer, buf);
-                    logger.warn(buf);
-                    valid = false;
-                }
-            }
+    /**
+     * Stores a value fetched from <code>peer</code> during anti-entropy,
+     * unless it has expired or is a remove whose secret doesn't match.
+     */
+    protected void store_fetched (AntiEntropyState ae, StorageManager.Key key,
+            ByteBuffer data, NodeId peer) {
 
-            if (valid) {
-                if (logger.isInfoEnabled ()) {
-                    StringBuffer buf = new StringBuffer (200);
-                    buf.append ("got ");
-                    resp.key.toStringBuffer(buf);
-                    buf.append (" size=");
-                    buf.append (resp.data.limit ());
-                    buf.append (" from neighbor ");
-                    addr_to_sbuf(resp.peer, buf);
-                    logger.info (buf);
-                }
-                unsynced(ae_state.guid_range, ae_state.ni.node_id);
-                db_put(resp.key, resp.data, null);
+        if (key.expiryTime() <= ((long) now_ms() * 1000)) {
+            if (logger.isDebugEnabled ()) logger.debug (
+		    ae + " expired " + key);
+            return;
+        }
+
+        if (!key.put) {
+            byte [] secretHash = md.digest(data.array());
+            if (!Arrays.equals(key.secret_hash, secretHash)) {
+                StringBuffer buf = new StringBuffer (200);
+                buf.append ("got bad remove ");
+                key.toStringBuffer(buf);
+                buf.append (" hash(data)=0x");
+                bytes_to_sbuf(secretHash, 0, 4, buf);
+                buf.append (" from neighbor ");
+                addr_to_sbuf(peer, buf);
+                logger.warn(buf);
+                return;
             }
         }
+
+        if (logger.isInfoEnabled ()) {
+            StringBuffer buf = new StringBuffer (200);
+            buf.append ("got ");
+            key.toStringBuffer(buf);
+            buf.append (" size=");
+            buf.append (data.limit ());
+            buf.append (" from neighbor ");
+            addr_to_sbuf(peer, buf);
+            logger.info (buf);
+        }
+        unsynced(ae.guid_range, ae.ni.node_id);
+        if ((rs != null) && key.put) {
+            // Their fragment isn't ours; rebuild ours.
+            fetch_fragments (key, data, peer, true, null);
+        }
         else {
+            ++keys_repaired;
+            bytes_repaired += data.limit ();
+            db_put(key, data, null);
+        }
+    }
+
+    /**
+     * The keys and values of one FetchRangeResp that we are checking
+     * against our own database; we acknowledge the chunk when we have
+     * checked them all.
+     */
+    protected static class RangeChunk {
+        public AntiEntropyState ae;
+        public NodeId peer;
+        public long seq;
+        public int chunk;
+        public Map<StorageManager.Key,ByteBuffer> items =
+            new TreeMap<StorageManager.Key,ByteBuffer> ();
+    }
+
+    protected void start_bulk_fetch (AntiEntropyState ae,
+            MerkleTree.Node node, long their_leaves) {
+        if (logger.isDebugEnabled ())
+            logger.debug (ae + " fetching " + node + " in bulk, they have "
+                          + their_leaves + " keys under it");
+        ++bulk_transfers;
+        ae.bulk_seq = next_fetch_keys_seq++;
+        ae.bulk_chunks_done = ae.bulk_items = 0;
+        ae.bulk_chunk_count = -1;
+        dispatch (new FetchRangeReq (ae.ni.node_id, my_guid, ae.low_guid,
+                    ae.high_guid, node.range_low (), node.range_high (),
+                    bulk_window, ae.bulk_seq));
+    }
+
+    protected void handle_fetch_range_resp (FetchRangeResp resp) {
+        AntiEntropyState ae = null;
+        for (AntiEntropyState s : ae_sessions) {
+            if ((s.bulk_seq == resp.seq) && resp.peer.equals (s.ni.node_id)) {
+                ae = s;
+                break;
+            }
+        }
+        if (ae == null) {
+            // Don't acknowledge it; the sender will give up on the rest.
             if (logger.isDebugEnabled ()) logger.debug (
-		    ae_state + " unrecognized key");
+                    "no session, must have timed out: " + resp);
             return;
         }
 
-        if (ae_state.fetched_keys.isEmpty () &&
-            ae_state.fetched_data.isEmpty ()) {
-            goto_next_node ();
+        ae.last_activity_ms = timer_ms ();
+
+        if (resp.bad_range) {
+            // As for a FetchMerkleTreeNodeReject with BAD_GUID_RANGE.
+            if (logger.isDebugEnabled ())
+                logger.debug (ae + " bad range");
+            unsynced(ae.guid_range, ae.ni.node_id);
+            end_session (ae);
+            return;
+        }
+
+        if (resp.last)
+            ae.bulk_chunk_count = resp.chunk + 1;
+
+        RangeChunk c = new RangeChunk ();
+        c.ae = ae;
+        c.peer = resp.peer;
+        c.seq = resp.seq;
+        c.chunk = resp.chunk;
+        Iterator<ByteBuffer> j = resp.data.iterator ();
+        for (StorageManager.Key k : resp.keys)
+            c.items.put (k, j.next ());
+        ae.bulk_items += c.items.size ();
+        if (c.items.isEmpty ())
+            range_chunk_done (c);
+        else {
+            for (StorageManager.Key k : c.items.keySet ())
+                dispatch (new StorageManager.GetByKeyReq (k, my_sink, c));
         }
     }
 
+    protected void handle_range_chunk_check (RangeChunk c,
+            StorageManager.GetByKeyResp resp) {
+        ByteBuffer data = c.items.remove (resp.key);
+        if ((data != null) && (resp.data == null))
+            store_fetched (c.ae, resp.key, data, c.peer);
+        if (c.items.isEmpty ())
+            range_chunk_done (c);
+    }
+
+    protected void range_chunk_done (RangeChunk c) {
+        AntiEntropyState ae = c.ae;
+        if (ae.finished || (ae.bulk_seq != c.seq))
+            return;
+        ae.last_activity_ms = timer_ms ();
+        dispatch (new FetchRangeAck (c.peer, c.chunk, c.seq));
+        ++ae.bulk_chunks_done;
+        if (ae.bulk_chunks_done != ae.bulk_chunk_count)
+            return;
+
+        ae.bulk_seq = -1;
+        if (ae.bulk_items == 0) {
+            // They sent nothing, perhaps because they were too busy;
+            // fall back to fetching the keys a batch at a time.
+            TreeState ts = tree_state (ae.low_guid, ae.high_guid);
+            MerkleTree.Node node = ts.tree.node (
+                    ae.current_level, ae.current_low_time);
+            if (node != null) {
+                fetch_keys (ae, node);
+                return;
+            }
+        }
+        goto_next_node (ae);
+    }
+
+    /**
+     * The number of times anti-entropy has fetched a range in bulk.
+     */
+    public long bulkTransfers () { return bulk_transfers; }
+
     //////////////////// SERVER-SIDE ANTI_ENTROPY STATE /////////////////////
 
     protected boolean valid_db (NodeId peer, BigInteger peer_guid,
@@ -1695,7 +2358,8 @@ implements SingleThreadedEventHandlerIF {
         }
 
         FetchMerkleTreeNodeResp resp = new FetchMerkleTreeNodeResp (
-                req.peer, node.hash (), leaf, children, req.seq);
+                req.peer, node.hash (), leaf, children,
+                node.leaves_below (), req.seq);
         dispatch (resp);
     }
 
@@ -1761,6 +2425,186 @@ implements SingleThreadedEventHandlerIF {
         dispatch (new FetchDataResp (req.peer, req.key, resp.data));
     }
 
+    /**
+     * The state of a FetchRangeReq we are answering.  We read the keys in
+     * its range of times with a GetByTimeReq, and their values one at a
+     * time, and send them back in chunks of about RANGE_CHUNK_BYTES, with
+     * no more than <code>window</code> chunks unacknowledged.
+     */
+    protected static class RangeStream {
+        public FetchRangeReq req;
+        public int window;
+        public LinkedList<StorageManager.Key> keys =
+            new LinkedList<StorageManager.Key> ();
+        public Object continuation;
+        public boolean all_read, waiting, full, closed;
+        public LinkedList<StorageManager.Key> chunk_keys =
+            new LinkedList<StorageManager.Key> ();
+        public LinkedList<ByteBuffer> chunk_data = new LinkedList<ByteBuffer> ();
+        public int chunk_bytes;
+        public int next_chunk, acked;
+        public long last_activity_ms;
+    }
+
+    /**
+     * UdpCC messages are at most 16 kB.
+     */
+    protected static final int RANGE_CHUNK_BYTES = 8*1024;
+    protected static final int MAX_RANGE_WINDOW = 32;
+    protected static final int MAX_RANGE_STREAMS = 8;
+    protected static final long RANGE_STREAM_TIMEOUT = 30*1000;
+
+    protected LinkedList<RangeStream> range_streams =
+        new LinkedList<RangeStream> ();
+
+    protected RangeStream range_stream (NodeId peer, long seq) {
+        for (RangeStream s : range_streams) {
+            if ((s.req.seq == seq) && s.req.peer.equals (peer))
+                return s;
+        }
+        return null;
+    }
+
+    protected void handle_fetch_range_req (FetchRangeReq req) {
+        if (range_stream (req.peer, req.seq) != null)
+            return;
+        if (! valid_db (req.peer, req.peer_guid, req.low_guid, req.high_guid)) {
+            // Don't pass off part of the range as all of it.
+            FetchRangeResp resp = new FetchRangeResp (req.peer,
+                        new LinkedList<StorageManager.Key> (),
+                        new LinkedList<ByteBuffer> (), 0, true, req.seq);
+            resp.bad_range = true;
+            dispatch (resp);
+            return;
+        }
+        if (range_streams.size () >= MAX_RANGE_STREAMS) {
+            // Too busy; an empty answer makes them fall back to FetchKeysReq.
+            logger.info ("too many range transfers, refusing " + req);
+            dispatch (new FetchRangeResp (req.peer,
+                        new LinkedList<StorageManager.Key> (),
+                        new LinkedList<ByteBuffer> (), 0, true, req.seq));
+            return;
+        }
+        RangeStream s = new RangeStream ();
+        s.req = req;
+        s.window = Math.max (1, Math.min (req.window, MAX_RANGE_WINDOW));
+        s.last_activity_ms = timer_ms ();
+        s.waiting = true;
+        range_streams.addLast (s);
+        // high_time is exclusive, as in the tree, but GetByTimeReq's upper
+        // bound is inclusive.
+        dispatch (new StorageManager.GetByTimeReq (
+                    req.low_time, req.high_time - 1, my_sink, s));
+    }
+
+    protected void handle_range_stream_keys (RangeStream s,
+            StorageManager.GetByTimeResp resp) {
+        s.waiting = false;
+        if (s.closed) {
+            if (resp.continuation != null)
+                dispatch (new StorageManager.GetByTimeCont (
+                            resp.continuation, null, null));
+            return;
+        }
+        if (resp.keys != null) {
+            for (StorageManager.Key k : resp.keys) {
+                if (in_range_mod (s.req.low_guid, s.req.high_guid, k.guid))
+                    s.keys.addLast (k);
+            }
+        }
+        s.continuation = resp.continuation;
+        s.all_read = (resp.continuation == null);
+        range_stream_next (s);
+    }
+
+    protected void handle_range_stream_data (RangeStream s,
+            StorageManager.GetByKeyResp resp) {
+        s.waiting = false;
+        if (s.closed)
+            return;
+        if (resp.data != null) {
+            int size = StorageManager.Key.SIZE + 4 + resp.data.limit ();
+            if ((! s.chunk_keys.isEmpty ())
+                && (s.chunk_bytes + size > RANGE_CHUNK_BYTES)) {
+                if (s.next_chunk - s.acked >= s.window) {
+                    // Wait for an ack, and read this one again then.
+                    s.keys.addFirst (resp.key);
+                    s.full = true;
+                    return;
+                }
+                send_range_chunk (s, false);
+            }
+            s.chunk_keys.addLast (resp.key);
+            s.chunk_data.addLast (resp.data);
+            s.chunk_bytes += size;
+        }
+        range_stream_next (s);
+    }
+
+    protected void range_stream_next (RangeStream s) {
+        if (s.waiting || s.full || s.closed)
+            return;
+        if (! s.keys.isEmpty ()) {
+            s.waiting = true;
+            dispatch (new StorageManager.GetByKeyReq (
+                        s.keys.removeFirst (), my_sink, s));
+        }
+        else if (! s.all_read) {
+            s.waiting = true;
+            dispatch (new StorageManager.GetByTimeCont (
+                        s.continuation, my_sink, s));
+        }
+        else if (s.next_chunk - s.acked < s.window) {
+            send_range_chunk (s, true);
+        }
+    }
+
+    protected void send_range_chunk (RangeStream s, boolean last) {
+        dispatch (new FetchRangeResp (s.req.peer, s.chunk_keys, s.chunk_data,
+                    s.next_chunk++, last, s.req.seq));
+        s.chunk_keys = new LinkedList<StorageManager.Key> ();
+        s.chunk_data = new LinkedList<ByteBuffer> ();
+        s.chunk_bytes = 0;
+        if (last) {
+            s.closed = true;
+            range_streams.remove (s);
+        }
+    }
+
+    protected void handle_fetch_range_ack (FetchRangeAck ack) {
+        RangeStream s = range_stream (ack.peer, ack.seq);
+        if (s == null)
+            return;
+        s.last_activity_ms = timer_ms ();
+        ++s.acked;
+        if (s.full) {
+            s.full = false;
+            send_range_chunk (s, false);
+        }
+        range_stream_next (s);
+    }
+
+    /**
+     * Drops the range transfers whose requestors have stopped
+     * acknowledging them.
+     */
+    protected void expire_range_streams () {
+        for (Iterator<RangeStream> i = range_streams.iterator ();
+             i.hasNext (); ) {
+            RangeStream s = i.next ();
+            if (s.last_activity_ms + RANGE_STREAM_TIMEOUT < timer_ms ()) {
+                if (logger.isInfoEnabled ())
+                    logger.info ("range transfer to " + s.req.peer
+                                 + " timed out");
+                s.closed = true;
+                i.remove ();
+                if ((! s.waiting) && (! s.all_read))
+                    dispatch (new StorageManager.GetByTimeCont (
+                                s.continuation, null, null));
+            }
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////
     //
     // Replica set request and response code.  This code is used to find a
@@ -1944,7 +2788,336 @@ implements SingleThreadedEventHandlerIF {
                 resp.replica_set [which], ds.key.time_usec, ds.key.ttl_sec,
 		ds.key.guid, ds.data, ds.key.put, ds.key.client_id,
                 ds.nonce, ds.key.data_hash, ds.key.secret_hash);
+        outb.fragment = (rs != null) && ds.key.put;
 
         dispatch (outb);
     }
+
+    /////////////////////////// ERASURE CODING //////////////////////////////
+    //
+    // In erasure-coded mode, each stored put is a fragment: a header giving
+    // its index, the code's k and n, and the length of the whole value,
+    // followed by the fragment itself.  To rebuild a value for a get, we
+    // ask the k neighbors closest to its guid for their fragments with
+    // FetchDataReqs, and ask the next closest for each that answers
+    // without one, or all the rest if any time out; we decode as soon as we
+    // have k.  To repair a missing fragment, we ask all of our neighbors.
+    //
+    ///////////////////////////////////////////////////////////////////////////
+
+    protected static final int FRAGMENT_HEADER = 7;
+    protected static final long FRAGMENT_FETCH_TIMEOUT = 5*1000;
+
+    public boolean erasureCoded () {
+        return rs != null;
+    }
+
+    /**
+     * The number of fragments needed to rebuild a value: k if puts are
+     * erasure coded, and 1 otherwise.
+     */
+    public int fragmentsNeeded () {
+        return (rs == null) ? 1 : rs.k ();
+    }
+
+    /**
+     * The number of bytes this node stores for a put of a value of
+     * <code>len</code> bytes.
+     */
+    public int storedSize (int len) {
+        return (rs == null) ? len : (FRAGMENT_HEADER + rs.fragment_size (len));
+    }
+
+    protected ByteBuffer [] make_fragments (ByteBuffer value) {
+        int len = value.limit ();
+        byte [] [] frags = rs.encode (value.array (), value.arrayOffset (), len);
+        ByteBuffer [] result = new ByteBuffer [frags.length];
+        for (int i = 0; i < frags.length; ++i) {
+            ByteBuffer f = ByteBuffer.allocate (
+                    FRAGMENT_HEADER + frags [i].length);
+            f.put ((byte) i);
+            f.put ((byte) (rs.k () - 1));
+            f.put ((byte) (rs.n () - 1));
+            f.putInt (len);
+            f.put (frags [i]);
+            f.flip ();
+            result [i] = f;
+        }
+        return result;
+    }
+
+    /**
+     * Whether <code>data</code> has a well-formed fragment header for our
+     * code, and is as long as the header says.
+     */
+    protected boolean valid_fragment (ByteBuffer data) {
+        ByteBuffer b = data.duplicate ();
+        b.position (0);
+        if (b.limit () < FRAGMENT_HEADER)
+            return false;
+        int index = b.get () & 0xff;
+        int k = (b.get () & 0xff) + 1;
+        int n = (b.get () & 0xff) + 1;
+        int len = b.getInt ();
+        return (k == rs.k ()) && (n == rs.n ()) && (index < n) && (len >= 0)
+            && (b.remaining () == rs.fragment_size (len));
+    }
+
+    protected class FragmentFetch implements Runnable {
+        public StorageManager.Key key;
+        public int len = -1;
+        public LinkedHashMap<Integer,byte []> fragments =
+            new LinkedHashMap<Integer,byte []> ();
+        public Set<NodeId> unanswered = new TreeSet<NodeId> ();
+        // The neighbors not yet asked, closest to the key's guid first.
+        public LinkedList<NodeId> unasked = new LinkedList<NodeId> ();
+        public LinkedList<Thunk1<ByteBuffer>> waiting =
+            new LinkedList<Thunk1<ByteBuffer>> ();
+        public ByteBuffer value;
+        public boolean failed;
+
+        /**
+         * Whether to store our own fragment once the value is rebuilt.  If
+         * so, we wait for all of our neighbors to answer (or time out) so
+         * as to choose an index none of them has.
+         */
+        public boolean repair;
+        public Object timer;
+
+        public FragmentFetch (StorageManager.Key k) { key = k; }
+
+        public void run () {
+            timer = null;
+            if ((value == null) && (! failed) && (! unasked.isEmpty ())) {
+                // Some of those we asked are slow; ask everyone else.
+                while (! unasked.isEmpty ())
+                    ask (this, unasked.removeFirst ());
+                timer = acore.registerTimer (FRAGMENT_FETCH_TIMEOUT, this);
+            }
+            else {
+                finish_fetch (this);
+            }
+        }
+    }
+
+    protected TreeMap<StorageManager.Key,FragmentFetch> fragment_fetches =
+        new TreeMap<StorageManager.Key,FragmentFetch> ();
+
+    /**
+     * Starts rebuilding the value for <code>key</code>, or joins a rebuild
+     * already under way.  <code>have</code>, if not null, is a fragment we
+     * already have, from <code>from</code> (or from our own disk if that
+     * is null); if <code>repair</code>, we store our own fragment once the
+     * value is rebuilt; <code>cb</code>, if not null, is called with the
+     * value, or with null if it couldn't be rebuilt.
+     */
+    protected FragmentFetch fetch_fragments (StorageManager.Key key,
+            ByteBuffer have, NodeId from, boolean repair,
+            Thunk1<ByteBuffer> cb) {
+        FragmentFetch f = fragment_fetches.get (key);
+        if (f == null) {
+            f = new FragmentFetch (key);
+            fragment_fetches.put (key, f);
+            if (preds != null) {
+                final BigInteger guid = key.guid;
+                TreeSet<BambooNeighborInfo> closest =
+                    new TreeSet<BambooNeighborInfo> (
+                            new java.util.Comparator<BambooNeighborInfo> () {
+                        public int compare (BambooNeighborInfo a,
+                                            BambooNeighborInfo b) {
+                            int c = GuidTools.calc_dist (a.guid, guid, MODULUS)
+                                .compareTo (GuidTools.calc_dist (
+                                            b.guid, guid, MODULUS));
+                            return (c != 0) ? c : a.guid.compareTo (b.guid);
+                        }
+                    });
+                closest.addAll (Arrays.asList (preds));
+                closest.addAll (Arrays.asList (succs));
+                for (BambooNeighborInfo ni : closest) {
+                    if ((! ni.node_id.equals (my_node_id))
+                        && (! ni.node_id.equals (from)))
+                        f.unasked.addLast (ni.node_id);
+                }
+            }
+            f.timer = acore.registerTimer (FRAGMENT_FETCH_TIMEOUT, f);
+        }
+        // Set before add_fragment, which may finish the fetch at once.
+        if (repair)
+            f.repair = true;
+        if (cb != null) {
+            if (f.value != null)
+                cb.run (f.value);
+            else
+                f.waiting.addLast (cb);
+        }
+        add_fragment (f, from, have);
+        return f;
+    }
+
+    protected void add_fragment (FragmentFetch f, NodeId from, 
+                                 ByteBuffer data) {
+        if (from != null) {
+            f.unanswered.remove (from);
+            f.unasked.remove (from);
+        }
+        if ((data != null) && (f.value == null) && (! f.failed)) {
+            ByteBuffer b = data.duplicate ();
+            b.position (0);
+            int index = valid_fragment (b) ? (b.get (0) & 0xff) : -1;
+            int len = (index < 0) ? -1 : b.getInt (3);
+            if ((index < 0) || ((f.len != -1) && (f.len != len))) {
+                logger.warn ("bad fragment for " + f.key + " from " 
+                             + ((from == null) ? "disk" : from.toString ()));
+            }
+            else if (! f.fragments.containsKey (new Integer (index))) {
+                byte [] frag = new byte [b.limit () - FRAGMENT_HEADER];
+                b.position (FRAGMENT_HEADER);
+                b.get (frag);
+                f.fragments.put (new Integer (index), frag);
+                f.len = len;
+            }
+        }
+
+        if ((f.value == null) && (! f.failed) 
+            && (f.fragments.size () >= rs.k ())) {
+            byte [] [] frags = new byte [f.fragments.size ()] [];
+            int [] indices = new int [frags.length];
+            int i = 0;
+            for (Map.Entry<Integer,byte []> e : f.fragments.entrySet ()) {
+                indices [i] = e.getKey ().intValue ();
+                frags [i++] = e.getValue ();
+            }
+            byte [] value = rs.decode (frags, indices, f.len);
+            if (Arrays.equals (md.digest (value), f.key.data_hash)) {
+                f.value = ByteBuffer.wrap (value);
+                LinkedList<Thunk1<ByteBuffer>> waiting = f.waiting;
+                f.waiting = new LinkedList<Thunk1<ByteBuffer>> ();
+                for (Thunk1<ByteBuffer> cb : waiting)
+                    cb.run (f.value);
+            }
+            else {
+                logger.warn ("fragments for " + f.key 
+                             + " don't match its hash");
+                f.failed = true;
+            }
+        }
+
+        if (fragment_fetches.get (f.key) == f) {
+            // Ask enough more neighbors that, if they all have fragments,
+            // we'll have k; or all of them, to repair.
+            if ((f.value == null) || f.repair) {
+                int want = f.repair ? Integer.MAX_VALUE
+                    : (rs.k () - f.fragments.size ());
+                while ((! f.failed) && (f.unanswered.size () < want)
+                       && (! f.unasked.isEmpty ()))
+                    ask (f, f.unasked.removeFirst ());
+            }
+            if (f.unanswered.isEmpty () || f.failed 
+                || ((f.value != null) && (! f.repair)))
+                finish_fetch (f);
+        }
+    }
+
+    protected void ask (FragmentFetch f, NodeId n) {
+        f.unanswered.add (n);
+        dispatch (new FetchDataReq (n, f.key));
+    }
+
+    protected void finish_fetch (FragmentFetch f) {
+        if (fragment_fetches.get (f.key) != f)
+            return;
+        fragment_fetches.remove (f.key);
+        if (f.timer != null) {
+            acore.cancelTimer (f.timer);
+            f.timer = null;
+        }
+        for (Thunk1<ByteBuffer> cb : f.waiting)
+            cb.run (f.value);
+        f.waiting.clear ();
+
+        if (f.repair && (f.value != null)) {
+            int index = 0;
+            while ((index < rs.n ()) 
+                   && f.fragments.containsKey (new Integer (index)))
+                ++index;
+            if (index == rs.n ())
+                index = rand.nextInt (rs.n ());
+            if (logger.isInfoEnabled ()) {
+                StringBuffer buf = new StringBuffer (200);
+                buf.append ("rebuilt fragment ");
+                buf.append (index);
+                buf.append (" of ");
+                f.key.toStringBuffer(buf);
+                buf.append (" from ");
+                buf.append (f.fragments.size ());
+                buf.append (" fragments");
+                logger.info (buf);
+            }
+            ByteBuffer frag = make_fragments (f.value) [index];
+            ++keys_repaired;
+            bytes_repaired += frag.limit ();
+            db_put (f.key, frag, null);
+        }
+        else if (f.repair) {
+            StringBuffer buf = new StringBuffer (200);
+            buf.append ("could not rebuild ");
+            f.key.toStringBuffer(buf);
+            buf.append ("; have ");
+            buf.append (f.fragments.size ());
+            buf.append (" fragments");
+            logger.warn (buf);
+        }
+    }
+
+    /**
+     * Rebuilds the values of puts read from the local disk, which are
+     * fragments in erasure-coded mode, and calls <code>done</code> with
+     * them, in the same order.  Those that can't be rebuilt are left out.
+     */
+    public void reconstruct (
+            LinkedList<bamboo.util.Pair<StorageManager.Key,ByteBuffer>> values,
+            final Thunk1<LinkedList<bamboo.util.Pair<StorageManager.Key,ByteBuffer>>> done) {
+
+        final LinkedList<bamboo.util.Pair<StorageManager.Key,ByteBuffer>> 
+            result = values;
+        final ByteBuffer [] rebuilt = new ByteBuffer [values.size ()];
+        final int [] pending = {1};
+        final Runnable check_done = new Runnable () {
+            public void run () {
+                if (--pending [0] > 0)
+                    return;
+                int i = 0;
+                Iterator<bamboo.util.Pair<StorageManager.Key,ByteBuffer>> j =
+                    result.iterator ();
+                while (j.hasNext ()) {
+                    bamboo.util.Pair<StorageManager.Key,ByteBuffer> p = 
+                        j.next ();
+                    if (rebuilt [i] == null) 
+                        j.remove ();
+                    else 
+                        p.second = rebuilt [i];
+                    ++i;
+                }
+                done.run (result);
+            }
+        };
+
+        int i = 0;
+        for (bamboo.util.Pair<StorageManager.Key,ByteBuffer> p : values) {
+            final int which = i++;
+            if ((rs == null) || (! p.first.put)) {
+                rebuilt [which] = p.second;
+                continue;
+            }
+            ++pending [0];
+            fetch_fragments (p.first, p.second, null, false,
+                    new Thunk1<ByteBuffer> () {
+                public void run (ByteBuffer value) {
+                    rebuilt [which] = value;
+                    check_done.run ();
+                }
+            });
+        }
+        check_done.run ();
+    }
 }
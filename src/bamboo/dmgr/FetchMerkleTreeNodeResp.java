@@ -31,13 +31,14 @@ import bamboo.util.GuidTools;
  * <tr><td>36-55</td><td>hash</td></tr>
  * <tr><td> 56  </td><td>leaf</td></tr>
  * <tr><td>57-64</td><td>seq</td></tr>
- * <tr><td>65-68</td><td>number of child hashes</td></tr>
- * <tr><td> 69- </td><td>child hashes, 20 bytes apiece</td></tr>
+ * <tr><td>65-72</td><td>leaves_below</td></tr>
+ * <tr><td>73-76</td><td>number of child hashes</td></tr>
+ * <tr><td> 77- </td><td>child hashes, 20 bytes apiece</td></tr>
  * </table>
  * </center>
  * <br>
- * As such, the first 69 bytes of the message are header.  Assuming an MTU of
- * 500 bytes, we can thus pack (500-69)/20 = 21 child pointers into a single
+ * As such, the first 77 bytes of the message are header.  Assuming an MTU of
+ * 500 bytes, we can thus pack (500-77)/20 = 21 child pointers into a single
  * packet response.  Assuming an MTU of 1500 bytes, we can pack 71 in.  So a
  * "good" expansion factor for the tree would be 2^6=64.
  *
@@ -64,15 +65,21 @@ public class FetchMerkleTreeNodeResp extends NetworkMessage {
      */
     public LinkedList children;
 
+    /**
+     * The number of keys under this node; the requestor uses it to decide
+     * whether to fetch the node's whole range in bulk.
+     */
+    public long leaves_below;
+
     /**
      * To pair it up with its request.
      */
     public long seq;
 
     public FetchMerkleTreeNodeResp (NodeId dest, byte [] h, boolean l, 
-            LinkedList c, long s) {
+            LinkedList c, long lb, long s) {
 	super (dest, false);
-        hash = h; leaf = l; children = c; seq = s;
+        hash = h; leaf = l; children = c; leaves_below = lb; seq = s;
     }
 
     public FetchMerkleTreeNodeResp (InputBuffer buffer) throws QSException {
@@ -82,6 +89,7 @@ public class FetchMerkleTreeNodeResp extends NetworkMessage {
         buffer.nextBytes (hash, 0, len);
         leaf = buffer.nextBoolean ();
 	seq = buffer.nextLong ();
+	leaves_below = buffer.nextLong ();
 	int cnt = buffer.nextInt ();
         if (cnt > 0) {
             children = new LinkedList ();
@@ -99,6 +107,7 @@ public class FetchMerkleTreeNodeResp extends NetworkMessage {
         buffer.add (hash);
         buffer.add (leaf);
         buffer.add (seq);
+        buffer.add (leaves_below);
         if (children == null) 
             buffer.add (0);
         else {
@@ -117,6 +126,7 @@ public class FetchMerkleTreeNodeResp extends NetworkMessage {
         result.hash = hash; 
         result.leaf = leaf;
         result.seq = seq;
+        result.leaves_below = leaves_below;
         result.children = children;
         return result;
     }
@@ -129,6 +139,7 @@ public class FetchMerkleTreeNodeResp extends NetworkMessage {
 	result.append (" hash="); 
         result.append (ostore.util.ByteUtils.print_bytes (hash));
 	result.append (" leaf="); result.append (leaf);
+	result.append (" leaves_below="); result.append (leaves_below);
 	result.append (" children=(");
         if (children != null) {
             Iterator i = children.iterator ();
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.dmgr;
+import ostore.network.NetworkMessage;
+import ostore.util.InputBuffer;
+import ostore.util.NodeId;
+import ostore.util.OutputBuffer;
+import ostore.util.QSException;
+
+/**
+ * Tells the sender of a FetchRangeResp that we are done with it, so that
+ * it may send another.
+ *
+ * @version $Id$
+ */
+public class FetchRangeAck extends NetworkMessage {
+
+    public int chunk;
+
+    /**
+     * To pair it up with its request.
+     */
+    public long seq;
+
+    public FetchRangeAck (NodeId dest, int c, long s) {
+	super (dest, false);
+        chunk = c; seq = s;
+    }
+
+    public FetchRangeAck (InputBuffer buffer) throws QSException {
+	super (buffer);
+	chunk = buffer.nextInt ();
+	seq = buffer.nextLong ();
+    }
+
+    public void serialize (OutputBuffer buffer) {
+	super.serialize (buffer);
+        buffer.add (chunk);
+        buffer.add (seq);
+    }
+
+    public Object clone () throws CloneNotSupportedException {
+	FetchRangeAck result = (FetchRangeAck) super.clone ();
+        result.chunk = chunk;
+        result.seq = seq;
+        return result;
+    }
+
+    public String toString () {
+	return "(FetchRangeAck super=" + super.toString () + " chunk=" + chunk
+            + " seq=" + seq + ")";
+    }
+}
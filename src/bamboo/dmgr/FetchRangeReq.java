@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.dmgr;
+import java.math.BigInteger;
+import ostore.network.NetworkMessage;
+import ostore.util.InputBuffer;
+import ostore.util.NodeId;
+import ostore.util.OutputBuffer;
+import ostore.util.QSException;
+import bamboo.util.GuidTools;
+
+/**
+ * Asks a neighbor for every key and value it has in a range of guids and
+ * times, from <code>low_time</code> up to but not including
+ * <code>high_time</code>.  It answers with a stream of FetchRangeResps,
+ * keeping no more than <code>window</code> of them unacknowledged.  Like a
+ * FetchMerkleTreeNodeReq, it carries the guid of its sender, so that the
+ * neighbor can check that it holds a valid database for the range.
+ *
+ * @version $Id$
+ */
+public class FetchRangeReq extends NetworkMessage {
+
+    /**
+     * The guid of the source node of this query.
+     */
+    public BigInteger peer_guid;
+
+    public BigInteger low_guid;
+    public BigInteger high_guid;
+    public long low_time;
+    public long high_time;
+    public int window;
+
+    /**
+     * To pair it up with its responses.
+     */
+    public long seq;
+
+    public FetchRangeReq (NodeId dest, BigInteger pg, BigInteger lg,
+            BigInteger hg, long lt, long ht, int w, long s) {
+	super (dest, false);
+        peer_guid = pg; low_guid = lg; high_guid = hg; low_time = lt; high_time = ht;
+        window = w; seq = s;
+    }
+
+    public FetchRangeReq (InputBuffer buffer) throws QSException {
+	super (buffer);
+	peer_guid = buffer.nextBigInteger ();
+	low_guid = buffer.nextBigInteger ();
+	high_guid = buffer.nextBigInteger ();
+	low_time = buffer.nextLong ();
+	high_time = buffer.nextLong ();
+	window = buffer.nextInt ();
+	seq = buffer.nextLong ();
+    }
+
+    public void serialize (OutputBuffer buffer) {
+	super.serialize (buffer);
+        buffer.add (peer_guid);
+        buffer.add (low_guid);
+        buffer.add (high_guid);
+        buffer.add (low_time);
+        buffer.add (high_time);
+        buffer.add (window);
+        buffer.add (seq);
+    }
+
+    public Object clone () throws CloneNotSupportedException {
+	FetchRangeReq result = (FetchRangeReq) super.clone ();
+        result.peer_guid = peer_guid;
+        result.low_guid = low_guid;
+        result.high_guid = high_guid;
+        result.low_time = low_time;
+        result.high_time = high_time;
+        result.window = window;
+        result.seq = seq;
+        return result;
+    }
+
+    public String toString () {
+	StringBuffer result = new StringBuffer (100);
+	result.append ("(FetchRangeReq super=");
+	result.append (super.toString ());
+	result.append (" peer_guid=");
+	result.append (GuidTools.guid_to_string (peer_guid));
+	result.append (" low_guid=");
+	result.append (GuidTools.guid_to_string (low_guid));
+	result.append (" high_guid=");
+	result.append (GuidTools.guid_to_string (high_guid));
+	result.append (" low_time=");
+        result.append (Long.toHexString (low_time));
+	result.append (" high_time=");
+        result.append (Long.toHexString (high_time));
+	result.append (" window="); result.append (window);
+	result.append (" seq="); result.append (seq);
+	result.append (")");
+	return result.toString ();
+    }
+}
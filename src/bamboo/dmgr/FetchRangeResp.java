@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.dmgr;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+import ostore.network.NetworkMessage;
+import ostore.util.InputBuffer;
+import ostore.util.NodeId;
+import ostore.util.OutputBuffer;
+import ostore.util.QSException;
+import bamboo.db.StorageManager;
+
+/**
+ * One chunk of the answer to a FetchRangeReq: some of the keys in the
+ * range, in time order, each with its value.  Chunks are numbered from
+ * zero, and the last one, which may be empty, has <code>last</code> set.
+ *
+ * @version $Id$
+ */
+public class FetchRangeResp extends NetworkMessage {
+
+    public LinkedList<StorageManager.Key> keys;
+    public LinkedList<ByteBuffer> data;
+    public int chunk;
+    public boolean last;
+
+    /**
+     * Set, in a lone empty last chunk, if the sender has no valid database
+     * for the range asked for; see FetchMerkleTreeNodeReject.BAD_GUID_RANGE.
+     */
+    public boolean bad_range;
+
+    /**
+     * To pair it up with its request.
+     */
+    public long seq;
+
+    public FetchRangeResp (NodeId dest, LinkedList<StorageManager.Key> k,
+            LinkedList<ByteBuffer> d, int c, boolean l, long s) {
+	super (dest, false);
+        keys = k; data = d; chunk = c; last = l; seq = s;
+    }
+
+    public FetchRangeResp (InputBuffer buffer) throws QSException {
+	super (buffer);
+        keys = new LinkedList<StorageManager.Key> ();
+        data = new LinkedList<ByteBuffer> ();
+	int cnt = buffer.nextInt ();
+        while (cnt-- > 0) {
+            keys.addLast (new StorageManager.Key (buffer));
+            int len = buffer.nextInt ();
+            byte [] dbuf = new byte [len];
+            buffer.nextBytes (dbuf, 0, len);
+            data.addLast (ByteBuffer.wrap (dbuf));
+        }
+	chunk = buffer.nextInt ();
+	last = buffer.nextBoolean ();
+	bad_range = buffer.nextBoolean ();
+	seq = buffer.nextLong ();
+    }
+
+    public void serialize (OutputBuffer buffer) {
+	super.serialize (buffer);
+        buffer.add (keys.size ());
+        Iterator<ByteBuffer> j = data.iterator ();
+        for (StorageManager.Key k : keys) {
+            ByteBuffer d = j.next ();
+            k.serialize (buffer);
+            buffer.add (d.limit ());
+            buffer.add (d.array (), d.arrayOffset (), d.limit ());
+        }
+        buffer.add (chunk);
+        buffer.add (last);
+        buffer.add (bad_range);
+        buffer.add (seq);
+    }
+
+    public Object clone () throws CloneNotSupportedException {
+	FetchRangeResp result = (FetchRangeResp) super.clone ();
+        result.keys = keys;
+        result.data = data;
+        result.chunk = chunk;
+        result.last = last;
+        result.bad_range = bad_range;
+        result.seq = seq;
+        return result;
+    }
+
+    public String toString () {
+	StringBuffer result = new StringBuffer (100);
+	result.append ("(FetchRangeResp super=");
+	result.append (super.toString ());
+	result.append (" keys.size="); result.append (keys.size ());
+	result.append (" chunk="); result.append (chunk);
+	result.append (" last="); result.append (last);
+	result.append (" bad_range="); result.append (bad_range);
+	result.append (" seq="); result.append (seq);
+	result.append (")");
+	return result.toString ();
+    }
+}
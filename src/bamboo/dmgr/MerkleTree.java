@@ -6,7 +6,9 @@
  */
 
 package bamboo.dmgr;
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -17,6 +19,15 @@ import org.apache.log4j.Logger;
 /**
  * A Merkle Tree over the keys stored on a Bamboo node.
  *
+ * <p>The hash of a node is the sum, modulo 2^(8 * the digest length), of
+ * the hashes of the leaves below it, rather than a digest of its
+ * children's hashes.  A node's hash thus depends only on which leaves
+ * fall in its range, and not on the shape of the tree below it, and
+ * adding or removing a leaf is just a matter of adding its hash to, or
+ * subtracting it from, each node on its path; see <code>update</code>.
+ * The database need only be scanned to build a tree, or to split a node
+ * that has grown too large.
+ *
  * @author Sean C. Rhea
  * @version $Id: MerkleTree.java,v 1.25 2004/02/13 04:39:29 srhea Exp $
  */
@@ -48,12 +59,16 @@ public class MerkleTree {
      */
     protected MessageDigest dont_use;
 
+    /**
+     * Used by <code>leaf_hash</code>.
+     */
+    protected MessageDigest leaf_md;
+
     /**
      * The data structure returned by <code>fill_holes</code>.
      */
     public static class FillHolesState {
         public byte [] digest;
-	public long earliest_expiry_usec;
         public long leaves_below, max_leaves_below, range_low, range_high;
         public FillHolesState (long m, long l, long h) {
             max_leaves_below = m; range_low = l; range_high = h;
@@ -84,16 +99,12 @@ public class MerkleTree {
         protected int level;
 
         /**
-         * The hash of this node's children; may be null, in which case
-         * <code>fill_holes</code> may be called to fill it in.
+         * The sum of the hashes of the leaves below this node; may be null,
+         * in which case <code>fill_holes</code> may be called to fill it
+         * in.  If a node is not valid, neither are any of its ancestors.
          */
         protected byte [] hash;
 
-	/**
-	 * The earliest expiration time in subtree below this node.
-	 */
-	protected long earliest_expiry_usec;
-
         /** 
          * A count of how many leaves are below this node, so that
          * <code>fill_holes</code> knows when we need to create or remove
@@ -175,7 +186,7 @@ public class MerkleTree {
         }
 
         /**
-         * Returns the highest timestamp covered by this node.
+         * Returns one more than the highest timestamp covered by this node.
          */
         public long range_high () {
             return low+(1L<<(level*expansion));
@@ -203,6 +214,35 @@ public class MerkleTree {
             return false;
         }
 
+        /**
+         * Returns the child whose range includes <code>time_usec</code>,
+         * which must be in this node's range, or null if this node has no
+         * children.
+         */
+        public Node child (long time_usec) {
+            if (level == 0)
+                return null;
+            long width = 1L << ((level - 1) * expansion);
+            long where = low + ((time_usec - low) / width) * width;
+            return (Node) nodes [level-1].get (new Long (where));
+        }
+
+        /**
+         * Removes all of the nodes below this one.  The hash of this node is
+         * unchanged.
+         */
+        public void remove_children () {
+            if (level == 0)
+                return;
+            for (Iter i = children (); i.hasNext (); ) {
+                Node child = i.next ();
+                if (child != null) {
+                    child.remove_children ();
+                    i.remove ();
+                }
+            }
+        }
+
         /**
          * Notify this node that its current hash value should be recomputed,
          * presumably because of a change in the underlying database.
@@ -213,11 +253,9 @@ public class MerkleTree {
 
         /**
          * Is the hash of this node up to date?
-	 * Have any of this node's progeny expired?
          */
-        public boolean valid (long now_ms) {
-            return ((hash != null) &&
-		    (earliest_expiry_usec >= (now_ms * 1000)));
+        public boolean valid () {
+            return hash != null;
         }
 
         /**
@@ -251,20 +289,12 @@ public class MerkleTree {
             return hash;
         }
 
-	public long earliest_expiry_usec () {
-	    return earliest_expiry_usec;
-	}
-
         public void set_hash (byte [] value) {
             if (value == null)
                 throw new IllegalArgumentException ("null");
             hash = value;
         }
 
-	public void set_earliest_expiry_usec (long e_e) {
-	    earliest_expiry_usec = e_e;
-	}
-
         public String toString () {
             return "(Node level=" + level + ", range=[" + 
                 Long.toHexString (range_low ()) + ", " + 
@@ -282,17 +312,9 @@ public class MerkleTree {
             if (logger.isDebugEnabled ()) 
                 logger.debug ("invalidate_path " + this);
             invalidate ();
-            if (level > 0) {
-                for (Iter i = children (); i.hasNext (); ) {
-                    Node child = i.next ();
-                    if ((child != null) &&
-                            (time_usec >= child.range_low ()) &&
-                            (time_usec <= child.range_high ())) {
-                        child.invalidate_path (time_usec);
-                        break;
-                    }
-                }
-            }
+            Node child = child (time_usec);
+            if (child != null)
+                child.invalidate_path (time_usec);
         }
 
         /**
@@ -304,79 +326,69 @@ public class MerkleTree {
          * items before it can complete successfully.  In this case, it will
          * return a <code>FillHoleState</code> to indicate the range it needs.
          * The caller should perform the scan over the range
-         * <code>range_low</code> to <code>range_high</code> inclusive. If
-         * there are less than or equal to <code>max_leaves_below</code> items
-         * in the range, it should set <code>leaves_below</code> to the total
-         * number of items and store their digest in <code>digest</code>.
+         * <code>range_low</code> inclusive to <code>range_high</code>
+         * exclusive.  If there are less than or equal to
+         * <code>max_leaves_below</code> items in the range, it should set
+         * <code>leaves_below</code> to the total number of items and store
+         * the sum of their <code>leaf_hash</code>es in <code>digest</code>.
          * Otherwise, it should set <code>leaves_below</code> to the number of
          * items read and set <code>digest</code> to <code>null</code>.  It
          * should not change <code>range_low</code>, <code>range_high</code>,
          * or <code>max_leaves_below</code>.
          */
-        public FillHolesState fill_holes (FillHolesState state, long now_ms) {
+        public FillHolesState fill_holes (FillHolesState state) {
 
             if (logger.isDebugEnabled ()) 
                 logger.debug ("fill_holes " + toString ());
             if (logger.isDebugEnabled ()) logger.debug ("state=" + state);
 
-            if (valid (now_ms)) {
+            if (valid ()) {
                 if (logger.isDebugEnabled ()) logger.debug ("valid");
                 return null;
             }
 
             FillHolesState result = has_children ()
-                ? fill_holes_have_children (state, now_ms)
-                : fill_holes_no_children (state, now_ms);
+                ? fill_holes_have_children (state)
+                : fill_holes_no_children (state);
 
             // either we're valid or we need more information
-            assert valid (now_ms) || (result != null) 
+            assert valid () || (result != null) 
                 : "not valid at end of fill_holes";
 
             return result;
         }
 
         protected FillHolesState fill_holes_have_children (
-                FillHolesState state, long now_ms) {
+                FillHolesState state) {
 
             if (logger.isDebugEnabled ()) logger.debug ("checking children");
             if (logger.isDebugEnabled ()) logger.debug ("state=" + state);
 
             // Make sure all our children are valid, compute our hash, and
             // find out how many leaves are below us.
-            int leaves_below = 0;
-	    long earliest_expiry_usec = Long.MAX_VALUE;
-            MessageDigest md = new_digest ();
+            long leaves_below = 0;
+            byte [] sum = empty_hash ();
             for (Iter i = children (); i.hasNext (); ) {
                 Node child = i.next ();
-                if (! child.valid (now_ms)) {
-                    FillHolesState result = child.fill_holes (state, now_ms);
+                if (! child.valid ()) {
+                    FillHolesState result = child.fill_holes (state);
                     if (result != null)
                         return result;
                 }
-                md.update (child.hash ());
+                add (sum, child.hash ());
                 leaves_below += child.leaves_below ();
-		if (child.earliest_expiry_usec() < earliest_expiry_usec)
-		    earliest_expiry_usec = child.earliest_expiry_usec();
             }
 
-            if (leaves_below <= max ()) {
-                // Collapse all of our children into us.
-                for (Iter i = children (); i.hasNext (); ) {
-                    i.next (); i.remove ();
-                }
-                return fill_holes_no_children (state, now_ms);
-            }
-            else {
-                // If we get here, all of our children were valid and there
-                // are too many leaves to collapse them all into us, so we're
-                // done.
-                set_hash (md.digest ());
-		set_earliest_expiry_usec(earliest_expiry_usec);
-                set_leaves_below (leaves_below);
-                assert valid (now_ms) 
-                    : "not valid at end of fill_holes_have_children";
-                return null;
-            }
+            // Our hash is the sum of our children's either way, so if there
+            // are few enough leaves to collapse all of our children into us,
+            // there's no need to scan them again.
+            if (leaves_below <= max ())
+                remove_children ();
+
+            set_hash (sum);
+            set_leaves_below (leaves_below);
+            assert valid () : "not valid at end of fill_holes_have_children";
+            return null;
         }
 
         protected long max () {
@@ -384,7 +396,7 @@ public class MerkleTree {
         }
 
         protected FillHolesState fill_holes_no_children (
-                FillHolesState state, long now_ms) {
+                FillHolesState state) {
 
             if (logger.isDebugEnabled ()) logger.debug ("no children");
             if (logger.isDebugEnabled ()) logger.debug ("state=" + state);
@@ -414,15 +426,6 @@ public class MerkleTree {
 
             if (state.digest != null) {
 
-                if (state.earliest_expiry_usec < (now_ms*1000)) {
-
-                    // We have a good scan, but it has expired since the
-                    // digest was computed.  Try again.
-
-                    return new FillHolesState (
-                            max (), range_low (), range_high ());
-                }
-
                 // We have a good scan.
 
                 assert state.leaves_below <= max () : "too many leaves";
@@ -430,10 +433,8 @@ public class MerkleTree {
                 if (logger.isDebugEnabled ()) logger.debug ("good scan");
 
                 set_hash (state.digest);
-		set_earliest_expiry_usec(state.earliest_expiry_usec);
                 set_leaves_below (state.leaves_below);
-                assert valid (now_ms) 
-                    : "not valid at end of fill_holes_no_children";
+                assert valid () : "not valid at end of fill_holes_no_children";
                 return null;
             }
 
@@ -449,7 +450,7 @@ public class MerkleTree {
                 i.next (); i.create ();
             }
 
-            return fill_holes_have_children (null, now_ms);
+            return fill_holes_have_children (null);
         }
     }
 
@@ -470,6 +471,7 @@ public class MerkleTree {
             throw new IllegalArgumentException ("md must support clone");
         }
 
+        leaf_md = new_digest ();
         expansion = exp;
         int levels = (62 / expansion) + 1;
         nodes = new Map [levels];
@@ -477,6 +479,10 @@ public class MerkleTree {
             nodes [i] = new HashMap ();
     }
 
+    public int expansion () {
+        return expansion;
+    }
+
     public Node root () {
         Long l = new Long (0L);
         int level = nodes.length - 1;
@@ -494,6 +500,158 @@ public class MerkleTree {
         return (Node) nodes [level].get (new Long (low));
     }
 
+    /**
+     * Returns the hash of a leaf, given its serialized form.
+     */
+    public byte [] leaf_hash (byte [] leaf) {
+        return leaf_md.digest (leaf);
+    }
+
+    /**
+     * Returns the hash of a node with no leaves below it: all zeros.
+     */
+    public byte [] empty_hash () {
+        return new byte [leaf_md.getDigestLength ()];
+    }
+
+    /**
+     * Sets <code>sum</code> to <code>sum + h</code>, modulo 2^(8 *
+     * <code>sum.length</code>).
+     */
+    public static void add (byte [] sum, byte [] h) {
+        int carry = 0;
+        for (int i = sum.length - 1; i >= 0; --i) {
+            int s = (sum [i] & 0xff) + (h [i] & 0xff) + carry;
+            sum [i] = (byte) s;
+            carry = s >>> 8;
+        }
+    }
+
+    /**
+     * Sets <code>sum</code> to <code>sum - h</code>, modulo 2^(8 *
+     * <code>sum.length</code>).
+     */
+    public static void subtract (byte [] sum, byte [] h) {
+        int borrow = 0;
+        for (int i = sum.length - 1; i >= 0; --i) {
+            int d = (sum [i] & 0xff) - (h [i] & 0xff) - borrow;
+            sum [i] = (byte) d;
+            borrow = (d < 0) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Adds a leaf with timestamp <code>time_usec</code> and hash
+     * <code>leaf_hash</code> to the valid nodes on its path, or removes one
+     * from them.  Invalid nodes are skipped; their hashes will be computed
+     * when they are filled in.  A node left with too many leaves and no
+     * children is invalidated, so that <code>fill_holes</code> will split
+     * it; one left with half as many leaves as it can hold without
+     * children loses them, so that a leaf added and removed over and over
+     * doesn't split and join the same node each time.
+     */
+    public void update (long time_usec, byte [] leaf_hash, boolean added) {
+        Node node = root ();
+        if ((time_usec < node.range_low ())
+            || (time_usec >= node.range_high ()))
+            return;
+        while (node != null) {
+            Node child = node.child (time_usec);
+            if (node.hash != null) {
+                // Hashes are handed out by hash (), and may sit in messages
+                // waiting to be sent, so replace them rather than changing
+                // them in place.
+                byte [] hash = (byte []) node.hash.clone ();
+                if (added) {
+                    add (hash, leaf_hash);
+                    node.hash = hash;
+                    ++node.leaves_below;
+                    if ((child == null) && (node.leaves_below > node.max ())) {
+                        rescan (node);
+                        return;
+                    }
+                }
+                else if (node.leaves_below == 0) {
+                    // We never counted this leaf, so the node is wrong.
+                    logger.warn ("removed a leaf from empty " + node);
+                    rescan (node);
+                    return;
+                }
+                else {
+                    subtract (hash, leaf_hash);
+                    node.hash = hash;
+                    --node.leaves_below;
+                    if ((child != null)
+                        && (node.leaves_below <= node.max () / 2)) {
+                        node.remove_children ();
+                        return;
+                    }
+                }
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Throws away <code>node</code>'s hash and children, so that the next
+     * call to <code>fill_holes</code> will scan the database for them
+     * again.
+     */
+    public void rescan (Node node) {
+        node.remove_children ();
+        root ().invalidate_path (node.range_low ());
+    }
+
+    /**
+     * Writes every node in this tree, which must be valid from the root
+     * down, to <code>out</code>.
+     */
+    public void write (DataOutputStream out) throws IOException {
+        if (! root ().valid ())
+            throw new IllegalStateException ("not valid");
+        int count = 0;
+        for (int i = 0; i < nodes.length; ++i)
+            count += nodes [i].size ();
+        out.writeInt (expansion);
+        out.writeInt (count);
+        for (int i = 0; i < nodes.length; ++i) {
+            for (Iterator j = nodes [i].values ().iterator (); j.hasNext (); ) {
+                Node n = (Node) j.next ();
+                out.writeInt (n.level);
+                out.writeLong (n.low);
+                out.writeLong (n.leaves_below);
+                out.write (n.hash ());
+            }
+        }
+    }
+
+    /**
+     * Reads a tree written by <code>write</code>, which will use the
+     * algorithm of <code>md</code> to compute digests.
+     */
+    public static MerkleTree read (DataInputStream in, MessageDigest md)
+        throws IOException {
+        MerkleTree result = new MerkleTree (in.readInt (), md);
+        int count = in.readInt ();
+        int len = result.empty_hash ().length;
+        while (count-- > 0) {
+            int level = in.readInt ();
+            long low = in.readLong ();
+            long leaves_below = in.readLong ();
+            if ((level < 0) || (level >= result.nodes.length)
+                || (leaves_below < 0))
+                throw new IOException ("bad node at level " + level);
+            Node n = result.new Node (level, low);
+            n.leaves_below = leaves_below;
+            n.hash = new byte [len];
+            in.readFully (n.hash);
+            result.nodes [level].put (new Long (low), n);
+        }
+        if (! result.root ().valid ())
+            throw new IOException ("no root");
+        return result;
+    }
+
     protected MessageDigest new_digest () {
         try {
             return (MessageDigest) dont_use.clone ();
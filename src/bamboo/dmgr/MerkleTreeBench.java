@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.dmgr;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import bamboo.db.StorageManager;
+import bamboo.util.GuidTools;
+
+/**
+ * A microbenchmark for keeping a MerkleTree up to date.  For each of the
+ * given tuple counts, it fills a sorted set, standing in for the by_time
+ * index of the database, with that many keys whose timestamps are spread
+ * over the last week, and prints:
+ *
+ * <ul>
+ * <li>the time to build a tree from scratch, as a node does for each range
+ * it shares with its neighbors after it restarts, and the number of keys
+ * the scans read to do so;
+ * <li>the time to add a key and remove another with
+ * <code>MerkleTree.update</code>;
+ * <li>the time to do the same the way DataManager used to, by invalidating
+ * the path to each key and scanning the database for the leaf again;
+ * <li>the time to write the tree out and read it back in, as DataManager
+ * does instead of building it when it restarts.
+ * </ul>
+ *
+ * <p>Usage: <code>MerkleTreeBench expansion tuple_count...</code>
+ *
+ * @version $Id$
+ */
+public class MerkleTreeBench {
+
+    protected static final long WEEK_USEC = 7L * 24 * 3600 * 1000 * 1000;
+
+    protected static BigInteger max_guid =
+        BigInteger.valueOf (2).pow (160).subtract (BigInteger.ONE);
+    protected static byte [] min_hash = new byte [20];
+
+    protected static long keys_read;
+
+    protected static StorageManager.Key bound (long time_usec) {
+        return new StorageManager.Key (time_usec, 0, BigInteger.ZERO,
+                min_hash, min_hash, false, StorageManager.ZERO_CLIENT);
+    }
+
+    protected static byte [] leaf_hash (MerkleTree tree, StorageManager.Key k) {
+        byte [] bytes = new byte [StorageManager.Key.SIZE];
+        k.to_byte_buffer (ByteBuffer.wrap (bytes, 0, bytes.length));
+        return tree.leaf_hash (bytes);
+    }
+
+    /**
+     * Fills in <code>tree</code> the way DataManager.TreeState does, by
+     * scanning <code>db</code> and stopping each scan when it has read
+     * more keys than the node it is for can hold.
+     */
+    protected static void fill_holes (MerkleTree tree, SortedSet db) {
+        MerkleTree.FillHolesState state = null;
+        while ((state = tree.root ().fill_holes (state)) != null) {
+            SortedSet range = db.subSet (bound (state.range_low),
+                                         bound (state.range_high));
+            byte [] sum = tree.empty_hash ();
+            long count = 0;
+            for (Iterator i = range.iterator (); i.hasNext (); ) {
+                StorageManager.Key k = (StorageManager.Key) i.next ();
+                ++keys_read;
+                if (++count > state.max_leaves_below)
+                    break;
+                MerkleTree.add (sum, leaf_hash (tree, k));
+            }
+            state.leaves_below = count;
+            state.digest = (count <= state.max_leaves_below) ? sum : null;
+        }
+    }
+
+    protected static StorageManager.Key random_key (Random rand, long now_usec) {
+        byte [] data_hash = new byte [20];
+        rand.nextBytes (data_hash);
+        long time_usec = now_usec - (rand.nextLong () & Long.MAX_VALUE)
+            % WEEK_USEC;
+        return new StorageManager.Key (time_usec, 3600,
+                GuidTools.random_guid (rand), min_hash, data_hash, true,
+                StorageManager.ZERO_CLIENT);
+    }
+
+    public static void run (int expansion, int tuple_count, MessageDigest md)
+        throws Exception {
+
+        Random rand = new Random (1);
+        long now_usec = System.currentTimeMillis () * 1000;
+        SortedSet db = new TreeSet ();
+        while (db.size () < tuple_count)
+            db.add (random_key (rand, now_usec));
+
+        // Building from scratch.
+        keys_read = 0;
+        long start_ms = System.currentTimeMillis ();
+        MerkleTree tree = new MerkleTree (expansion, md);
+        fill_holes (tree, db);
+        long build_ms = System.currentTimeMillis () - start_ms;
+        long build_reads = keys_read;
+
+        // Incremental updates; each step adds one key and removes another,
+        // so the size of the tree stays the same.
+        int ops = 20000;
+        StorageManager.Key [] added = new StorageManager.Key [ops];
+        for (int i = 0; i < ops; ++i)
+            added [i] = random_key (rand, now_usec);
+        start_ms = System.currentTimeMillis ();
+        for (int i = 0; i < ops; ++i) {
+            StorageManager.Key k = added [i];
+            db.add (k);
+            tree.update (k.time_usec, leaf_hash (tree, k), true);
+            k = added [(i + ops / 2) % ops];
+            if (db.remove (k))
+                tree.update (k.time_usec, leaf_hash (tree, k), false);
+            fill_holes (tree, db);
+        }
+        double update_us = (System.currentTimeMillis () - start_ms)
+            * 1000.0 / ops;
+        for (int i = 0; i < ops; ++i) {
+            if (db.remove (added [i]))
+                tree.update (added [i].time_usec, leaf_hash (tree, added [i]),
+                             false);
+        }
+        fill_holes (tree, db);
+
+        // The old way: invalidate the path to each key and rescan.
+        keys_read = 0;
+        start_ms = System.currentTimeMillis ();
+        for (int i = 0; i < ops; ++i) {
+            StorageManager.Key k = added [i];
+            db.add (k);
+            tree.root ().invalidate_path (k.time_usec);
+            k = added [(i + ops / 2) % ops];
+            if (db.remove (k))
+                tree.root ().invalidate_path (k.time_usec);
+            fill_holes (tree, db);
+        }
+        double rescan_us = (System.currentTimeMillis () - start_ms)
+            * 1000.0 / ops;
+        long rescan_reads = keys_read;
+
+        // Snapshots.
+        start_ms = System.currentTimeMillis ();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        DataOutputStream out = new DataOutputStream (bytes);
+        tree.write (out);
+        out.flush ();
+        long write_ms = System.currentTimeMillis () - start_ms;
+        start_ms = System.currentTimeMillis ();
+        MerkleTree copy = MerkleTree.read (new DataInputStream (
+                    new ByteArrayInputStream (bytes.toByteArray ())), md);
+        long read_ms = System.currentTimeMillis () - start_ms;
+        if (! java.util.Arrays.equals (copy.root ().hash (),
+                                       tree.root ().hash ()))
+            throw new IllegalStateException ("snapshot mismatch");
+
+        System.out.println (tuple_count + " tuples: build " + build_ms
+                + " ms (" + build_reads + " keys read), update "
+                + Math.round (update_us * 10) / 10.0 + " us/op, rescan "
+                + Math.round (rescan_us * 10) / 10.0 + " us/op ("
+                + (rescan_reads / ops) + " keys read/op), snapshot "
+                + bytes.size () + " bytes, write " + write_ms + " ms, read "
+                + read_ms + " ms");
+    }
+
+    public static void main (String [] args) throws Exception {
+        int expansion = Integer.parseInt (args [0]);
+        Logger.getLogger (MerkleTree.class).setLevel (Level.WARN);
+        MessageDigest md = MessageDigest.getInstance ("SHA");
+
+        // Warm up the JIT first.
+        run (expansion, 10000, md);
+        for (int i = 1; i < args.length; ++i)
+            run (expansion, Integer.parseInt (args [i]), md);
+    }
+}
@@ -6,8 +6,13 @@
  */
 
 package bamboo.dmgr;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.security.MessageDigest;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -18,7 +23,9 @@ import bamboo.db.StorageManager;
 import bamboo.util.GuidTools;
 
 /**
- * A test harness for bamboo.dmgr.MerkleTree.
+ * A test harness for bamboo.dmgr.MerkleTree.  Keys are added to and
+ * removed from a tree with <code>update</code>, and after each change its
+ * root is checked against that of a tree built from scratch.
  *
  * @author Sean C. Rhea
  * @version $Id: MerkleTreeTest.java,v 1.10 2005/05/12 00:08:19 srhea Exp $
@@ -41,8 +48,8 @@ public class MerkleTreeTest {
                     root.range_low (), 0, min_guid, min_hash, min_hash, false,
                     StorageManager.ZERO_CLIENT);
             StorageManager.Key high = new StorageManager.Key (
-                    root.range_high (), 0, max_guid, max_hash, max_hash, true,
-                    StorageManager.MAX_CLIENT);
+                    root.range_high (), 0, min_guid, min_hash, min_hash, false,
+                    StorageManager.ZERO_CLIENT);
 
             if (keys != null) {
                 SortedSet under_me = keys.headSet (high).tailSet (low);
@@ -61,8 +68,7 @@ public class MerkleTreeTest {
         MerkleTree.FillHolesState state = null;
         while (true) {
 
-            state = tree.root ().fill_holes (
-                    state, System.currentTimeMillis ());
+            state = tree.root ().fill_holes (state);
             if (state == null)
                 break;
 
@@ -70,20 +76,18 @@ public class MerkleTreeTest {
                     state.range_low, 0, min_guid, min_hash, min_hash, false,
                     StorageManager.ZERO_CLIENT);
             StorageManager.Key high = new StorageManager.Key (
-                    state.range_high, 0, max_guid, max_hash, max_hash, true,
-                    StorageManager.MAX_CLIENT);
+                    state.range_high, 0, min_guid, min_hash, min_hash, false,
+                    StorageManager.ZERO_CLIENT);
 
             SortedSet under_me = keys.headSet (high).tailSet (low);
 
             state.leaves_below = under_me.size ();
             if (state.leaves_below <= state.max_leaves_below) {
+                state.digest = tree.empty_hash ();
                 for (Iterator i = under_me.iterator (); i.hasNext (); ) {
                     StorageManager.Key k = (StorageManager.Key) i.next ();
-                    byte [] bytes = new byte [StorageManager.Key.SIZE];
-                    k.to_byte_buffer (ByteBuffer.wrap (bytes, 0, bytes.length));
-                    md.update (bytes);
+                    MerkleTree.add (state.digest, leaf_hash (tree, k));
                 }
-                state.digest = md.digest ();
             }
             else {
                 state.digest = null;
@@ -91,6 +95,28 @@ public class MerkleTreeTest {
         }
     }
 
+    public static byte [] leaf_hash (MerkleTree tree, StorageManager.Key k) {
+        byte [] bytes = new byte [StorageManager.Key.SIZE];
+        k.to_byte_buffer (ByteBuffer.wrap (bytes, 0, bytes.length));
+        return tree.leaf_hash (bytes);
+    }
+
+    /**
+     * Brings <code>tree</code> up to date, and checks that its root matches
+     * that of a tree built from scratch over <code>keys</code>.
+     */
+    public static void check (MerkleTree tree, SortedSet keys, int expansion) {
+        fill_holes (tree, keys);
+        MerkleTree fresh = new MerkleTree (expansion, md);
+        fill_holes (fresh, keys);
+        if ((! Arrays.equals (tree.root ().hash (), fresh.root ().hash ()))
+            || (tree.root ().leaves_below () != keys.size ())) {
+            System.out.println ("Mismatch with rebuilt tree:");
+            draw_tree (fresh.root (), keys, "  ");
+            System.exit (1);
+        }
+    }
+
     public static BigInteger min_guid = BigInteger.valueOf (0);
     public static BigInteger max_guid;
     public static byte [] min_hash;
@@ -140,9 +166,9 @@ public class MerkleTreeTest {
                     StorageManager.ZERO_CLIENT);
             System.out.println ("adding key[" + i + "]=" + k);
 
-            keys.add (k);
-            tree.root ().invalidate_path (k.time_usec);
-            fill_holes (tree, keys);
+            if (keys.add (k))
+                tree.update (k.time_usec, leaf_hash (tree, k), true);
+            check (tree, keys, expansion);
 
             System.out.println ("After add " + k);
             draw_tree (tree.root (), keys, "  ");
@@ -159,8 +185,8 @@ public class MerkleTreeTest {
             System.out.println ("removing key[" + i + "]=" + k);
 
             j.remove ();
-            tree.root ().invalidate_path (k.time_usec);
-            fill_holes (tree, keys);
+            tree.update (k.time_usec, leaf_hash (tree, k), false);
+            check (tree, keys, expansion);
 
             System.out.println ("After remove " + k);
             draw_tree (tree.root (), keys, "  ");
@@ -168,6 +194,13 @@ public class MerkleTreeTest {
 
         System.out.println ("Final tree:");
         draw_tree (tree.root (), keys, "  ");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+        tree.write (new DataOutputStream (bytes));
+        MerkleTree copy = MerkleTree.read (new DataInputStream (
+                    new ByteArrayInputStream (bytes.toByteArray ())), md);
+        check (copy, keys, expansion);
+        System.out.println ("Read back " + bytes.size () + " bytes");
     }
 
 }
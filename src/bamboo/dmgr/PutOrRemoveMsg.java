@@ -38,6 +38,16 @@ public class PutOrRemoveMsg extends NetworkMessage {
     public byte [] value_hash;
     public byte [] secret_hash;
 
+    /**
+     * Whether the value is an erasure-coded fragment of a put rather than
+     * the whole value, in which case value_hash is the hash of the whole
+     * value, and is sent along with it; see DataManager.
+     */
+    public boolean fragment;
+
+    protected static final long SECRET_HASH_FLAG = 0x8000000000000000L;
+    protected static final long FRAGMENT_FLAG = 0x4000000000000000L;
+
     public PutOrRemoveMsg (NodeId dest, long t, int tt, BigInteger g,
 			   ByteBuffer v, boolean p, InetAddress c, long s,
                            byte [] vh, byte [] sh) {
@@ -67,24 +77,27 @@ public class PutOrRemoveMsg extends NetworkMessage {
             assert false;
         }
 	seq = buffer.nextLong ();
-        if (! put) {
+        fragment = (time_usec & FRAGMENT_FLAG) != 0;
+        if ((! put) || fragment) {
             value_hash = new byte [20];
             buffer.nextBytes (value_hash, 0, 20);
         }
-        if ((time_usec & 0x8000000000000000L) != 0) {
+        if ((time_usec & SECRET_HASH_FLAG) != 0) {
             secret_hash = new byte[20];
             buffer.nextBytes(secret_hash, 0, 20);
-            time_usec &= 0x7fffffffffffffffL;
         }
+        time_usec &= ~(SECRET_HASH_FLAG | FRAGMENT_FLAG);
     }
 
     public void serialize (OutputBuffer buffer) {
 	super.serialize (buffer);
-        if ((secret_hash == null)
-            || java.util.Arrays.equals(secret_hash, ZERO_HASH))
-            buffer.add (time_usec);
-        else 
-            buffer.add (0x8000000000000000L | time_usec);
+        long t = time_usec;
+        if ((secret_hash != null)
+            && !java.util.Arrays.equals(secret_hash, ZERO_HASH))
+            t |= SECRET_HASH_FLAG;
+        if (fragment)
+            t |= FRAGMENT_FLAG;
+        buffer.add (t);
 	buffer.add (ttl_sec);
         buffer.add (guid);
         buffer.add (value.limit ());
@@ -94,7 +107,7 @@ public class PutOrRemoveMsg extends NetworkMessage {
         buffer.add (client_bytes.length);
         buffer.add (client_bytes, 0, client_bytes.length);
         buffer.add (seq);
-        if (! put) 
+        if ((! put) || fragment) 
             buffer.add (value_hash, 0, 20);
         if ((secret_hash != null)
             && !java.util.Arrays.equals(secret_hash, ZERO_HASH))
@@ -111,6 +124,8 @@ public class PutOrRemoveMsg extends NetworkMessage {
         result.client_id = client_id;
         result.seq = seq;
         result.value_hash = value_hash;
+        result.secret_hash = secret_hash;
+        result.fragment = fragment;
         return result;
     }
 
@@ -124,6 +139,8 @@ public class PutOrRemoveMsg extends NetworkMessage {
 	result.append (GuidTools.guid_to_string (guid));
 	result.append (" value=<>");
         result.append (" put="); result.append (put);
+        if (fragment)
+            result.append (" fragment");
         result.append (" client_id=");
         result.append (client_id.getHostAddress ());
 	result.append (" seq="); result.append (seq);
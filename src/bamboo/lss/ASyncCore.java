@@ -33,9 +33,9 @@ import bamboo.util.GetTimeOfDayCC;
  * principal thread.  This thread will execute the asyncMain function,
  * and the various callbacks will be called from it.  If you want to run
  * another thread, you can pass events to it through any synchronized
- * queue.  To pass events back to the main thread, call registerTimer
- * with a delay of 0.  Both registerTimer and cancelTimer are properly
- * synchronized for this purpose.
+ * queue.  To pass events back to the main thread, call post, or
+ * registerTimer with a delay of 0.  All three are properly synchronized
+ * for this purpose.
  *
  * @author Sean C. Rhea
  * @version $Id: ASyncCore.java,v 1.30 2005/04/27 20:51:10 srhea Exp $
@@ -74,6 +74,16 @@ public abstract class ASyncCore {
 
     public abstract void cancelTimer (Object token);
 
+    /**
+     * Run <code>cb</code> on the main thread as soon as it can get to it,
+     * after the callbacks posted before it.  This function is safe to call
+     * from any thread, and is meant for handing work from one thread to
+     * another; unlike a timer, it cannot be cancelled.
+     */
+    public void post (Runnable cb) {
+        registerTimer (0, cb);
+    }
+
     //////////////////////////////////////////////////////////////////
     //                         Older Interface                      //
     //////////////////////////////////////////////////////////////////
@@ -12,8 +12,8 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.ClosedChannelException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Logger;
 import org.apache.log4j.Level;
@@ -22,7 +22,6 @@ import org.apache.log4j.PropertyConfigurator;
 import org.apache.log4j.helpers.NullEnumeration;
 import static bamboo.util.Curry.*;
 import static java.nio.channels.SelectionKey.*;
-import bamboo.util.PriorityQueue;
 import bamboo.util.GetTimeOfDayCC;
 
 /**
@@ -33,9 +32,26 @@ import bamboo.util.GetTimeOfDayCC;
  * principal thread.  This thread will execute the main function, and the
  * various callbacks (SelectableCBs and TimerCBs) will be called from it.  If
  * you want to run another thread, you can pass events to it through any
- * synchronized queue.  To pass events back to the main thread, call
- * register_timer with a time of 0.  Both register_timer and cancel_timer are
- * properly synchronized for this purpose.
+ * synchronized queue.  To pass events back to the main thread, call post,
+ * or register_timer with a time of 0.  All three are properly synchronized
+ * for this purpose.
+ *
+ * <p>Timers are kept in a {@link TimerWheel} that only the main thread
+ * touches, so registering and cancelling them there takes no locks.
+ * Other threads push the timers they register onto a lock-free stack,
+ * which the main thread empties into the wheel on each pass through the
+ * loop; when they cancel a timer, they just mark it, and the main thread
+ * drops it when it comes due.
+ *
+ * <p>Callbacks handed to post go onto a second lock-free stack, which the
+ * main thread empties each time around the loop, before it selects; they
+ * never touch the wheel.  A process may run several of these loops, each
+ * on its own thread (see DustDevil), and this is how they pass work to
+ * each other.
+ *
+ * <p>The loop keeps track of how long it spends waiting in select, so
+ * that how busy it is can be read from other threads with
+ * <code>busyMillis</code> and <code>idleMillis</code>.
  *
  * @author Sean C. Rhea
  * @version $Id: ASyncCoreImpl.java,v 1.2 2005/06/04 18:08:29 srhea Exp $
@@ -139,30 +155,37 @@ public class ASyncCoreImpl extends ASyncCore {
         return register_timer_impl(time_ms, cb, null);
     }
 
+    public Object register_timer (
+	    long time_ms, TimerCB cb, Object user_data) {
+        return register_timer_impl(time_ms, cb, user_data);
+    }
+
     private Object register_timer_impl (
 	    long time_ms, Object cb, Object user_data) {
 
 	if (logger.isDebugEnabled ()) logger.debug ("ASyncCore.register_timer");
 	TimerInfo result = new TimerInfo (cb, user_data);
+        result.expire_ms = time_ms + nowMillis();
 
-        boolean wakeup = false;
-        synchronized (timers) {
-            long now_ms = nowMillis();
-            long this_timer = time_ms + now_ms;
-            if (timers.isEmpty ())
-                wakeup = true;
-            else {
-                long first_timer = timers.getFirstPriority ().longValue ();
-                if (this_timer < first_timer)
-                    wakeup = true;
+        if (Thread.currentThread () == main_thread) {
+            // The main loop will see this timer before it next selects.
+            timers.add (result);
+        }
+        else {
+            TimerWheel.Timer head;
+            do {
+                head = new_timers.get ();
+                result.next = head;
             }
+            while (! new_timers.compareAndSet (head, result));
 
-            timers.add (result, new Long(this_timer));
+            // If the stack was empty, the main thread may be blocked in
+            // select; otherwise, whoever pushed the first timer on it
+            // already woke it up, and it hasn't emptied the stack since.
+            if (head == null)
+                selector.wakeup ();
         }
 
-        if (wakeup)
-            selector.wakeup ();
-
 	if (logger.isDebugEnabled ()) logger.debug ("set timer time_ms=" +
 		time_ms + " ti=" + result);
 	return result;
@@ -171,8 +194,102 @@ public class ASyncCoreImpl extends ASyncCore {
     public void cancelTimer (Object token) {
 	if (! (token instanceof TimerInfo))
 	    throw new IllegalArgumentException ();
-        synchronized (timers) {
-            cancelled_timers.add ((TimerInfo) token);
+        TimerInfo ti = (TimerInfo) token;
+        ti.cancelled = true;
+        if (Thread.currentThread () == main_thread)
+            timers.remove (ti);
+    }
+
+    public void post (Runnable cb) {
+        Posted p = new Posted (cb);
+        Posted head;
+        do {
+            head = posted.get ();
+            p.next = head;
+        }
+        while (! posted.compareAndSet (head, p));
+
+        // As with new_timers, only the first callback onto an empty stack
+        // needs to wake the main thread; and the main thread itself
+        // checks the stack before it selects.
+        if ((head == null) && (Thread.currentThread () != main_thread))
+            selector.wakeup ();
+    }
+
+    /**
+     * Runs the callbacks other threads have posted, in the order they were
+     * posted.  Those they post in turn wait for the next pass.
+     */
+    protected void run_posted () {
+        Posted p = posted.getAndSet (null);
+        Posted reversed = null;
+        while (p != null) {
+            Posted next = p.next;
+            p.next = reversed;
+            reversed = p;
+            p = next;
+        }
+        while (reversed != null) {
+            Runnable cb = reversed.cb;
+            reversed = reversed.next;
+            ++posts_run;
+            cb.run ();
+        }
+    }
+
+    /**
+     * The time since the loop started that it has spent running callbacks,
+     * rather than waiting in select.
+     */
+    public long busyMillis () {
+        if (start_ns == 0)
+            return 0;
+        return (System.nanoTime () - start_ns - idle_ns) / 1000000;
+    }
+
+    /**
+     * The time since the loop started that it has spent waiting in select.
+     */
+    public long idleMillis () {
+        return idle_ns / 1000000;
+    }
+
+    /**
+     * The number of times the loop has been around.
+     */
+    public long passes () { return passes; }
+
+    /**
+     * The number of callbacks run through post.
+     */
+    public long postsRun () { return posts_run; }
+
+    public String toString () {
+        Thread t = main_thread;
+        return "(ASyncCoreImpl thread=" + ((t == null) ? null : t.getName ())
+            + " busy_ms=" + busyMillis () + " idle_ms=" + idleMillis ()
+            + " passes=" + passes + " posts_run=" + posts_run + ")";
+    }
+
+    /**
+     * Moves the timers other threads have registered into the wheel, in
+     * the order they were registered.
+     */
+    protected void add_new_timers () {
+        TimerWheel.Timer t = new_timers.getAndSet (null);
+        TimerWheel.Timer reversed = null;
+        while (t != null) {
+            TimerWheel.Timer next = t.next;
+            t.next = reversed;
+            reversed = t;
+            t = next;
+        }
+        while (reversed != null) {
+            TimerWheel.Timer next = reversed.next;
+            reversed.next = null;
+            if (! reversed.cancelled)
+                timers.add (reversed);
+            reversed = next;
         }
     }
 
@@ -228,25 +345,14 @@ public class ASyncCoreImpl extends ASyncCore {
             (new Watchdog()).start();
         }
 
-	while (true) {
+        main_thread = Thread.currentThread ();
+        start_ns = System.nanoTime ();
 
-	    // Get rid of any cancelled timers.
+	while (true) {
 
-            synchronized (timers) {
-                while (! timers.isEmpty ()) {
-                    TimerInfo ti = timers.getFirst ();
-                    if (cancelled_timers.remove (ti)) {
-                        if (logger.isDebugEnabled ())
-                            logger.debug ("removing timer " + ti);
-                        timers.removeFirst ();
-                    }
-                    else {
-                        if (logger.isDebugEnabled ())
-                            logger.debug("finished removing timers");
-                        break;
-                    }
-                }
-            }
+            ++passes;
+            run_posted ();
+            add_new_timers ();
 
 	    // Select until the next timer, or indefinitely.
 
@@ -255,23 +361,18 @@ public class ASyncCoreImpl extends ASyncCore {
 	    // if (logger.isDebugEnabled ()) logger.debug ("timers=" + timers);
 
 	    try {
-                // I can't hold a lock on timers while selecting, or no other
-                // thread will be able to wake me up in register_timer.
-                // Instead, I just get the head of the timers queue and then
-                // call select.  If someone calls register_timer between when
-                // I check the head of the queue and when I call select, and
-                // that new timer preceeds the previous head of the queue,
-                // they'll call wakeup, which will cause the next call to
-                // select to wake up immediately, so no deadlock is possible
-                // here.
-
-                long time_ms = -1;
-                synchronized (timers) {
-                    if (! timers.isEmpty ())
-                        time_ms = timers.getFirstPriority ().longValue ();
-                }
+                // Another thread that registers a timer while we're
+                // selecting calls wakeup, so the new timer will be seen on
+                // the next pass through the loop.
+
+                long time_ms = timers.next_expiry ();
+                long select_start_ns = System.nanoTime ();
 
-                if (time_ms == -1) {
+                if (posted.get () != null) {
+                    // Callbacks posted while we were running others.
+                    selector.selectNow ();
+                }
+                else if (time_ms == -1) {
                     // block indefinitely
                     if (logger.isDebugEnabled ())
                         logger.debug ("calling select ()");
@@ -292,6 +393,7 @@ public class ASyncCoreImpl extends ASyncCore {
                         selector.select (time_ms - now_ms);
                     }
                 }
+                idle_ns += System.nanoTime () - select_start_ns;
             }
 	    catch (IOException e) {
                 if (! e.getMessage ().equals ("Interrupted system call")) {
@@ -332,25 +434,21 @@ public class ASyncCoreImpl extends ASyncCore {
 
 	    // Process the ready timers.
 
-	    while (true) {
-		TimerInfo info = null;
-                synchronized (timers) {
-                    if (timers.isEmpty ())
-                        break;
-                    long time_ms = timers.getFirstPriority ().longValue ();
-                    if (now_ms < time_ms)
-                        break;
-                    info = timers.removeFirst ();
-                    if (cancelled_timers.remove(info)) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("Skipping cancelled timer " + info);
-                        }
-                        continue;
+            add_new_timers ();
+            TimerWheel.Timer t = timers.expire (nowMillis());
+	    while (t != null) {
+                TimerInfo info = (TimerInfo) t;
+                t = t.next;
+                info.next = info.prev = null;
+                // A callback run earlier in this list may have cancelled it.
+                if (info.cancelled) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Skipping cancelled timer " + info);
                     }
+                    continue;
                 }
                 if (logger.isDebugEnabled ())
                     logger.debug ("calling timer " + info);
-                // Don't hold the lock during the callback.
                 if (info.cb instanceof TimerCB) 
                     ((TimerCB) info.cb).timer_cb (info.user_data);
                 else
@@ -362,9 +460,21 @@ public class ASyncCoreImpl extends ASyncCore {
     protected Selector selector;
     protected HashMap<SelectableChannel,SelectableInfo> selectable_info 
         = new HashMap<SelectableChannel,SelectableInfo> ();
-    protected PriorityQueue<TimerInfo,Long> timers = 
-        new PriorityQueue<TimerInfo,Long>(200);
-    protected HashSet<TimerInfo> cancelled_timers = new HashSet<TimerInfo> ();
+    protected TimerWheel timers = new TimerWheel (nowMillis ());
+    protected AtomicReference<TimerWheel.Timer> new_timers =
+        new AtomicReference<TimerWheel.Timer> ();
+    protected AtomicReference<Posted> posted =
+        new AtomicReference<Posted> ();
+    protected volatile Thread main_thread;
+
+    // Written only by the main thread, and read by others.
+    protected volatile long start_ns, idle_ns, passes, posts_run;
+
+    protected static class Posted {
+        public Runnable cb;
+        public Posted next;
+        public Posted (Runnable c) { cb = c; }
+    }
 
     protected static class SelectableInfo {
 	public SelectableCB cb;
@@ -376,7 +486,7 @@ public class ASyncCoreImpl extends ASyncCore {
 	}
     }
 
-    protected static class TimerInfo {
+    protected static class TimerInfo extends TimerWheel.Timer {
 	public Object cb;
 	public Object user_data;
 	public TimerInfo (Object c, Object u) {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.lss;
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of ByteBuffers in power-of-two size classes.  Buffers of more
+ * than <code>max_size</code> bytes are allocated on demand and never
+ * pooled; at most <code>max_free</code> free buffers are kept in each
+ * class.  Allocating a direct buffer is slow, and the JVM frees the
+ * memory behind it only after a full collection, so code that wants
+ * direct buffers should get them here and give them back when done.
+ *
+ * <p>A pool is confined to one thread: the first thread that allocates
+ * from it.  It does no locking, and with assertions enabled it checks
+ * that no other thread uses it.
+ *
+ * @version $Id$
+ */
+public class BufferPool {
+
+    protected boolean direct;
+    protected int min_shift, max_shift, max_free;
+    protected ByteBuffer [][] free;
+    protected int [] free_count;
+    protected Thread owner;
+
+    protected long hits, misses, oversize, discards, allocated_bytes;
+    protected int outstanding;
+
+    /**
+     * Creates a pool whose smallest size class holds <code>min_size</code>
+     * bytes, rounded up to a power of two, and whose largest holds
+     * <code>max_size</code> bytes, likewise.
+     */
+    public BufferPool (int min_size, int max_size, int max_free,
+                       boolean direct) {
+        if ((min_size < 1) || (max_size < min_size) || (max_free < 0)) {
+            throw new IllegalArgumentException ("min_size=" + min_size
+                    + " max_size=" + max_size + " max_free=" + max_free);
+        }
+        min_shift = shift_for (min_size);
+        max_shift = shift_for (max_size);
+        this.max_free = max_free;
+        this.direct = direct;
+        free = new ByteBuffer [max_shift - min_shift + 1][max_free];
+        free_count = new int [free.length];
+    }
+
+    /**
+     * Returns the log base two of the smallest power of two that is at
+     * least <code>size</code>.
+     */
+    protected static int shift_for (int size) {
+        int shift = 0;
+        while ((1 << shift) < size)
+            ++shift;
+        return shift;
+    }
+
+    protected final boolean check_owner () {
+        if (owner == null)
+            owner = Thread.currentThread ();
+        return owner == Thread.currentThread ();
+    }
+
+    /**
+     * Returns a cleared buffer with room for at least <code>size</code>
+     * bytes, and its limit set to <code>size</code>.
+     */
+    public ByteBuffer alloc (int size) {
+        assert check_owner () : "pool used by " + Thread.currentThread ()
+            + ", owned by " + owner;
+        ++outstanding;
+        int shift = shift_for (size);
+        if (shift > max_shift) {
+            ++oversize;
+            allocated_bytes += size;
+            return allocate (size);
+        }
+        if (shift < min_shift)
+            shift = min_shift;
+        int c = shift - min_shift;
+        ByteBuffer result = null;
+        if (free_count [c] > 0) {
+            ++hits;
+            result = free [c][--free_count [c]];
+            free [c][free_count [c]] = null;
+            result.clear ();
+        }
+        else {
+            ++misses;
+            allocated_bytes += 1 << shift;
+            result = allocate (1 << shift);
+        }
+        result.limit (size);
+        return result;
+    }
+
+    protected ByteBuffer allocate (int size) {
+        return direct ? ByteBuffer.allocateDirect (size)
+                      : ByteBuffer.allocate (size);
+    }
+
+    /**
+     * Returns a buffer obtained from alloc to the pool.  The caller must
+     * not use it, or any view of it, afterwards.
+     */
+    public void free (ByteBuffer bb) {
+        assert check_owner () : "pool used by " + Thread.currentThread ()
+            + ", owned by " + owner;
+        --outstanding;
+        int cap = bb.capacity ();
+        int shift = shift_for (cap);
+        if ((cap != (1 << shift)) || (shift < min_shift)
+            || (shift > max_shift) || (bb.isDirect () != direct)) {
+            ++discards;
+            return;
+        }
+        int c = shift - min_shift;
+        if (free_count [c] == max_free) {
+            ++discards;
+            return;
+        }
+        free [c][free_count [c]++] = bb;
+    }
+
+    /**
+     * The number of allocations served from a free buffer.
+     */
+    public long hits () { return hits; }
+
+    /**
+     * The number of allocations that had to create a new buffer, including
+     * those too large to pool.
+     */
+    public long misses () { return misses + oversize; }
+
+    /**
+     * The total bytes of the buffers created by this pool.
+     */
+    public long allocated_bytes () { return allocated_bytes; }
+
+    /**
+     * The number of buffers allocated and not yet freed.
+     */
+    public int outstanding () { return outstanding; }
+
+    public String toString () {
+        int pooled = 0;
+        for (int c = 0; c < free_count.length; ++c)
+            pooled += free_count [c];
+        return "(BufferPool direct=" + direct + " hits=" + hits
+            + " misses=" + misses + " oversize=" + oversize
+            + " discards=" + discards + " allocated_bytes=" + allocated_bytes
+            + " outstanding=" + outstanding + " pooled=" + pooled + ")";
+    }
+}
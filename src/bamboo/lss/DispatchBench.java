@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.lss;
+import ostore.dispatch.Classifier;
+import ostore.dispatch.Filter;
+import ostore.network.NetworkMessage;
+import ostore.util.NodeId;
+import seda.sandStorm.api.EnqueuePredicateIF;
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.api.SinkIF;
+
+/**
+ * A microbenchmark for dispatching events.  It subscribes
+ * <code>stages</code> sinks to <code>types</code> event types each, half
+ * of them network messages split between inbound and outbound
+ * subscriptions as StandardStage makes them, once with ostore's
+ * Classifier and once with a DispatchTable, and prints the time each
+ * takes to dispatch a mix of those events.  It checks that both deliver
+ * every event to the same sinks.
+ *
+ * <p>Usage: <code>DispatchBench [stages [types [events]]]</code>
+ *
+ * @version $Id$
+ */
+public class DispatchBench {
+
+    public static class Event implements QueueElementIF {}
+    public static class Event0 extends Event {}
+    public static class Event1 extends Event {}
+    public static class Event2 extends Event {}
+    public static class Event3 extends Event {}
+    public static class Event4 extends Event {}
+    public static class Event5 extends Event {}
+    public static class Event6 extends Event {}
+    public static class Event7 extends Event {}
+
+    public static class Msg extends NetworkMessage {
+        public Msg () { super (null, false); }
+    }
+    public static class Msg0 extends Msg {}
+    public static class Msg1 extends Msg {}
+    public static class Msg2 extends Msg {}
+    public static class Msg3 extends Msg {}
+    public static class Msg4 extends Msg {}
+    public static class Msg5 extends Msg {}
+    public static class Msg6 extends Msg {}
+    public static class Msg7 extends Msg {}
+
+    protected static final Class [] EVENTS = {
+        Event0.class, Event1.class, Event2.class, Event3.class,
+        Event4.class, Event5.class, Event6.class, Event7.class };
+    protected static final Class [] MSGS = {
+        Msg0.class, Msg1.class, Msg2.class, Msg3.class,
+        Msg4.class, Msg5.class, Msg6.class, Msg7.class };
+
+    /**
+     * Counts the events enqueued on it; supports enqueue_prepare, which
+     * the Classifier uses when an event goes to more than one sink.
+     */
+    protected static class CountingSink implements SinkIF {
+        public long count;
+        protected QueueElementIF [] prepared;
+        public void enqueue (QueueElementIF e) { ++count; }
+        public boolean enqueue_lossy (QueueElementIF e) {
+            ++count; return true;
+        }
+        public void enqueue_many (QueueElementIF [] e) { count += e.length; }
+        public Object enqueue_prepare (QueueElementIF [] e) {
+            prepared = e; return this;
+        }
+        public void enqueue_commit (Object key) {
+            enqueue_many (prepared); prepared = null;
+        }
+        public void enqueue_abort (Object key) { prepared = null; }
+        public void setEnqueuePredicate (EnqueuePredicateIF p) {}
+        public EnqueuePredicateIF getEnqueuePredicate () { return null; }
+        public int size () { return 0; }
+    }
+
+    protected static long total (CountingSink [] sinks) {
+        long result = 0;
+        for (int i = 0; i < sinks.length; ++i)
+            result += sinks [i].count;
+        return result;
+    }
+
+    public static void main (String [] args) throws Exception {
+        int stage_count =
+            (args.length > 0) ? Integer.parseInt (args [0]) : 10;
+        int type_count =
+            (args.length > 1) ? Integer.parseInt (args [1]) : 6;
+        int event_count =
+            (args.length > 2) ? Integer.parseInt (args [2]) : 2000000;
+
+        NodeId node_id = new NodeId ("127.0.0.1:1");
+        Classifier classifier = Classifier.getClassifier (node_id);
+        DispatchTable table = new DispatchTable ();
+        CountingSink [] c_sinks = new CountingSink [stage_count];
+        CountingSink [] t_sinks = new CountingSink [stage_count];
+
+        // Stage i subscribes to type_count of the event and message types,
+        // starting at i, so each type has a few subscribers.
+        for (int i = 0; i < stage_count; ++i) {
+            c_sinks [i] = new CountingSink ();
+            t_sinks [i] = new CountingSink ();
+            for (int j = 0; j < type_count; ++j) {
+                int k = (i + j) % (EVENTS.length + MSGS.length);
+                Filter filter = new Filter ();
+                if (k < EVENTS.length) {
+                    filter.requireType (EVENTS [k]);
+                    table.subscribe (EVENTS [k], DispatchTable.ANY,
+                                     t_sinks [i]);
+                }
+                else {
+                    Class c = MSGS [k - EVENTS.length];
+                    boolean inbound = ((i + j) % 2) == 0;
+                    filter.requireType (c);
+                    filter.requireValue ("inbound", new Boolean (inbound));
+                    table.subscribe (c, inbound ? DispatchTable.INBOUND
+                                     : DispatchTable.OUTBOUND, t_sinks [i]);
+                }
+                classifier.subscribe (filter, c_sinks [i]);
+            }
+        }
+
+        QueueElementIF [] mix = new QueueElementIF [64];
+        for (int i = 0; i < mix.length; ++i) {
+            if (i % 2 == 0)
+                mix [i] = (QueueElementIF)
+                    EVENTS [(i / 2) % EVENTS.length].newInstance ();
+            else {
+                Msg m = (Msg) MSGS [(i / 2) % MSGS.length].newInstance ();
+                m.inbound = (i % 4) == 1;
+                mix [i] = m;
+            }
+        }
+
+        // Warm up the JIT, then time each.
+        for (int round = 0; round < 2; ++round) {
+            long start_ns = System.nanoTime ();
+            for (int i = 0; i < event_count; ++i)
+                classifier.dispatch (mix [i & (mix.length - 1)]);
+            long classifier_ns = System.nanoTime () - start_ns;
+
+            start_ns = System.nanoTime ();
+            for (int i = 0; i < event_count; ++i)
+                table.dispatch (mix [i & (mix.length - 1)]);
+            long table_ns = System.nanoTime () - start_ns;
+
+            if (round == 1) {
+                System.out.println (stage_count + " stages, " + type_count
+                        + " types each: Classifier "
+                        + Math.round (classifier_ns * 10.0 / event_count)
+                        / 10.0 + " ns/event, DispatchTable "
+                        + Math.round (table_ns * 10.0 / event_count) / 10.0
+                        + " ns/event, "
+                        + Math.round (total (t_sinks) * 10.0 / 2
+                                      / event_count) / 10.0
+                        + " sinks/event");
+            }
+        }
+
+        for (int i = 0; i < stage_count; ++i) {
+            if (c_sinks [i].count != t_sinks [i].count) {
+                System.err.println ("mismatch at stage " + i
+                        + ": Classifier delivered " + c_sinks [i].count
+                        + " events, DispatchTable " + t_sinks [i].count);
+                System.exit (1);
+            }
+        }
+    }
+}
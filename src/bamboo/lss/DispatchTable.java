@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.lss;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import ostore.network.NetworkMessage;
+import ostore.util.NodeId;
+import seda.sandStorm.api.QueueElementIF;
+import seda.sandStorm.api.SinkException;
+import seda.sandStorm.api.SinkIF;
+
+/**
+ * Delivers the events of one node to the stages that have subscribed to
+ * them, in place of ostore's Classifier.
+ *
+ * <p>Stages subscribe to event types, and to network messages of a type
+ * that are either inbound or outbound, just as StandardStage used to
+ * describe with Filters.  Rather than match each event against the
+ * filters, the table works out once, for each class of event it is given,
+ * which sinks get inbound events of that class and which get the others,
+ * and keeps the two lists by class.  Dispatching an event is then one
+ * hash lookup, and a call to enqueue on each sink.  As with the
+ * Classifier, a subscription to a type covers its subclasses, and a sink
+ * that matches more than one subscription gets each event once.
+ *
+ * <p>The table also counts the events of each class it dispatches.
+ *
+ * @version $Id$
+ */
+public class DispatchTable {
+
+    public static final int ANY = 0;
+    public static final int INBOUND = 1;
+    public static final int OUTBOUND = 2;
+
+    protected static Map<NodeId,DispatchTable> instances =
+        new HashMap<NodeId,DispatchTable>();
+
+    /**
+     * Returns the table for the given node, creating it if need be.
+     */
+    public static DispatchTable instance (NodeId node_id) {
+        synchronized (instances) {
+            DispatchTable result = instances.get (node_id);
+            if (result == null) {
+                result = new DispatchTable ();
+                instances.put (node_id, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Forgets the table for the given node, as when the simulator kills
+     * it.
+     */
+    public static void remove (NodeId node_id) {
+        synchronized (instances) {
+            instances.remove (node_id);
+        }
+    }
+
+    protected static class Subscription {
+        public Class type;
+        public int direction;
+        public SinkIF sink;
+        public Subscription (Class t, int d, SinkIF s) {
+            type = t; direction = d; sink = s;
+        }
+    }
+
+    /**
+     * Where the events of one class go.  For a class that is not a
+     * NetworkMessage, the two lists are the same.
+     */
+    protected static class Route {
+        public Class type;
+        public SinkIF [] inbound, outbound;
+        public long count;
+    }
+
+    protected LinkedList<Subscription> subscriptions =
+        new LinkedList<Subscription>();
+    protected HashMap<Class,Route> routes = new HashMap<Class,Route>();
+
+    /**
+     * Sends <code>sink</code> the events of class <code>type</code> and its
+     * subclasses; if <code>direction</code> is INBOUND or OUTBOUND, only
+     * those network messages whose <code>inbound</code> field matches.
+     */
+    public void subscribe (Class type, int direction, SinkIF sink) {
+        subscriptions.addLast (new Subscription (type, direction, sink));
+        // Subscriptions are normally all made before the first dispatch,
+        // but a stage created later may add some.
+        for (Route r : routes.values ())
+            fill (r);
+    }
+
+    /**
+     * Sends <code>item</code> to each of the sinks subscribed to it, and
+     * returns how many there were.
+     */
+    public int dispatch (QueueElementIF item) throws SinkException {
+        Class c = item.getClass ();
+        Route r = routes.get (c);
+        if (r == null) {
+            r = new Route ();
+            r.type = c;
+            fill (r);
+            routes.put (c, r);
+        }
+        ++r.count;
+        SinkIF [] sinks = ((item instanceof NetworkMessage)
+                           && ((NetworkMessage) item).inbound)
+            ? r.inbound : r.outbound;
+        for (int i = 0; i < sinks.length; ++i)
+            sinks [i].enqueue (item);
+        return sinks.length;
+    }
+
+    /**
+     * Works out which sinks the events of class <code>r.type</code> go to.
+     */
+    protected void fill (Route r) {
+        Class c = r.type;
+        boolean directed = NetworkMessage.class.isAssignableFrom (c);
+        ArrayList<SinkIF> in = new ArrayList<SinkIF>();
+        ArrayList<SinkIF> out = new ArrayList<SinkIF>();
+        for (Subscription s : subscriptions) {
+            if (! s.type.isAssignableFrom (c))
+                continue;
+            if ((s.direction != OUTBOUND) && (! in.contains (s.sink))
+                && (directed || (s.direction == ANY)))
+                in.add (s.sink);
+            if ((s.direction != INBOUND) && (! out.contains (s.sink))
+                && (directed || (s.direction == ANY)))
+                out.add (s.sink);
+        }
+        r.outbound = out.toArray (new SinkIF [out.size ()]);
+        r.inbound = directed ? in.toArray (new SinkIF [in.size ()])
+                             : r.outbound;
+    }
+
+    /**
+     * Returns the number of events of each class dispatched so far.
+     */
+    public Map<Class,Long> counts () {
+        Map<Class,Long> result = new HashMap<Class,Long>();
+        for (Route r : routes.values ())
+            result.put (r.type, new Long (r.count));
+        return result;
+    }
+
+    public String toString () {
+        StringBuffer buf = new StringBuffer (50 + 60 * routes.size ());
+        buf.append ("(DispatchTable subscriptions=");
+        buf.append (subscriptions.size ());
+        for (Iterator<Route> i = routes.values ().iterator ();
+             i.hasNext (); ) {
+            Route r = i.next ();
+            buf.append ("\n  ");
+            buf.append (r.type.getName ());
+            buf.append (" count=");
+            buf.append (r.count);
+        }
+        buf.append (")");
+        return buf.toString ();
+    }
+}
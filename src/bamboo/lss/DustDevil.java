@@ -11,7 +11,11 @@ import java.io.Reader;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -37,15 +41,57 @@ import soss.core.SimulatorStage;
  * stage with bamboo.lss.Network, sends each stage a StagesInitializedSignal
  * event, and then calls ASyncCore.amain ().  Largely adopted from SOSS code.
  *
+ * <p>By default, every stage runs on the one main thread.  If the
+ * <code>global</code> initargs set <code>event_loops</code> to more than
+ * one, the nodes the configuration file describes (one for each Network
+ * stage, or each of the node ids of a YANetwork stage) are instead dealt
+ * out among that many loops, each an ASyncCoreImpl on its own thread; the
+ * first is the main thread.  Each stage runs on the loop of the node whose
+ * <code>node_id</code> it has.  The stages of one node call each other
+ * directly, so a node cannot be split across loops, but the nodes share
+ * nothing but the process, and talk to each other over the network as
+ * before.  Code that has to move work from one loop to another should do
+ * so with ASyncCore.post.
+ *
+ * <p>Setting <code>virtual_nodes</code> to more than one in the
+ * <code>global</code> initargs makes one configuration file run that many
+ * ring identities, or virtual nodes, in the process, so that how much of
+ * the ring a host takes on can be set without running more JVMs.  Each
+ * stage is created once for each virtual node; the copy for virtual node
+ * <i>n</i> is named with a suffix of <code>-</code><i>n</i>, and has a
+ * <code>node_id</code> and any <code>port</code> initarg moved up by
+ * <i>n</i> times <code>virtual_node_port_stride</code> (by default 10,
+ * which leaves room for the web interface and a gateway).  The copies find
+ * each other through StandardStage.lookup_stage, share the main loop (or
+ * are dealt out among the event loops), and keep their tuples in one
+ * storage environment, partitioned by virtual node; see StorageManager.
+ *
  * @author Sean C. Rhea
  * @version $Id: DustDevil.java,v 1.24 2005/04/27 20:51:10 srhea Exp $
  */
 public class DustDevil {
 
+    /**
+     * Returns the loop of the calling thread, or, while DustDevil is
+     * creating the stages of a node, that node's loop.
+     */
     public static ASyncCore acore_instance () {
+        if (loops != null) {
+            ASyncCore result = (ASyncCore) current_loop.get ();
+            if (result != null)
+                return result;
+        }
         return acore;
     }
 
+    /**
+     * Returns the loops this process runs, or null if it runs only the
+     * one.
+     */
+    public static ASyncCoreImpl [] event_loops () {
+        return loops;
+    }
+
     public static void set_acore_instance (ASyncCore value) {
         acore = value;
     }
@@ -57,29 +103,31 @@ public class DustDevil {
 
     protected class MyClassifierTimerCB implements Classifier.TimerCB {
 	protected MyClassifierAlarmCB classifier_alarm_cb;
+        protected ASyncCore loop;
 
-	public MyClassifierTimerCB (Classifier classifier) {
+	public MyClassifierTimerCB (Classifier classifier, ASyncCore loop) {
 	    classifier_alarm_cb = new MyClassifierAlarmCB (classifier);
+            this.loop = loop;
 	}
 	public Object schedule (long millis, QueueElementIF event) {
-	    return acore.register_timer (millis, classifier_alarm_cb, event);
+	    return loop.register_timer (millis, classifier_alarm_cb, event);
 	}
 	public void cancel (Object token) { 
-	    acore.cancel_timer (token);
+	    loop.cancel_timer (token);
 	}
     }
 
     protected class MyClassifierAlarmCB implements ASyncCore.TimerCB {
-	protected Classifier classifier;
+	protected DispatchTable dispatch_table;
 	public MyClassifierAlarmCB (Classifier c) {
-	    classifier = c;
+	    dispatch_table = DispatchTable.instance (c.node_id ());
 	}
 	public void timer_cb (Object user_data) {
 	    QueueElementIF item = (QueueElementIF) user_data;
 	    try {
-		classifier.dispatch (item);
+		dispatch_table.dispatch (item);
 	    }
-	    catch (SinkFullException e) {
+	    catch (SinkException e) {
                 logger.error ("could not dispatch later " + item, e);
 	    }
 	}
@@ -87,16 +135,155 @@ public class DustDevil {
 
     protected static ASyncCore acore;
 
-    public void init_nodes (SandstormConfig config, StageManager mgr) {
+    protected static ASyncCoreImpl [] loops;
+    protected static Thread [] loop_threads;
+    protected static ThreadLocal current_loop = new ThreadLocal ();
+
+    /**
+     * The loop each node runs on, by node id.
+     */
+    protected Map node_loops = new HashMap ();
+    protected int next_loop;
+
+    /**
+     * Creates the loops other than the main one, if the configuration
+     * file asks for them, along with the threads they will run on once
+     * <code>start_event_loops</code> is called.
+     */
+    protected void create_event_loops (SandstormConfig cfg)
+        throws IOException {
+        String str = cfg.getString ("global.initargs.event_loops");
+        int count = (str == null) ? 1 : Integer.parseInt (str);
+        if (count <= 1)
+            return;
+        if (! (acore instanceof ASyncCoreImpl)) {
+            logger.warn ("event_loops needs an ASyncCoreImpl; using one loop");
+            return;
+        }
+        logger.info ("running " + count + " event loops");
+        loops = new ASyncCoreImpl [count];
+        loop_threads = new Thread [count];
+        loops [0] = (ASyncCoreImpl) acore;
+        loop_threads [0] = Thread.currentThread ();
+        for (int i = 1; i < count; ++i) {
+            final ASyncCoreImpl loop = new ASyncCoreImpl ();
+            loops [i] = loop;
+            loop_threads [i] = new Thread ("EventLoop-" + i) {
+                public void run () {
+                    current_loop.set (loop);
+                    try {
+                        loop.async_main ();
+                    }
+                    catch (OutOfMemoryError e) {
+                        DustDevilSink.reserve = null;
+                        System.gc ();
+                        logger.fatal ("uncaught error", e);
+                        System.exit (1);
+                    }
+                    catch (Throwable e) {
+                        logger.fatal ("uncaught exception", e);
+                        System.exit (1);
+                    }
+                }
+            };
+        }
+        current_loop.set (loops [0]);
+    }
 
-	LinkedList handlers = new LinkedList ();
-	Enumeration iter = config.getStages ();
+    protected void start_event_loops () {
+        if (loops == null)
+            return;
+        for (int i = 1; i < loop_threads.length; ++i)
+            loop_threads [i].start ();
+    }
+
+    /**
+     * Returns the loop that the stages with the given node id run on.
+     */
+    protected int node_loop (String node_id_str) {
+        if ((loops == null) || (node_id_str == null))
+            return 0;
+        Integer result = null;
+        try {
+            result = (Integer) node_loops.get (new NodeId (node_id_str));
+        }
+        catch (Exception e) {
+            // Any stage with a bad node_id will complain about it itself.
+        }
+        return (result == null) ? 0 : result.intValue ();
+    }
+
+    /**
+     * Makes <code>acore_instance</code> return loop <code>i</code> on
+     * this thread, while DustDevil creates the stages that run on it.
+     */
+    protected void enter_loop (int i) {
+        if (loops != null)
+            current_loop.set (loops [i]);
+    }
+
+    protected Thread loop_thread (int i) {
+        return (loops == null) ? Thread.currentThread () : loop_threads [i];
+    }
+
+    /**
+     * Returns the stages in the configuration file, with a copy of each
+     * for each virtual node after the first.
+     */
+    protected LinkedList stage_descrs (SandstormConfig cfg) {
+        LinkedList result = new LinkedList ();
+        String str = cfg.getString ("global.initargs.virtual_nodes");
+        int count = (str == null) ? 1 : Integer.parseInt (str);
+        str = cfg.getString ("global.initargs.virtual_node_port_stride");
+        int stride = (str == null) ? 10 : Integer.parseInt (str);
+	Enumeration iter = cfg.getStages ();
 	while (iter.hasMoreElements ()) {
 	    stageDescr descr = (stageDescr) iter.nextElement ();
+            if ((count <= 1)
+                || (descr.stageName.indexOf ("YANetwork") != -1)) {
+                result.addLast (descr);
+                continue;
+            }
+            for (int i = 0; i < count; ++i) {
+                stageDescr copy = new stageDescr ();
+                copy.stageName = (i == 0)
+                    ? descr.stageName : descr.stageName + "-" + i;
+                copy.className = descr.className;
+                copy.queueThreshold = descr.queueThreshold;
+                copy.initargs = (Hashtable) descr.initargs.clone ();
+                copy.initargs.put ("virtual_node", Integer.toString (i));
+                copy.initargs.put ("virtual_nodes", Integer.toString (count));
+                String node_id = (String) descr.initargs.get ("node_id");
+                if (node_id != null) {
+                    int colon = node_id.lastIndexOf (':');
+                    int port =
+                        Integer.parseInt (node_id.substring (colon + 1));
+                    copy.initargs.put ("node_id", node_id.substring (0, colon)
+                            + ":" + (port + i * stride));
+                }
+                String port = (String) descr.initargs.get ("port");
+                if (port != null) {
+                    copy.initargs.put ("port", Integer.toString (
+                                Integer.parseInt (port) + i * stride));
+                }
+                result.addLast (copy);
+            }
+        }
+        return result;
+    }
+
+    public void init_nodes (SandstormConfig config, StageManager mgr) {
+
+	LinkedList handlers = new LinkedList ();
+	Iterator iter = stage_descrs (config).iterator ();
+	while (iter.hasNext ()) {
+	    stageDescr descr = (stageDescr) iter.next ();
 	    if (descr.stageName.indexOf ("Network") != -1)
 		continue;
 
 	    ConfigData config_data = new ConfigData (mgr, descr.initargs);
+            int loop = node_loop (config_data.getString ("node_id"));
+            enter_loop (loop);
 
 	    Class c = null;
 	    try {
@@ -119,13 +306,13 @@ public class DustDevil {
 		System.exit (1);
 	    }
 
-	    SinkIF sink = new DustDevilSink (handler, Thread.currentThread ());
+	    SinkIF sink = new DustDevilSink (handler, loop_thread (loop));
 	    StageIF stage = new SimulatorStage (
 		    descr.stageName, new StageWrapper (handler), sink);
 	    config_data.setStage (stage);
 	    mgr.addStage (descr.stageName, stage);
 
-	    Object [] p = {handler, config_data};
+	    Object [] p = {handler, config_data, new Integer (loop)};
 	    handlers.addLast (p);
 	}
 
@@ -133,6 +320,7 @@ public class DustDevil {
 	    Object [] p = (Object []) handlers.removeFirst ();
 	    EventHandlerIF handler = (EventHandlerIF) p [0];
 	    ConfigData config_data = (ConfigData) p [1];
+            enter_loop (((Integer) p [2]).intValue ());
 
 	    try {
 		handler.init (config_data);
@@ -144,14 +332,15 @@ public class DustDevil {
 		System.exit (1);
 	    }
 	}
+        enter_loop (0);
     }
 
     public EventHandlerIF create_network (InetSocketAddress addr) throws IOException {
-        return new Network (addr, acore);
+        return new Network (addr, acore_instance ());
     }
 
     public Classifier.TimerCB create_timer_cb (Classifier classifier) {
-        return new MyClassifierTimerCB (classifier);
+        return new MyClassifierTimerCB (classifier, acore_instance ());
     }
 
     public StageManager main (Reader reader) throws Exception { 
@@ -201,6 +390,14 @@ public class DustDevil {
 	    System.exit (1);
 	}
 
+        int loop = 0;
+        if (loops != null) {
+            loop = next_loop++ % loops.length;
+            node_loops.put (node_id, new Integer (loop));
+            logger.info ("node " + node_id + " runs on event loop " + loop);
+        }
+        enter_loop (loop);
+
 	Classifier classifier = Classifier.getClassifier (node_id); 
 	classifier.set_timer_cb (create_timer_cb (classifier));
 	classifiers.addLast (classifier);
@@ -211,12 +408,13 @@ public class DustDevil {
 		node_id.address (), node_id.port ());
 
 	EventHandlerIF network = create_network (my_addr);
-	SinkIF sink = new DustDevilSink (network, Thread.currentThread ());
+	SinkIF sink = new DustDevilSink (network, loop_thread (loop));
 	StageIF stage = new SimulatorStage (
 		name, new StageWrapper (network), sink);
 	config_data.setStage (stage);
 	network.init (config_data);
 	mgr.addStage (stage.getName (), stage);
+        enter_loop (0);
     }
 
     public StageManager main (SandstormConfig cfg) throws Exception { 
@@ -227,11 +425,12 @@ public class DustDevil {
 	// hostname and port.
 
 	LinkedList classifiers = new LinkedList ();
+        create_event_loops (cfg);
 	
 	StageManager mgr = new StageManager (cfg);
-	Enumeration iter = cfg.getStages ();
-	while (iter.hasMoreElements ()) {
-	    stageDescr descr = (stageDescr) iter.nextElement ();
+	Iterator iter = stage_descrs (cfg).iterator ();
+	while (iter.hasNext ()) {
+	    stageDescr descr = (stageDescr) iter.next ();
 	    if (descr.stageName.indexOf ("YANetwork") != -1) {
 		ConfigData config_data = new ConfigData (mgr, descr.initargs);
 		int cnt = config_data.getInt ("node_id_count");
@@ -283,16 +482,33 @@ public class DustDevil {
 	// Send a StagesInitializedSignal.
 
 	while (! classifiers.isEmpty ()) {
-	    Classifier classifier = (Classifier) classifiers.removeFirst ();
-	    try {
-		classifier.enqueue (new StagesInitializedSignal ());
-	    }
-	    catch (SinkException e) {
-		logger.fatal ("got exception on init: " + e, e);
-		System.exit (1);
-	    }
+	    final Classifier classifier =
+                (Classifier) classifiers.removeFirst ();
+            Runnable signal = new Runnable () {
+                public void run () {
+                    try {
+                        DispatchTable.instance (classifier.node_id ())
+                            .dispatch (new StagesInitializedSignal ());
+                    }
+                    catch (SinkException e) {
+                        logger.fatal ("got exception on init: " + e, e);
+                        System.exit (1);
+                    }
+                }
+            };
+            int loop = 0;
+            if (loops != null) {
+                Integer i = (Integer) node_loops.get (classifier.node_id ());
+                if (i != null)
+                    loop = i.intValue ();
+            }
+            if (loop == 0)
+                signal.run ();
+            else
+                loops [loop].post (signal);
 	}
 
+        start_event_loops ();
 	System.out.println ("Sandstorm: Ready");
 	return mgr;
     }
@@ -9,6 +9,7 @@ package bamboo.lss;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.log4j.Logger;
+import bamboo.util.StandardStage;
 import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.api.QueueElementIF;
 import seda.sandStorm.api.EventHandlerIF;
@@ -33,6 +34,13 @@ public class DustDevilSink implements SinkIF {
     protected final Thread thread;
     protected final EventHandlerIF handler;
 
+    /**
+     * The handler, if it is a StandardStage that handles an array of
+     * events one at a time; single events are then passed straight to its
+     * handleEvent, which saves allocating an array for each.
+     */
+    protected final StandardStage stage;
+
     protected Map prepares = new HashMap ();
     protected long next_key;
 
@@ -53,6 +61,18 @@ public class DustDevilSink implements SinkIF {
         hash_code = next_hash_code++;
 	handler = h;
         thread = t;
+
+        StandardStage s = null;
+        if (h instanceof StandardStage) {
+            try {
+                if (h.getClass ().getMethod ("handleEvents",
+                            QueueElementIF [].class).getDeclaringClass ()
+                    == StandardStage.class)
+                    s = (StandardStage) h;
+            }
+            catch (NoSuchMethodException e) {}
+        }
+        stage = s;
     }
 
     public int hashCode () {
@@ -61,9 +81,13 @@ public class DustDevilSink implements SinkIF {
 
     public void enqueue (QueueElementIF event) throws SinkException {
         check_thread ();
-	QueueElementIF [] events = {event};
 	try {
-	    handler.handleEvents (events);
+            if (stage != null)
+                stage.handleEvent (event);
+            else {
+                QueueElementIF [] events = {event};
+                handler.handleEvents (events);
+            }
 	}
 	catch (EventHandlerException e) {
 	    throw new SinkFullException ("from EventHandlerException");
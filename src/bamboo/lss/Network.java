@@ -16,9 +16,7 @@ import ostore.network.NetworkMessageResult;
 import ostore.network.NetworkLatencyReq;
 import ostore.network.NetworkLatencyResp;
 import ostore.util.CountBuffer;
-import ostore.util.InputBuffer;
 import ostore.util.NodeId;
-import ostore.util.OutputBuffer;
 import ostore.util.QuickSerializable;
 import seda.sandStorm.api.ConfigDataIF;
 import seda.sandStorm.api.QueueElementIF;
@@ -166,14 +164,14 @@ implements UdpCC.Serializer, UdpCC.Sink {
         }
 
         // Go into the UdpCC thread...
-        udpcc_thread.registerTimer(0, new Runnable() {
+        udpcc_thread.post(new Runnable() {
             public void run() {
                 // ...and call send...
                 udpcc.send(msg, dst, timeoutSeconds, new Thunk1<Boolean>() {
                     public void run(final Boolean success) {
                         // ...and when it's done, come back into the main
                         // thread...
-                        acore.registerTimer(0, new Runnable() {
+                        acore.post(new Runnable() {
                             public void run() {
                                 // ...and then call the supplied callback.
                                 callback.run(success);
@@ -215,8 +213,8 @@ implements UdpCC.Serializer, UdpCC.Sink {
             }
         }
         else {
-            ASyncCore.TimerCB cb = new ASyncCore.TimerCB () {
-                public void timer_cb (Object user_data) {
+            main_acore.post (new Runnable () {
+                public void run () {
                     if (logger.isDebugEnabled ()) 
                         logger.debug ("enqueuing " + item);
                     try {
@@ -226,8 +224,7 @@ implements UdpCC.Serializer, UdpCC.Sink {
                         BUG ("could not enqueue " + item, e);
                     }
                 }
-            };
-            main_acore.register_timer (0, cb, null);
+            });
         }
     }
 
@@ -262,14 +259,32 @@ implements UdpCC.Serializer, UdpCC.Sink {
 	return cb.size ();
     }
 
+    // UdpCC only calls these from its own thread, one at a time, so we
+    // reuse one wrapper for each direction rather than make a new one per
+    // packet.  They drop their buffers after each use, since those belong
+    // to UdpCC's pool.
+
+    protected NioOutputBuffer serialize_ob = new NioOutputBuffer (null);
+    protected NioInputBuffer deserialize_ib = new NioInputBuffer (null);
+
     public void serialize (Object msg, ByteBuffer buf) {
-	OutputBuffer ob = new NioOutputBuffer (buf);
-	ob.add ((QuickSerializable) msg);
+	serialize_ob.bb = buf;
+        try {
+            serialize_ob.add ((QuickSerializable) msg);
+        }
+        finally {
+            serialize_ob.bb = null;
+        }
     }
 
     public Object deserialize (ByteBuffer buf) throws Exception {
-	InputBuffer ib = new NioInputBuffer (buf);
-	return ib.nextObject ();
+	deserialize_ib.bb = buf;
+        try {
+            return deserialize_ib.nextObject ();
+        }
+        finally {
+            deserialize_ib.bb = null;
+        }
     }
 
     ///////////////// End Implementation of Serializer //////////////
@@ -294,7 +309,7 @@ implements UdpCC.Serializer, UdpCC.Sink {
                 Runnable r =  new Runnable() { 
                     public void run() { callback.run(qs, src); } 
                 };
-                acore.registerTimer(0, r);
+                acore.post(r);
             }
         }
         else {
@@ -306,7 +321,7 @@ implements UdpCC.Serializer, UdpCC.Sink {
 
             // Use dispatch later to get back into main thread.
             if (udpcc_thread == null) {
-                try { classifier.dispatch(msg); }
+                try { dispatch_table.dispatch(msg); }
                 catch (SinkException e) { BUG(e); }
             }
             else{
@@ -367,6 +382,14 @@ implements UdpCC.Serializer, UdpCC.Sink {
         if (timeout_diff != -1.0)
             udpcc.set_timeout_diff (timeout_diff);
 
+        i = config_get_int (config, "udpcc_coalesce_bytes");
+        if (i > 0)
+            udpcc.set_coalesce_bytes (i);
+
+        i = config_get_int (config, "udpcc_recv_batch");
+        if (i > 0)
+            udpcc.set_recv_batch (i);
+
         String mackeyfile = config_get_string (config, "mac_key_file");
         if (mackeyfile != null)
             udpcc.set_mac_key (mackeyfile);
@@ -423,7 +446,7 @@ implements UdpCC.Serializer, UdpCC.Sink {
                 udpcc.send_nocc (msg, dst);
             }
             else {
-                udpcc_thread.registerTimer(0, new Runnable() {
+                udpcc_thread.post(new Runnable() {
                     public void run() { udpcc.send_nocc(msg, dst); }
                 });
             }
@@ -448,8 +471,8 @@ implements UdpCC.Serializer, UdpCC.Sink {
     protected void handle_net_lat_req (final NetworkLatencyReq req) {
         final InetSocketAddress addr = new InetSocketAddress (
                 req.node_id.address (), req.node_id.port ());
-        ASyncCore.TimerCB cb = new ASyncCore.TimerCB () {
-            public void timer_cb (Object not_used) {
+        Runnable cb = new Runnable () {
+            public void run () {
                 long rtt_ms = udpcc.latency_mean (addr);
                 boolean success = (rtt_ms != -1L);
                 NetworkLatencyResp resp =
@@ -458,10 +481,10 @@ implements UdpCC.Serializer, UdpCC.Sink {
             }
         };
         if (udpcc_thread == null) {
-            cb.timer_cb (null);
+            cb.run ();
         }
         else {
-            udpcc_thread.register_timer (0, cb, null);
+            udpcc_thread.post (cb);
         }
     }
 }
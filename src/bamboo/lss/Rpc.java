@@ -7,8 +7,11 @@
 
 package bamboo.lss;
 import bamboo.lss.Network;
-import bamboo.util.Pair;
+import bamboo.util.LongMap;
 import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -36,6 +39,20 @@ import static bamboo.util.Curry.*;
  * specified in the call to {@link #sendRequest}.  To send a response, the
  * receiving node calls {@link * #sendResponse} with the token passed to the
  * request callback.  
+ *
+ * <p>Requests and responses are pipelined per peer.  Those sent to the same
+ * peer in the same pass through the event loop are held until the end of
+ * it and then sent together, as one {@link Batch} of up to
+ * <code>batch_bytes</code> bytes (8192 by default; 0 sends each message as
+ * soon as it is given).  Each message is serialized once, straight into
+ * its peer's batch buffer; one too big for a batch of its own is sent by
+ * itself.  Each peer has a single timer, set for the earliest
+ * deadline of the requests outstanding to it, rather than one per request.
+ *
+ * <p>The stage keeps a latency histogram per request type: the round-trip
+ * times of the requests this node sent, and the times this node took to
+ * respond to the ones it received.  If <code>latency_log_period</code> is
+ * set, it logs and clears them every that many seconds.
  */
 public class Rpc extends bamboo.util.StandardStage {
 
@@ -45,9 +62,12 @@ public class Rpc extends bamboo.util.StandardStage {
     protected long next_xact_id;
     protected Network network;
     protected Map<Class,Thunk3<InetSocketAddress,QuickSerializable,Object>> handlers = new LinkedHashMap<Class,Thunk3<InetSocketAddress,QuickSerializable,Object>>();
-    protected Map<Long,Pair<Thunk1<QuickSerializable>,Runnable>> inflight = 
-        new LinkedHashMap<Long,Pair<Thunk1<QuickSerializable>,Runnable>>();
+    protected LongMap<Xact> inflight = new LongMap<Xact> ();
+    protected Map<InetSocketAddress,Peer> peers =
+        new LinkedHashMap<InetSocketAddress,Peer>();
     protected Set<Class> known_types = new LinkedHashSet<Class>();
+    protected int batch_bytes = 8192;
+    protected NioOutputBuffer batch_ob = new NioOutputBuffer (null);
 
     public static class Msg implements QuickSerializable, ByteCount {
         public boolean req;
@@ -90,6 +110,205 @@ public class Rpc extends bamboo.util.StandardStage {
         }
     }
 
+    /**
+     * Several requests and responses for the same peer, sent as one
+     * message.  The sender builds it from messages it has already
+     * serialized, back to back, into <code>bytes</code>; the receiver gets
+     * them deserialized in <code>msgs</code>.
+     */
+    public static class Batch implements QuickSerializable {
+        public Msg [] msgs;
+        protected int count;
+        protected ByteBuffer bytes;
+
+        public Batch (Msg [] m) {
+            msgs = m;
+            count = m.length;
+        }
+        public Batch (int c, ByteBuffer b) {
+            count = c; bytes = b;
+        }
+        public Batch (InputBuffer buffer) throws QSException {
+            count = buffer.nextInt ();
+            msgs = new Msg [count];
+            for (int i = 0; i < msgs.length; ++i)
+                msgs [i] = new Msg (buffer);
+        }
+        public void serialize (OutputBuffer buffer) {
+            buffer.add (count);
+            if (bytes == null) {
+                for (int i = 0; i < msgs.length; ++i)
+                    msgs [i].serialize (buffer);
+            }
+            else {
+                buffer.add (bytes.array (), 
+                            bytes.arrayOffset () + bytes.position (), 
+                            bytes.remaining ());
+            }
+        }
+        public String toString () {
+            return "(Rpc.Batch size=" + count + ")";
+        }
+    }
+
+    /**
+     * A histogram of latencies, in power-of-two buckets of milliseconds:
+     * bucket 0 counts latencies under 1 ms, and bucket i those from
+     * 2^(i-1) up to 2^i ms.
+     */
+    public static class LatencyHistogram {
+        protected long [] buckets = new long [32];
+        protected long count, sum_ms, max_ms;
+
+        public void add (long ms) {
+            if (ms < 0)
+                ms = 0;
+            int b = 64 - Long.numberOfLeadingZeros (ms);
+            buckets [Math.min (b, buckets.length - 1)]++;
+            ++count;
+            sum_ms += ms;
+            if (ms > max_ms)
+                max_ms = ms;
+        }
+
+        public long count () { return count; }
+
+        public long max_ms () { return max_ms; }
+
+        public double mean_ms () {
+            return (count == 0) ? 0.0 : ((double) sum_ms) / count;
+        }
+
+        /**
+         * Returns an upper bound on the given percentile, in ms.
+         */
+        public long percentile_ms (double pct) {
+            long target = (long) Math.ceil (count * pct / 100.0);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; ++b) {
+                seen += buckets [b];
+                if ((seen >= target) && (seen > 0))
+                    return Math.min (1L << b, max_ms);
+            }
+            return max_ms;
+        }
+
+        public String toString () {
+            return "count=" + count + " mean=" 
+                + Math.round (mean_ms ()) + " p50<=" + percentile_ms (50)
+                + " p90<=" + percentile_ms (90) + " p99<=" 
+                + percentile_ms (99) + " max=" + max_ms;
+        }
+    }
+
+    protected Map<Class,LatencyHistogram> rtts = 
+        new LinkedHashMap<Class,LatencyHistogram>();
+    protected Map<Class,LatencyHistogram> service_times = 
+        new LinkedHashMap<Class,LatencyHistogram>();
+
+    protected static LatencyHistogram histogram (
+            Map<Class,LatencyHistogram> map, Class clazz) {
+        LatencyHistogram result = map.get (clazz);
+        if (result == null) {
+            result = new LatencyHistogram ();
+            map.put (clazz, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the round-trip times of the requests of the given type sent
+     * by this node, or null if none have completed.
+     */
+    public LatencyHistogram rttHistogram (Class requestType) {
+        return rtts.get (requestType);
+    }
+
+    /**
+     * Returns the times this node took to respond to requests of the given
+     * type, or null if it has responded to none.
+     */
+    public LatencyHistogram serviceTimeHistogram (Class requestType) {
+        return service_times.get (requestType);
+    }
+
+    protected Runnable printLatencies = new Runnable () {
+        public void run () {
+            for (Class c : rtts.keySet ()) 
+                logger.info ("rtt " + c.getName () + " " + rtts.get (c));
+            for (Class c : service_times.keySet ()) 
+                logger.info ("service " + c.getName () + " " 
+                             + service_times.get (c));
+            rtts.clear ();
+            service_times.clear ();
+            acore.registerTimer (latency_log_period * 1000, this);
+        }
+    };
+
+    protected int latency_log_period;
+
+    /**
+     * An outstanding request.  Those to the same peer are linked together
+     * in the order they were sent.
+     */
+    protected static class Xact {
+        public long xact_id;
+        public Peer peer;
+        public Class req_class, resp_class;
+        public Thunk1<QuickSerializable> cb;
+        public Runnable timeout_cb;
+        public long start_ms, deadline_ms;
+        public Msg msg;              // until it's sent
+        public Object network_token; // if it was sent by itself
+        public Xact next, prev;
+    }
+
+    /**
+     * The messages waiting to be sent to a peer, and the requests
+     * outstanding to it.
+     */
+    protected class Peer implements Runnable {
+        public InetSocketAddress addr;
+        public ByteBuffer pending_buf;
+        public ArrayList<Integer> pending_starts = new ArrayList<Integer> ();
+        public ArrayList<Xact> pending_xacts = new ArrayList<Xact> ();
+        public long pending_timeout_sec;
+        public boolean flush_scheduled;
+        public Xact head, tail;
+        public Object timer;
+        public long timer_ms;
+
+        public Peer (InetSocketAddress a) { addr = a; }
+
+        public void run () {
+            flush_scheduled = false;
+            flush (this);
+            forget_if_idle (this);
+        }
+
+        public Runnable timeout = new Runnable () {
+            public void run () {
+                timer = null;
+                expire (Peer.this);
+            }
+        };
+    }
+
+    protected Peer peer (InetSocketAddress addr) {
+        Peer result = peers.get (addr);
+        if (result == null) {
+            result = new Peer (addr);
+            peers.put (addr, result);
+        }
+        return result;
+    }
+
+    protected void forget_if_idle (Peer p) {
+        if ((p.head == null) && p.pending_xacts.isEmpty () && (p.timer == null)
+            && (! p.flush_scheduled))
+            peers.remove (p.addr);
+    }
+
     protected void ensure_known (Class clazz) {
         if (! known_types.contains (clazz)) {
             known_types.add (clazz);
@@ -118,71 +337,241 @@ public class Rpc extends bamboo.util.StandardStage {
                 (Thunk3<InetSocketAddress,QuickSerializable,Object>) handler);
     }
 
-    protected Thunk1<Long> requestTimeout = new Thunk1<Long>() {
-        public void run(Long xact_id) {
-            Pair<Thunk1<QuickSerializable>,Runnable> cb = 
-                inflight.remove(xact_id);
-            if (cb != null && cb.second != null) cb.second.run();
+    /**
+     * Queues <code>msg</code> for <code>p</code>, or sends it right away
+     * if batching is off or it won't fit in a batch, and returns the
+     * network token if it was sent by itself.
+     */
+    protected Object enqueue (Peer p, Msg msg, long timeout_sec, Xact x) {
+        if (batch_bytes <= 0) 
+            return network.send (msg, p.addr, timeout_sec);
+
+        if (! append (p, msg)) {
+            if (p.pending_xacts.isEmpty ())
+                return network.send (msg, p.addr, timeout_sec);
+            flush (p);
+            if (! append (p, msg))
+                return network.send (msg, p.addr, timeout_sec);
         }
-    };
+        p.pending_xacts.add (x);
+        p.pending_timeout_sec = Math.max (p.pending_timeout_sec, timeout_sec);
+        if (! p.flush_scheduled) {
+            p.flush_scheduled = true;
+            acore.registerTimer (0, p);
+        }
+        return null;
+    }
 
-    protected static class SendToken {
-        public Long xact_id; 
-        public Object timerToken, networkToken;
-        public SendToken(Long x, Object t, Object n) {
-            xact_id = x; timerToken = t; networkToken = n;
+    /**
+     * Serializes <code>msg</code> onto the end of the batch buffer of
+     * <code>p</code>.  If it doesn't fit, rolls the buffer back to where it
+     * was and returns false.
+     */
+    protected boolean append (Peer p, Msg msg) {
+        if (p.pending_buf == null)
+            p.pending_buf = ByteBuffer.allocate (batch_bytes);
+        int start = p.pending_buf.position ();
+        batch_ob.bb = p.pending_buf;
+        try {
+            msg.serialize (batch_ob);
+        }
+        catch (BufferOverflowException e) {
+            p.pending_buf.position (start);
+            return false;
+        }
+        finally {
+            batch_ob.bb = null;
+        }
+        p.pending_starts.add (start);
+        return true;
+    }
+
+    /**
+     * Takes the i-th queued message out of the batch of <code>p</code>,
+     * closing the gap it leaves in the buffer.
+     */
+    protected void remove_pending (Peer p, int i) {
+        ByteBuffer buf = p.pending_buf;
+        int start = p.pending_starts.get (i);
+        int end = (i + 1 < p.pending_starts.size ()) 
+            ? p.pending_starts.get (i + 1) : buf.position ();
+        System.arraycopy (buf.array (), end, buf.array (), start, 
+                          buf.position () - end);
+        buf.position (buf.position () - (end - start));
+        for (int j = i + 1; j < p.pending_starts.size (); ++j)
+            p.pending_starts.set (j, p.pending_starts.get (j) - (end - start));
+        p.pending_starts.remove (i);
+        p.pending_xacts.remove (i);
+    }
+
+    /**
+     * Sends whatever is queued for <code>p</code>, as one {@link Batch}
+     * made from the bytes already serialized into its buffer.
+     */
+    protected void flush (Peer p) {
+        int n = p.pending_xacts.size ();
+        if (n > 0) {
+            p.pending_buf.flip ();
+            network.send (new Batch (n, p.pending_buf), 
+                          p.addr, p.pending_timeout_sec);
+            p.pending_buf = null;
+            for (Xact x : p.pending_xacts) {
+                if (x != null) 
+                    x.msg = null;
+            }
+        }
+        p.pending_starts.clear ();
+        p.pending_xacts.clear ();
+        p.pending_timeout_sec = 0;
+    }
+
+    protected void link (Peer p, Xact x) {
+        x.prev = p.tail;
+        if (p.tail == null)
+            p.head = x;
+        else
+            p.tail.next = x;
+        p.tail = x;
+        if ((p.timer == null) || (x.deadline_ms < p.timer_ms)) {
+            if (p.timer != null)
+                acore.cancelTimer (p.timer);
+            p.timer_ms = x.deadline_ms;
+            p.timer = acore.registerTimer (
+                    Math.max (0, x.deadline_ms - now_ms ()), p.timeout);
+        }
+    }
+
+    /**
+     * Removes <code>x</code> from the list of its peer.  The peer's timer
+     * is left alone; if it fires early, expire just sets it again.
+     */
+    protected void unlink (Xact x) {
+        Peer p = x.peer;
+        if (x.prev == null)
+            p.head = x.next;
+        else
+            x.prev.next = x.next;
+        if (x.next == null)
+            p.tail = x.prev;
+        else
+            x.next.prev = x.prev;
+        x.next = x.prev = null;
+        if ((p.head == null) && (p.timer != null)) {
+            acore.cancelTimer (p.timer);
+            p.timer = null;
+        }
+        forget_if_idle (p);
+    }
+
+    /**
+     * Times out the requests to <code>p</code> that are due, and sets its
+     * timer for the next one.
+     */
+    protected void expire (Peer p) {
+        long now = now_ms ();
+        ArrayList<Xact> due = new ArrayList<Xact> ();
+        for (Xact x = p.head; x != null; x = x.next) {
+            if (x.deadline_ms <= now)
+                due.add (x);
+        }
+        for (Xact x : due) {
+            // An earlier callback may have cancelled this one.
+            if (inflight.get (x.xact_id) != x)
+                continue;
+            inflight.remove (x.xact_id);
+            unlink (x);
+            if (x.timeout_cb != null) 
+                x.timeout_cb.run ();
         }
+        long next_ms = Long.MAX_VALUE;
+        for (Xact x = p.head; x != null; x = x.next) 
+            next_ms = Math.min (next_ms, x.deadline_ms);
+        // A timeout callback may have sent another request to p and set
+        // its timer already.
+        if ((next_ms != Long.MAX_VALUE) 
+            && ((p.timer == null) || (next_ms < p.timer_ms))) {
+            if (p.timer != null)
+                acore.cancelTimer (p.timer);
+            p.timer_ms = next_ms;
+            p.timer = acore.registerTimer (next_ms - now, p.timeout);
+        }
+        forget_if_idle (p);
+    }
+
+    protected static class SendToken {
+        public Xact xact;
+        public SendToken(Xact x) { xact = x; }
     }
 
     public <T extends QuickSerializable> Object sendRequest(
             InetSocketAddress dest, QuickSerializable req, long timeout_sec, 
             Class<T> resp_class, Thunk1<T> responseCallback, 
             Runnable timeoutCallback) {
-        Thunk1<QuickSerializable> cb = 
-            (Thunk1<QuickSerializable>) responseCallback;
         ensure_known (resp_class);
-        Long xact_id = new Long (next_xact_id ());
-        inflight.put (xact_id, Pair.create(
-                    curry(handleResponse, cb, resp_class), 
-                    timeoutCallback));
-        Object timerToken = acore.registerTimer(
-                timeout_sec * 1000, curry(requestTimeout, xact_id));
-        Object networkToken = network.send(
-                new Msg (true, xact_id.longValue (), req), dest, timeout_sec);
-        return new SendToken(xact_id, timerToken, networkToken);
+        Xact x = new Xact ();
+        x.xact_id = next_xact_id ();
+        x.peer = peer (dest);
+        x.req_class = req.getClass ();
+        x.resp_class = resp_class;
+        x.cb = (Thunk1<QuickSerializable>) responseCallback;
+        x.timeout_cb = timeoutCallback;
+        x.start_ms = now_ms ();
+        x.deadline_ms = x.start_ms + timeout_sec * 1000;
+        x.msg = new Msg (true, x.xact_id, req);
+        inflight.put (x.xact_id, x);
+        link (x.peer, x);
+        x.network_token = enqueue (x.peer, x.msg, timeout_sec, x);
+        if (x.network_token != null)
+            x.msg = null;
+        return new SendToken(x);
     }
 
     public void cancelSend(Object token) {
-        SendToken s = (SendToken) token;
-        inflight.remove(s.xact_id);
-        acore.cancelTimer(s.timerToken);
-        network.cancelSend(s.networkToken);
-    }
-
-    protected Thunk3<Thunk1<QuickSerializable>,Class,QuickSerializable> 
-        handleResponse = 
-        new Thunk3<Thunk1<QuickSerializable>,Class,QuickSerializable>() {
-        public void run(Thunk1<QuickSerializable> responseCallback, 
-                        Class responseClass, QuickSerializable payload) {
-            if (payload == null) {
-                responseCallback.run(null);
-            }
-            else if (responseClass.equals(payload.getClass())) {
-                responseCallback.run(payload);
-            }
-            else if (logger.isDebugEnabled()) {
-                logger.debug("bad response class; expected " + 
-                        responseClass.getName() + " but got " + 
-                        payload.getClass().getName());
-            }
+        Xact x = ((SendToken) token).xact;
+        if (inflight.remove (x.xact_id) == null)
+            return;
+        Peer p = x.peer;
+        if (x.msg != null) {
+            // Not sent yet; just take it out of the queue.
+            remove_pending (p, p.pending_xacts.indexOf (x));
+            x.msg = null;
         }
-    };
+        else if (x.network_token != null) {
+            network.cancelSend(x.network_token);
+        }
+        unlink (x);
+    }
+
+    protected void handleResponse (Xact x, QuickSerializable payload) {
+        histogram (rtts, x.req_class).add (now_ms () - x.start_ms);
+        if (payload == null) {
+            x.cb.run(null);
+        }
+        else if (x.resp_class.equals(payload.getClass())) {
+            x.cb.run(payload);
+        }
+        else if (logger.isDebugEnabled()) {
+            logger.debug("bad response class; expected " + 
+                    x.resp_class.getName() + " but got " + 
+                    payload.getClass().getName());
+        }
+    }
+
+    protected static class ResponseToken {
+        public InetSocketAddress peer;
+        public long xact_id;
+        public Class req_class;
+        public long recv_ms;
+        public ResponseToken(InetSocketAddress p, long x, Class c, long r) {
+            peer = p; xact_id = x; req_class = c; recv_ms = r;
+        }
+    }
 
     public void sendResponse(QuickSerializable resp, Object token) {
-        Pair<InetSocketAddress,Long> pair = 
-            (Pair<InetSocketAddress,Long>) token;
-        network.send(new Msg(false, pair.second.longValue(), resp),
-                     pair.first);
+        ResponseToken t = (ResponseToken) token;
+        histogram (service_times, t.req_class).add (now_ms () - t.recv_ms);
+        enqueue (peer (t.peer), new Msg(false, t.xact_id, resp),
+                 Network.DEFAULT_TIMEOUT, null);
     }
 
     public Rpc () {
@@ -191,18 +580,34 @@ public class Rpc extends bamboo.util.StandardStage {
 
     public void init(ConfigDataIF config) throws Exception {
         super.init(config);
+        batch_bytes = configGetInt(config, "batch_bytes", batch_bytes);
+        latency_log_period = 
+            configGetInt(config, "latency_log_period", 0);
         instances.put(my_node_id, this);
         acore.registerTimer(0, ready);
+        if (latency_log_period > 0)
+            acore.registerTimer(latency_log_period * 1000, printLatencies);
     }
 
     protected Runnable ready = new Runnable() {
         public void run() {
             network = Network.instance(my_node_id);
-            try { network.registerReceiver(Msg.class, handleMsg); }
+            try { 
+                network.registerReceiver(Msg.class, handleMsg); 
+                network.registerReceiver(Batch.class, handleBatch); 
+            }
             catch (DuplicateTypeException e) { BUG(e); }
         }
     };
 
+    protected Thunk2<Batch,InetSocketAddress> handleBatch = 
+        new Thunk2<Batch,InetSocketAddress>() {
+        public void run(Batch batch, InetSocketAddress peer) {
+            for (int i = 0; i < batch.msgs.length; ++i)
+                handleMsg.run(batch.msgs [i], peer);
+        }
+    };
+
     protected Thunk2<Msg,InetSocketAddress> handleMsg = 
         new Thunk2<Msg,InetSocketAddress>() {
         public void run(Msg msg, InetSocketAddress peer) {
@@ -216,22 +621,22 @@ public class Rpc extends bamboo.util.StandardStage {
                                       + msg.payload.getClass ());
                 }
                 else {
-                    cb.run(peer, msg.payload, 
-                            Pair.create(peer, new Long(msg.xact_id)));
+                    cb.run(peer, msg.payload, new ResponseToken(peer, 
+                                msg.xact_id, msg.payload.getClass(), 
+                                now_ms()));
                 }
             }
             else {
-                Pair<Thunk1<QuickSerializable>,Runnable> pair = 
-                    inflight.remove(new Long(msg.xact_id));
-                if (pair == null) {
+                Xact x = inflight.remove(msg.xact_id);
+                if (x == null) {
                     if (logger.isDebugEnabled()) 
                         logger.debug("unknown response xact_id=" + msg.xact_id);
                 }
                 else {
-                    pair.first.run(msg.payload);
+                    unlink(x);
+                    handleResponse(x, msg.payload);
                 }
             }
         }
     };
 }
-
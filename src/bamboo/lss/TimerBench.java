@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.lss;
+import bamboo.util.PriorityQueue;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * A microbenchmark for timers.  In the <code>heap</code> and
+ * <code>wheel</code> modes, it runs a simulated clock, one millisecond
+ * per step, against either the binary heap and set of cancelled timers
+ * ASyncCoreImpl used to keep, or a TimerWheel.  It keeps about
+ * <code>outstanding</code> timers pending, with delays spread evenly
+ * from 1 to 2000 ms, and cancels <code>cancel_pct</code> percent of them
+ * before they fire, as Rpc does when a response arrives.  It prints the
+ * timers registered per second of real time.
+ *
+ * <p>In the <code>handoff</code> mode, a second thread calls
+ * registerTimer with a delay of 0 on an ASyncCoreImpl as fast as the
+ * main thread can run the timers, keeping at most
+ * <code>outstanding</code> of them queued, and the test prints the timers
+ * run per second.
+ *
+ * <p>Usage: <code>TimerBench heap|wheel|handoff outstanding cancel_pct
+ * test_length_secs</code>
+ *
+ * @version $Id$
+ */
+public class TimerBench {
+
+    protected static final int MAX_DELAY_MS = 2000;
+
+    public static long run_structure (boolean wheel, int outstanding,
+                                      int cancel_pct, long test_length_ms) {
+        Random rand = new Random (1);
+        int per_ms = Math.max (1, outstanding * 2 / MAX_DELAY_MS);
+        TimerWheel.Timer [] recent = new TimerWheel.Timer [outstanding];
+        int next_recent = 0;
+        long now_ms = 0, added = 0, fired = 0;
+
+        TimerWheel w = new TimerWheel (now_ms);
+        PriorityQueue<TimerWheel.Timer,Long> heap =
+            new PriorityQueue<TimerWheel.Timer,Long> (200);
+        HashSet<TimerWheel.Timer> cancelled =
+            new HashSet<TimerWheel.Timer> ();
+
+        long start_ms = System.currentTimeMillis ();
+        while (true) {
+            if (((now_ms & 0xff) == 0)
+                && (System.currentTimeMillis () - start_ms >= test_length_ms))
+                break;
+            for (int i = 0; i < per_ms; ++i) {
+                TimerWheel.Timer t = new TimerWheel.Timer ();
+                t.expire_ms = now_ms + 1 + rand.nextInt (MAX_DELAY_MS);
+                if (wheel)
+                    w.add (t);
+                else
+                    heap.add (t, new Long (t.expire_ms));
+                recent [next_recent] = t;
+                next_recent = (next_recent + 1) % recent.length;
+                ++added;
+
+                if (rand.nextInt (100) < cancel_pct) {
+                    TimerWheel.Timer c = recent [rand.nextInt (recent.length)];
+                    if ((c != null) && (! c.cancelled)
+                        && (c.expire_ms > now_ms)) {
+                        c.cancelled = true;
+                        if (wheel)
+                            w.remove (c);
+                        else
+                            cancelled.add (c);
+                    }
+                }
+            }
+            if (wheel) {
+                TimerWheel.Timer t = w.expire (now_ms);
+                while (t != null) {
+                    if (! t.cancelled)
+                        ++fired;
+                    t = t.next;
+                }
+            }
+            else {
+                while ((! heap.isEmpty ())
+                       && (heap.getFirstPriority ().longValue () <= now_ms)) {
+                    TimerWheel.Timer t = heap.removeFirst ();
+                    if (! cancelled.remove (t))
+                        ++fired;
+                }
+            }
+            ++now_ms;
+        }
+        long elapsed_ms = System.currentTimeMillis () - start_ms;
+        System.out.println ((wheel ? "wheel" : "heap") + ": registered "
+                + added + " timers (" + fired + " fired) in "
+                + elapsed_ms + " ms: "
+                + Math.round (added * 1000.0 / elapsed_ms) + " timers/s");
+        return added;
+    }
+
+    protected static int queued;
+    protected static long ran;
+    protected static final Object lock = new Object ();
+
+    public static void run_handoff (final int outstanding,
+                                    long test_length_ms) throws Exception {
+        final ASyncCoreImpl acore = new ASyncCoreImpl ();
+        acore.useWatchdog = false;
+        final Runnable cb = new Runnable () {
+            public void run () {
+                ++ran;
+                synchronized (lock) {
+                    if (queued-- == outstanding)
+                        lock.notify ();
+                }
+            }
+        };
+        Thread producer = new Thread () {
+            public void run () {
+                while (true) {
+                    synchronized (lock) {
+                        while (queued >= outstanding) {
+                            try { lock.wait (); }
+                            catch (InterruptedException e) {}
+                        }
+                        ++queued;
+                    }
+                    acore.registerTimer (0, cb);
+                }
+            }
+        };
+        producer.setDaemon (true);
+        final long start_ms = System.currentTimeMillis ();
+        acore.registerTimer (test_length_ms, new Runnable () {
+            public void run () {
+                long elapsed_ms = System.currentTimeMillis () - start_ms;
+                System.out.println ("handoff: ran " + ran + " timers in "
+                        + elapsed_ms + " ms: "
+                        + Math.round (ran * 1000.0 / elapsed_ms)
+                        + " timers/s");
+                System.exit (0);
+            }
+        });
+        producer.start ();
+        acore.asyncMain ();
+    }
+
+    public static void main (String [] args) throws Exception {
+        String mode = args [0];
+        int outstanding = Integer.parseInt (args [1]);
+        int cancel_pct = Integer.parseInt (args [2]);
+        long test_length_ms = Integer.parseInt (args [3]) * 1000L;
+        if (mode.equals ("handoff"))
+            run_handoff (outstanding, test_length_ms);
+        else if (mode.equals ("heap") || mode.equals ("wheel")) {
+            // Warm up the JIT first.
+            run_structure (mode.equals ("wheel"), outstanding, cancel_pct,
+                           1000);
+            run_structure (mode.equals ("wheel"), outstanding, cancel_pct,
+                           test_length_ms);
+        }
+        else {
+            System.err.println ("unknown mode " + mode);
+            System.exit (1);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.lss;
+
+/**
+ * A hashed hierarchical timing wheel [VL87], with a resolution of one
+ * millisecond.  It has four levels of 256 slots each; a timer due within
+ * 256 ms of the wheel's current time goes in a slot of level 0, one due
+ * within 256*256 ms in a slot of level 1, and so on.  When the current
+ * time crosses into a new block of a level, the timers in that block's
+ * slot are moved down ("cascaded") to the levels below.  Adding or
+ * removing a timer takes constant time; each timer is cascaded at most
+ * three times.
+ *
+ * <p>Timers are intrusive: a timer is a {@link Timer} (or an instance of
+ * a subclass), and holds the links of the slot list it's on, so adding
+ * and removing them allocates nothing.  A wheel is not synchronized; see
+ * ASyncCoreImpl for how it is used from several threads.
+ *
+ * <p>[VL87] George Varghese and Tony Lauck.  Hashed and Hierarchical
+ * Timing Wheels: Data Structures for the Efficient Implementation of a
+ * Timer Facility.  SOSP 1987.
+ *
+ * @version $Id$
+ */
+public class TimerWheel {
+
+    public static class Timer {
+        /**
+         * The time, in milliseconds, at which this timer is due.
+         */
+        public long expire_ms;
+
+        /**
+         * Set when the timer is cancelled.  The wheel itself never looks
+         * at it; it is here for the convenience of the wheel's user, who
+         * may set it from a thread other than the one that owns the
+         * wheel.
+         */
+        public volatile boolean cancelled;
+
+        /**
+         * The next and previous timers in the same slot, or in the list
+         * returned by expire.
+         */
+        public Timer next, prev;
+
+        /**
+         * The slot holding this timer, or -1 if it's not in the wheel.
+         */
+        public int slot = -1;
+    }
+
+    protected static final int LEVELS = 4;
+    protected static final int SLOT_BITS = 8;
+    protected static final int SLOTS = 1 << SLOT_BITS;
+    protected static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+     * The longest delay the wheel can represent; timers due further in
+     * the future are kept in the top level's furthest slot until they
+     * come within range.
+     */
+    protected static final long MAX_DELAY_MS = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+    /**
+     * The slot after those of the levels holds timers that were added
+     * when they were already due.
+     */
+    protected static final int DUE = LEVELS * SLOTS;
+
+    protected Timer [] heads = new Timer [DUE + 1];
+    protected Timer [] tails = new Timer [DUE + 1];
+
+    /**
+     * One bit per slot of level 0, set when the slot is not empty.
+     */
+    protected long [] occupied = new long [SLOTS / 64];
+
+    /**
+     * Every timer due before now_ms has been returned by expire, and the
+     * timers in the slot of every block that starts at or before now_ms
+     * have been cascaded down.
+     */
+    protected long now_ms;
+    protected int size;
+
+    public TimerWheel (long now_ms) {
+        this.now_ms = now_ms;
+    }
+
+    public final int size () {
+        return size;
+    }
+
+    /**
+     * Adds a timer, which must not already be in a wheel.  If it is due
+     * before the wheel's current time, it is returned by the next call to
+     * expire, whatever time that call is for.
+     */
+    public final void add (Timer t) {
+        assert t.slot == -1;
+        long e = t.expire_ms;
+        int level = 0, slot = DUE;
+        if (e >= now_ms) {
+            if (e - now_ms > MAX_DELAY_MS)
+                e = now_ms + MAX_DELAY_MS;
+            long delta = e - now_ms;
+            while ((level < LEVELS - 1)
+                   && (delta >= (1L << (SLOT_BITS * (level + 1)))))
+                ++level;
+            slot = (level << SLOT_BITS)
+                + (int) ((e >>> (SLOT_BITS * level)) & SLOT_MASK);
+        }
+        t.slot = slot;
+        t.next = null;
+        t.prev = tails [slot];
+        if (t.prev == null) {
+            heads [slot] = t;
+            if (slot < SLOTS)
+                occupied [slot >> 6] |= 1L << slot;
+        }
+        else {
+            t.prev.next = t;
+        }
+        tails [slot] = t;
+        ++size;
+    }
+
+    /**
+     * Removes a timer from the wheel, and returns whether it was in it.
+     */
+    public final boolean remove (Timer t) {
+        int slot = t.slot;
+        if (slot < 0)
+            return false;
+        if (t.prev == null)
+            heads [slot] = t.next;
+        else
+            t.prev.next = t.next;
+        if (t.next == null)
+            tails [slot] = t.prev;
+        else
+            t.next.prev = t.prev;
+        if ((heads [slot] == null) && (slot < SLOTS))
+            occupied [slot >> 6] &= ~(1L << slot);
+        t.next = t.prev = null;
+        t.slot = -1;
+        --size;
+        return true;
+    }
+
+    /**
+     * Returns the first occupied slot of level 0 from <code>from</code>
+     * to the end of the level, or -1 if there is none.
+     */
+    protected final int next_occupied (int from) {
+        int w = from >> 6;
+        long bits = occupied [w] & (-1L << from);
+        while (true) {
+            if (bits != 0)
+                return (w << 6) + Long.numberOfTrailingZeros (bits);
+            if (++w == occupied.length)
+                return -1;
+            bits = occupied [w];
+        }
+    }
+
+    /**
+     * Returns a time no later than that at which the next timer is due,
+     * and no earlier than the current time of the wheel, or -1 if the
+     * wheel is empty.  If no timer is due before the end of the current
+     * 256 ms block, this is the start of the next one, when the wheel has
+     * to cascade timers down from level 1.  If a timer was added after it
+     * was due, this is a time that has already passed.
+     */
+    public final long next_expiry () {
+        if (size == 0)
+            return -1L;
+        if (heads [DUE] != null)
+            return now_ms - 1;
+        int idx = (int) (now_ms & SLOT_MASK);
+        int k = next_occupied (idx);
+        if (k < 0)
+            k = SLOTS;
+        return now_ms + (k - idx);
+    }
+
+    /**
+     * Advances the wheel to <code>time_ms</code>, and returns the timers
+     * due at or before it, linked through their next fields.  Timers
+     * that were already due when added come first; the rest come
+     * earliest first.  In each case, timers come in the order they were
+     * added.  The returned timers are no longer in the wheel.
+     */
+    public final Timer expire (long time_ms) {
+        Timer head = null, tail = null;
+        if (heads [DUE] != null) {
+            head = heads [DUE];
+            tail = tails [DUE];
+            heads [DUE] = tails [DUE] = null;
+            for (Timer u = head; u != null; u = u.next) {
+                u.slot = -1;
+                --size;
+            }
+        }
+        while (now_ms <= time_ms) {
+            if (size == 0) {
+                now_ms = time_ms + 1;
+                break;
+            }
+            int idx = (int) (now_ms & SLOT_MASK);
+            Timer t = heads [idx];
+            if (t != null) {
+                heads [idx] = tails [idx] = null;
+                occupied [idx >> 6] &= ~(1L << idx);
+                for (Timer u = t; u != null; u = u.next) {
+                    u.slot = -1;
+                    --size;
+                }
+                if (head == null)
+                    head = t;
+                else {
+                    tail.next = t;
+                    t.prev = tail;
+                }
+                while (t.next != null)
+                    t = t.next;
+                tail = t;
+            }
+
+            // Skip ahead to the next occupied slot, the end of this
+            // block, or time_ms + 1, whichever comes first.
+            int k = (idx == SLOT_MASK) ? -1 : next_occupied (idx + 1);
+            long next = now_ms + (((k < 0) ? SLOTS : k) - idx);
+            now_ms = Math.min (next, time_ms + 1);
+            if ((now_ms & SLOT_MASK) == 0) {
+                for (int level = 1; level < LEVELS; ++level) {
+                    int i = (int) ((now_ms >>> (SLOT_BITS * level))
+                                   & SLOT_MASK);
+                    cascade ((level << SLOT_BITS) + i);
+                    if (i != 0)
+                        break;
+                }
+            }
+        }
+        return head;
+    }
+
+    /**
+     * Moves the timers in a slot of a level above 0 down the wheel.
+     */
+    protected final void cascade (int slot) {
+        Timer t = heads [slot];
+        heads [slot] = tails [slot] = null;
+        while (t != null) {
+            Timer next = t.next;
+            t.slot = -1;
+            --size;
+            add (t);
+            t = next;
+        }
+    }
+}
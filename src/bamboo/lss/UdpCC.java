@@ -6,6 +6,8 @@
  */
 
 package bamboo.lss;
+import bamboo.util.LongMap;
+import bamboo.util.LongQueue;
 import bamboo.util.Pair;
 import bamboo.util.StringUtil;
 import java.io.FileInputStream;
@@ -13,18 +15,16 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.security.Key;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.Map;
-import java.util.Set;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -74,13 +74,18 @@ public class UdpCC {
     public static interface Serializer {
         /**
          * Called to determine the size of the byte array needed to
-         * serialize the given <code>msg</code> into.
+         * serialize the given <code>msg</code> into.  UdpCC itself no
+         * longer calls this; it serializes each message straight into its
+         * send buffer and measures the result.
          */
 	int serialize_size (Object msg);
 
         /**
          * Called to serialize the given <code>msg</code> into the provided
-         * <code>buf</code>; the inverse of <code>deserialize</code>.
+         * <code>buf</code>; the inverse of <code>deserialize</code>.  If
+         * the message doesn't fit before the limit of <code>buf</code>,
+         * this must throw a BufferOverflowException, as the relative put
+         * methods of ByteBuffer do.
          */
 	void serialize (Object msg, ByteBuffer buf);
 
@@ -222,6 +227,49 @@ public class UdpCC {
         logger.info ("timeout_diff=" + timeout_diff);
     }
 
+    /**
+     * Turns on coalescing: each time a connection gets its turn to write,
+     * all of its pending acknowledgements and as many of its queued
+     * messages as fit are sent together in a single datagram of at most
+     * <code>bytes</code> bytes (a message that won't fit in a frame of its
+     * own is still sent alone).  The frames use protocol versions 2 and 3,
+     * which nodes from before this option existed drop as unknown, so turn
+     * it on only once every peer understands them.  Zero, the default,
+     * turns it off.
+     */
+    public void set_coalesce_bytes (int bytes) {
+        if ((bytes != 0) && ((bytes < MIN_FRAME_SIZE) || (bytes > MAX_MSG_SIZE)))
+            throw new IllegalArgumentException ("coalesce bytes=" + bytes);
+        coalesce_bytes = bytes;
+        logger.info ("coalesce_bytes=" + coalesce_bytes);
+    }
+
+    /**
+     * Sets how many datagrams are read from the socket into a pool of
+     * receive buffers before any of them are processed.  One, the default,
+     * processes each datagram as soon as it is read.
+     */
+    public void set_recv_batch (int count) {
+        if (count < 1)
+            throw new IllegalArgumentException ("recv batch=" + count);
+        recv_batch = count;
+        recv_bufs = null;
+        logger.info ("recv_batch=" + recv_batch);
+    }
+
+    /**
+     * Returns the pool from which this UdpCC gets its send and receive
+     * buffers.  Like the rest of UdpCC, it must only be used from the
+     * thread running the ASyncCore.
+     */
+    public BufferPool buffer_pool () {
+        if (pool == null) {
+            pool = new BufferPool (POOL_MIN_SIZE, MAX_MSG_SIZE,
+                                   POOL_MAX_FREE, USE_DIRECT);
+        }
+        return pool;
+    }
+
     protected Mac mac;
     public void set_mac_key (String keyfile) throws Exception {
 
@@ -230,7 +278,9 @@ public class UdpCC {
         // a direct buffer in the first place.
 
         USE_DIRECT = false;
-        reuse_buf = ByteBuffer.allocate (MAX_MSG_SIZE);
+        pool = null;
+        reuse_buf = null;
+        recv_bufs = null;
 
         FileInputStream file = new FileInputStream (keyfile);
         byte [] keymat = new byte [20];
@@ -341,7 +391,7 @@ public class UdpCC {
      */
     public void cancelSend(Object token) {
         if (token == null) throw new NullPointerException();
-        cancelled.add((Long) token);
+        cancelled.put(((Long) token).longValue(), Boolean.TRUE);
     }
 
     /**
@@ -427,6 +477,12 @@ public class UdpCC {
 	public Connection conn;
 	public long start_ms, send_ms;
         public long msg_id;
+
+        /**
+         * The sequence number of the attempt this object is waiting on an
+         * acknowledgement for, once it has been sent.
+         */
+        public long seq;
 	public int attempt;
 	public long timeout_ms;
 	public boolean cut_ssthresh;
@@ -441,6 +497,7 @@ public class UdpCC {
 	    cut_ssthresh = other.cut_ssthresh;
 	    send_cb = other.send_cb;
             msg_id = other.msg_id;
+            seq = other.seq;
 	}
 
 	public TimeoutInfo (Connection c, Object m, long n, long to,
@@ -476,12 +533,12 @@ public class UdpCC {
          * TimeoutInfo objects for each message in flight, indexed by sequence
          * number.
          */
-	public Map inf = new HashMap ();
+	public LongMap<TimeoutInfo> inf = new LongMap<TimeoutInfo> ();
 
         /**
          * The sequence numbers of acknowledgements we need to send out.
          */
-	public LinkedList ack_q = new LinkedList ();
+	public LongQueue ack_q = new LongQueue ();
 
         /**
          * TimeoutInfo objects for new messages to be sent out.
@@ -526,6 +583,13 @@ public class UdpCC {
          */
 	public int next_q;
 
+        /**
+         * A message that didn't fit in the last frame sent, and its
+         * serialized bytes; see add_record.
+         */
+        public Object spill_msg;
+        public ByteBuffer spill;
+
         /**
          * Which connection is after us in the round-robin queue?
          */
@@ -688,25 +752,23 @@ public class UdpCC {
 
     protected static class TimeoutInfoAndSeq {
         public TimeoutInfo tinfo;
-        public Long seq;
-        public TimeoutInfoAndSeq (TimeoutInfo t, Long s) { tinfo = t; seq = s; }
+        public long seq;
+        public TimeoutInfoAndSeq (TimeoutInfo t, long s) { tinfo = t; seq = s; }
     }
 
     protected class MyAckTimeoutCB implements ASyncCore.TimerCB {
 	public void timer_cb (Object user_data) {
             if (closed) return;
 
-	    Long seq = (Long) user_data;
-	    TimeoutInfo tinfo = (TimeoutInfo) unacked.remove (seq);
-	    if (DEBUG) debugln ("check timeout "
-                        + Long.toHexString (seq.longValue ()));
+	    long seq = ((TimeoutInfo) user_data).seq;
+	    TimeoutInfo tinfo = unacked.remove (seq);
+	    if (DEBUG) debugln ("check timeout " + Long.toHexString (seq));
 
             long now_ms = System.currentTimeMillis ();
 	    if (tinfo == null) {
 		// already acked
 
-		if (DEBUG) debugln ("seq 0x"
-                        + Long.toHexString (seq.longValue ())
+		if (DEBUG) debugln ("seq 0x" + Long.toHexString (seq)
                         + " already acked");
 	    }
 	    else {
@@ -718,7 +780,7 @@ public class UdpCC {
                         new TimeoutInfoAndSeq (scti, seq), now_ms);
 
 		if (DEBUG_RTT) debugln ("timeout seq 0x"
-                        + Long.toHexString (seq.longValue ())
+                        + Long.toHexString (seq)
                         + ", peer=" + tinfo.conn.addr
                         + ", rtt=" + (now_ms - tinfo.send_ms)
                         + ", now=" + now_ms);
@@ -726,11 +788,11 @@ public class UdpCC {
 		if (tinfo.cut_ssthresh) {
                     ++tinfo.conn.consecutive_timeouts;
 		    tinfo.conn.timeout ();
-		    Iterator j = tinfo.conn.inf.keySet ().iterator ();
-		    while (j.hasNext ()) {
-			Long s2 = (Long) j.next ();
-			TimeoutInfo t2 = (TimeoutInfo) tinfo.conn.inf.get (s2);
-			t2.cut_ssthresh = false;
+		    LongMap<TimeoutInfo> inf = tinfo.conn.inf;
+		    for (int j = 0; j < inf.slots (); ++j) {
+			TimeoutInfo t2 = inf.value_at (j);
+			if (t2 != null)
+			    t2.cut_ssthresh = false;
 		    }
 		}
 		tinfo.conn.inf.remove (seq);
@@ -768,9 +830,9 @@ public class UdpCC {
                         TimeoutInfo tmp =
                             (TimeoutInfo) to_callback.removeFirst ();
                         if (DEBUG_MIN) debugln ("    " + tmp.msg);
-                        if ((!cancelled.remove(new Long(tmp.msg_id))) 
+                        if ((cancelled.remove(tmp.msg_id) == null)
                             && (tmp.send_cb != null)) {
-                            tmp.send_cb.run(new Boolean(false)/*failure*/);
+                            tmp.send_cb.run(Boolean.FALSE/*failure*/);
                         }
                     }
                 }
@@ -840,6 +902,8 @@ public class UdpCC {
 			    " tta=" + tta);
 		}
 	    }
+            if (pool != null)
+                logger.info ("pool=" + pool);
 
             if (! closed)
                 acore.register_timer (STATS_PERIOD, this, null);
@@ -852,10 +916,24 @@ public class UdpCC {
     protected static final long STATS_PERIOD = 30*1000;
     protected static final double MAX_WND = 1000.0*1000.0;
     protected static final int MAX_MSG_SIZE = 16*1024;
+
+    /**
+     * The bytes taken by the header of a coalesced frame, and by the header
+     * of each record in it; see handle_frame.
+     */
+    protected static final int FRAME_HEADER_SIZE = 6;
+    protected static final int RECORD_HEADER_SIZE = 18;
+    protected static final int MIN_FRAME_SIZE = 64;
     protected static final boolean LOG_BAD_NETWORK_EVENTS = true;
     protected static final boolean REUSE = true;
+    protected static final int POOL_MIN_SIZE = 256;
+    protected static final int POOL_MAX_FREE = 64;
 
     protected double timeout_factor = 1.0, timeout_diff = 0.0;
+    protected int coalesce_bytes;
+    protected int recv_batch = 1;
+    protected ByteBuffer [] recv_bufs;
+    protected InetSocketAddress [] recv_srcs;
 
     protected boolean closed;
     protected ASyncCore acore;
@@ -866,52 +944,117 @@ public class UdpCC {
     protected DatagramChannel channel;
     protected DatagramSocket sock;
     protected InetSocketAddress my_addr;
-    protected Map unacked = new HashMap ();
-    protected Map second_chance = new HashMap ();
+    protected LongMap<TimeoutInfo> unacked = new LongMap<TimeoutInfo> ();
+    protected LongMap<TimeoutInfo> second_chance =
+        new LongMap<TimeoutInfo> ();
     protected PriorityQueue second_chance_timeouts = new PriorityQueue (10);
     protected long next_msg_id;
     protected Connection rr_first, rr_last;
-    protected Set<Long> cancelled = new HashSet<Long>();
+    protected LongMap<Boolean> cancelled = new LongMap<Boolean>();
     protected Map conns = new HashMap ();
-    protected ByteBuffer reuse_buf = USE_DIRECT
-	    ? ByteBuffer.allocateDirect (MAX_MSG_SIZE)
-	    : ByteBuffer.allocate (MAX_MSG_SIZE);
+    protected BufferPool pool;
+    protected ByteBuffer reuse_buf;
     protected long in_bytes, in_pkts, out_bytes, out_pkts;
-    protected HashSet recently_seen_set = new HashSet ();
-    protected LinkedList recently_seen_list = new LinkedList ();
     protected static final int MAX_RECENTLY_SEEN_SIZE = 1000;
+    protected RecentlySeen recently_seen =
+        new RecentlySeen (MAX_RECENTLY_SEEN_SIZE);
 
     protected void debugln (String msg) {
         logger.debug (msg);
     }
 
-    protected static class SrcAndMsgId {
-        public InetSocketAddress src;
-        public long msg_id;
-        public SrcAndMsgId (InetSocketAddress s, long m) {
-            src = s; msg_id = m;
+    /**
+     * Remembers the (source, msg_id) pairs of the last <code>capacity</code>
+     * messages received, so that retransmissions of them can be dropped.
+     * The pairs are kept in a ring, oldest first, with an open-addressed
+     * hash table of ring positions on top, so that checking and recording
+     * a message allocates nothing.
+     */
+    protected static class RecentlySeen {
+        protected InetSocketAddress [] srcs;
+        protected long [] msg_ids;
+        protected int next, count;
+        // Ring positions plus one, so that zero marks an empty slot.
+        protected int [] table;
+        protected int mask;
+
+        public RecentlySeen (int capacity) {
+            srcs = new InetSocketAddress [capacity];
+            msg_ids = new long [capacity];
+            int slots = 4;
+            while (slots < capacity * 2)
+                slots <<= 1;
+            table = new int [slots];
+            mask = slots - 1;
+        }
+
+        protected final int slot (InetSocketAddress src, long msg_id) {
+            return LongMap.hash (msg_id ^ (((long) src.hashCode ()) << 32))
+                & mask;
         }
-        public int hashCode () {
-            return src.hashCode () ^ (int) msg_id;
+
+        /**
+         * Returns true if this pair is in the ring; otherwise, adds it,
+         * pushing out the oldest pair if the ring is full, and returns
+         * false.
+         */
+        public final boolean check_and_add (InetSocketAddress src,
+                                            long msg_id) {
+            int i = slot (src, msg_id);
+            while (table [i] != 0) {
+                int pos = table [i] - 1;
+                if ((msg_ids [pos] == msg_id) && srcs [pos].equals (src))
+                    return true;
+                i = (i + 1) & mask;
+            }
+            if (count == srcs.length) {
+                remove (next);
+                // The hole may have moved an entry into our chain.
+                i = slot (src, msg_id);
+                while (table [i] != 0)
+                    i = (i + 1) & mask;
+            }
+            else {
+                ++count;
+            }
+            srcs [next] = src;
+            msg_ids [next] = msg_id;
+            table [i] = next + 1;
+            next = (next + 1) % srcs.length;
+            return false;
         }
-        public boolean equals (Object rhs) {
-            SrcAndMsgId other = (SrcAndMsgId) rhs;
-            return (msg_id == other.msg_id) && src.equals (other.src);
+
+        protected final void remove (int pos) {
+            int i = slot (srcs [pos], msg_ids [pos]);
+            while (table [i] != pos + 1)
+                i = (i + 1) & mask;
+            // Shift back any later entries in the run that would otherwise
+            // no longer be found; see LongMap.delete_slot.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (table [j] == 0)
+                    break;
+                int other = table [j] - 1;
+                int home = slot (srcs [other], msg_ids [other]);
+                if ((i <= j) ? ((i < home) && (home <= j))
+                             : ((i < home) || (home <= j)))
+                    continue;
+                table [i] = table [j];
+                i = j;
+            }
+            table [i] = 0;
+            srcs [pos] = null;
         }
     }
 
     protected final boolean recently_seen (InetSocketAddress src, long msg_id) {
-        SrcAndMsgId k = new SrcAndMsgId (src, msg_id);
         ++received_msgs;
-        if (recently_seen_set.contains (k)) {
+        if (recently_seen.check_and_add (src, msg_id)) {
             ++received_duplicates; 
             return true;
         }
         else {
-            recently_seen_list.addLast (k);
-            recently_seen_set.add (k);
-            if (recently_seen_list.size () > MAX_RECENTLY_SEEN_SIZE)
-                recently_seen_set.remove (recently_seen_list.removeFirst ());
             return false;
         }
     }
@@ -967,6 +1110,8 @@ public class UdpCC {
 
    protected final ByteBuffer alloc_bb (int sz) {
 	if (REUSE) {
+            if (reuse_buf == null)
+                reuse_buf = buffer_pool ().alloc (MAX_MSG_SIZE);
 	    reuse_buf.clear ();
 	    reuse_buf.limit (sz);
 	    return reuse_buf;
@@ -979,21 +1124,21 @@ public class UdpCC {
 	}
     }
 
-    protected final void handle_ack (Long seq) {
-	TimeoutInfo tinfo = (TimeoutInfo) unacked.remove (seq);
+    protected final void handle_ack (long seq) {
+	TimeoutInfo tinfo = unacked.remove (seq);
 	long now_ms = System.currentTimeMillis ();
 
 	if (tinfo == null) {
-	    tinfo = (TimeoutInfo) second_chance.remove (seq);
+	    tinfo = second_chance.remove (seq);
 	    if (tinfo == null) {
 		if (DEBUG) debugln ("got unexpected ack for seq 0x" +
-                        Long.toHexString (seq.longValue ()));
+                        Long.toHexString (seq));
 	    }
 	    else {
 		tinfo.conn.lastrcv = System.currentTimeMillis ();
 
 		if (DEBUG_RTT) debugln ("2nd chance ack seq 0x"
-                        + Long.toHexString (seq.longValue ())
+                        + Long.toHexString (seq)
                         + ", peer=" + tinfo.conn.addr
                         + ", rtt=" + (now_ms - tinfo.send_ms)
                         + ", now=" + now_ms);
@@ -1010,8 +1155,7 @@ public class UdpCC {
 
 	conn.lastrcv = now_ms;
 
-	if (DEBUG) debugln ("got ack for seq 0x" +
-                Long.toHexString (seq.longValue ()));
+	if (DEBUG) debugln ("got ack for seq 0x" + Long.toHexString (seq));
 
 	conn.add_rtt_meas (
 		System.currentTimeMillis () - tinfo.send_ms);
@@ -1025,26 +1169,39 @@ public class UdpCC {
 	if (conn.writable ())
 	    add_to_rr (conn);
 
-        if ((!cancelled.remove(new Long(tinfo.msg_id))) 
+        if ((cancelled.remove(tinfo.msg_id) == null)
             && (tinfo.send_cb != null)) {
-                tinfo.send_cb.run(new Boolean(true)/* success */);
+                tinfo.send_cb.run(Boolean.TRUE/* success */);
         }
     }
 
     protected final void handle_inb_msg (ByteBuffer bb, InetSocketAddress src) {
 
 	long ack = bb.getLong ();
-	Long seq = new Long (bb.getLong ());
+	long seq = bb.getLong ();
         long wait_ms = -1L;
         long est_rtt_ms = -1L;
         if (bb.limit () - bb.position () >= 8) {
             wait_ms = bb.getInt ();
             est_rtt_ms = bb.getInt ();
         }
-        int size = bb.limit() - bb.position();
-
         if (ack != -1L)
-            handle_ack (new Long (ack));
+            handle_ack (ack);
+
+        // UdpCC.close () may have been called from the user's handler.
+        if (closed) return;
+
+        handle_inb_record (bb, src, seq, wait_ms, est_rtt_ms);
+    }
+
+    /**
+     * Handles one message, whose header has already been read; the message
+     * itself runs from the position to the limit of <code>bb</code>.
+     */
+    protected final void handle_inb_record (ByteBuffer bb,
+            InetSocketAddress src, long seq, long wait_ms, long est_rtt_ms) {
+
+        int size = bb.limit() - bb.position();
 
 	long now_ms = System.currentTimeMillis ();
 	Connection conn = (Connection) conns.get (src);
@@ -1055,18 +1212,17 @@ public class UdpCC {
 
 	// Send an ack.
         int tries = -1;
-	if (seq.longValue () != -1L) {
+	if (seq != -1L) {
 	    conn.ack_q.addLast (seq);
-            tries = attempt (seq.longValue ());
+            tries = attempt (seq);
         }
 
 	if (conn.writable ())
 	    add_to_rr (conn);
 
-        if ((seq.longValue () != -1L) &&
-            recently_seen (src, msg_id (seq.longValue ()))) {
+        if ((seq != -1L) && recently_seen (src, msg_id (seq))) {
             if (DEBUG) debugln ("received duplicate for msg_id=0x"
-                    + Long.toHexString (msg_id (seq.longValue ())));
+                    + Long.toHexString (msg_id (seq)));
         }
         else {
 
@@ -1101,9 +1257,9 @@ public class UdpCC {
                         + bytes);
             }
 
-            if (DEBUG && (seq.longValue () != -1L)) {
+            if (DEBUG && (seq != -1L)) {
                 if (DEBUG_MIN) debugln ("received " + msg + " seq=0x" +
-                        Long.toHexString (seq.longValue ()) + " from " + src);
+                        Long.toHexString (seq) + " from " + src);
 	    }
 
             if (!conn.addr.equals(my_addr))
@@ -1114,7 +1270,10 @@ public class UdpCC {
     }
 
     protected final void handle_readable () {
-        outer:
+        if (recv_batch > 1) {
+            handle_readable_batch ();
+            return;
+        }
 	while (true) {
 
 	    ByteBuffer bb = alloc_bb (MAX_MSG_SIZE);
@@ -1139,98 +1298,232 @@ public class UdpCC {
 		return;
 
 	    bb.flip ();
+            handle_datagram (bb, src);
 
-            in_pkts += 1;
-            in_bytes += bb.limit () + 20 /* account for IP header */;
-            
-            int protocol_version = bb.getInt ();
-
-            if (protocol_version == 0) {
-                // This is the new, un-MAC'ed format.  If a MAC is set, 
-                // ignore the message.
+            // UdpCC.close () may have been called from the user's handler
+            // in handle_ack or handle_inb_msg.
+            if (closed) return;
+	}
+    }
 
-                if (mac != null) {
-                    logger.info ("un-MAC'ed message from " 
-                            + src.getAddress ().getHostAddress ());
-                    continue;
+    /**
+     * Like handle_readable, but reads up to recv_batch datagrams into the
+     * pooled receive buffers before handling any of them.
+     */
+    protected final void handle_readable_batch () {
+        if (recv_bufs == null) {
+            recv_bufs = new ByteBuffer [recv_batch];
+            recv_srcs = new InetSocketAddress [recv_batch];
+            for (int i = 0; i < recv_batch; ++i)
+                recv_bufs [i] = buffer_pool ().alloc (MAX_MSG_SIZE);
+        }
+        while (true) {
+            int count = 0;
+            while (count < recv_batch) {
+                ByteBuffer bb = recv_bufs [count];
+                bb.clear ();
+                InetSocketAddress src = null;
+                try {
+                    src = (InetSocketAddress) channel.receive (bb);
                 }
-
-                if (bb.limit () < 12) {
-                    logger.info ("message < 12 bytes from "
-                            + src.getAddress ().getHostAddress ());
-                    continue;
+                catch (SocketException e) {
+                    // See handle_readable.
+                    break;
                 }
+                catch (IOException e) {
+                    BUG (e);
+                }
+                if (bb.position () == 0)
+                    break;
+                bb.flip ();
+                recv_srcs [count++] = src;
+            }
 
-                if (bb.limit () == 12)
-                    handle_ack (new Long (bb.getLong ()));
-                else
-                    handle_inb_msg (bb, src);
+            for (int i = 0; i < count; ++i) {
+                handle_datagram (recv_bufs [i], recv_srcs [i]);
+                recv_srcs [i] = null;
+                if (closed) return;
             }
-            else if (protocol_version == 1) {
-                // This the the new, MAC'ed format.  If no MAC is set on this
-                // node, ignore the MAC included in the message.  Otherwise,
-                // check the MAC.
-
-                if (bb.limit () < 32) {
-                    logger.info ("message < 32 bytes from "
-                            + src.getAddress ().getHostAddress ());
-                    continue;
-                }
 
-                if (mac != null) {
-                    assert bb.hasArray ();
-                    // The MAC is over the entire packet except the MAC
-                    // itself, which is the last 20 bytes.
-
-                    mac.update (bb.array(), bb.arrayOffset(), bb.limit() - 20);
-                    byte [] macbytes = mac.doFinal();
-                    int j = bb.arrayOffset () + bb.limit () - 20;
-                    for (int i = 0; i < 20; ++i) {
-                        if (macbytes [i] != bb.array() [j++]) {
-                            // Don't match
-                            logger.info ("macs don't match addr=" 
-                                    + src.getAddress ().getHostAddress ());
-                            continue outer;
-                        }
-                    }
-                }
+            if (count < recv_batch)
+                return;
+        }
+    }
 
-                if (bb.limit () == 32) 
-                    handle_ack (new Long (bb.getLong ()));
-                else
-                    handle_inb_msg (bb, src);
+    protected final void handle_datagram (ByteBuffer bb,
+                                          InetSocketAddress src) {
+
+        in_pkts += 1;
+        in_bytes += bb.limit () + 20 /* account for IP header */;
+
+        int protocol_version = bb.getInt ();
+
+        if (protocol_version == 0) {
+            // This is the new, un-MAC'ed format.  If a MAC is set, 
+            // ignore the message.
+
+            if (mac != null) {
+                logger.info ("un-MAC'ed message from " 
+                        + src.getAddress ().getHostAddress ());
+                return;
             }
-            else {
-                logger.info ("unknown protocol 0x" 
-                        + Integer.toHexString (protocol_version) + " from " 
+
+            if (bb.limit () < 12) {
+                logger.info ("message < 12 bytes from "
                         + src.getAddress ().getHostAddress ());
-                continue;
+                return;
             }
 
-            // UdpCC.close () may have been called from the user's handler
-            // in handle_ack or handle_inb_msg.
+            if (bb.limit () == 12)
+                handle_ack (bb.getLong ());
+            else
+                handle_inb_msg (bb, src);
+        }
+        else if (protocol_version == 1) {
+            // This the the new, MAC'ed format.  If no MAC is set on this
+            // node, ignore the MAC included in the message.  Otherwise,
+            // check the MAC.
+
+            if (bb.limit () < 32) {
+                logger.info ("message < 32 bytes from "
+                        + src.getAddress ().getHostAddress ());
+                return;
+            }
+
+            if ((mac != null) && (! mac_matches (bb, src)))
+                return;
+
+            if (bb.limit () == 32) 
+                handle_ack (bb.getLong ());
+            else
+                handle_inb_msg (bb, src);
+        }
+        else if (protocol_version == 2) {
+            // A coalesced frame, un-MAC'ed.
+
+            if (mac != null) {
+                logger.info ("un-MAC'ed frame from " 
+                        + src.getAddress ().getHostAddress ());
+                return;
+            }
+            handle_frame (bb, src, bb.limit ());
+        }
+        else if (protocol_version == 3) {
+            // A coalesced frame, MAC'ed like protocol version 1.
+
+            if (bb.limit () < FRAME_HEADER_SIZE + 20) {
+                logger.info ("frame < " + (FRAME_HEADER_SIZE + 20)
+                        + " bytes from "
+                        + src.getAddress ().getHostAddress ());
+                return;
+            }
+            if ((mac != null) && (! mac_matches (bb, src)))
+                return;
+            handle_frame (bb, src, bb.limit () - 20);
+        }
+        else {
+            logger.info ("unknown protocol 0x" 
+                    + Integer.toHexString (protocol_version) + " from " 
+                    + src.getAddress ().getHostAddress ());
+            return;
+        }
+    }
+
+    /**
+     * Checks the MAC at the end of a MAC'ed packet, which covers the entire
+     * packet except the MAC itself, the last 20 bytes.
+     */
+    protected final boolean mac_matches (ByteBuffer bb,
+                                         InetSocketAddress src) {
+        assert bb.hasArray ();
+        mac.update (bb.array(), bb.arrayOffset(), bb.limit() - 20);
+        byte [] macbytes = mac.doFinal();
+        int j = bb.arrayOffset () + bb.limit () - 20;
+        for (int i = 0; i < 20; ++i) {
+            if (macbytes [i] != bb.array() [j++]) {
+                // Don't match
+                logger.info ("macs don't match addr=" 
+                        + src.getAddress ().getHostAddress ());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles a coalesced frame (protocol versions 2 and 3), whose version
+     * has already been read.  After the version, a frame holds a two-byte
+     * count n of acknowledgements, then any number of records, each
+     * holding one message:
+     * <table>
+     * <tr><td>Bytes</td><td>Data</td></tr>
+     * <tr><td> 0-1 </td><td>length of the rest of the record</td></tr>
+     * <tr><td> 2-9 </td><td>sequence number, or -1 for send_nocc</td></tr>
+     * <tr><td> 10-13 </td><td>wait_ms</td></tr>
+     * <tr><td> 14-17 </td><td>est_rtt_ms</td></tr>
+     * <tr><td> 18- </td><td>the serialized message</td></tr>
+     * </table>
+     * then the n eight-byte sequence numbers being acknowledged, and, in
+     * version 3, the 20-byte MAC.  The acknowledgements come last so that
+     * the sender can fill whatever room the records leave with them.
+     * <code>end</code> is where the acknowledgements stop.
+     */
+    protected final void handle_frame (ByteBuffer bb, InetSocketAddress src,
+                                       int end) {
+        if (end < FRAME_HEADER_SIZE) {
+            logger.info ("frame < " + FRAME_HEADER_SIZE + " bytes from "
+                    + src.getAddress ().getHostAddress ());
+            return;
+        }
+        int acks = bb.getShort () & 0xffff;
+        int records_end = end - acks * 8;
+        if (records_end < bb.position ()) {
+            logger.info ("frame with " + acks + " acks is only " + end
+                    + " bytes from " + src.getAddress ().getHostAddress ());
+            return;
+        }
+        for (int i = 0; i < acks; ++i) {
+            handle_ack (bb.getLong (records_end + i * 8));
             if (closed) return;
-	}
+        }
+        end = records_end;
+        bb.limit (end);
+        while (bb.position () + 2 <= end) {
+            int len = bb.getShort () & 0xffff;
+            int record_end = bb.position () + len;
+            if ((len < RECORD_HEADER_SIZE - 2) || (record_end > end)) {
+                logger.info ("bad record length " + len + " in frame from "
+                        + src.getAddress ().getHostAddress ());
+                return;
+            }
+            long seq = bb.getLong ();
+            long wait_ms = bb.getInt ();
+            long est_rtt_ms = bb.getInt ();
+            bb.limit (record_end);
+            handle_inb_record (bb, src, seq, wait_ms, est_rtt_ms);
+            if (closed) return;
+            bb.limit (end);
+            bb.position (record_end);
+        }
     }
 
     protected final boolean send_ack (Connection conn) {
 	long now_ms = System.currentTimeMillis ();
-	Long seq = (Long) conn.ack_q.getFirst ();
+	long seq = conn.ack_q.getFirst ();
 
-	if (DEBUG) debugln ("sending ack seq 0x" +
-                Long.toHexString (seq.longValue ()));
+	if (DEBUG) debugln ("sending ack seq 0x" + Long.toHexString (seq));
 
         ByteBuffer bb = null;
         if (mac == null) {
             bb = alloc_bb (12);
             bb.putInt (0); // protocol version
-            bb.putLong (seq.longValue ());
+            bb.putLong (seq);
             bb.rewind ();
         }
         else {
             bb = alloc_bb (32);
             bb.putInt (1); // protocol version
-            bb.putLong (seq.longValue ());
+            bb.putLong (seq);
             mac.update (bb.array(), bb.arrayOffset(), bb.position ());
             byte [] macbytes = mac.doFinal();
             bb.put (macbytes, 0, 20);
@@ -1269,34 +1562,12 @@ public class UdpCC {
         // Piggyback an ACK if we have one.
         long ack = -1L;
         if (! conn.ack_q.isEmpty ()) {
-            ack = ((Long) conn.ack_q.getFirst ()).longValue ();
+            ack = conn.ack_q.getFirst ();
             if (DEBUG) debugln ("piggybacking ack " + ack);
         }
 
-        int sz = serializer.serialize_size (msg)
-            + 28 /* for version+ack+seq+wait_ms+est_rtt_ms */;
-	if (sz > MAX_MSG_SIZE) {
-	    BUG ("size=" + sz + " is greater than max size=" + MAX_MSG_SIZE +
-		    " for msg " + msg);
-	}
-
-	long now_ms = System.currentTimeMillis ();
-
-	ByteBuffer bb = null;
-        if (mac == null) {
-            bb = alloc_bb (sz);
-            bb.putInt (0); // protocol version
-        }
-        else {
-            bb = alloc_bb (sz + 20);
-            bb.putInt (1); // protocol version
-        }
-        bb.putLong (ack);
-        bb.putLong (seq);
-        bb.putInt ((int) 0); // don't know how long it's been waiting
-        bb.putInt ((int) (conn.sa >> 3));
-        serializer.serialize (msg, bb);
-	bb.rewind ();
+        // We don't know how long it's been waiting.
+        ByteBuffer bb = build_msg (conn, msg, ack, seq, 0);
 
 	int n = 0;
 	try {
@@ -1324,13 +1595,56 @@ public class UdpCC {
 	return true;
     }
 
+    /**
+     * Fills the send buffer with an un-coalesced packet (protocol version
+     * 0, or 1 if we have a MAC) holding <code>msg</code>, and returns it
+     * flipped and ready to send.  The message is serialized straight into
+     * the buffer, once; its size is wherever the serializer stops.
+     */
+    protected final ByteBuffer build_msg (Connection conn, Object msg,
+                                          long ack, long seq, long wait_ms) {
+        int mac_len = (mac == null) ? 0 : 20;
+        ByteBuffer bb = alloc_bb (MAX_MSG_SIZE - mac_len);
+        bb.putInt ((mac == null) ? 0 : 1); // protocol version
+        bb.putLong (ack);
+        bb.putLong (seq);
+        bb.putInt ((int) wait_ms);
+        bb.putInt ((int) (conn.sa >> 3));
+        if (serialize (msg, bb) < 0) {
+            BUG ("msg is greater than max size=" + MAX_MSG_SIZE + ": " + msg);
+        }
+        if (mac != null) {
+            bb.limit (MAX_MSG_SIZE);
+            mac.update (bb.array(), bb.arrayOffset(), bb.position ());
+            byte [] macbytes = mac.doFinal();
+            bb.put (macbytes, 0, 20);
+        }
+        bb.flip ();
+        return bb;
+    }
+
+    /**
+     * Serializes <code>msg</code> at the position of <code>bb</code>, and
+     * returns its size, or -1 if it didn't fit before the limit.
+     */
+    protected final int serialize (Object msg, ByteBuffer bb) {
+        int start = bb.position ();
+        try {
+            serializer.serialize (msg, bb);
+        }
+        catch (BufferOverflowException e) {
+            return -1;
+        }
+        return bb.position () - start;
+    }
+
     protected final boolean send_msg (Connection conn, boolean retry) {
 
         TimeoutInfo tinfo = null;
         LinkedList<TimeoutInfo> q = retry ? conn.retry_q : conn.send_q;
         while (!q.isEmpty()) {
             TimeoutInfo t = q.getFirst();
-            if (cancelled.remove(new Long(t.msg_id)))
+            if (cancelled.remove(t.msg_id) != null)
                 q.removeFirst();
             else {
                 tinfo = t; 
@@ -1349,40 +1663,14 @@ public class UdpCC {
         // Piggyback an ACK if we have one.
         long ack = -1L;
         if (! conn.ack_q.isEmpty ()) {
-            ack = ((Long) conn.ack_q.getFirst ()).longValue ();
+            ack = conn.ack_q.getFirst ();
             if (DEBUG) debugln ("piggybacking ack " + ack);
         }
 
 	long now_ms = System.currentTimeMillis ();
         long wait_ms = now_ms - tinfo.start_ms;
 
-	int sz = serializer.serialize_size (tinfo.msg)
-            + 28 /* for version+ack+seq+wait_ms+est_rtt_ms */;
-	if (sz > MAX_MSG_SIZE) {
-	    BUG ("size=" + sz + " is greater than max size=" + MAX_MSG_SIZE +
-		    " for msg " + tinfo.msg);
-	}
-
-	ByteBuffer bb = null;
-        if (mac == null) {
-            bb = alloc_bb (sz);
-            bb.putInt (0); // protocol version
-        }
-        else {
-            bb = alloc_bb (sz + 20);
-            bb.putInt (1); // protocol version
-        }
-	bb.putLong (ack);
-        bb.putLong (seq);
-        bb.putInt ((int) wait_ms);
-        bb.putInt ((int) (conn.sa >> 3));
-	serializer.serialize (tinfo.msg, bb);
-        if (mac != null) {
-            mac.update (bb.array(), bb.arrayOffset(), bb.position ());
-            byte [] macbytes = mac.doFinal();
-            bb.put (macbytes, 0, 20);
-        }
-	bb.rewind ();
+        ByteBuffer bb = build_msg (conn, tinfo.msg, ack, seq, wait_ms);
 
 	int n = 0;
 	try {
@@ -1413,6 +1701,17 @@ public class UdpCC {
         if (ack != -1)
             conn.ack_q.removeFirst ();
 
+        msg_sent (conn, tinfo, retry, seq, now_ms);
+	return true;
+    }
+
+    /**
+     * Records that the message at the head of the retry or send queue has
+     * been put on the wire with the given sequence number, and starts its
+     * timeout.
+     */
+    protected final void msg_sent (Connection conn, TimeoutInfo tinfo,
+                                   boolean retry, long seq, long now_ms) {
         if (retry) {
             conn.retry_q.removeFirst ();
             TimeoutInfo tnew = new TimeoutInfo (
@@ -1427,17 +1726,204 @@ public class UdpCC {
             conn.time_to_first_send_cnt += 1;
         }
         tinfo.send_ms = now_ms;
+        tinfo.seq = seq;
 
-	Long Seq = new Long (seq);
-        unacked.put (Seq, tinfo);
-	conn.inf.put (Seq, tinfo);
+        unacked.put (seq, tinfo);
+	conn.inf.put (seq, tinfo);
 	conn.lastsnd = now_ms;
 
         long timeout_ms = Math.round (conn.rto * timeout_factor + timeout_diff);
 	if (DEBUG) debugln ("setting timeout for " + timeout_ms);
-	acore.register_timer (timeout_ms, ack_timeout_cb, Seq);
+	acore.register_timer (timeout_ms, ack_timeout_cb, tinfo);
+    }
 
-	return true;
+    /**
+     * Sends a coalesced frame (see handle_frame) for a connection holding,
+     * alternately from its congestion-controlled and send_nocc queues, as
+     * many messages as fit in coalesce_bytes and the congestion window,
+     * and then as many of its pending acknowledgements as fit in the
+     * space left.  Returns false if the socket wasn't writable, in which
+     * case nothing is dequeued.
+     */
+    protected final boolean send_frame (Connection conn) {
+        long now_ms = System.currentTimeMillis ();
+        int mac_len = (mac == null) ? 0 : 20;
+        int limit = coalesce_bytes - mac_len;
+
+        ByteBuffer bb = alloc_bb (MAX_MSG_SIZE - mac_len);
+        bb.putInt ((mac == null) ? 2 : 3); // protocol version
+        bb.putShort ((short) 0); // ack count, filled in below
+
+        int retries = 0, sends = 0, probes = 0;
+        Iterator<TimeoutInfo> retry_i = conn.retry_q.iterator ();
+        Iterator<TimeoutInfo> send_i = conn.send_q.iterator ();
+        Iterator probe_i = conn.probe_q.iterator ();
+        boolean cc_done = false, probes_done = false;
+        boolean cc_next = (conn.next_q == 0);
+        while (! (cc_done && probes_done)) {
+            if (cc_next && (! cc_done)) {
+                TimeoutInfo tinfo = null;
+                boolean retry = false;
+                if (conn.inf.size () + retries + sends < (int) conn.cwnd) {
+                    if (sends == 0)
+                        tinfo = next_uncancelled (retry_i);
+                    if (tinfo != null)
+                        retry = true;
+                    else
+                        tinfo = next_uncancelled (send_i);
+                }
+                if ((tinfo == null) || (! add_record (bb, limit, tinfo.msg,
+                                make_seq (tinfo.msg_id, tinfo.attempt + 1),
+                                now_ms - tinfo.start_ms, conn)))
+                    cc_done = true;
+                else if (retry)
+                    ++retries;
+                else
+                    ++sends;
+            }
+            else if (! probes_done) {
+                if ((! probe_i.hasNext ())
+                    || (! add_record (bb, limit, probe_i.next (), -1L, 0,
+                                      conn)))
+                    probes_done = true;
+                else
+                    ++probes;
+            }
+            cc_next = ! cc_next;
+        }
+        conn.next_q = (conn.next_q + 1) % 2;
+
+        // A large first message may have taken us past limit.
+        int room = ((bb.position () <= limit) ? limit : MAX_MSG_SIZE - mac_len)
+            - bb.position ();
+        int acks = Math.min (Math.min (conn.ack_q.size (), 0xffff), room / 8);
+        for (int i = 0; i < acks; ++i)
+            bb.putLong (conn.ack_q.get (i));
+        bb.putShort (4, (short) acks);
+
+        if ((acks == 0) && (retries + sends + probes == 0))
+            return true; // socket still writable
+
+        if (mac != null) {
+            bb.limit (MAX_MSG_SIZE);
+            mac.update (bb.array(), bb.arrayOffset(), bb.position ());
+            byte [] macbytes = mac.doFinal();
+            bb.put (macbytes, 0, 20);
+        }
+        bb.flip ();
+
+	int n = 0;
+	try {
+	    n = channel.send (bb, conn.addr);
+	}
+	catch (IOException e) {
+	    BUG (e);
+	}
+
+	if (n == 0) {
+	    if (DEBUG) debugln ("send failed, will retry later");
+	    return false;
+	}
+
+        // Send was successful.
+
+        out_pkts += 1;
+        out_bytes += bb.limit () + 20 /* account for IP header */;
+
+        for (int i = 0; i < acks; ++i)
+            conn.ack_q.removeFirst ();
+        for (int i = 0; i < retries + sends; ++i) {
+            boolean retry = (i < retries);
+            TimeoutInfo tinfo = retry
+                ? conn.retry_q.getFirst () : conn.send_q.getFirst ();
+            tinfo.attempt++;
+            msg_sent (conn, tinfo, retry,
+                      make_seq (tinfo.msg_id, tinfo.attempt), now_ms);
+        }
+        for (int i = 0; i < probes; ++i)
+            conn.probe_q.removeFirst ();
+        return true;
+    }
+
+    /**
+     * Returns the next message from a retry_q or send_q iterator that
+     * hasn't been cancelled, removing any that have, or null if there are
+     * none.
+     */
+    protected final TimeoutInfo next_uncancelled (Iterator<TimeoutInfo> i) {
+        while (i.hasNext ()) {
+            TimeoutInfo t = i.next ();
+            if (cancelled.remove (t.msg_id) == null)
+                return t;
+            i.remove ();
+        }
+        return null;
+    }
+
+    /**
+     * Appends a record for <code>msg</code> to a frame being built, if it
+     * fits within <code>limit</code> bytes, or is the first record and
+     * fits in the buffer.  Returns whether it was added.
+     *
+     * <p>The message is serialized straight into the frame, so we only
+     * learn whether it fits afterwards.  If it doesn't, we keep its bytes
+     * in the connection's spill buffer, and copy them from there when the
+     * same message leads off the next frame, rather than serialize it
+     * again.
+     */
+    protected final boolean add_record (ByteBuffer bb, int limit, Object msg,
+                                        long seq, long wait_ms,
+                                        Connection conn) {
+        int record = bb.position ();
+        boolean first = (record == FRAME_HEADER_SIZE);
+        int max = first ? bb.limit () : limit;
+        if (record + RECORD_HEADER_SIZE > max)
+            return false;
+        bb.putShort ((short) 0); // length, filled in below
+        bb.putLong (seq);
+        bb.putInt ((int) wait_ms);
+        bb.putInt ((int) (conn.sa >> 3));
+        int start = bb.position ();
+        if (conn.spill_msg == msg) {
+            if (start + conn.spill.remaining () > max) {
+                bb.position (record);
+                return false;
+            }
+            bb.put (conn.spill);
+            free_spill (conn);
+        }
+        else if (serialize (msg, bb) < 0) {
+            if (first) {
+                BUG ("msg is greater than max size=" + MAX_MSG_SIZE
+                        + ": " + msg);
+            }
+            bb.position (record);
+            return false;
+        }
+        else if (bb.position () > max) {
+            int end = bb.position ();
+            free_spill (conn);
+            conn.spill = buffer_pool ().alloc (end - start);
+            conn.spill_msg = msg;
+            int lim = bb.limit ();
+            bb.limit (end);
+            bb.position (start);
+            conn.spill.put (bb);
+            conn.spill.flip ();
+            bb.limit (lim);
+            bb.position (record);
+            return false;
+        }
+        bb.putShort (record, (short) (bb.position () - record - 2));
+        return true;
+    }
+
+    protected final void free_spill (Connection conn) {
+        if (conn.spill != null) {
+            buffer_pool ().free (conn.spill);
+            conn.spill = null;
+            conn.spill_msg = null;
+        }
     }
 
     protected final void add_to_rr (Connection conn) {
@@ -1481,7 +1967,12 @@ public class UdpCC {
             rr_first = rr_first.next;
             conn.in_rr = false;
 
-	    if (conn.writable ()) {
+	    if (conn.writable () && (coalesce_bytes > 0)) {
+		if (DEBUG) debugln ("handle_writable frame conn=" + conn.addr);
+                if (! send_frame (conn))
+                    return;
+            }
+	    else if (conn.writable ()) {
 		if (DEBUG) debugln ("handle_writable conn=" + conn.addr);
 
                 if (conn.can_send_either () || conn.can_send_probe ()) {
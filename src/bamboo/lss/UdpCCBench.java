@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.lss;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A microbenchmark for UdpCC's receive and acknowledgement paths.  Two
+ * UdpCC instances on the loopback interface share one ASyncCore; one keeps
+ * <code>window_size</code> messages in flight to the other for
+ * <code>test_length_secs</code>, then the test prints the messages per
+ * second received, the number of garbage collections, and the time
+ * spent in them, per second, and each side's buffer pool statistics.  The messages carry no data beyond UdpCC's
+ * headers, and are never copied out of the receive buffer, so nearly all
+ * of the garbage comes from UdpCC itself.
+ *
+ * <p>Usage: <code>UdpCCBench window_size test_length_secs
+ * [coalesce_bytes [recv_batch [mac_key_file]]]</code>; the optional
+ * arguments are passed to the UdpCC setters of the same names.
+ *
+ * @version $Id$
+ */
+public class UdpCCBench implements UdpCC.Serializer, UdpCC.Sink, UdpCC.SendCB {
+
+    public static final Object MSG = new Object ();
+
+    public int serialize_size (Object msg) {
+        return 0;
+    }
+
+    public void serialize (Object msg, ByteBuffer buf) {
+    }
+
+    public Object deserialize (ByteBuffer buf) throws Exception {
+        return MSG;
+    }
+
+    public void recv (Object msg, InetSocketAddress src,
+            InetSocketAddress local,
+            int tries, long wait_ms, long est_rtt_ms) {
+        ++received;
+    }
+
+    public void cb (Object user_data, boolean success) {
+        if (! success) {
+            System.err.println ("send failed");
+            System.exit (1);
+        }
+        send_new_msg ();
+    }
+
+    protected static long gc_count () {
+        long result = 0;
+        Iterator<GarbageCollectorMXBean> i =
+            ManagementFactory.getGarbageCollectorMXBeans ().iterator ();
+        while (i.hasNext ())
+            result += i.next ().getCollectionCount ();
+        return result;
+    }
+
+    protected static long gc_time_ms () {
+        long result = 0;
+        Iterator<GarbageCollectorMXBean> i =
+            ManagementFactory.getGarbageCollectorMXBeans ().iterator ();
+        while (i.hasNext ())
+            result += i.next ().getCollectionTime ();
+        return result;
+    }
+
+    public static ASyncCore.TimerCB start_cb = new ASyncCore.TimerCB () {
+        public void timer_cb (Object not_used) {
+            received = 0;
+            start_gc_count = gc_count ();
+            start_gc_time_ms = gc_time_ms ();
+            start_time_ms = System.currentTimeMillis ();
+            acore.register_timer (test_length_secs * 1000, stop_cb, null);
+        }
+    };
+
+    public static ASyncCore.TimerCB stop_cb = new ASyncCore.TimerCB () {
+        public void timer_cb (Object not_used) {
+            long test_length_ms = System.currentTimeMillis () - start_time_ms;
+            double secs = test_length_ms / 1000.0;
+            long gcs = gc_count () - start_gc_count;
+            long gc_ms = gc_time_ms () - start_gc_time_ms;
+            System.out.println ("received " + received + " messages in "
+                    + test_length_ms + " ms: " + Math.round (received / secs)
+                    + " messages/s");
+            System.out.println ("gc: " + gcs + " collections, " + gc_ms
+                    + " ms (" + (Math.round (gcs / secs * 100.0) / 100.0)
+                    + " collections/s, "
+                    + (Math.round (gc_ms / secs * 100.0) / 100.0)
+                    + " ms/s)");
+            System.out.println ("sender pool: " + sender.buffer_pool ());
+            System.out.println ("receiver pool: " + receiver.buffer_pool ());
+            System.exit (0);
+        }
+    };
+
+    public static void send_new_msg () {
+        sender.send (MSG, receiver_addr, 3600, cbs, null);
+    }
+
+    public static UdpCC sender, receiver;
+    public static ASyncCore acore;
+    public static InetSocketAddress receiver_addr;
+    public static UdpCCBench cbs;
+    public static int test_length_secs;
+    public static long received;
+    public static long start_time_ms, start_gc_count, start_gc_time_ms;
+
+    public static void main (String [] args) throws Exception {
+        acore = new ASyncCoreImpl ();
+        cbs = new UdpCCBench ();
+        int argc = 0;
+        int window_size = Integer.parseInt (args [argc++]);
+        test_length_secs = Integer.parseInt (args [argc++]);
+        InetAddress lo = InetAddress.getByName ("127.0.0.1");
+        receiver = new UdpCC (acore, new InetSocketAddress (lo, 0), cbs, cbs);
+        receiver_addr = new InetSocketAddress (
+                lo, receiver.sock.getLocalPort ());
+        sender = new UdpCC (acore, new InetSocketAddress (lo, 0), cbs, cbs);
+        UdpCC [] both = {receiver, sender};
+        for (int i = 0; i < both.length; ++i) {
+            if (args.length > argc)
+                both [i].set_coalesce_bytes (Integer.parseInt (args [argc]));
+            if (args.length > argc + 1)
+                both [i].set_recv_batch (Integer.parseInt (args [argc + 1]));
+            if (args.length > argc + 2)
+                both [i].set_mac_key (args [argc + 2]);
+        }
+        for (int i = 0; i < window_size; ++i)
+            send_new_msg ();
+        // Let the JIT and the congestion window settle first.
+        acore.register_timer (5*1000, start_cb, null);
+        acore.async_main ();
+    }
+}
@@ -7,11 +7,17 @@
 
 package bamboo.router;
 import bamboo.api.BambooNeighborInfo;
+import bamboo.util.Guid;
 import bamboo.util.GuidTools;
 import java.math.BigInteger;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
 import ostore.util.NodeId;
@@ -19,6 +25,14 @@ import static bamboo.util.GuidTools.*;
 
 /**
  * Manages the leaf set for node.
+ *
+ * <p>The predecessors and successors are kept in leaf_preds and
+ * leaf_succs, nearest first, as the leaf set maintenance code expects.
+ * For lookups, the members and this node are also kept in one array,
+ * <code>ring</code>, sorted clockwise from this node and rebuilt whenever
+ * the leaf set changes; closest_leaf and replicas binary search it for
+ * the members on either side of a key, rather than computing the
+ * distance to every member.
  * 
  * @author Sean C. Rhea
  * @version $Id: LeafSet.java,v 1.31 2005/08/16 05:11:08 srhea Exp $
@@ -28,6 +42,7 @@ public class LeafSet {
     protected BigInteger MODULUS;
     
     protected BigInteger my_guid;
+    protected Guid my_id;
     protected NeighborInfo my_neighbor_info;
 
     protected NeighborInfo [] leaf_preds;
@@ -36,6 +51,26 @@ public class LeafSet {
     protected int leaf_pred_count, leaf_succ_count;
     protected boolean overlap;
 
+    /**
+     * This node, then the distinct members of the leaf set, in clockwise
+     * order from this node; ring_ids holds their Guids.  ring_index holds
+     * the index each one had in the leaf set as replicas numbers them: 0
+     * for this node, -(i+1) for leaf_preds [i], and i+1 for leaf_succs
+     * [i].  ring_down is set for members marked possibly down.
+     */
+    protected NeighborInfo [] ring;
+    protected Guid [] ring_ids;
+    protected int [] ring_index;
+    protected boolean [] ring_down;
+    protected int ring_size;
+
+    /**
+     * The nodes marked possibly down, whether or not they are members.
+     */
+    protected Set<NeighborInfo> down = new HashSet<NeighborInfo>();
+
+    protected ReplicaSet replica_set;
+
     public boolean overlap() { return overlap; }
 
     public NeighborInfo random_member (Random rand) {
@@ -51,10 +86,17 @@ public class LeafSet {
 	MODULUS = mod;
 	my_neighbor_info = ni;
 	my_guid = ni.guid;
+	my_id = ni.id ();
 	leaf_set_size = sz;
 	leaf_preds = new NeighborInfo [leaf_set_size];
 	leaf_succs = new NeighborInfo [leaf_set_size];
+	ring = new NeighborInfo [2 * leaf_set_size + 1];
+	ring_ids = new Guid [ring.length];
+	ring_index = new int [ring.length];
+	ring_down = new boolean [ring.length];
+	replica_set = new ReplicaSet ();
         updateOverlap();
+        update_ring ();
     }
 
     public LinkedList<NeighborInfo> as_list() {
@@ -97,6 +139,7 @@ public class LeafSet {
      */
     public Set<NeighborInfo> intermediates(BigInteger other) {
 	Set<NeighborInfo> result = null;
+	Guid other_id = Guid.valueOf (other);
 	int i;
 	// Is is a predecessor?
 	for (i = 0; i < leaf_pred_count; ++i) {
@@ -108,7 +151,7 @@ public class LeafSet {
 	    for (i = 0; i < leaf_pred_count; ++i) {
 		if (leaf_preds [i].guid.equals (other)) 
 		    break;
-		if (in_range_mod (other, my_guid, leaf_preds [i].guid)) {
+		if (in_range_mod (other_id, my_id, leaf_preds [i].id ())) {
 		    if (result == null)
 			result = new LinkedHashSet<NeighborInfo>();
 		    result.add (leaf_preds [i]);
@@ -125,7 +168,7 @@ public class LeafSet {
 	    for (i = 0; i < leaf_succ_count; ++i) {
 		if (leaf_succs [i].guid.equals (other)) 
 		    break;
-		if (in_range_mod (my_guid, other, leaf_succs [i].guid)) {
+		if (in_range_mod (my_id, other_id, leaf_succs [i].id ())) {
 		    if (result == null)
 			result = new LinkedHashSet<NeighborInfo>();
 		    result.add (leaf_preds [i]);
@@ -138,34 +181,32 @@ public class LeafSet {
 
     /**
      * Returns the set of nodes in the DHT that should have replicas for the
-     * given key.
+     * given key.  The set is reused by the next call, and must not be
+     * kept or modified by the caller.
      */
     public Set<NeighborInfo> replicas(BigInteger key, int desiredReplicas) {
         desiredReplicas = Math.min(desiredReplicas, 
                                    leaf_pred_count + leaf_succ_count);
         assert (desiredReplicas & 0x1) == 0; // better be even
 
-        Set<NeighborInfo> result = new LinkedHashSet<NeighborInfo>();
+        ReplicaSet result = replica_set;
+        result.clear();
         if (leaf_pred_count == 0) {
             result.add(my_neighbor_info);
         }
         else {
-            int closestIndex = 0;
-            BigInteger minDistance = calc_dist(my_guid, key);
-            for (int i = 0; i < leaf_pred_count; ++i) {
-                BigInteger tmp = calc_dist(leaf_preds[i].guid, key);
-                if (tmp.compareTo(minDistance) < 0) {
-                    closestIndex = (i + 1) * -1;
-                    minDistance = tmp;
-                }
-            }
-            for (int i = 0; i < leaf_succ_count; ++i) {
-                BigInteger tmp = calc_dist(leaf_succs[i].guid, key);
-                if (tmp.compareTo(minDistance) < 0) {
-                    closestIndex = (i + 1);
-                    minDistance = tmp;
-                }
-            }
+            // The closest member to the key is one of those on either
+            // side of it.  If they are equally close, take the one that
+            // comes first in this node, leaf_preds, leaf_succs.
+            Guid key_id = Guid.valueOf(key);
+            int ccw = ring_before(key_id);
+            int cw = (ccw + 1) % ring_size;
+            int c = Guid.compare_dist(ring_ids[cw], ring_ids[ccw], key_id);
+            int closestIndex = ring_index[ccw];
+            if ((c < 0) || ((c == 0)
+                            && (rank(ring_index[cw]) < rank(closestIndex))))
+                closestIndex = ring_index[cw];
+
             int half = desiredReplicas / 2;
             int start = 0;
             if (overlap || ((0 - closestIndex != leaf_pred_count)
@@ -176,21 +217,21 @@ public class LeafSet {
                 // anything.
 
                 if (closestIndex == 0) {
-                    if (in_range_mod(leaf_preds[0].guid, my_guid, key))
+                    if (in_range_mod(leaf_preds[0].id(), my_id, key_id))
                         start = closestIndex - half; 
                     else 
                         start = closestIndex - half + 1; 
                 }
                 else if (closestIndex < 0) {
                     int i = -1 * closestIndex - 1;
-                    if (in_range_mod(leaf_preds[i].guid, my_guid, key))
+                    if (in_range_mod(leaf_preds[i].id(), my_id, key_id))
                         start = closestIndex - half + 1; 
                     else 
                         start = closestIndex - half; 
                 }
                 else {
                     int i = closestIndex - 1;
-                    if (in_range_mod(my_guid, leaf_succs[i].guid, key))
+                    if (in_range_mod(my_id, leaf_succs[i].id(), key_id))
                         start = closestIndex - half; 
                     else 
                         start = closestIndex - half + 1; 
@@ -216,6 +257,62 @@ public class LeafSet {
         return result;
     }
 
+    /**
+     * The order in which replicas prefers equally close members.
+     */
+    protected final int rank (int index) {
+        return (index <= 0) ? -index : leaf_set_size + index;
+    }
+
+    /**
+     * A set of at most ring.length nodes, in the order they were added,
+     * that can be refilled without allocating.
+     */
+    protected class ReplicaSet extends AbstractSet<NeighborInfo> {
+        protected NeighborInfo [] members = new NeighborInfo [ring.length];
+        protected int count;
+
+        public int size () {
+            return count;
+        }
+
+        public void clear () {
+            Arrays.fill (members, 0, count, null);
+            count = 0;
+        }
+
+        public boolean contains (Object o) {
+            for (int i = 0; i < count; ++i)
+                if (members [i].equals (o))
+                    return true;
+            return false;
+        }
+
+        public boolean add (NeighborInfo ni) {
+            if (contains (ni))
+                return false;
+            members [count++] = ni;
+            return true;
+        }
+
+        public Iterator<NeighborInfo> iterator () {
+            return new Iterator<NeighborInfo> () {
+                int next;
+                public boolean hasNext () {
+                    return next < count;
+                }
+                public NeighborInfo next () {
+                    if (next >= count)
+                        throw new NoSuchElementException ();
+                    return members [next++];
+                }
+                public void remove () {
+                    throw new UnsupportedOperationException ();
+                }
+            };
+        }
+    }
+
     public boolean contains (NeighborInfo ni) {
 	if (ni.guid.equals (my_guid))
 	    return false;
@@ -246,7 +343,7 @@ public class LeafSet {
 	if (! duplicate) {
 	    int i = 0;
 	    for (i = 0; i < leaf_pred_count; ++i) {
-		if (in_range_mod (leaf_preds [i].guid, my_guid, ni.guid)) 
+		if (in_range_mod (leaf_preds [i].id (), my_id, ni.id ())) 
 		    return true;
 	    }
 	    if ((i == leaf_pred_count) && 
@@ -263,7 +360,7 @@ public class LeafSet {
 	if (! duplicate) {
 	    int i;
 	    for (i = 0; i < leaf_succ_count; ++i) {
-		if (in_range_mod (my_guid, leaf_succs [i].guid, ni.guid)) 
+		if (in_range_mod (my_id, leaf_succs [i].id (), ni.id ())) 
 		    return true;
 	    }
 	    if ((i == leaf_succ_count) && 
@@ -287,6 +384,7 @@ public class LeafSet {
 	    leaf_preds [0] = leaf_succs [0] = ni;
 	    leaf_pred_count = leaf_succ_count = 1;
             overlap = true;
+            update_ring ();
 	    return my_neighbor_info;
 	}
 
@@ -299,7 +397,7 @@ public class LeafSet {
 	    int i = 0;
 	    for (i = 0; i < leaf_pred_count; ++i) {
 
-		if (in_range_mod (leaf_preds [i].guid, my_guid, ni.guid)) {
+		if (in_range_mod (leaf_preds [i].id (), my_id, ni.id ())) {
 
 		    if (old_leaf_set == null) 
 			old_leaf_set = as_set ();
@@ -333,7 +431,7 @@ public class LeafSet {
 	    int i;
 	    for (i = 0; i < leaf_succ_count; ++i) {
 
-		if (in_range_mod (my_guid, leaf_succs [i].guid, ni.guid)) {
+		if (in_range_mod (my_id, leaf_succs [i].id (), ni.id ())) {
 
 		    if (old_leaf_set == null) 
 			old_leaf_set = as_set ();
@@ -363,6 +461,7 @@ public class LeafSet {
             // The leaf set has changed.
 
             updateOverlap();
+            update_ring ();
 
 	    old_leaf_set.removeAll (as_set ());
 	    if (old_leaf_set.isEmpty ())
@@ -432,6 +531,8 @@ public class LeafSet {
 	    for (i = 0; i < leaf_succ_count; ++i) 
 		add_node (leaf_succs [i]);
 	}
+        if (result != REMOVED_NONE)
+            update_ring ();
 
 	return result;
     }
@@ -481,52 +582,135 @@ public class LeafSet {
     }
 
     public NeighborInfo closest_leaf (BigInteger guid, Set ignore) {
-	NeighborInfo closest = my_neighbor_info;
-	BigInteger dist = calc_dist (my_neighbor_info.guid, guid);
-	for (int j = 0; j < leaf_pred_count; j++) {
-	    NeighborInfo ni = leaf_preds [j];
-            if (ignore.contains (ni))
-                continue;
-	    BigInteger this_dist = calc_dist (ni.guid, guid);
-	    if (this_dist.compareTo (dist) < 0) {
-		closest = ni;
-		dist = this_dist;
-	    }
-	    else if ((this_dist.compareTo (dist) == 0) && 
-	             (! ni.equals (closest)) &&
-		     (in_range_mod (closest.guid, ni.guid, guid) &&
-		     (! in_range_mod (ni.guid, closest.guid, guid))))
-	    {
-		// picks the leaf_succ in case of tie
-		closest = ni;
-		dist = this_dist;
-	    }
-	}
-	for (int j = 0; j < leaf_succ_count; j++) {
-	    NeighborInfo ni = leaf_succs [j];
-            if (ignore.contains (ni))
-                continue;
-	    BigInteger this_dist = calc_dist (ni.guid, guid);
-	    if (this_dist.compareTo (dist) < 0) {
-		closest = ni;
-		dist = this_dist;
-	    }
-	    else if ((this_dist.compareTo (dist) == 0) && 
-	             (! ni.equals (closest)) &&
-		     (in_range_mod (closest.guid, ni.guid, guid) &&
-		     (! in_range_mod (ni.guid, closest.guid, guid))))
-	    {
-		// picks the leaf_succ in case of tie
-		closest = ni;
-		dist = this_dist;
-	    }
-	}
-	return closest;
+        return closest_leaf (Guid.valueOf (guid), ignore);
+    }
+
+    public NeighborInfo closest_leaf (Guid guid, Set ignore) {
+        return closest_leaf (guid, ignore, false);
+    }
+
+    /**
+     * Returns the closest member to <code>guid</code>, or this node,
+     * skipping the members marked possibly down if <code>skip_down</code>
+     * is set.
+     */
+    public NeighborInfo closest_leaf (Guid guid, boolean skip_down) {
+        return closest_leaf (guid, null, skip_down);
+    }
+
+    protected NeighborInfo closest_leaf (Guid guid, Set ignore,
+                                         boolean skip_down) {
+        // The closest member is the first one we don't skip on one side
+        // of guid or the other.  This node is never skipped, so each
+        // walk stops there at the latest.
+        int ccw = ring_before (guid);
+        while ((ccw != 0) && skip (ccw, ignore, skip_down))
+            --ccw;
+        int cw = (ccw + 1) % ring_size;
+        while ((cw != 0) && skip (cw, ignore, skip_down))
+            cw = (cw + 1) % ring_size;
+        // In case of a tie, picks the successor of guid.
+        if (Guid.compare_dist (ring_ids [cw], ring_ids [ccw], guid) <= 0)
+            return ring [cw];
+        else
+            return ring [ccw];
+    }
+
+    protected final boolean skip (int r, Set ignore, boolean skip_down) {
+        if (skip_down && ring_down [r])
+            return true;
+        return (ignore != null) && ignore.contains (ring [r]);
+    }
+
+    /**
+     * Returns the index in ring of the last node that is not past
+     * <code>guid</code>, going clockwise from this node.
+     */
+    protected final int ring_before (Guid guid) {
+        int lo = 0, hi = ring_size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (Guid.in_range_mod (my_id, guid, ring_ids [mid]))
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Marks a node as possibly down, or no longer so; closest_leaf skips
+     * the members so marked when asked to.  The node need not be a
+     * member.
+     */
+    public void set_possibly_down (NeighborInfo ni, boolean is_down) {
+        if (is_down ? down.add (ni) : down.remove (ni)) {
+            for (int r = 1; r < ring_size; ++r) {
+                if (ring [r].equals (ni))
+                    ring_down [r] = is_down;
+            }
+        }
+    }
+
+    protected void update_ring () {
+        ring_size = 0;
+        add_to_ring (my_neighbor_info, 0);
+        for (int i = 0; i < leaf_pred_count; ++i)
+            add_to_ring (leaf_preds [i], -(i + 1));
+        for (int i = 0; i < leaf_succ_count; ++i)
+            add_to_ring (leaf_succs [i], i + 1);
+
+        // Sort all but this node by how far clockwise they are from it.
+        Integer [] order = new Integer [ring_size - 1];
+        for (int r = 1; r < ring_size; ++r)
+            order [r - 1] = new Integer (r);
+        final Guid [] ids = ring_ids;
+        Arrays.sort (order, new Comparator<Integer> () {
+            public int compare (Integer a, Integer b) {
+                Guid x = ids [a.intValue ()], y = ids [b.intValue ()];
+                return Guid.in_range_mod (my_id, y, x) ? -1 : 1;
+            }
+        });
+        NeighborInfo [] nis = new NeighborInfo [ring.length];
+        Guid [] gs = new Guid [ring.length];
+        int [] idx = new int [ring.length];
+        nis [0] = ring [0];  gs [0] = ring_ids [0];
+        for (int r = 1; r < ring_size; ++r) {
+            int k = order [r - 1].intValue ();
+            nis [r] = ring [k];
+            gs [r] = ring_ids [k];
+            idx [r] = ring_index [k];
+            ring_down [r] = down.contains (nis [r]);
+        }
+        ring = nis;
+        ring_ids = gs;
+        ring_index = idx;
+        for (int r = ring_size; r < ring_down.length; ++r)
+            ring_down [r] = false;
+    }
+
+    protected void add_to_ring (NeighborInfo ni, int index) {
+        Guid id = ni.id ();
+        for (int r = 0; r < ring_size; ++r) {
+            if (ring_ids [r].equals (id))
+                return;
+        }
+        ring [ring_size] = ni;
+        ring_ids [ring_size] = id;
+        ring_index [ring_size] = index;
+        ++ring_size;
     }
 
     public final boolean within_leaf_set (BigInteger i) {
-	return in_range_mod (leaf_set_low (), my_guid, i) ||
-	       in_range_mod (my_guid, leaf_set_high (), i);
+        return within_leaf_set (Guid.valueOf (i));
+    }
+
+    public final boolean within_leaf_set (Guid i) {
+	Guid low = (leaf_pred_count == 0)
+            ? my_id : leaf_preds [leaf_pred_count - 1].id ();
+	Guid high = (leaf_succ_count == 0)
+            ? my_id : leaf_succs [leaf_succ_count - 1].id ();
+	return in_range_mod (low, my_id, i) || in_range_mod (my_id, high, i);
     }
 
     public final BigInteger leaf_set_low () {
@@ -547,5 +731,9 @@ public class LeafSet {
 	    BigInteger low, BigInteger high, BigInteger query) {
 	return GuidTools.in_range_mod (low, high, query, MODULUS);
     }
+
+    protected final boolean in_range_mod (Guid low, Guid high, Guid query) {
+	return Guid.in_range_mod (low, high, query);
+    }
 }
 
@@ -7,62 +7,97 @@
 
 package bamboo.router;
 import java.math.BigInteger;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Random;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import ostore.util.Carp;
-import ostore.util.NodeId;
-import bamboo.api.BambooNeighborInfo;
-import bamboo.util.GuidTools;
+import bamboo.util.Guid;
 
 /**
- * A Chord-like location cache; for use in performance evaluations.
- * 
+ * A Chord-like location cache, sized for tens of thousands of nodes.
+ *
+ * <p>The nodes are kept in ring order, in an array of entries and a
+ * parallel array of the first 64 bits of each one's guid, so that
+ * finding a node, or the nodes on either side of a key, is a binary
+ * search over longs.  When the cache is full, a node is evicted by the
+ * clock algorithm: every node has a bit that is set when it is added or
+ * heard from, and a hand sweeps the ring, clearing set bits, until it
+ * finds one that is clear.
+ *
+ * <p>A failed send to a node marks it stale rather than removing it; a
+ * stale node is skipped by closest_node and is the first to be evicted,
+ * and becomes fresh again if the node is heard from before that.  After
+ * MAX_FAILURES failures in a row, it is removed.
+ *
  * @author Sean C. Rhea
  * @version $Id: LocationCache.java,v 1.9 2003/10/05 23:26:52 srhea Exp $
  */
 public class LocationCache {
 
+    public static final int MAX_FAILURES = 3;
+
     protected BigInteger MODULUS;
-    
-    protected static class Node {
-        public Node pred, succ;
+
+    protected static class Entry {
         public NeighborInfo ni;
-        public Node (NeighborInfo n) { ni = n; }
+        public Guid id;
+        public boolean referenced;
+        public int failures;
+        public Entry (NeighborInfo n) { ni = n; id = n.id (); }
     }
 
     protected int capacity;
-    protected SortedMap cache = new TreeMap ();
-    protected Node first, last;
+    protected int size;
+    protected long [] prefixes;
+    protected Entry [] entries;
+    protected int hand;
+
+    protected long lookups, hits, stale_skips, inserts, evictions,
+              failures, removals;
 
     public LocationCache (int cap, BigInteger mod) {
 	MODULUS = mod;
         capacity = cap;
+        int initial = Math.min (capacity, 64);
+        prefixes = new long [initial];
+        entries = new Entry [initial];
     }
 
     public int size () {
-        return cache.size ();
+        return size;
+    }
+
+    public int capacity () {
+        return capacity;
     }
 
+    /**
+     * The number of calls to closest_node.
+     */
+    public long lookups () { return lookups; }
+
+    /**
+     * The number of times the router chose a node from the cache over
+     * those in its leaf set and routing table; see note_hit.
+     */
+    public long hits () { return hits; }
+
+    /**
+     * Records that the router used a node returned by closest_node.
+     */
+    public void note_hit () { ++hits; }
+
     protected static class MyIterator implements Iterator {
-        private Node current;
-        public MyIterator (Node n) {
-            current = n;
+        private Entry [] entries;
+        private int next, size;
+        public MyIterator (Entry [] e, int s) {
+            entries = e; size = s;
         }
         public Object next () {
-            if (current == null) 
+            if (next >= size)
                 throw new NoSuchElementException ();
-            NeighborInfo result = current.ni;
-            current = current.succ;
-            return result;
+            return entries [next++].ni;
         }
         public boolean hasNext () {
-            return current != null;
+            return next < size;
         }
         public void remove () {
             throw new UnsupportedOperationException ();
@@ -71,137 +106,237 @@ public class LocationCache {
 
     /**
      * Returns an iterator which walks through the set of nodes in the cache,
-     * starting with the most recently added.
+     * in ring order.  The cache must not be changed while it is in use.
      */
     public Iterator iterator () {
-        return new MyIterator (first);
+        return new MyIterator (entries, size);
+    }
+
+    /**
+     * Returns the index of the first entry whose guid is not less than
+     * <code>id</code>, or size if there is none.
+     */
+    protected final int lower_bound (Guid id) {
+        long p = id.prefix ();
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long q = prefixes [mid];
+            if ((q < p) || ((q == p) && (entries [mid].id.compareTo (id) < 0)))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the index of the entry for <code>id</code>, or -1.
+     */
+    protected final int find (Guid id) {
+        int i = lower_bound (id);
+        if ((i < size) && entries [i].id.equals (id))
+            return i;
+        return -1;
     }
 
+    /**
+     * Adds a node we have heard from, or marks it as heard from again if
+     * it is already in the cache.
+     */
     public void add_node (NeighborInfo ni) {
-        if (capacity == 0) 
+        if (capacity == 0)
             return;
 
-        Node n = null;
-        if (cache.containsKey (ni.guid)) {
-            n = (Node) cache.get (ni.guid);
-            // If we already have this node, take it out of the current
-            // position in the list...
-            rem_n (n);
+        Guid id = ni.id ();
+        int i = lower_bound (id);
+        if ((i < size) && entries [i].id.equals (id)) {
+            Entry e = entries [i];
+            e.ni = ni;
+            e.referenced = true;
+            e.failures = 0;
+            return;
         }
-        else {
-            // otherwise, we have to add this node, so possibly...
-            if (cache.size () >= capacity) {
-                // ... make space for it ...
-                if (cache.remove (last.ni.guid) == null)
-                    BUG ("in ll but not in ts");
-                last = last.pred;
-                last.succ = null;
+
+        Entry e = new Entry (ni);
+        e.referenced = true;
+        ++inserts;
+        if (size >= capacity) {
+            // Replace a victim, moving only the entries between it and
+            // where the new one goes.
+            int victim = choose_victim ();
+            ++evictions;
+            if (victim < i) {
+                --i;
+                System.arraycopy (prefixes, victim + 1, prefixes, victim,
+                                  i - victim);
+                System.arraycopy (entries, victim + 1, entries, victim,
+                                  i - victim);
+                if ((hand > victim) && (hand <= i))
+                    --hand;
             }
-            // ... add it to the map ...
-            n = new Node (ni);
-            cache.put (ni.guid, n);
+            else {
+                System.arraycopy (prefixes, i, prefixes, i + 1, victim - i);
+                System.arraycopy (entries, i, entries, i + 1, victim - i);
+                if ((hand >= i) && (hand < victim))
+                    ++hand;
+            }
+            prefixes [i] = id.prefix ();
+            entries [i] = e;
+            return;
+        }
+        if (size == entries.length) {
+            int n = Math.min (capacity, entries.length * 2);
+            long [] p = new long [n];
+            Entry [] a = new Entry [n];
+            System.arraycopy (prefixes, 0, p, 0, size);
+            System.arraycopy (entries, 0, a, 0, size);
+            prefixes = p;
+            entries = a;
+        }
+        System.arraycopy (prefixes, i, prefixes, i + 1, size - i);
+        System.arraycopy (entries, i, entries, i + 1, size - i);
+        prefixes [i] = id.prefix ();
+        entries [i] = e;
+        ++size;
+        if (hand >= i)
+            ++hand;
+    }
+
+    /**
+     * Removes the entry at index <code>i</code>.
+     */
+    protected void remove_at (int i) {
+        System.arraycopy (prefixes, i + 1, prefixes, i, size - i - 1);
+        System.arraycopy (entries, i + 1, entries, i, size - i - 1);
+        --size;
+        entries [size] = null;
+        if (hand > i)
+            --hand;
+    }
+
+    /**
+     * Returns the index of the entry to evict, chosen by the clock
+     * algorithm, and leaves the hand just past it.
+     */
+    protected int choose_victim () {
+        while (true) {
+            if (hand >= size)
+                hand = 0;
+            Entry e = entries [hand];
+            if ((e.failures > 0) || (! e.referenced))
+                return hand++;
+            e.referenced = false;
+            ++hand;
         }
-        // ... then add it to the first of the list.
-        n.succ = first;
-        n.pred = null;
-        if (first != null) first.pred = n;
-        first = n;
-        if (last == null)
-            last = first;
     }
 
     public boolean remove_node (NeighborInfo ni) {
-        Node n = (Node) cache.remove (ni.guid);
-        if (n == null) 
+        int i = find (ni.id ());
+        if (i < 0)
+            return false;
+        remove_at (i);
+        ++removals;
+        return true;
+    }
+
+    /**
+     * Records a failed send to a node, marking it stale, and returns
+     * whether it was in the cache.
+     */
+    public boolean note_failure (NeighborInfo ni) {
+        int i = find (ni.id ());
+        if (i < 0)
             return false;
-        else {
-            rem_n (n);
-            return true;
+        ++failures;
+        Entry e = entries [i];
+        e.referenced = false;
+        if (++e.failures >= MAX_FAILURES) {
+            remove_at (i);
+            ++removals;
         }
+        return true;
     }
 
     public String toString () {
-        if (cache.isEmpty ()) 
+        if (size == 0)
             return "(LocationCache <empty>)";
 
-        StringBuffer result = new StringBuffer (cache.size () * 100);
-        Iterator j = cache.values ().iterator ();
-        result.append ("(Location Cache\n  Sorted by guid:\n");
-        while (j.hasNext ()) {
-            Node n = (Node) j.next ();
-            result.append ("    ");
-            result.append (n.ni);
-            result.append ("\n");
-        }
-        result.append ("  Sorted by use order (first is most recent):\n");
-        Node n = first;
-        while (n != null) {
+        StringBuffer result = new StringBuffer (size * 100);
+        result.append ("(Location Cache size=");
+        result.append (size);
+        result.append (" capacity=");
+        result.append (capacity);
+        result.append (" lookups=");
+        result.append (lookups);
+        result.append (" hits=");
+        result.append (hits);
+        result.append (" stale_skips=");
+        result.append (stale_skips);
+        result.append (" inserts=");
+        result.append (inserts);
+        result.append (" evictions=");
+        result.append (evictions);
+        result.append (" failures=");
+        result.append (failures);
+        result.append (" removals=");
+        result.append (removals);
+        result.append ("\n  Sorted by guid:\n");
+        for (int i = 0; i < size; ++i) {
             result.append ("    ");
-            result.append (n.ni);
+            result.append (entries [i].ni);
+            if (entries [i].failures > 0) {
+                result.append (" stale ");
+                result.append (entries [i].failures);
+            }
             result.append ("\n");
-            n = n.succ;
         }
         result.append (")\n");
         return result.toString ();
     }
 
     public NeighborInfo closest_node (BigInteger guid) {
-        if (cache.isEmpty ()) 
-            return null;
-
-        if (cache.containsKey (guid))
-            return ((Node) cache.get (guid)).ni;
-
-        SortedMap hm = cache.headMap (guid);
-        SortedMap tm = null;
-        if (hm.isEmpty () || (tm = cache.tailMap (guid)).isEmpty ()) {
-
-            // This guid is smaller (or larger) than any in the map.  Thus the
-            // closest one in the map is either the smallest (or largest)
-            // or--in case of wrap-around--the largest (or smallest).
-                
-            BigInteger largest_key = (BigInteger) cache.lastKey ();
-            BigInteger smallest_key = (BigInteger) cache.firstKey ();
-            BigInteger largest_dist = calc_dist (guid, largest_key);
-            BigInteger smallest_dist = calc_dist (guid, smallest_key);
-            if (largest_dist.compareTo (smallest_dist) < 0)
-                return ((Node) cache.get (largest_key)).ni;
-            else 
-                return ((Node) cache.get (smallest_key)).ni;
-        }
-        else {
-
-            // tm contains all nodes strictly greater than guid, hm contains
-            // all nodes strictly less than guid.  Thus guid is between
-            // tm.firstKey () and hm.lastKey ().
-
-            BigInteger largest_key = (BigInteger) tm.firstKey ();
-            BigInteger smallest_key = (BigInteger) hm.lastKey ();
-            BigInteger largest_dist = calc_dist (guid, largest_key);
-            BigInteger smallest_dist = calc_dist (guid, smallest_key);
-            if (largest_dist.compareTo (smallest_dist) < 0)
-                return ((Node) tm.get (largest_key)).ni;
-            else 
-                return ((Node) hm.get (smallest_key)).ni;
-        }
+        return closest_node (Guid.valueOf (guid));
     }
 
-    protected BigInteger calc_dist (BigInteger a, BigInteger b) {
-        return GuidTools.calc_dist (a, b, MODULUS);
-    }
+    /**
+     * Returns the fresh node closest to <code>guid</code>, or null if
+     * there is none.
+     */
+    public NeighborInfo closest_node (Guid guid) {
+        ++lookups;
+        if (size == 0)
+            return null;
 
-    protected void rem_n (Node n) {
-        if (first == n) first = n.succ;
-        if (last == n) last = n.pred;
+        int i = lower_bound (guid);
+        if ((i < size) && entries [i].id.equals (guid)
+            && (entries [i].failures == 0))
+            return entries [i].ni;
 
-        if (n.pred != null) n.pred.succ = n.succ;
-        if (n.succ != null) n.succ.pred = n.pred;
-    }
+        // The closest fresh node is the first one on one side of guid or
+        // the other, going around the ring from the ends if need be.
+        int succ = i % size, pred = (i + size - 1) % size;
+        int n = 0;
+        while ((entries [succ].failures > 0) && (n < size)) {
+            succ = (succ + 1) % size;
+            ++n;
+        }
+        if (n == size)
+            return null;
+        stale_skips += n;
+        n = 0;
+        while (entries [pred].failures > 0) {
+            pred = (pred + size - 1) % size;
+            ++n;
+        }
+        stale_skips += n;
 
-    protected void BUG (String msg) {
-        System.err.println (msg);
-        Thread.dumpStack ();
-        System.exit (1);
+        // If they are equally close, the nearer of the two that are not
+        // across the ends of the ring.
+        int c = Guid.compare_dist (entries [succ].id, entries [pred].id, guid);
+        if ((c < 0) || ((c == 0) && (pred > succ)))
+            return entries [succ].ni;
+        else
+            return entries [pred].ni;
     }
 }
-
@@ -12,6 +12,7 @@ import ostore.util.NodeId;
 import ostore.util.OutputBuffer;
 import ostore.util.QSException;
 import ostore.util.QuickSerializable;
+import bamboo.util.Guid;
 import bamboo.util.GuidTools;
 
 /**
@@ -25,6 +26,11 @@ public class NeighborInfo implements Comparable, QuickSerializable {
     public NodeId node_id;
     public BigInteger guid;
 
+    /**
+     * The fixed-width form of guid, made on first use; see id.
+     */
+    protected Guid id;
+
     public NeighborInfo (NodeId n, BigInteger g) {
 	node_id = n; guid = g;
     }
@@ -34,6 +40,17 @@ public class NeighborInfo implements Comparable, QuickSerializable {
 	guid = buffer.nextBigInteger ();
     }
 
+    /**
+     * Returns guid as a Guid, for the router's arithmetic.  It is made
+     * once, and made again only if guid is assigned a new value.
+     */
+    public final Guid id () {
+        Guid result = id;
+        if ((result == null) || (result.to_big_integer () != guid))
+            id = result = Guid.valueOf (guid);
+        return result;
+    }
+
     public void serialize (OutputBuffer buffer) {
         node_id.serialize (buffer);
         buffer.add (guid);
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.router;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Random;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import ostore.util.NodeId;
+import bamboo.util.GuidTools;
+
+/**
+ * A microbenchmark for the router's forwarding decision.  It fills the
+ * leaf set, routing table, and location cache of an uninitialized Router
+ * with <code>network_size</code> random nodes, as they would be in a
+ * network of that size after it has settled, then calls calc_next_hop
+ * with keys, as the router does for each message it forwards, for
+ * <code>test_length_secs</code>, and prints the decisions made per
+ * second.  Half the keys are random, and half fall within the leaf set,
+ * as those of the messages for which the node is the root or nearly so
+ * do.  It then does the same for the leaf set's replicas method, with
+ * the latter keys.
+ *
+ * <p>Usage: <code>RouteBench network_size test_length_secs
+ * [leaf_set_size [location_cache_size [digit_values]]]</code>
+ *
+ * @version $Id$
+ */
+public class RouteBench {
+
+    public static long run (Router router, BigInteger [] keys,
+                            long test_length_ms) {
+        long count = 0, roots = 0;
+        long start_ms = System.currentTimeMillis ();
+        long now_ms = start_ms;
+        while (now_ms - start_ms < test_length_ms) {
+            for (int i = 0; i < keys.length; ++i) {
+                if (router.calc_next_hop (keys [i], true)
+                    == router.my_neighbor_info)
+                    ++roots;
+            }
+            count += keys.length;
+            now_ms = System.currentTimeMillis ();
+        }
+        long elapsed_ms = now_ms - start_ms;
+        System.out.println ("made " + count + " decisions (" + roots
+                + " at the root) in " + elapsed_ms + " ms: "
+                + Math.round (count * 1000.0 / elapsed_ms) + " decisions/s");
+        return count;
+    }
+
+    public static long run_replicas (LeafSet leaf_set, BigInteger [] keys,
+                                     int desired, long test_length_ms) {
+        long count = 0, found = 0;
+        long start_ms = System.currentTimeMillis ();
+        long now_ms = start_ms;
+        while (now_ms - start_ms < test_length_ms) {
+            for (int i = 0; i < keys.length; ++i)
+                found += leaf_set.replicas (keys [i], desired).size ();
+            count += keys.length;
+            now_ms = System.currentTimeMillis ();
+        }
+        long elapsed_ms = now_ms - start_ms;
+        System.out.println ("found " + count + " replica sets (" + found
+                + " replicas) in " + elapsed_ms + " ms: "
+                + Math.round (count * 1000.0 / elapsed_ms) + " lookups/s");
+        return count;
+    }
+
+    protected static NodeId node_id (int i) throws Exception {
+        byte [] addr = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+        return new NodeId (3630, InetAddress.getByAddress (addr));
+    }
+
+    public static void main (String [] args) throws Exception {
+        int network_size = Integer.parseInt (args [0]);
+        long test_length_ms = Integer.parseInt (args [1]) * 1000L;
+        int leaf_set_size =
+            (args.length > 2) ? Integer.parseInt (args [2]) : 8;
+        int lc_size = (args.length > 3) ? Integer.parseInt (args [3]) : 256;
+        int digit_values = (args.length > 4) ? Integer.parseInt (args [4]) : 16;
+        int digit_bits = 0;
+        while ((1 << digit_bits) < digit_values)
+            ++digit_bits;
+
+        Logger.getLogger (Router.class).setLevel (Level.WARN);
+        Random rand = new Random (1);
+        BigInteger modulus = BigInteger.valueOf (2).pow (160);
+
+        Router router = new Router ();
+        router.MODULUS = modulus;
+        router.my_guid = GuidTools.random_guid (rand);
+        router.my_neighbor_info =
+            new NeighborInfo (node_id (0), router.my_guid);
+        router.leaf_set = new LeafSet (router.my_neighbor_info,
+                leaf_set_size, modulus);
+        router.rt = new RoutingTable (router.my_neighbor_info, 1.0, modulus,
+                160 / digit_bits, digit_values);
+        router.location_cache = new LocationCache (lc_size, modulus);
+        for (int i = 0; i < network_size; ++i) {
+            NeighborInfo ni = new NeighborInfo (node_id (i + 1),
+                    GuidTools.random_guid (rand));
+            router.leaf_set.add_node (ni);
+            router.rt.add (ni, 1.0 + rand.nextInt (100), true, 0);
+            router.location_cache.add_node (ni);
+        }
+
+        BigInteger low = router.leaf_set.leaf_set_low ();
+        BigInteger span = router.leaf_set.leaf_set_high ().subtract (low)
+            .mod (modulus);
+        BigInteger [] keys = new BigInteger [4096];
+        BigInteger [] near_keys = new BigInteger [keys.length / 2];
+        for (int i = 0; i < keys.length; ++i) {
+            if (i < near_keys.length) {
+                keys [i] = near_keys [i] = low.add (span.multiply (
+                            BigInteger.valueOf (rand.nextInt (1 << 30)))
+                        .shiftRight (30)).mod (modulus);
+            }
+            else {
+                keys [i] = GuidTools.random_guid (rand);
+            }
+        }
+        int desired = Math.max (2, leaf_set_size & ~1);
+
+        // Warm up the JIT first.
+        run (router, keys, 2000);
+        run (router, keys, test_length_ms);
+        run_replicas (router.leaf_set, near_keys, desired, 2000);
+        run_replicas (router.leaf_set, near_keys, desired, test_length_ms);
+    }
+}
@@ -24,6 +24,7 @@ import bamboo.lss.DustDevil;
 import bamboo.lss.Network;
 import bamboo.lss.Rpc;
 import bamboo.dht.Dht;
+import bamboo.util.Guid;
 import bamboo.util.GuidTools;
 import bamboo.util.Pair;
 import bamboo.util.StandardStage;
@@ -32,6 +33,7 @@ import bamboo.vivaldi.VirtualCoordinate;
 import java.io.FileInputStream;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -377,6 +379,8 @@ implements SingleThreadedEventHandlerIF {
             if (! possibly_down.containsKey (ni)) {
                 possibly_down.put (ni, new Long (now_ms ()));
                 possibly_down_helper.put (ni.node_id, ni);
+                leaf_set.set_possibly_down (ni, true);
+                invalidate_next_hops ();
                 if (logger.isDebugEnabled ()) logger.debug (
                         "added " + ni + " to possibly down");
                 PingMsg outb = new PingMsg (ni.node_id);
@@ -392,6 +396,8 @@ implements SingleThreadedEventHandlerIF {
         if (possibly_down.containsKey (ni)) {
             possibly_down.remove (ni);
             possibly_down_helper.remove(ni.node_id);
+            leaf_set.set_possibly_down (ni, false);
+            invalidate_next_hops ();
             if (logger.isDebugEnabled ()) logger.debug (
                     "removed " + ni + " from possibly_down");
         }
@@ -418,6 +424,21 @@ implements SingleThreadedEventHandlerIF {
         new LinkedList<QueueElementIF>();
 
     protected LocationCache location_cache;
+
+    /**
+     * The routing table's next hop for keys outside the leaf set, indexed
+     * by the first <code>next_hop_bits</code> bits of the key.  An entry
+     * is only filled in if every key with its prefix would be routed to
+     * the same neighbor, and is valid only while its stamp equals
+     * next_hop_epoch, which is bumped whenever the leaf set, the routing
+     * table, or the set of possibly down nodes changes.
+     */
+    protected int next_hop_bits;
+    protected NeighborInfo [] next_hop_cache;
+    protected int [] next_hop_stamps;
+    protected int next_hop_epoch = 1;
+    protected long next_hop_hits, next_hop_misses, next_hop_invalidations;
+
     protected Set<NodeId> down_nodes = new LinkedHashSet<NodeId>();
     protected int down_nodes_cap = 20;
     protected boolean immediate_join;
@@ -671,6 +692,13 @@ implements SingleThreadedEventHandlerIF {
         location_cache = new LocationCache (
                 configGetInt(config, "location_cache_size", 0), MODULUS);
 
+        next_hop_bits = Math.min (
+                configGetInt(config, "next_hop_cache_bits", 12), 24);
+        if (next_hop_bits > 0) {
+            next_hop_cache = new NeighborInfo [1 << next_hop_bits];
+            next_hop_stamps = new int [1 << next_hop_bits];
+        }
+
         // If immediate_join=true in the cfg file, we add all gateways to the
         // down_nodes set and join immediately (through ourselves).  This hack
         // allows all PlanetLab nodes to have the same set of 10 or so
@@ -867,11 +895,11 @@ implements SingleThreadedEventHandlerIF {
         if (logger.isDebugEnabled ()) 
             logger.debug ("failed on message send to " + ni + ".");
 
-        // Immediately take the node of the location cache.
+        // Immediately stop using the node from the location cache.
 
-        if (location_cache.remove_node (ni)) {
+        if (location_cache.note_failure (ni)) {
             if (logger.isDebugEnabled ()) logger.debug (
-                    "taking " + ni + ".  Out of location cache.");
+                    "marking " + ni + " stale in location cache.");
         }
 
         addToPossiblyDown(ni);
@@ -1205,6 +1233,13 @@ implements SingleThreadedEventHandlerIF {
     }
 
     protected void handle_route_msg (final RouteMsg req) {
+        if ((req.dest.signum () < 0) || (req.dest.compareTo (MODULUS) >= 0)
+            || (req.peer_guid.signum () < 0)
+            || (req.peer_guid.compareTo (MODULUS) >= 0)) {
+            if (logger.isDebugEnabled ())
+                logger.debug ("got a guid out of range in " + req);
+            return;
+        }
         NeighborInfo peer_ni = new NeighborInfo (req.peer, req.peer_guid);
         location_cache.add_node (peer_ni);
 
@@ -1931,6 +1966,7 @@ implements SingleThreadedEventHandlerIF {
 	NeighborInfo r = leaf_set.add_node (ni);
 
 	if (r != null) {
+            invalidate_next_hops ();
 
             if (logger.isInfoEnabled ()) {
 
@@ -1972,6 +2008,7 @@ implements SingleThreadedEventHandlerIF {
     protected boolean remove_from_ls (NeighborInfo ni) {
 	int result = leaf_set.remove_node (ni);
 	if (result != LeafSet.REMOVED_NONE) {
+            invalidate_next_hops ();
 
             if (logger.isInfoEnabled ()) {
                 StringBuffer buf = new StringBuffer (50);
@@ -2035,6 +2072,7 @@ implements SingleThreadedEventHandlerIF {
 	NeighborInfo r = rt.add (ni, rtt_ms, PNS, now_ms ());
 	if (r == null)
             return false;
+        invalidate_next_hops ();
 
         BambooNeighborInfo [] removed = null;
         if (r != my_neighbor_info) {
@@ -2086,6 +2124,7 @@ implements SingleThreadedEventHandlerIF {
 	int level = rt.remove (ni);
 	if (level == -1)
 	    return false;
+        invalidate_next_hops ();
 
         if (logger.isInfoEnabled ()) {
             StringBuffer buf = new StringBuffer (50);
@@ -2181,6 +2220,10 @@ implements SingleThreadedEventHandlerIF {
     }
 
     protected NeighborInfo calc_next_hop (BigInteger guid, boolean use_lc) {
+        return calc_next_hop (Guid.valueOf (guid), use_lc);
+    }
+
+    protected NeighborInfo calc_next_hop (Guid guid, boolean use_lc) {
 
 	// It's important to check the leaf set first.  Consider:
 	//
@@ -2196,32 +2239,55 @@ implements SingleThreadedEventHandlerIF {
 	// then, we always check the leaf set first.
 
         Set<NeighborInfo> ignore = ignore_possibly_down
-            ? (new LinkedHashSet<NeighborInfo>()) : possibly_down.keySet();
+            ? Collections.<NeighborInfo>emptySet () : possibly_down.keySet();
+
+        // Most keys outside the leaf set have the same next hop as the
+        // last key we routed with the same prefix.
+
+        int bucket = -1;
+        NeighborInfo next_hop = null;
+        if (next_hop_cache != null) {
+            bucket = (int) ((guid.prefix () ^ Long.MIN_VALUE)
+                            >>> (64 - next_hop_bits));
+            if (next_hop_stamps [bucket] == next_hop_epoch) {
+                next_hop = next_hop_cache [bucket];
+                ++next_hop_hits;
+            }
+            else {
+                ++next_hop_misses;
+            }
+        }
 
-	if (leaf_set.within_leaf_set (guid)) {
-	    NeighborInfo result = leaf_set.closest_leaf (guid, ignore);
+	if ((next_hop == null) && leaf_set.within_leaf_set (guid)) {
+	    NeighborInfo result =
+                leaf_set.closest_leaf (guid, ! ignore_possibly_down);
 	    if (logger.isDebugEnabled ()) logger.debug (
 		    "dst is in our leaf set, closest to " + result);
 	    return result;
 	}
 	else {
 
-	    NeighborInfo next_hop = rt.next_hop (guid, ignore);
+            if (next_hop == null) {
+                next_hop = rt.next_hop (guid, ignore);
+                if ((next_hop != null) && (bucket != -1)
+                    && next_hop_cacheable (bucket, guid)) {
+                    next_hop_cache [bucket] = next_hop;
+                    next_hop_stamps [bucket] = next_hop_epoch;
+                }
+            }
             NeighborInfo lc_nh =
                 use_lc ? location_cache.closest_node (guid) : null;
 
 	    if (next_hop == null) {
-		next_hop = leaf_set.closest_leaf (guid, ignore);
-                if (lc_nh != null) {
-                    BigInteger nhd = calc_dist (next_hop.guid, guid);
-                    BigInteger lc_nhd = calc_dist (lc_nh.guid, guid);
-                    if (lc_nhd.compareTo (nhd) < 0) {
-			if (logger.isDebugEnabled ()) logger.debug (
-                                "dst not in leaf set, and matches hole in " +
-                                " routing table; using " + lc_nh +
-                                " from location cache");
-                        return lc_nh;
-                    }
+		next_hop = leaf_set.closest_leaf (guid, ! ignore_possibly_down);
+                if ((lc_nh != null) && (Guid.compare_dist (
+                        lc_nh.id (), next_hop.id (), guid) < 0)) {
+                    if (logger.isDebugEnabled ()) logger.debug (
+                            "dst not in leaf set, and matches hole in " +
+                            " routing table; using " + lc_nh +
+                            " from location cache");
+                    location_cache.note_hit ();
+                    return lc_nh;
                 }
 
 		if (logger.isDebugEnabled ()) logger.debug (
@@ -2230,15 +2296,13 @@ implements SingleThreadedEventHandlerIF {
 		return next_hop;
 	    }
 	    else {
-                if (lc_nh != null) {
-                    BigInteger nhd = calc_dist (next_hop.guid, guid);
-                    BigInteger lc_nhd = calc_dist (lc_nh.guid, guid);
-                    if (lc_nhd.compareTo (nhd) < 0) {
-                        if (logger.isDebugEnabled ()) logger.debug (
-                                "dst not in leaf set, using " + lc_nh +
-                                " from location cache");
-                        return lc_nh;
-                    }
+                if ((lc_nh != null) && (Guid.compare_dist (
+                        lc_nh.id (), next_hop.id (), guid) < 0)) {
+                    if (logger.isDebugEnabled ()) logger.debug (
+                            "dst not in leaf set, using " + lc_nh +
+                            " from location cache");
+                    location_cache.note_hit ();
+                    return lc_nh;
                 }
 
 		if (logger.isDebugEnabled ()) logger.debug (
@@ -2249,6 +2313,53 @@ implements SingleThreadedEventHandlerIF {
 	}
     }
 
+    /**
+     * Returns whether every key whose first <code>next_hop_bits</code>
+     * bits are <code>bucket</code> is outside the leaf set, and would be
+     * routed by the same routing table entry as <code>guid</code>, which
+     * is in the bucket.
+     */
+    protected boolean next_hop_cacheable (int bucket, Guid guid) {
+        // The entry for a key is chosen by the digit after the prefix it
+        // shares with us, so that digit must be within the bucket's bits.
+        Guid me = my_neighbor_info.id ();
+        int shared = me.common_prefix_bits (guid);
+        if ((shared >= next_hop_bits)
+            || ((shared / rt.BITS_PER_DIGIT + 1) * rt.BITS_PER_DIGIT
+                > next_hop_bits))
+            return false;
+
+        // The leaf set's range contains us and we are not in the bucket,
+        // so it overlaps the bucket only if one of its ends is in the
+        // bucket or the bucket's first key is within it.
+        if ((bucket_of (leaf_set.leaf_set_low ()) == bucket)
+            || (bucket_of (leaf_set.leaf_set_high ()) == bucket))
+            return false;
+        return ! leaf_set.within_leaf_set (BigInteger.valueOf (bucket)
+                .shiftLeft (GUID_BITS - next_hop_bits));
+    }
+
+    protected int bucket_of (BigInteger guid) {
+        return (int) ((Guid.valueOf (guid).prefix () ^ Long.MIN_VALUE)
+                      >>> (64 - next_hop_bits));
+    }
+
+    protected void invalidate_next_hops () {
+        // Stamps start out zero, so skip it when the epoch wraps.
+        if (++next_hop_epoch == 0)
+            ++next_hop_epoch;
+        ++next_hop_invalidations;
+    }
+
+    /**
+     * The number of routing decisions answered from the next hop cache.
+     */
+    public long nextHopCacheHits () { return next_hop_hits; }
+
+    public long nextHopCacheMisses () { return next_hop_misses; }
+
+    public long nextHopCacheInvalidations () { return next_hop_invalidations; }
+
     public LinkedHashMap<NeighborInfo,Long> allNeighbors() {
         Set<NeighborInfo> n = leaf_set.as_set();
         n.addAll(rt.as_list());
@@ -2281,17 +2392,18 @@ implements SingleThreadedEventHandlerIF {
                                        Map<NeighborInfo,Long> allNeighbors) {
 
         NeighborInfo result = null;
-        BigInteger current = calc_dist(my_guid, key);
+        Guid key_id = Guid.valueOf(key);
+        Guid my_id = my_neighbor_info.id();
         long min = Long.MAX_VALUE;
         for (NeighborInfo ni : allNeighbors.keySet()) {
             if (!possibly_down.containsKey(ni)) {
                 // This neighbor seems to be up.
 
-                BigInteger dist = calc_dist(ni.guid, key);
-                if ((dist.compareTo(current) < 0) 
-                    || ((dist.compareTo(current) == 0) 
-                        && in_range_mod (my_guid, ni.guid, key) 
-                        && (!in_range_mod (ni.guid, my_guid, key)))) {
+                int c = Guid.compare_dist(ni.id(), my_id, key_id);
+                if ((c < 0) 
+                    || ((c == 0) 
+                        && Guid.in_range_mod (my_id, ni.id(), key_id) 
+                        && (!Guid.in_range_mod (ni.id(), my_id, key_id)))) {
                     // And they make monotonic progress in the key space.
 
                     long lat = allNeighbors.get(ni).longValue();
@@ -2395,10 +2507,10 @@ implements SingleThreadedEventHandlerIF {
         return calcNextHopScaledPRS(key, prsScaling, allNeighbors);
     }
 
-    protected int est_hops_to_go (BigInteger guid, boolean use_lc) {
-        Set<NeighborInfo> ignore = possibly_down.keySet();
+    protected int est_hops_to_go (BigInteger key, boolean use_lc) {
+        Guid guid = Guid.valueOf (key);
 	if (leaf_set.within_leaf_set (guid)) {
-            if (leaf_set.closest_leaf (guid, ignore) == my_neighbor_info)
+            if (leaf_set.closest_leaf (guid, true) == my_neighbor_info)
                 return 0;
             else
                 return 1;
@@ -33,6 +33,7 @@ import seda.sandStorm.api.SinkIF;
 import seda.sandStorm.api.StagesInitializedSignal;
 import seda.sandStorm.api.SingleThreadedEventHandlerIF;
 import seda.sandStorm.api.QueueElementIF;
+import bamboo.util.Guid;
 import bamboo.util.GuidTools;
 
 /**
@@ -64,6 +65,7 @@ public class RoutingTable {
     protected NeighborInfo my_neighbor_info;
     protected RoutingEntry my_routing_entry;
     protected int [] my_digits;
+    protected Guid my_id;
     protected int size;
     protected int highest_level;
 
@@ -93,6 +95,10 @@ public class RoutingTable {
         BITS_PER_DIGIT = 0;
         for (int i = 1; i < DIGIT_VALUES; i <<= 1) 
             ++BITS_PER_DIGIT;
+        if (GUID_DIGITS * BITS_PER_DIGIT != Guid.BITS) {
+            throw new IllegalArgumentException (GUID_DIGITS + " digits of "
+                    + BITS_PER_DIGIT + " bits each is not " + Guid.BITS);
+        }
         SCALE = scale;
         highest_level = -1;
 	my_neighbor_info = ni;
@@ -100,6 +106,7 @@ public class RoutingTable {
 	table = new RoutingEntry [GUID_DIGITS] [];
 	for (int i = 0; i < GUID_DIGITS; ++i) 
 	    table [i] = new RoutingEntry [DIGIT_VALUES];
+	my_id = my_neighbor_info.id ();
 	my_digits = guid_to_digits (my_neighbor_info.guid);
 	for (int i = 0; i < GUID_DIGITS; ++i) 
 	    table [i][my_digits [i]] = my_routing_entry;
@@ -113,6 +120,10 @@ public class RoutingTable {
 	return fd;
     }
 
+    protected final int calc_first_diff (Guid other) {
+        return my_id.common_prefix_bits (other) / BITS_PER_DIGIT;
+    }
+
     /**
      * Returns the primary neighbor for this entry, or null if there is a
      * hole.
@@ -158,17 +169,22 @@ public class RoutingTable {
     }
 
     public int matching_digits (BigInteger guid) {
-        return calc_first_diff (guid_to_digits (guid));
+        return calc_first_diff (Guid.valueOf (guid));
+    }
+
+    public int matching_digits (Guid guid) {
+        return calc_first_diff (guid);
     }
 
     public boolean contains (NeighborInfo ni) {
-	int [] dest_digits = guid_to_digits (ni.guid);
-	int fd = calc_first_diff (dest_digits);
+	Guid dest = ni.id ();
+	int fd = calc_first_diff (dest);
 	if (fd == GUID_DIGITS)  
 	    return false;
+	int value = dest.digit (fd, BITS_PER_DIGIT);
 
-	if ((primary (fd, dest_digits [fd]) != null) &&
-	    (primary (fd, dest_digits [fd]).equals (ni))) {
+	if ((primary (fd, value) != null) &&
+	    (primary (fd, value).equals (ni))) {
 	    return true;
 	}
 
@@ -184,31 +200,32 @@ public class RoutingTable {
     public NeighborInfo add (NeighborInfo ni, double rtt_ms, 
                              boolean pns, long now_ms) {
 
-	int [] dest_digits = guid_to_digits (ni.guid);
-	int fd = calc_first_diff (dest_digits);
+	Guid dest = ni.id ();
+	int fd = calc_first_diff (dest);
 	if (fd == GUID_DIGITS)  
 	    return null;
+	int value = dest.digit (fd, BITS_PER_DIGIT);
 
         NeighborInfo result = null;
-	if (primary (fd, dest_digits [fd]) == null) {
+	if (primary (fd, value) == null) {
 	    RoutingEntry re = new RoutingEntry (ni, rtt_ms);
-	    table[fd][dest_digits [fd]] = re;
+	    table[fd][value] = re;
 	    ++size;
 	    result = my_neighbor_info;
 	}
-        else if (primary (fd, dest_digits [fd]).equals (ni)) {
+        else if (primary (fd, value).equals (ni)) {
             // Update the RTT
             // System.out.println ("updating " + ni + " rtt to " + rtt_ms);
-            primary_re (fd, dest_digits [fd]).rtt_ms = rtt_ms;
+            primary_re (fd, value).rtt_ms = rtt_ms;
         }
 	else if (pns && 
-                 (rtt_ms < SCALE * primary_re (fd, dest_digits [fd]).rtt_ms)) {
+                 (rtt_ms < SCALE * primary_re (fd, value).rtt_ms)) {
             /*System.err.println ("old_rtt=" + 
-                    primary_re (fd, dest_digits [fd]).rtt_ms + 
+                    primary_re (fd, value).rtt_ms + 
                     " new_rtt=" + rtt_ms);*/
 	    RoutingEntry re = new RoutingEntry (ni, rtt_ms);
-	    RoutingEntry removed = table[fd][dest_digits [fd]];
-	    table[fd][dest_digits [fd]] = re;
+	    RoutingEntry removed = table[fd][value];
+	    table[fd][value] = re;
 	    result = removed.ni;
 	}
 
@@ -219,26 +236,28 @@ public class RoutingTable {
     }
 
     public void force_add (NeighborInfo ni, double rtt_ms) {
-	int [] dest_digits = guid_to_digits (ni.guid);
-	int fd = calc_first_diff (dest_digits);
+	Guid dest = ni.id ();
+	int fd = calc_first_diff (dest);
 	if (fd == GUID_DIGITS)  
 	    throw new IllegalArgumentException ("can't force_add self");
-        if(table[fd][dest_digits[fd]] == null)
+	int value = dest.digit (fd, BITS_PER_DIGIT);
+        if(table[fd][value] == null)
             ++size;
 
 	RoutingEntry re = new RoutingEntry (ni, rtt_ms);
-	table[fd][dest_digits [fd]] = re;
+	table[fd][value] = re;
 
         if (fd > highest_level)
             highest_level = fd;
     }
 
     public boolean fills_hole (NeighborInfo ni) {
-	int [] dest_digits = guid_to_digits (ni.guid);
-	int fd = calc_first_diff (dest_digits);
+	Guid dest = ni.id ();
+	int fd = calc_first_diff (dest);
 	if (fd == GUID_DIGITS)  
 	    return false;
-	return primary (fd, dest_digits [fd]) == null;
+	int value = dest.digit (fd, BITS_PER_DIGIT);
+	return primary (fd, value) == null;
     }
 	
     /**
@@ -246,14 +265,15 @@ public class RoutingTable {
      * removed, or -1 if the node was not in the routing table.
      */
     public int remove (NeighborInfo ni) {
-	int [] dest_digits = guid_to_digits (ni.guid);
-	int fd = calc_first_diff (dest_digits);
+	Guid dest = ni.id ();
+	int fd = calc_first_diff (dest);
 	if (fd == GUID_DIGITS)  
 	    return -1;
+	int value = dest.digit (fd, BITS_PER_DIGIT);
 
-	if ((primary (fd, dest_digits [fd]) != null) &&
-	    (primary (fd, dest_digits [fd]).equals (ni))) {
-	    table[fd][dest_digits [fd]] = null;
+	if ((primary (fd, value) != null) &&
+	    (primary (fd, value).equals (ni))) {
+	    table[fd][value] = null;
 	    --size;
 
             if (fd == highest_level) {
@@ -277,12 +297,15 @@ public class RoutingTable {
     }
 
     public NeighborInfo next_hop (BigInteger guid, Set ignore) {
-	int [] dest_digits = guid_to_digits (guid);
-        int fd = calc_first_diff (dest_digits);
+        return next_hop (Guid.valueOf (guid), ignore);
+    }
+
+    public NeighborInfo next_hop (Guid guid, Set ignore) {
+        int fd = calc_first_diff (guid);
         if (fd == GUID_DIGITS) 
             return my_neighbor_info;
         else {
-            NeighborInfo result = primary (fd, dest_digits [fd]);
+            NeighborInfo result = primary (fd, guid.digit (fd, BITS_PER_DIGIT));
             if (ignore.contains (result))
                 return null;
             else 
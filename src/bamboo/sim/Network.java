@@ -65,7 +65,7 @@ public class Network extends bamboo.lss.Network {
         if (item instanceof NetworkMessage) {
             NetworkMessage msg = (NetworkMessage) item;
             if (msg.inbound) {
-                try { classifier.dispatch (msg); }
+                try { dispatch_table.dispatch (msg); }
                 catch (Exception e) { assert false : e; }
             }
             else {
@@ -6,6 +6,7 @@
  */
 
 package bamboo.sim;
+import bamboo.lss.DispatchTable;
 import bamboo.lss.StageManager;
 import bamboo.lss.StageWrapper;
 import java.io.*;
@@ -130,18 +131,18 @@ public class Simulator {
     }
 
     protected class MyClassifierAlarmCB implements EventQueue.Callback {
-	protected Classifier classifier;
+	protected DispatchTable dispatch_table;
 	public MyClassifierAlarmCB (Classifier c) {
-	    classifier = c;
+	    dispatch_table = DispatchTable.instance (c.node_id ());
 	}
 	public void call (Object user_data) {
 	    QueueElementIF item = (QueueElementIF) user_data;
             if (logger.isDebugEnabled ())
                 logger.debug ("dispatching " + item);
 	    try {
-		classifier.dispatch (item);
+		dispatch_table.dispatch (item);
 	    }
-	    catch (SinkFullException e) {
+	    catch (SinkException e) {
 		System.err.println ("could not dispatch later " + item);
 		e.printStackTrace (System.err);
 	    }
@@ -174,6 +175,7 @@ public class Simulator {
             }
 
             Classifier.removeClassifier(node_id);
+            DispatchTable.remove(node_id);
         }
     }
 
@@ -323,7 +325,8 @@ public class Simulator {
 
 	    try {
                 event_queue.set_current_node_id (next_node_id);
-                classifier.enqueue (new StagesInitializedSignal ());
+                DispatchTable.instance (next_node_id).dispatch (
+                        new StagesInitializedSignal ());
                 event_queue.set_current_node_id (null);
 	    }
 	    catch (SinkException e) {
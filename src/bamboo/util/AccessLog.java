@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.util;
+import java.util.Iterator;
+import java.util.LinkedList;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * A log of the requests a node handles, written by a thread of its own.
+ *
+ * <p>The stages on the request path used to build a line of text and call
+ * <code>logger.info</code> for each put, get, and tuple stored, which put
+ * the formatting and the appender's I/O on the main thread.  Instead,
+ * they now copy the fields of each event into a Record taken from a ring
+ * buffer; the writer thread turns the records into text and hands them to
+ * the same loggers as before, stamped with the time they were recorded, so
+ * the log reads as it did.
+ *
+ * <p>Each kind of event has a Type, which knows how to format it.  A Type
+ * can be sampled, so that only one in <code>sample</code> events of that
+ * kind is logged (zero logs none); stages set this from the
+ * <code>access_log_sample_</code><i>name</i> config variables.  If the
+ * writer falls behind and the ring fills up, events are dropped rather
+ * than waited for, and counted.
+ *
+ * <p>Usage, where <code>put_req_log</code> is a Type:
+ *
+ * <pre>
+ *     AccessLog.Record r = put_req_log.record ();
+ *     if (r != null) {
+ *         r.a = client; r.b = req.key;
+ *         r.x = req.ttl_sec;
+ *         r.log ();
+ *     }
+ * </pre>
+ *
+ * A Record must not be touched after <code>log</code> is called on it,
+ * since the writer will reuse it, and the objects put into it must not be
+ * changed afterwards, since they are read by the writer thread.
+ *
+ * @version $Id$
+ */
+public class AccessLog {
+
+    public static final int CAPACITY = 8192;
+
+    /**
+     * A kind of event.  Subclasses implement <code>format</code>.
+     */
+    public static abstract class Type {
+        protected String name;
+        protected Logger logger;
+        protected int sample = 1;
+        protected long seen, sampled_out, dropped;
+
+        public Type (String name, Logger logger) {
+            this.name = name;
+            this.logger = logger;
+            instance ().add_type (this);
+        }
+
+        public String name () { return name; }
+
+        /**
+         * Logs one in <code>value</code> events of this type; zero logs
+         * none of them.
+         */
+        public void set_sample (int value) { sample = value; }
+
+        /**
+         * Returns a Record to fill in and <code>log</code>, or null if
+         * this event is not to be logged, either because it was sampled
+         * out, the logger is not at INFO, or the ring is full.
+         */
+        public Record record () {
+            return instance ().record (this);
+        }
+
+        /**
+         * Appends the text of <code>r</code> to <code>buf</code>; called by
+         * the writer thread.
+         */
+        public abstract void format (Record r, StringBuffer buf);
+    }
+
+    /**
+     * The fields of one event.  What each field holds is up to its Type.
+     */
+    public static class Record {
+        public Type type;
+        public long time_ms;
+        public Object a, b, c, d, e, f, g;
+        public long v, w, x, y, z;
+        protected boolean ready;
+
+        public void log () {
+            instance ().ready (this);
+        }
+
+        protected void clear () {
+            type = null;
+            a = b = c = d = e = f = g = null;
+            v = w = x = y = z = 0;
+            ready = false;
+        }
+    }
+
+    protected static AccessLog instance;
+
+    public static synchronized AccessLog instance () {
+        if (instance == null)
+            instance = new AccessLog (CAPACITY);
+        return instance;
+    }
+
+    protected Record [] ring;
+    protected long head, tail;
+    protected boolean writer_waiting;
+    protected LinkedList types = new LinkedList ();
+    protected long logged, sampled_out, dropped;
+
+    protected AccessLog (int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        ring = new Record [size];
+        for (int i = 0; i < size; ++i)
+            ring [i] = new Record ();
+
+        Thread t = new Thread ("AccessLog") {
+            public void run () { write_loop (); }
+        };
+        t.setDaemon (true);
+        t.start ();
+
+        Runtime.getRuntime ().addShutdownHook (new Thread () {
+            public void run () { flush (1000); }
+        });
+    }
+
+    protected synchronized void add_type (Type t) {
+        types.addLast (t);
+    }
+
+    protected synchronized Record record (Type t) {
+        if ((t.sample == 0) || (! t.logger.isInfoEnabled ()))
+            return null;
+        if ((t.seen++ % t.sample) != 0) {
+            ++t.sampled_out;
+            ++sampled_out;
+            return null;
+        }
+        if (tail - head == ring.length) {
+            ++t.dropped;
+            ++dropped;
+            return null;
+        }
+        Record r = ring [(int) (tail++ & (ring.length - 1))];
+        r.type = t;
+        r.time_ms = System.currentTimeMillis ();
+        return r;
+    }
+
+    protected synchronized void ready (Record r) {
+        r.ready = true;
+        if (writer_waiting)
+            notifyAll ();
+    }
+
+    /**
+     * Waits until there are records ready at the head of the ring, and
+     * returns how many there are in a row.
+     */
+    protected synchronized int wait_for_records () {
+        while (true) {
+            int n = 0;
+            while ((head + n < tail)
+                   && ring [(int) ((head + n) & (ring.length - 1))].ready)
+                ++n;
+            if (n > 0)
+                return n;
+            writer_waiting = true;
+            try { wait (); } catch (InterruptedException e) {}
+            writer_waiting = false;
+        }
+    }
+
+    protected void write_loop () {
+        StringBuffer buf = new StringBuffer (400);
+        while (true) {
+            int n = wait_for_records ();
+            // Only the writer moves head, and the records between it and
+            // head + n are ready, so they can be read without the lock.
+            for (int i = 0; i < n; ++i) {
+                Record r = ring [(int) ((head + i) & (ring.length - 1))];
+                buf.setLength (0);
+                try {
+                    r.type.format (r, buf);
+                    r.type.logger.callAppenders (new LoggingEvent (
+                                Logger.class.getName (), r.type.logger,
+                                r.time_ms, Level.INFO, buf.toString (),
+                                null));
+                }
+                catch (RuntimeException e) {
+                    r.type.logger.warn ("could not log " + r.type.name, e);
+                }
+                r.clear ();
+            }
+            synchronized (this) {
+                head += n;
+                logged += n;
+                notifyAll ();
+            }
+        }
+    }
+
+    /**
+     * Waits up to <code>timeout_ms</code> for the writer to log every
+     * record that is ready.
+     */
+    public synchronized void flush (long timeout_ms) {
+        long end_ms = System.currentTimeMillis () + timeout_ms;
+        long target = tail;
+        while (head < target) {
+            if (! ring [(int) (head & (ring.length - 1))].ready)
+                break;
+            long left_ms = end_ms - System.currentTimeMillis ();
+            if (left_ms <= 0)
+                break;
+            try { wait (left_ms); } catch (InterruptedException e) {}
+        }
+    }
+
+    public synchronized long logged () { return logged; }
+
+    public synchronized long sampledOut () { return sampled_out; }
+
+    public synchronized long dropped () { return dropped; }
+
+    /**
+     * The number of records waiting for the writer.
+     */
+    public synchronized long backlog () { return tail - head; }
+
+    public synchronized String toString () {
+        StringBuffer buf = new StringBuffer (100 + 50 * types.size ());
+        buf.append ("(AccessLog logged=");
+        buf.append (logged);
+        buf.append (" sampled_out=");
+        buf.append (sampled_out);
+        buf.append (" dropped=");
+        buf.append (dropped);
+        buf.append (" backlog=");
+        buf.append (tail - head);
+        for (Iterator i = types.iterator (); i.hasNext (); ) {
+            Type t = (Type) i.next ();
+            buf.append ("\n  ");
+            buf.append (t.name);
+            buf.append (" sample=");
+            buf.append (t.sample);
+            buf.append (" seen=");
+            buf.append (t.seen);
+            buf.append (" sampled_out=");
+            buf.append (t.sampled_out);
+            buf.append (" dropped=");
+            buf.append (t.dropped);
+        }
+        buf.append (")");
+        return buf.toString ();
+    }
+}
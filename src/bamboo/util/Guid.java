@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.util;
+import java.math.BigInteger;
+
+/**
+ * An immutable 160-bit identifier, held in three longs.  The router makes
+ * every forwarding decision by comparing ring distances and extracting
+ * digits from identifiers; on BigIntegers, each of those allocates
+ * several new objects, while here they are a few word operations.  The
+ * rest of the system, and the wire format, still use BigIntegers; code
+ * converts at the boundary with {@link #valueOf} and {@link
+ * #to_big_integer}.
+ *
+ * <p>Distances are taken on the ring of integers modulo 2^160, and agree
+ * with GuidTools.calc_dist and GuidTools.in_range_mod with that modulus.
+ *
+ * @version $Id$
+ */
+public final class Guid implements Comparable<Guid> {
+
+    public static final int BITS = 160;
+    public static final BigInteger MODULUS = BigInteger.ONE.shiftLeft (BITS);
+
+    protected static final long HI_MASK = 0xffffffffL;
+    protected static final long HI_TOP = 0x80000000L;
+
+    /**
+     * Bits 159..128 (in the low half of the long), 127..64, and 63..0.
+     */
+    protected final long hi, mid, lo;
+
+    /**
+     * The BigInteger this was made from, or made into; cached so that
+     * to_big_integer usually allocates nothing.
+     */
+    protected BigInteger big;
+
+    protected Guid (long hi, long mid, long lo) {
+        this.hi = hi & HI_MASK;
+        this.mid = mid;
+        this.lo = lo;
+    }
+
+    /**
+     * Returns the Guid for <code>i</code>, which must be at least zero
+     * and less than 2^160.
+     */
+    public static Guid valueOf (BigInteger i) {
+        if ((i.signum () < 0) || (i.bitLength () > BITS))
+            throw new IllegalArgumentException ("guid out of range: " + i);
+        byte [] bytes = i.toByteArray ();
+        long hi = 0, mid = 0, lo = 0;
+        for (int j = Math.max (0, bytes.length - 20); j < bytes.length; ++j) {
+            hi = (hi << 8) | (mid >>> 56);
+            mid = (mid << 8) | (lo >>> 56);
+            lo = (lo << 8) | (bytes [j] & 0xffL);
+        }
+        Guid result = new Guid (hi, mid, lo);
+        result.big = i;
+        return result;
+    }
+
+    public BigInteger to_big_integer () {
+        if (big == null) {
+            byte [] bytes = new byte [21];
+            put (bytes, 1, 4, hi);
+            put (bytes, 5, 8, mid);
+            put (bytes, 13, 8, lo);
+            big = new BigInteger (bytes);
+        }
+        return big;
+    }
+
+    protected static void put (byte [] bytes, int off, int len, long word) {
+        for (int j = off + len - 1; j >= off; --j) {
+            bytes [j] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
+    /**
+     * Returns the most significant 64 bits, offset by 2^63 so that
+     * comparing the results as signed longs orders them as the Guids
+     * they came from.
+     */
+    public long prefix () {
+        return ((hi << 32) | (mid >>> 32)) ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the <code>i</code>th digit, counting from the most
+     * significant, of a base 2^<code>bits_per_digit</code> representation
+     * of this Guid.  <code>bits_per_digit</code> must be 1, 2, 4, or 8.
+     */
+    public int digit (int i, int bits_per_digit) {
+        int start = BITS - (i + 1) * bits_per_digit;
+        long word = (start >= 128) ? hi : ((start >= 64) ? mid : lo);
+        return (int) (word >>> (start & 63)) & ((1 << bits_per_digit) - 1);
+    }
+
+    /**
+     * Returns the number of leading bits this Guid has in common with
+     * <code>other</code>, from 0 to 160.
+     */
+    public int common_prefix_bits (Guid other) {
+        long x = hi ^ other.hi;
+        if (x != 0)
+            return Long.numberOfLeadingZeros (x) - 32;
+        x = mid ^ other.mid;
+        if (x != 0)
+            return 32 + Long.numberOfLeadingZeros (x);
+        x = lo ^ other.lo;
+        if (x != 0)
+            return 96 + Long.numberOfLeadingZeros (x);
+        return BITS;
+    }
+
+    /**
+     * Compares two longs as unsigned numbers.
+     */
+    protected static int ucmp (long a, long b) {
+        a ^= Long.MIN_VALUE;
+        b ^= Long.MIN_VALUE;
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    protected static int ucmp (long ahi, long amid, long alo,
+                               long bhi, long bmid, long blo) {
+        if (ahi != bhi)
+            return (ahi < bhi) ? -1 : 1; // both hold only 32 bits
+        int c = ucmp (amid, bmid);
+        return (c != 0) ? c : ucmp (alo, blo);
+    }
+
+    /**
+     * Returns the sign of dist(<code>a</code>, <code>key</code>) -
+     * dist(<code>b</code>, <code>key</code>), where dist is the distance
+     * around the ring, without allocating anything.
+     */
+    public static int compare_dist (Guid a, Guid b, Guid key) {
+        // d = (key - a) mod 2^160, then min (d, 2^160 - d).
+        long alo = key.lo - a.lo;
+        long borrow = (ucmp (key.lo, a.lo) < 0) ? 1 : 0;
+        long amid = key.mid - a.mid - borrow;
+        borrow = ((ucmp (key.mid, a.mid) < 0)
+                  || ((borrow != 0) && (key.mid == a.mid))) ? 1 : 0;
+        long ahi = (key.hi - a.hi - borrow) & HI_MASK;
+        if ((ahi & HI_TOP) != 0) {
+            ahi = (~ahi + (((alo | amid) == 0) ? 1 : 0)) & HI_MASK;
+            amid = ~amid + ((alo == 0) ? 1 : 0);
+            alo = -alo;
+        }
+
+        long blo = key.lo - b.lo;
+        borrow = (ucmp (key.lo, b.lo) < 0) ? 1 : 0;
+        long bmid = key.mid - b.mid - borrow;
+        borrow = ((ucmp (key.mid, b.mid) < 0)
+                  || ((borrow != 0) && (key.mid == b.mid))) ? 1 : 0;
+        long bhi = (key.hi - b.hi - borrow) & HI_MASK;
+        if ((bhi & HI_TOP) != 0) {
+            bhi = (~bhi + (((blo | bmid) == 0) ? 1 : 0)) & HI_MASK;
+            bmid = ~bmid + ((blo == 0) ? 1 : 0);
+            blo = -blo;
+        }
+
+        return ucmp (ahi, amid, alo, bhi, bmid, blo);
+    }
+
+    /**
+     * Returns whether <code>query</code> lies in the range of the ring
+     * from <code>low</code> clockwise to <code>high</code>, inclusive,
+     * without allocating anything.
+     */
+    public static boolean in_range_mod (Guid low, Guid high, Guid query) {
+        // (query - low) mod 2^160 <= (high - low) mod 2^160
+        long qlo = query.lo - low.lo;
+        long borrow = (ucmp (query.lo, low.lo) < 0) ? 1 : 0;
+        long qmid = query.mid - low.mid - borrow;
+        borrow = ((ucmp (query.mid, low.mid) < 0)
+                  || ((borrow != 0) && (query.mid == low.mid))) ? 1 : 0;
+        long qhi = (query.hi - low.hi - borrow) & HI_MASK;
+
+        long hlo = high.lo - low.lo;
+        borrow = (ucmp (high.lo, low.lo) < 0) ? 1 : 0;
+        long hmid = high.mid - low.mid - borrow;
+        borrow = ((ucmp (high.mid, low.mid) < 0)
+                  || ((borrow != 0) && (high.mid == low.mid))) ? 1 : 0;
+        long hhi = (high.hi - low.hi - borrow) & HI_MASK;
+
+        return ucmp (qhi, qmid, qlo, hhi, hmid, hlo) <= 0;
+    }
+
+    public int compareTo (Guid other) {
+        return ucmp (hi, mid, lo, other.hi, other.mid, other.lo);
+    }
+
+    public boolean equals (Object rhs) {
+        if (! (rhs instanceof Guid))
+            return false;
+        Guid other = (Guid) rhs;
+        return (lo == other.lo) && (mid == other.mid) && (hi == other.hi);
+    }
+
+    public int hashCode () {
+        long x = hi ^ mid ^ lo;
+        return (int) (x ^ (x >>> 32));
+    }
+
+    /**
+     * Returns the high-order 8 hexadecimal digits, like
+     * GuidTools.guid_to_string.
+     */
+    public String toString () {
+        String result = Long.toHexString (hi);
+        while (result.length () < 8)
+            result = "0" + result;
+        return result;
+    }
+
+    /**
+     * A test harness: checks the arithmetic against GuidTools on random
+     * guids, and on guids near the edges of the words and of the ring.
+     */
+    public static void main (String [] args) {
+        java.util.Random rand = new java.util.Random (1);
+        BigInteger [] edges = {
+            BigInteger.ZERO, BigInteger.ONE,
+            MODULUS.subtract (BigInteger.ONE),
+            MODULUS.shiftRight (1), MODULUS.shiftRight (1).add (BigInteger.ONE),
+            BigInteger.ONE.shiftLeft (64), BigInteger.ONE.shiftLeft (128),
+            BigInteger.ONE.shiftLeft (64).subtract (BigInteger.ONE),
+            BigInteger.ONE.shiftLeft (128).subtract (BigInteger.ONE) };
+        int count = (args.length > 0) ? Integer.parseInt (args [0]) : 100000;
+        for (int n = 0; n < count; ++n) {
+            BigInteger [] b = new BigInteger [3];
+            for (int k = 0; k < 3; ++k) {
+                b [k] = (rand.nextInt (4) == 0)
+                    ? edges [rand.nextInt (edges.length)]
+                    : GuidTools.random_guid (rand);
+                if (rand.nextInt (8) == 0)
+                    b [k] = b [k].add (BigInteger.valueOf (
+                                rand.nextInt (5) - 2)).mod (MODULUS);
+            }
+            if (rand.nextInt (8) == 0)
+                b [1] = b [0];
+            Guid [] g = new Guid [3];
+            for (int k = 0; k < 3; ++k) {
+                g [k] = valueOf (b [k]);
+                Guid copy = new Guid (g [k].hi, g [k].mid, g [k].lo);
+                if (! copy.to_big_integer ().equals (b [k]))
+                    fail ("to_big_integer", b);
+            }
+            int expected = GuidTools.calc_dist (b [0], b [2], MODULUS)
+                .compareTo (GuidTools.calc_dist (b [1], b [2], MODULUS));
+            if (Integer.signum (compare_dist (g [0], g [1], g [2]))
+                != Integer.signum (expected))
+                fail ("compare_dist", b);
+            if (in_range_mod (g [0], g [1], g [2])
+                != GuidTools.in_range_mod (b [0], b [1], b [2], MODULUS))
+                fail ("in_range_mod", b);
+            if (Integer.signum (g [0].compareTo (g [1]))
+                != b [0].compareTo (b [1]))
+                fail ("compareTo", b);
+            int prefix = BITS - b [0].xor (b [1]).bitLength ();
+            if (g [0].common_prefix_bits (g [1]) != prefix)
+                fail ("common_prefix_bits", b);
+            for (int bpd = 1; bpd <= 8; bpd <<= 1) {
+                int [] digits = GuidTools.guid_to_digits (
+                        b [0], bpd, BITS / bpd, 1 << bpd);
+                for (int i = 0; i < digits.length; ++i)
+                    if (g [0].digit (i, bpd) != digits [i])
+                        fail ("digit", b);
+            }
+            if (! g [0].toString ().equals (
+                        GuidTools.guid_to_string (b [0])))
+                fail ("toString", b);
+        }
+        System.out.println ("passed " + count + " tests");
+    }
+
+    protected static void fail (String what, BigInteger [] b) {
+        System.err.println (what + " failed for " + b [0].toString (16)
+                + ", " + b [1].toString (16) + ", " + b [2].toString (16));
+        System.exit (1);
+    }
+}
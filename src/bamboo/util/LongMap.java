@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.util;
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive longs to objects, using open addressing with
+ * linear probing.  Unlike a <code>HashMap&lt;Long,V&gt;</code>, it
+ * allocates nothing on lookups, removals, or puts that don't grow the
+ * table.  Null values are not allowed.
+ *
+ * <p>To visit the entries without allocating an iterator, loop over the
+ * slots from 0 to {@link #slots} and skip the ones for which {@link
+ * #value_at} returns null.  The map must not be modified while doing so.
+ *
+ * @version $Id$
+ */
+public class LongMap<V> {
+
+    protected long [] keys;
+    protected Object [] values;
+    protected int size;
+    protected int mask;
+
+    public LongMap () {
+        this (16);
+    }
+
+    /**
+     * Creates a map that can hold <code>expected</code> entries before it
+     * needs to grow.
+     */
+    public LongMap (int expected) {
+        int capacity = 4;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        keys = new long [capacity];
+        values = new Object [capacity];
+        mask = capacity - 1;
+    }
+
+    public final int size () {
+        return size;
+    }
+
+    public final boolean isEmpty () {
+        return size == 0;
+    }
+
+    /**
+     * Mixes the bits of <code>key</code>, so that sequential keys don't
+     * fall into sequential slots; from the finalizer of MurmurHash3.
+     */
+    public static final int hash (long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public final V get (long key) {
+        int i = hash (key) & mask;
+        while (values [i] != null) {
+            if (keys [i] == key)
+                return (V) values [i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public final boolean containsKey (long key) {
+        return get (key) != null;
+    }
+
+    /**
+     * Associates <code>value</code> with <code>key</code>, and returns the
+     * value previously associated with it, if any.
+     */
+    @SuppressWarnings("unchecked")
+    public final V put (long key, V value) {
+        if (value == null)
+            throw new NullPointerException ();
+        int i = hash (key) & mask;
+        while (values [i] != null) {
+            if (keys [i] == key) {
+                V result = (V) values [i];
+                values [i] = value;
+                return result;
+            }
+            i = (i + 1) & mask;
+        }
+        keys [i] = key;
+        values [i] = value;
+        if (++size * 2 > values.length)
+            grow ();
+        return null;
+    }
+
+    /**
+     * Removes the value associated with <code>key</code> and returns it, or
+     * returns null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public final V remove (long key) {
+        int i = hash (key) & mask;
+        while (values [i] != null) {
+            if (keys [i] == key) {
+                V result = (V) values [i];
+                delete_slot (i);
+                --size;
+                return result;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Empties slot <code>i</code>, then moves back any entries after it in
+     * the same run that would otherwise no longer be found.
+     */
+    protected final void delete_slot (int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values [j] == null)
+                break;
+            int home = hash (keys [j]) & mask;
+            // Move the entry at j into the hole at i unless its home slot
+            // lies cyclically in (i, j].
+            if ((i <= j) ? ((i < home) && (home <= j))
+                         : ((i < home) || (home <= j)))
+                continue;
+            keys [i] = keys [j];
+            values [i] = values [j];
+            i = j;
+        }
+        values [i] = null;
+    }
+
+    protected final void grow () {
+        long [] old_keys = keys;
+        Object [] old_values = values;
+        keys = new long [old_keys.length * 2];
+        values = new Object [old_values.length * 2];
+        mask = keys.length - 1;
+        for (int k = 0; k < old_values.length; ++k) {
+            if (old_values [k] != null) {
+                int i = hash (old_keys [k]) & mask;
+                while (values [i] != null)
+                    i = (i + 1) & mask;
+                keys [i] = old_keys [k];
+                values [i] = old_values [k];
+            }
+        }
+    }
+
+    public final void clear () {
+        Arrays.fill (values, null);
+        size = 0;
+    }
+
+    /**
+     * The number of slots in the table; see {@link #value_at}.
+     */
+    public final int slots () {
+        return values.length;
+    }
+
+    public final long key_at (int slot) {
+        return keys [slot];
+    }
+
+    /**
+     * Returns the value in the given slot, or null if the slot is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public final V value_at (int slot) {
+        return (V) values [slot];
+    }
+}
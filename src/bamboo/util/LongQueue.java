@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.util;
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of primitive longs, kept in a ring buffer that doubles in
+ * size when it fills.  Once it has grown to its working size, adding and
+ * removing elements allocates nothing.
+ *
+ * @version $Id$
+ */
+public class LongQueue {
+
+    protected long [] ring;
+    protected int head, size;
+
+    public LongQueue () {
+        this (8);
+    }
+
+    public LongQueue (int initial_capacity) {
+        int capacity = 1;
+        while (capacity < initial_capacity)
+            capacity <<= 1;
+        ring = new long [capacity];
+    }
+
+    public final int size () {
+        return size;
+    }
+
+    public final boolean isEmpty () {
+        return size == 0;
+    }
+
+    public final void addLast (long value) {
+        if (size == ring.length) {
+            long [] bigger = new long [ring.length * 2];
+            for (int i = 0; i < size; ++i)
+                bigger [i] = ring [(head + i) & (ring.length - 1)];
+            ring = bigger;
+            head = 0;
+        }
+        ring [(head + size) & (ring.length - 1)] = value;
+        ++size;
+    }
+
+    public final long getFirst () {
+        if (size == 0)
+            throw new NoSuchElementException ();
+        return ring [head];
+    }
+
+    /**
+     * Returns the element <code>i</code> places from the front.
+     */
+    public final long get (int i) {
+        if ((i < 0) || (i >= size))
+            throw new IndexOutOfBoundsException ("i=" + i + " size=" + size);
+        return ring [(head + i) & (ring.length - 1)];
+    }
+
+    public final long removeFirst () {
+        if (size == 0)
+            throw new NoSuchElementException ();
+        long result = ring [head];
+        head = (head + 1) & (ring.length - 1);
+        --size;
+        return result;
+    }
+
+    public final void clear () {
+        head = size = 0;
+    }
+}
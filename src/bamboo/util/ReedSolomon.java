@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.util;
+import java.util.Random;
+
+/**
+ * A systematic Reed-Solomon erasure code over GF(2^8).  A value is split
+ * into <code>k</code> data fragments, and <code>n - k</code> parity
+ * fragments are computed from them, such that any <code>k</code> of the
+ * <code>n</code> fragments are enough to rebuild the value.  Fragment i,
+ * for i less than k, is simply the ith slice of the value, so rebuilding
+ * from the first k fragments is a copy.
+ *
+ * <p>The parity rows of the generator matrix form a Cauchy matrix,
+ * 1 / (x_i + y_j) with x_i = k + i and y_j = j, so every k by k submatrix
+ * of the generator is invertible.  n may be at most 256.
+ *
+ * @version $Id$
+ */
+public class ReedSolomon {
+
+    protected static final int [] EXP = new int [512];
+    protected static final int [] LOG = new int [256];
+
+    /**
+     * MUL [a] [b] is the product of a and b in the field.
+     */
+    protected static final byte [] [] MUL = new byte [256] [256];
+
+    static {
+        // The field is built on the primitive polynomial x^8 + x^4 + x^3 +
+        // x^2 + 1.
+        int x = 1;
+        for (int i = 0; i < 255; ++i) {
+            EXP [i] = x;
+            LOG [x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0)
+                x ^= 0x11d;
+        }
+        for (int i = 255; i < EXP.length; ++i)
+            EXP [i] = EXP [i - 255];
+        for (int a = 1; a < 256; ++a)
+            for (int b = 1; b < 256; ++b)
+                MUL [a] [b] = (byte) EXP [LOG [a] + LOG [b]];
+    }
+
+    protected static int mul (int a, int b) {
+        return MUL [a] [b] & 0xff;
+    }
+
+    protected static int inv (int a) {
+        return EXP [255 - LOG [a]];
+    }
+
+    protected int k, n;
+
+    /**
+     * The generator matrix, one row per fragment.
+     */
+    protected int [] [] gen;
+
+    public ReedSolomon (int k, int n) {
+        if ((k < 1) || (n < k) || (n > 256))
+            throw new IllegalArgumentException ("k=" + k + " n=" + n);
+        this.k = k;
+        this.n = n;
+        gen = new int [n] [k];
+        for (int i = 0; i < k; ++i)
+            gen [i] [i] = 1;
+        for (int i = k; i < n; ++i)
+            for (int j = 0; j < k; ++j)
+                gen [i] [j] = inv (i ^ j);
+    }
+
+    public int k () { return k; }
+
+    public int n () { return n; }
+
+    /**
+     * Returns the size of each fragment of a value of <code>len</code>
+     * bytes.
+     */
+    public int fragment_size (int len) {
+        return (len + k - 1) / k;
+    }
+
+    /**
+     * Splits <code>len</code> bytes of <code>data</code>, from
+     * <code>off</code>, into n fragments of fragment_size (len) bytes; the
+     * last data fragment is padded with zeros.
+     */
+    public byte [] [] encode (byte [] data, int off, int len) {
+        int size = fragment_size (len);
+        byte [] [] result = new byte [n] [size];
+        for (int i = 0; i < k; ++i) {
+            int start = i * size;
+            if (start < len)
+                System.arraycopy (data, off + start, result [i], 0,
+                                  Math.min (size, len - start));
+        }
+        for (int i = k; i < n; ++i)
+            combine (gen [i], result, result [i], size);
+        return result;
+    }
+
+    /**
+     * Sets <code>out</code> to the sum of <code>coeffs [j]</code> times
+     * <code>in [j]</code>, for j from 0 to k - 1.
+     */
+    protected void combine (int [] coeffs, byte [] [] in, byte [] out,
+                            int size) {
+        for (int j = 0; j < k; ++j) {
+            int c = coeffs [j];
+            if (c == 0)
+                continue;
+            byte [] src = in [j];
+            if (c == 1) {
+                for (int b = 0; b < size; ++b)
+                    out [b] ^= src [b];
+            }
+            else {
+                byte [] row = MUL [c];
+                for (int b = 0; b < size; ++b)
+                    out [b] ^= row [src [b] & 0xff];
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a value of <code>len</code> bytes from k fragments.
+     * <code>fragments [i]</code> is the fragment with index
+     * <code>indices [i]</code>; the indices must be distinct, and at least
+     * k of them must be given.  Only the first k are used.
+     */
+    public byte [] decode (byte [] [] fragments, int [] indices, int len) {
+        if (fragments.length < k)
+            throw new IllegalArgumentException (
+                    "need " + k + " fragments, got " + fragments.length);
+        int size = fragment_size (len);
+        byte [] [] data = new byte [k] [];
+
+        // Put the data fragments we have in place, and note the rows of
+        // the generator for the others.
+        byte [] [] in = new byte [k] [];
+        int [] rows = new int [k];
+        boolean all_data = true;
+        for (int i = 0; i < k; ++i) {
+            if ((indices [i] < 0) || (indices [i] >= n)
+                || (fragments [i].length != size))
+                throw new IllegalArgumentException ("bad fragment " + i);
+            in [i] = fragments [i];
+            rows [i] = indices [i];
+            if (indices [i] >= k)
+                all_data = false;
+        }
+
+        if (all_data) {
+            for (int i = 0; i < k; ++i)
+                data [indices [i]] = fragments [i];
+        }
+        else {
+            int [] [] m = new int [k] [];
+            for (int i = 0; i < k; ++i)
+                m [i] = gen [rows [i]];
+            int [] [] minv = invert (m);
+            for (int j = 0; j < k; ++j) {
+                if (rows [j] < k)
+                    data [rows [j]] = in [j];
+            }
+            for (int j = 0; j < k; ++j) {
+                if (data [j] == null) {
+                    data [j] = new byte [size];
+                    combine (minv [j], in, data [j], size);
+                }
+            }
+        }
+
+        byte [] result = new byte [len];
+        for (int i = 0; i < k; ++i) {
+            int start = i * size;
+            if (start < len)
+                System.arraycopy (data [i], 0, result, start,
+                                  Math.min (size, len - start));
+        }
+        return result;
+    }
+
+    /**
+     * Inverts a k by k matrix by Gauss-Jordan elimination.
+     */
+    protected int [] [] invert (int [] [] m) {
+        int [] [] a = new int [k] [2 * k];
+        for (int i = 0; i < k; ++i) {
+            if (m [i] == null || m [i].length != k)
+                throw new IllegalArgumentException ("bad row " + i);
+            System.arraycopy (m [i], 0, a [i], 0, k);
+            a [i] [k + i] = 1;
+        }
+        for (int c = 0; c < k; ++c) {
+            int p = c;
+            while ((p < k) && (a [p] [c] == 0))
+                ++p;
+            if (p == k)
+                throw new IllegalArgumentException ("duplicate fragments");
+            int [] t = a [p]; a [p] = a [c]; a [c] = t;
+            int s = inv (a [c] [c]);
+            for (int j = 0; j < 2 * k; ++j)
+                if (a [c] [j] != 0)
+                    a [c] [j] = mul (a [c] [j], s);
+            for (int i = 0; i < k; ++i) {
+                int f = a [i] [c];
+                if ((i == c) || (f == 0))
+                    continue;
+                for (int j = 0; j < 2 * k; ++j)
+                    if (a [c] [j] != 0)
+                        a [i] [j] ^= mul (f, a [c] [j]);
+            }
+        }
+        int [] [] result = new int [k] [k];
+        for (int i = 0; i < k; ++i)
+            System.arraycopy (a [i], k, result [i], 0, k);
+        return result;
+    }
+
+    /**
+     * A test harness: encodes random values and rebuilds them from random
+     * subsets of k fragments, and prints the encoding throughput.
+     */
+    public static void main (String [] args) {
+        int k = (args.length > 0) ? Integer.parseInt (args [0]) : 4;
+        int n = (args.length > 1) ? Integer.parseInt (args [1]) : 8;
+        int count = (args.length > 2) ? Integer.parseInt (args [2]) : 10000;
+        ReedSolomon rs = new ReedSolomon (k, n);
+        Random rand = new Random (1);
+        for (int t = 0; t < count; ++t) {
+            int len = rand.nextInt (4096) + ((t % 7 == 0) ? 0 : 1);
+            byte [] value = new byte [len];
+            rand.nextBytes (value);
+            byte [] [] frags = rs.encode (value, 0, len);
+            int [] perm = new int [n];
+            for (int i = 0; i < n; ++i)
+                perm [i] = i;
+            for (int i = n - 1; i > 0; --i) {
+                int j = rand.nextInt (i + 1);
+                int x = perm [i]; perm [i] = perm [j]; perm [j] = x;
+            }
+            byte [] [] some = new byte [k] [];
+            int [] indices = new int [k];
+            for (int i = 0; i < k; ++i) {
+                indices [i] = perm [i];
+                some [i] = frags [perm [i]];
+            }
+            if (! java.util.Arrays.equals (
+                        rs.decode (some, indices, len), value)) {
+                System.err.println ("decode failed: len=" + len);
+                System.exit (1);
+            }
+        }
+        System.out.println ("passed " + count + " tests");
+
+        byte [] value = new byte [8192];
+        rand.nextBytes (value);
+        long bytes = 0, start_ms = System.currentTimeMillis (), now_ms;
+        do {
+            for (int i = 0; i < 100; ++i)
+                rs.encode (value, 0, value.length);
+            bytes += 100 * value.length;
+            now_ms = System.currentTimeMillis ();
+        }
+        while (now_ms - start_ms < 2000);
+        System.out.println ("encoded " + Math.round (
+                    bytes / 1048576.0 * 1000.0 / (now_ms - start_ms))
+                + " MB/s with k=" + k + " n=" + n);
+    }
+}
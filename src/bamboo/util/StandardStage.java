@@ -31,11 +31,11 @@
 
 package bamboo.util;
 import bamboo.lss.ASyncCore;
+import bamboo.lss.DispatchTable;
 import bamboo.lss.DustDevil;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import ostore.dispatch.Classifier;
-import ostore.dispatch.Filter;
 import ostore.util.Clock;
 import ostore.util.NodeId;
 import seda.sandStorm.api.ConfigDataIF;
@@ -59,6 +59,7 @@ public abstract class StandardStage
 implements EventHandlerIF, SingleThreadedEventHandlerIF {
 
     protected Classifier classifier;
+    protected DispatchTable dispatch_table;
     protected NodeId my_node_id;
     protected SinkIF my_sink;
     protected Class [] event_types = {};
@@ -78,8 +79,23 @@ implements EventHandlerIF, SingleThreadedEventHandlerIF {
         logger = Logger.getLogger (getClass ().getName ());
     }
 
+    /**
+     * Returns the stage named <code>name</code>.  If this stage belongs to
+     * one of several virtual nodes in the process, the copy of that stage
+     * belonging to the same virtual node is returned instead, if there is
+     * one; see DustDevil.
+     */
     protected EventHandlerIF lookup_stage (ConfigDataIF config, String name)
     throws NoSuchStageException {
+        String vnode = config.getString ("virtual_node");
+        if ((vnode != null) && (! vnode.equals ("0"))) {
+            try {
+                StageIF stage =
+                    config.getManager ().getStage (name + "-" + vnode);
+                return stage.getWrapper ().getEventHandler ();
+            }
+            catch (NoSuchStageException e) {}
+        }
         StageIF stage = config.getManager ().getStage (name);
         return stage.getWrapper ().getEventHandler ();
     }
@@ -161,6 +177,15 @@ implements EventHandlerIF, SingleThreadedEventHandlerIF {
         return result;
     }
 
+    /**
+     * Sets how many events of type <code>t</code> are logged, one in
+     * <code>access_log_sample_</code><i>name</i>; see AccessLog.
+     */
+    protected void config_access_log (ConfigDataIF config, AccessLog.Type t) {
+        t.set_sample (configGetInt (config, "access_log_sample_" + t.name (),
+                                    1));
+    }
+
     protected int config_get_int (ConfigDataIF config, String name) {
         int result = config.getInt (name);
         logger.info ("config." + name + "=" + result);
@@ -194,45 +219,31 @@ implements EventHandlerIF, SingleThreadedEventHandlerIF {
 
 	my_node_id = new NodeId (config.getString ("node_id"));
 	classifier = Classifier.getClassifier (my_node_id);
+        dispatch_table = DispatchTable.instance (my_node_id);
 
         my_sink = config.getStage().getSink();
 
 	for (int i = 0; i < event_types.length; ++i) {
-	    Filter filter = new Filter ();
-	    if (! filter.requireType (event_types [i]))
-		logger.fatal ("could not require type " +
-                        event_types [i].getName ());
             if (logger.isDebugEnabled ())
 		logger.debug ("subscribing to " + event_types [i].getName () );
-	    classifier.subscribe (filter, my_sink);
+	    dispatch_table.subscribe (
+                    event_types [i], DispatchTable.ANY, my_sink);
 	}
 
 	for (int i = 0; i < inb_msg_types.length; ++i) {
 	    ostore.util.TypeTable.register_type (inb_msg_types [i]);
-	    Filter filter = new Filter ();
-	    if (! filter.requireType (inb_msg_types [i]))
-		logger.fatal ("could not require type " +
-                        inb_msg_types [i].getName ());
-	    if (! filter.requireValue ("inbound", new Boolean (true)))
-		logger.fatal ("could not require inbound = true for "
-			+ inb_msg_types [i].getName ());
             if (logger.isDebugEnabled ())
 		logger.debug ("subscribing to " + inb_msg_types [i].getName ());
-	    classifier.subscribe (filter, my_sink);
+	    dispatch_table.subscribe (
+                    inb_msg_types [i], DispatchTable.INBOUND, my_sink);
 	}
 
 	for (int i = 0; i < outb_msg_types.length; ++i) {
-	    Filter filter = new Filter ();
-	    if (! filter.requireType (outb_msg_types [i]))
-		logger.fatal ("could not require type " +
-                        outb_msg_types [i].getName ());
-	    if (! filter.requireValue ("inbound", new Boolean (false)))
-		logger.fatal ("could not require inbound = false for "
-			+ outb_msg_types [i].getName ());
             if (logger.isDebugEnabled ())
 		logger.debug ("subscribing to " +
                         outb_msg_types [i].getName ());
-	    classifier.subscribe (filter, my_sink);
+	    dispatch_table.subscribe (
+                    outb_msg_types [i], DispatchTable.OUTBOUND, my_sink);
 	}
     }
 
@@ -262,7 +273,7 @@ implements EventHandlerIF, SingleThreadedEventHandlerIF {
                     item.getClass ().getName ());
 
 	try {
-	    classifier.dispatch (item);
+	    dispatch_table.dispatch (item);
 	}
 	catch (SinkException e) {
 	    BUG ("could not dispatch " + item, e);
@@ -9,10 +9,15 @@ package bamboo.www;
 
 import bamboo.api.BambooNeighborInfo;
 import bamboo.db.StorageManager;
+import bamboo.db.ValueCache;
+import bamboo.dmgr.DataManager;
 import bamboo.lss.ASyncCore;
+import bamboo.lss.ASyncCoreImpl;
+import bamboo.lss.DustDevil;
 import bamboo.router.NeighborInfo;
 import bamboo.router.Router;
 import bamboo.router.RoutingTable;
+import bamboo.util.AccessLog;
 import bamboo.util.GuidTools;
 import bamboo.util.MultipleByteBufferInputStream;
 import bamboo.util.StringUtil;
@@ -32,6 +37,7 @@ import java.math.BigInteger;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.charset.Charset;
 import java.text.NumberFormat;
 import java.util.*;
 import org.apache.log4j.Logger;
@@ -97,6 +103,7 @@ implements StorageManager.StorageMonitor {
         handlers.put (name, handler);
     }
 
+    protected StorageManager storage_manager;
     protected long total_storage = 0;
     public void storage_changed(boolean added,
                                 InetAddress client_id, long size) {
@@ -160,11 +167,26 @@ implements StorageManager.StorageMonitor {
         }
 	init_start_time_ms = now_ms ();
         listen_port = my_node_id.port () + 1;
+        conn_timeout_ms = configGetInt (config, "conn_timeout_sec", 60) * 1000;
+        max_pipelined_requests =
+            configGetInt (config, "max_pipelined_requests", 16);
+        max_request_size =
+            configGetInt (config, "max_request_size", 1024*1024);
+        chunk_size = configGetInt (config, "chunk_size", 8*1024);
+        no_xml_rpc_codec = config_get_boolean (config, "no_xml_rpc_codec");
+        max_pooled_bytes =
+            configGetInt (config, "max_pooled_buffer_bytes", 256*1024);
+        int sizes = 1;
+        while ((REQ_BUF_SIZE << (sizes - 1)) < max_request_size)
+            ++sizes;
+        free_buffers = new LinkedList [sizes];
+        for (int i = 0; i < sizes; ++i)
+            free_buffers [i] = new LinkedList<ByteBuffer> ();
         latencies.put (my_node_id, new Long (0));
         classifier.dispatch_later (new VivaldiRequestVC (my_sink, null), 5000);
         String sm_name = config_get_string (config, "storage_manager_stage");
-        StorageManager sm = (StorageManager) lookup_stage (config, sm_name);
-        sm.register_monitor (this);
+        storage_manager = (StorageManager) lookup_stage (config, sm_name);
+        storage_manager.register_monitor (this);
         hostname = my_node_id.address ().getHostName ();
         acore.registerTimer(0, ready);
     }
@@ -243,19 +265,92 @@ implements StorageManager.StorageMonitor {
         }
     };
 
+    /**
+     * One response on a connection.  Responses are sent in the order their
+     * requests arrived, so a request that is answered early waits for
+     * those ahead of it; <code>bufs</code> is null until it is answered.
+     * <code>http11</code> and <code>keep_alive</code> are copied from its
+     * request's header, since later requests on the connection may be
+     * parsed before it is answered.
+     */
+    protected static class Response {
+        public ByteBuffer [] bufs;
+        public boolean answered;
+        public boolean http11;
+        public boolean keep_alive;
+        public boolean close;
+    }
+
     protected static class ConnState {
         public SocketChannel channel;
-        public int req_idx = 0;
-        public ByteBuffer req = ByteBuffer.wrap (new byte [4096]);
-        public ByteBuffer resp;
-        public LinkedList<String> header = new LinkedList<String> ();
         public SelectionKey skey;
+        // The bytes read but not yet consumed by a request, from the start
+        // of req to its position; null while there are none.
+        public ByteBuffer req;
+        // Where to resume looking for the end of the header, and its
+        // length once it has been found.
+        public int scan_idx;
+        public int header_len = -1;
+        public String method;
+        public boolean http11;
+        public boolean keep_alive;
+        public int content_length;
+        public String user_agent;
+        public LinkedList<Response> responses = new LinkedList<Response> ();
         public int outstandingReqs;
+        // Set once a request asks for the connection to be closed; no
+        // requests after it are read.
+        public boolean closing;
+        public boolean closed;
+        public boolean handling;
+        public long last_active_ms;
         public ConnState (SocketChannel c) {
             channel = c;
         }
     }
 
+    /**
+     * Request buffers start at this size and double as needed, up to
+     * <code>max_request_size</code>.
+     */
+    public static final int REQ_BUF_SIZE = 4096;
+
+    protected static final Charset ISO_8859_1 = Charset.forName ("ISO-8859-1");
+
+    protected int conn_timeout_ms;
+    protected int max_pipelined_requests;
+    protected int max_request_size;
+    protected int chunk_size;
+    protected boolean no_xml_rpc_codec;
+    protected long connections_accepted, requests_served;
+
+    // Free request buffers by size, REQ_BUF_SIZE << i in free_buffers [i],
+    // holding no more than max_pooled_bytes between them.
+    protected LinkedList<ByteBuffer> [] free_buffers;
+    protected int pooled_bytes, max_pooled_bytes;
+
+    protected ByteBuffer get_buffer (int size) {
+        int i = 0;
+        while ((REQ_BUF_SIZE << i) < size)
+            ++i;
+        if ((i < free_buffers.length) && (! free_buffers [i].isEmpty ())) {
+            ByteBuffer result = free_buffers [i].removeFirst ();
+            pooled_bytes -= result.capacity ();
+            return result;
+        }
+        return ByteBuffer.allocate (REQ_BUF_SIZE << i);
+    }
+
+    protected void release_buffer (ByteBuffer bb) {
+        int i = Integer.numberOfTrailingZeros (bb.capacity () / REQ_BUF_SIZE);
+        if ((i < free_buffers.length)
+            && (pooled_bytes + bb.capacity () <= max_pooled_bytes)) {
+            bb.clear ();
+            free_buffers [i].addLast (bb);
+            pooled_bytes += bb.capacity ();
+        }
+    }
+
     protected ASyncCore.TimerCB periodic_timer_cb = new ASyncCore.TimerCB () {
         public void timer_cb (Object user_data) {
 
@@ -296,6 +391,8 @@ implements StorageManager.StorageMonitor {
                 return;
             channel.configureBlocking (false);
             ConnState state = new ConnState (channel);
+            state.last_active_ms = now_ms ();
+            ++connections_accepted;
 
             InetSocketAddress remote = (InetSocketAddress)
                 channel.socket ().getRemoteSocketAddress ();
@@ -321,20 +418,32 @@ implements StorageManager.StorageMonitor {
                     }, state);
             handle_read_ready(state.skey, state);
 
-            acore.register_timer (60*1000, conn_timeout_cb, state);
+            acore.register_timer (conn_timeout_ms, conn_timeout_cb, state);
         }
         catch (IOException e) {
             BUG (e);
         }
     }
 
+    /**
+     * Closes a connection once it has been idle for conn_timeout_ms, with
+     * no requests waiting on answers or responses waiting to be sent.
+     */
     ASyncCore.TimerCB conn_timeout_cb = new ASyncCore.TimerCB () {
         public void timer_cb (Object user_data) {
             ConnState state = (ConnState) user_data;
-            if (state.outstandingReqs > 0) {
-                acore.register_timer (60*1000, conn_timeout_cb, state);
+            if (state.closed)
+                return;
+            long idle_ms = now_ms () - state.last_active_ms;
+            if ((state.outstandingReqs > 0)
+                || (! state.responses.isEmpty ())) {
+                acore.register_timer (conn_timeout_ms, conn_timeout_cb, state);
+            }
+            else if (idle_ms < conn_timeout_ms) {
+                acore.register_timer (conn_timeout_ms - idle_ms,
+                                      conn_timeout_cb, state);
             }
-            else if (state.skey.isValid ()) {
+            else {
                 InetSocketAddress remote = (InetSocketAddress)
                     state.channel.socket ().getRemoteSocketAddress ();
                 logger.info ("timeout on connection to " + 
@@ -345,16 +454,25 @@ implements StorageManager.StorageMonitor {
         }
     };
 
-    protected void handle_read_ready (final SelectionKey skey, 
-                                      final ConnState state) {
+    protected void handle_read_ready (SelectionKey skey, ConnState state) {
 
-        // Read any new data.
+        // Read any new data, growing the buffer as needed.
 
         while (true) {
-            if (state.req.position () == state.req.limit ()) {
-                // too big
-                close (state);
-                return;
+            if (state.req == null) {
+                state.req = get_buffer (REQ_BUF_SIZE);
+            }
+            else if (state.req.position () == state.req.limit ()) {
+                if (state.req.capacity () >= max_request_size) {
+                    // too big
+                    close (state);
+                    return;
+                }
+                ByteBuffer bigger = get_buffer (state.req.capacity () * 2);
+                state.req.flip ();
+                bigger.put (state.req);
+                release_buffer (state.req);
+                state.req = bigger;
             }
             int count = 0;
             try {
@@ -373,204 +491,300 @@ implements StorageManager.StorageMonitor {
             }
         }
 
-        if (state.header.isEmpty () || 
-            (! state.header.getLast ().equals (""))) {
+        state.last_active_ms = now_ms ();
+        handle_requests (state);
+    }
 
-            // Read any new header lines.
+    /**
+     * Handles each of the complete requests in <code>state.req</code>, up to
+     * max_pipelined_requests waiting on responses, and sets the
+     * connection's interest ops to match.
+     */
+    protected void handle_requests (ConnState state) {
+        // A handler that answers at once calls back in here from under
+        // handle_request; the loop below will see its response.
+        if (state.handling)
+            return;
+        state.handling = true;
+        while ((! state.closed) && (! state.closing) && (state.req != null)
+               && (state.responses.size () < max_pipelined_requests)) {
+            if (! handle_request (state))
+                break;
+        }
+        state.handling = false;
+        if (state.closed)
+            return;
+        if ((state.req != null) && (state.req.position () == 0)) {
+            // Don't hold a buffer while the connection is idle.
+            release_buffer (state.req);
+            state.req = null;
+        }
+        int ops = 0;
+        if ((! state.closing)
+            && (state.responses.size () < max_pipelined_requests))
+            ops |= SelectionKey.OP_READ;
+        if ((! state.responses.isEmpty ())
+            && (state.responses.getFirst ().bufs != null))
+            ops |= SelectionKey.OP_WRITE;
+        state.skey.interestOps (ops);
+    }
 
-            boolean have_cr = false;
-            for (int j = state.req_idx; j <= state.req.position (); ++j) {
-                if (state.req.get (j) == CR) {
-                    have_cr = true;
-                }
-                else if (have_cr) {
-                    if (state.req.get (j) == LF) {
-                        String line = new String (
-                                state.req.array (), 
-                                state.req.arrayOffset () + state.req_idx, 
-                                j - state.req_idx - 1);
-                        if (logger.isDebugEnabled ())
-                            logger.debug ("read header line: \"" + line + "\"");
-                        state.req_idx = j + 1;
-                        if (line.equals ("")) {
-                            state.header.addLast (line);
-                            break;
-                        }
-                        else {
-                            state.header.addLast (line);
-                        }
-                    }
-                    else {
-                        have_cr = false;
-                    }
-                }
+    /**
+     * Handles the request at the start of <code>state.req</code>, if all of
+     * it has arrived, and returns whether it did.
+     */
+    protected boolean handle_request (final ConnState state) {
+        byte [] buf = state.req.array ();
+        int end = state.req.position ();
+
+        if (state.header_len < 0) {
+
+            // Look for the blank line that ends the header.
+
+            int i = state.scan_idx;
+            while ((i + 3 < end)
+                   && ! ((buf [i] == CR) && (buf [i + 1] == LF)
+                         && (buf [i + 2] == CR) && (buf [i + 3] == LF)))
+                ++i;
+            if (i + 3 >= end) {
+                state.scan_idx = i;
+                return false;
+            }
+            state.header_len = i + 4;
+            if (! parse_header (state, new String (buf, 0, i, ISO_8859_1))) {
+                close (state);
+                return false;
             }
         }
 
-        if ((! state.header.isEmpty ()) &&
-            (state.header.getLast ().equals (""))) {
-
-            // We're done reading the header.
-
-            StringTokenizer tokens = 
-                new StringTokenizer (state.header.getFirst ());
-            String method = tokens.nextToken();
-
-            if (method.equals ("GET")) {
-                skey.interestOps (SelectionKey.OP_WRITE);
-                create_response (state);
-                return;
+        Response r = new Response ();
+        r.http11 = state.http11;
+        r.keep_alive = state.keep_alive;
+        r.close = ! r.keep_alive;
+        if (state.method.equals ("GET")) {
+            state.responses.addLast (r);
+            consume (state, state.header_len);
+            create_response (state, r);
+        }
+        else if (state.method.equals ("POST")) {
+            if (state.content_length < 0) {
+                close (state);
+                return false;
             }
-            else if (method.equals ("POST")) {
-                int contentLength = -1;
-                String userAgent = "XML: unknown";
-                for (String line : state.header) {
-                    String lineLower = line.toLowerCase();
-                    if (lineLower.startsWith("content-length:")) {
-                        contentLength = Integer.parseInt(
-                                line.substring(15).trim());
-                    }
-                    if (lineLower.startsWith("user-agent:")) {
-                        userAgent = "XML: " + line.substring(11).trim();
-                    }
-                }
+            if (end - state.header_len < state.content_length) {
+                // Still need more bytes of the body.
+                return false;
+            }
+            state.responses.addLast (r);
+            // The request is parsed before handle_xml_rpc returns, so the
+            // buffer can be reused as soon as it does.
+            handle_xml_rpc (state, r, buf, state.header_len,
+                            state.content_length);
+            if (state.closed)
+                return false;
+            consume (state, state.header_len + state.content_length);
+        }
+        else {
+            close (state);
+            return false;
+        }
 
-                if (contentLength == -1) {
-                    close (state);
-                    return;
-                }
+        ++requests_served;
+        if (r.close)
+            state.closing = true;
+        return true;
+    }
 
-                if ((state.req.position () - state.req_idx) < contentLength) {
-                    // Still need more bytes of the body.
-                    return;
+    /**
+     * Reads the request line and those header fields we use into
+     * <code>state</code>; returns false if the header is malformed or asks
+     * for something we don't support.
+     */
+    protected boolean parse_header (ConnState state, String header) {
+        String [] lines = header.split ("\r\n");
+        int first = 0;
+        // Clients may send blank lines between requests.
+        while ((first < lines.length) && lines [first].equals (""))
+            ++first;
+        if (first == lines.length)
+            return false;
+        if (logger.isDebugEnabled ())
+            logger.debug ("read header: \"" + header + "\"");
+
+        StringTokenizer tokens = new StringTokenizer (lines [first]);
+        if (tokens.countTokens () < 2)
+            return false;
+        state.method = tokens.nextToken ();
+        tokens.nextToken (); // the path, which we ignore
+        state.http11 = tokens.hasMoreTokens ()
+            && tokens.nextToken ().equals ("HTTP/1.1");
+        state.keep_alive = state.http11;
+        state.content_length = -1;
+        state.user_agent = "XML: unknown";
+
+        for (int i = first + 1; i < lines.length; ++i) {
+            String line = lines [i];
+            String lineLower = line.toLowerCase ();
+            if (lineLower.startsWith ("content-length:")) {
+                try {
+                    state.content_length = Integer.parseInt (
+                            line.substring (15).trim ());
                 }
+                catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            else if (lineLower.startsWith ("user-agent:")) {
+                state.user_agent = "XML: " + line.substring (11).trim ();
+            }
+            else if (lineLower.startsWith ("connection:")) {
+                if (lineLower.indexOf ("close") >= 0)
+                    state.keep_alive = false;
+                else if (lineLower.indexOf ("keep-alive") >= 0)
+                    state.keep_alive = true;
+            }
+            else if (lineLower.startsWith ("transfer-encoding:")) {
+                // We don't read chunked request bodies.
+                if (! lineLower.substring (18).trim ().equals ("identity"))
+                    return false;
+            }
+        }
+        return true;
+    }
 
-                // Stop reading bytes.
-
-                skey.interestOps (0);
+    /**
+     * Drops the first <code>len</code> bytes of <code>state.req</code>,
+     * moving any that follow, the start of the next request, to the front.
+     */
+    protected void consume (ConnState state, int len) {
+        byte [] buf = state.req.array ();
+        int end = state.req.position ();
+        System.arraycopy (buf, len, buf, 0, end - len);
+        state.req.position (end - len);
+        state.scan_idx = 0;
+        state.header_len = -1;
+    }
 
-                MultipleByteBufferInputStream is = 
-                    new MultipleByteBufferInputStream ();
-                state.req.limit (state.req.position ());
-                state.req.position (state.req_idx);
-                is.add_bb (state.req);
+    /**
+     * Parses the XML-RPC request in <code>buf [offset, offset + length)</code>
+     * and calls its handler, which answers it, now or later, through
+     * <code>r</code>.  Simple calls are read with XmlRpcCodec, and the
+     * rest with the xmlrpc library.
+     */
+    protected void handle_xml_rpc (final ConnState state, final Response r,
+                                   byte [] buf, int offset, int length) {
+
+        XmlRpcCodec.Call call = null;
+        if (! no_xml_rpc_codec)
+            call = XmlRpcCodec.decode_call (buf, offset, length);
+        final boolean codec = call != null;
+
+        String requestMethodName = null;
+        Object [] params = null;
+        if (codec) {
+            requestMethodName = call.method;
+            params = call.params;
+        }
+        else {
+            MultipleByteBufferInputStream is = 
+                new MultipleByteBufferInputStream ();
+            is.add_bb (ByteBuffer.wrap (buf, offset, length));
+            XmlRpcRequest request = null;
+            try {
+                request = new MyReqProc ().processRequest(is);
+            }
+            catch (Exception e) {
+                close (state);
+                return;
+            }
+            requestMethodName = request.getMethodName ();
+            Vector v = request.getParameters ();
+            params = (v == null) ? new Object [0] : v.toArray ();
+        }
 
-                final MyReqProc requestProcessor = new MyReqProc ();
-                final XmlRpcResponseProcessor responseProcessor = 
-                    new XmlRpcResponseProcessor ();
-                XmlRpcRequest request = null;
+        Class[] argClasses = new Class[params.length + 3];
+        Object[] argValues = new Object[params.length + 3];
+        for (int i = 0; i < params.length; i++) {
+            argValues[i] = params[i];
+            if (argValues[i] instanceof Integer)
+                argClasses[i] = Integer.TYPE;
+            else if (argValues[i] instanceof Double)
+                argClasses[i] = Double.TYPE;
+            else if (argValues[i] instanceof Boolean)
+                argClasses[i] = Boolean.TYPE;
+            else
+                argClasses[i] = argValues[i].getClass();
+        }
 
-                try {
-                    request = requestProcessor.processRequest(is);
-                }
-                catch (Exception e) {
-                    close (state);
+        Thunk1<Object> result_cb = new Thunk1<Object> () {
+            public void run(Object response) {
+                if (r.answered)
                     return;
+                r.answered = true;
+                state.outstandingReqs--;
+                // Make sure the client's still waiting on the
+                // response (it hasn't timed out and been closed).
+                if (! state.closed) {
+                    create_response (state, r, response, codec);
+                    handle_requests (state);
                 }
+            }
+        };
 
-                Class[] argClasses = null;
-                Object[] argValues = null;
-
-                Vector params = request.getParameters ();
-                if (params == null) {
-                    argClasses = new Class[3];
-                    argValues = new Object[3];
-                }
-                else {
-                    argClasses = new Class[params.size() + 3];
-                    argValues = new Object[params.size() + 3];
-                    for (int i = 0; i < params.size(); i++) {
-                        argValues[i] = params.elementAt(i);
-                        if (argValues[i] instanceof Integer)
-                            argClasses[i] = Integer.TYPE;
-                        else if (argValues[i] instanceof Double)
-                            argClasses[i] = Double.TYPE;
-                        else if (argValues[i] instanceof Boolean)
-                            argClasses[i] = Boolean.TYPE;
-                        else
-                            argClasses[i] = argValues[i].getClass();
-                    }
-                }
-
-                Thunk1<Object> result_cb = new Thunk1<Object> () {
-                    public void run(Object response) {
-                        state.outstandingReqs--;
-                        byte [] resp = null;
-                        if (response instanceof Exception) {
-                            resp = responseProcessor.processException (
-                                    (Exception) response, 
-                                    requestProcessor.getEncoding());
-                        }
-                        else {
-                            try {
-                                resp = responseProcessor.processResponse (
-                                        response, 
-                                        requestProcessor.getEncoding());
-                            }
-                            catch (Exception e) {
-                                resp = responseProcessor.processException (
-                                        e, requestProcessor.getEncoding());
-                            }
-                        }
-                        // Make sure the client's still waiting on the
-                        // response (it hasn't timed out and been closed).
-                        if (skey.isValid ()) {
-                            skey.interestOps (SelectionKey.OP_WRITE);
-                            create_response (state, resp);
-                        }
-                    }
-                };
-
-                InetSocketAddress remote = (InetSocketAddress)
-                    state.channel.socket ().getRemoteSocketAddress ();
+        InetSocketAddress remote = (InetSocketAddress)
+            state.channel.socket ().getRemoteSocketAddress ();
 
-                argClasses [argClasses.length - 3] = String.class;
-                argValues [argValues.length - 3] = userAgent;
-                argClasses [argClasses.length - 2] = InetSocketAddress.class;
-                argValues [argValues.length - 2] = remote;
-                argClasses [argClasses.length - 1] = Thunk1.class;
-                argValues [argValues.length - 1] = result_cb;
+        argClasses [argClasses.length - 3] = String.class;
+        argValues [argValues.length - 3] = state.user_agent;
+        argClasses [argClasses.length - 2] = InetSocketAddress.class;
+        argValues [argValues.length - 2] = remote;
+        argClasses [argClasses.length - 1] = Thunk1.class;
+        argValues [argValues.length - 1] = result_cb;
 
-                Object invokeTarget = handlers.get (request.getMethodName ());
+        Object invokeTarget = handlers.get (requestMethodName);
 
-                String methodName = request.getMethodName();
+        String methodName = requestMethodName;
 
-                Method fn = null;
+        Method fn = null;
 
-                // The last element of the XML-RPC method name is the Java
-                // method name.
-                int dot = methodName.lastIndexOf('.');
-                if (dot > -1 && dot + 1 < methodName.length())
-                    methodName = methodName.substring(dot + 1);
+        // The last element of the XML-RPC method name is the Java
+        // method name.
+        int dot = methodName.lastIndexOf('.');
+        if (dot > -1 && dot + 1 < methodName.length())
+            methodName = methodName.substring(dot + 1);
 
-                try {
-                    if (invokeTarget == null) {
-                        throw new Exception ("no such handler: " +
-                                request.getMethodName ());
-                    }
-                    Class targetClass = invokeTarget.getClass ();
-                    fn = targetClass.getMethod(methodName, argClasses);
-                    if (fn.getDeclaringClass() == Object.class) {
-                        throw new Exception("Invoker can't call methods "
-                                + "defined in java.lang.Object");
-                    }
-                    // The return value is passes as an argument to result_cb.
-                    state.outstandingReqs++;
-                    fn.invoke(invokeTarget, argValues);
-                }
-                catch (Exception e) {
-                    logger.error("request caused exception", e);
-                    byte [] resp = responseProcessor.processException (
-                            e, requestProcessor.getEncoding());
-                    skey.interestOps (SelectionKey.OP_WRITE);
-                    create_response (state, resp);
-                    return;
-                }
+        boolean invoked = false;
+        try {
+            if (invokeTarget == null) {
+                throw new Exception ("no such handler: " +
+                        requestMethodName);
+            }
+            Class targetClass = invokeTarget.getClass ();
+            fn = targetClass.getMethod(methodName, argClasses);
+            if (fn.getDeclaringClass() == Object.class) {
+                throw new Exception("Invoker can't call methods "
+                        + "defined in java.lang.Object");
             }
+            // The return value is passes as an argument to result_cb.
+            state.outstandingReqs++;
+            invoked = true;
+            fn.invoke(invokeTarget, argValues);
+        }
+        catch (Exception e) {
+            logger.error("request caused exception", e);
+            if (r.answered)
+                return;
+            r.answered = true;
+            if (invoked)
+                state.outstandingReqs--;
+            create_response (state, r, e, codec);
         }
     }
 
     protected void close (ConnState state) {
+        if (state.closed)
+            return;
+        state.closed = true;
         acore.unregister_selectable (state.skey);
         try {
             state.channel.socket ().close ();
@@ -578,22 +792,36 @@ implements StorageManager.StorageMonitor {
         catch (IOException e) {
             BUG (e); // TODO
         }
+        if (state.req != null) {
+            release_buffer (state.req);
+            state.req = null;
+        }
+        state.responses.clear ();
     }
 
     protected void handle_write_ready (SelectionKey skey, ConnState state) {
-        int count = 1;
-        while ((count > 0) && (state.resp.position () != state.resp.limit ())) {
+        while (! state.responses.isEmpty ()) {
+            Response r = state.responses.getFirst ();
+            if (r.bufs == null)
+                break;
             try {
-                count = state.channel.write (state.resp);
+                state.channel.write (r.bufs);
             }
             catch (IOException e) {
                 close (state);
                 return;
             }
+            if (r.bufs [r.bufs.length - 1].hasRemaining ())
+                break;
+            state.responses.removeFirst ();
+            if (r.close) {
+                close (state);
+                return;
+            }
         }
-        if (state.resp.position () == state.resp.limit ()) {
-            close (state);
-        }
+        state.last_active_ms = now_ms ();
+        // Sending responses may have made room for more requests.
+        handle_requests (state);
     }
 
     protected void print_ls_table_row (StringBuffer r, int pos, 
@@ -619,26 +847,120 @@ implements StorageManager.StorageMonitor {
         r.append ("</td></tr>\n");
     }
 
-    protected void create_response (ConnState state, byte [] resp) {
-        StringBuffer r = new StringBuffer (1024 + resp.length);
-        r.append("HTTP/1.0 200 OK\r\n");
-        r.append("Date: Wed, 19 Nov 2003 01:49:00 GMT\r\n");
-        r.append("Server: bamboo\r\n");
-        r.append("Connection: close\r\n");
-        r.append("Content-Type: text/xml\r\n");
-        r.append("Content-Length: " + resp.length + "\r\n");
-        r.append("\r\n");
-        r.append(new String (resp));
-        state.resp = ByteBuffer.wrap (r.toString ().getBytes ());
+    /**
+     * Starts the response header, saying whether the connection stays
+     * open after it.
+     */
+    protected StringBuffer response_header (ConnState state, Response r) {
+        StringBuffer h = new StringBuffer (200);
+        h.append("HTTP/1.1 200 OK\r\n");
+        h.append("Date: Wed, 19 Nov 2003 01:49:00 GMT\r\n");
+        h.append("Server: bamboo\r\n");
+        if (! r.keep_alive)
+            h.append("Connection: close\r\n");
+        else if (! r.http11)
+            h.append("Connection: Keep-Alive\r\n");
+        return h;
     }
 
-    protected void create_response (ConnState state) {
-        StringBuffer r = new StringBuffer (10*1024);
+    /**
+     * Encodes the result of an XML-RPC call, or the Exception it failed
+     * with.  If the call was read with XmlRpcCodec, the codec writes the
+     * response into the buffer holding the header, unless the result has
+     * types it doesn't know, in which case the library encodes it.
+     */
+    protected void create_response (ConnState state, Response r,
+                                    Object response, boolean codec) {
+        if (codec) {
+            try {
+                int size = (response instanceof Exception)
+                    ? XmlRpcCodec.fault_size ((Exception) response)
+                    : XmlRpcCodec.response_size (response);
+                byte [] h = xml_response_header (state, r, size);
+                ByteBuffer out = ByteBuffer.allocate (h.length + size);
+                out.put (h);
+                if (response instanceof Exception)
+                    XmlRpcCodec.encode_fault ((Exception) response, out);
+                else
+                    XmlRpcCodec.encode_response (response, out);
+                out.flip ();
+                r.bufs = new ByteBuffer [] {out};
+                return;
+            }
+            catch (IllegalArgumentException e) {
+                // Fall back on the library.
+            }
+        }
+
+        String encoding = new MyReqProc ().getEncoding ();
+        XmlRpcResponseProcessor responseProcessor = 
+            new XmlRpcResponseProcessor ();
+        byte [] resp = null;
+        if (response instanceof Exception) {
+            resp = responseProcessor.processException (
+                    (Exception) response, encoding);
+        }
+        else {
+            try {
+                resp = responseProcessor.processResponse (response, encoding);
+            }
+            catch (Exception e) {
+                resp = responseProcessor.processException (e, encoding);
+            }
+        }
+        r.bufs = new ByteBuffer [] {
+            ByteBuffer.wrap (xml_response_header (state, r, resp.length)),
+            ByteBuffer.wrap (resp) };
+    }
+
+    protected byte [] xml_response_header (ConnState state, Response r,
+                                           int length) {
+        StringBuffer h = response_header (state, r);
+        h.append("Content-Type: text/xml\r\n");
+        h.append("Content-Length: " + length + "\r\n");
+        h.append("\r\n");
+        return h.toString ().getBytes (ISO_8859_1);
+    }
+
+    /**
+     * Sends the status page.  To HTTP/1.1 clients it goes in chunks of
+     * chunk_size characters, encoded as it is sent rather than copied
+     * whole into one array first; HTTP/1.0 clients get it with a
+     * Content-Length.
+     */
+    protected void create_response (ConnState state, Response r) {
+        StringBuffer body = status_page ();
+        StringBuffer h = response_header (state, r);
+        h.append("Content-Type: text/html; charset=iso-8859-1\r\n");
+        if (r.http11) {
+            h.append("Transfer-Encoding: chunked\r\n\r\n");
+            int count = (body.length () + chunk_size - 1) / chunk_size;
+            r.bufs = new ByteBuffer [2 * count + 2];
+            r.bufs [0] = ByteBuffer.wrap (h.toString ().getBytes (ISO_8859_1));
+            for (int i = 0; i < count; ++i) {
+                byte [] chunk = body.substring (i * chunk_size, Math.min (
+                            (i + 1) * chunk_size, body.length ())).getBytes (
+                                ISO_8859_1);
+                r.bufs [2 * i + 1] = ByteBuffer.wrap ((((i == 0) ? "" : "\r\n")
+                            + Integer.toHexString (chunk.length) + "\r\n")
+                        .getBytes (ISO_8859_1));
+                r.bufs [2 * i + 2] = ByteBuffer.wrap (chunk);
+            }
+            r.bufs [2 * count + 1] = ByteBuffer.wrap (
+                    (((count == 0) ? "" : "\r\n") + "0\r\n\r\n").getBytes (
+                        ISO_8859_1));
+        }
+        else {
+            byte [] page = body.toString ().getBytes (ISO_8859_1);
+            h.append("Content-Length: " + page.length + "\r\n\r\n");
+            r.bufs = new ByteBuffer [] {
+                ByteBuffer.wrap (h.toString ().getBytes (ISO_8859_1)),
+                ByteBuffer.wrap (page) };
+        }
+    }
 
-        r.append("HTTP/1.0 200 OK\n");
-        r.append("Date: Wed, 19 Nov 2003 01:49:00 GMT\n");
-        r.append("Server: bamboo\nConnection: close\n");
-        r.append("Content-Type: text/html; charset=iso-8859-1\r\n\r\n");
+    protected StringBuffer status_page () {
+        StringBuffer r = new StringBuffer (10*1024);
         r.append("<http>\n<head>\n<title>Bamboo Node ");
         r.append(hostname);
         r.append(':');
@@ -683,6 +1005,138 @@ implements StorageManager.StorageMonitor {
         StringUtil.byte_cnt_to_sbuf (total_storage, r);
         r.append("</td></tr>\n");
 
+        ValueCache vc = storage_manager.value_cache ();
+        if (vc != null) {
+            r.append("<tr><td><em>Value Cache:</em></td><td></td><td>");
+            StringUtil.byte_cnt_to_sbuf (vc.bytes (), r);
+            r.append(" of ");
+            StringUtil.byte_cnt_to_sbuf (vc.capacity (), r);
+            r.append(" in ");
+            r.append(vc.size ());
+            r.append(" guids</td></tr>\n");
+
+            r.append("<tr><td><em>Value Cache Hits:</em></td><td></td><td>");
+            r.append(vc.hits ());
+            r.append(" hits, ");
+            r.append(vc.misses ());
+            r.append(" misses, ");
+            r.append(vc.evictions ());
+            r.append(" evictions, ");
+            r.append(vc.invalidations ());
+            r.append(" invalidations</td></tr>\n");
+        }
+
+        DataManager dm = DataManager.instance (my_node_id);
+        if (dm != null) {
+            r.append("<tr><td><em>Anti-Entropy:</em></td><td></td><td>");
+            r.append(dm.antiEntropySessions ());
+            r.append(" active, ");
+            r.append(dm.antiEntropySessionsDone ());
+            r.append(" done (");
+            r.append(dm.antiEntropySessionMs ());
+            r.append(" ms avg), ");
+            r.append(dm.antiEntropySessionsTimedOut ());
+            r.append(" timed out</td></tr>\n");
+
+            r.append("<tr><td><em>Repaired:</em></td><td></td><td>");
+            r.append(dm.keysRepaired ());
+            r.append(" values, ");
+            StringUtil.byte_cnt_to_sbuf (dm.bytesRepaired (), r);
+            r.append(", ");
+            r.append(dm.bulkTransfers ());
+            r.append(" bulk transfers</td></tr>\n");
+
+            r.append("<tr><td><em>Convergence:</em></td><td></td><td>");
+            if (dm.unsyncedMs () >= 0) {
+                r.append("out of sync for ");
+                r.append(dm.unsyncedMs () / 1000);
+                r.append(" s");
+            }
+            else {
+                r.append("in sync");
+            }
+            if (dm.lastConvergenceMs () >= 0) {
+                r.append(", last took ");
+                r.append(dm.lastConvergenceMs () / 1000);
+                r.append(" s");
+            }
+            r.append("</td></tr>\n");
+        }
+
+        Router router = Router.instance (my_node_id);
+        if (router != null) {
+            r.append("<tr><td><em>Next-Hop Cache:</em></td><td></td><td>");
+            r.append(router.nextHopCacheHits ());
+            r.append(" hits, ");
+            r.append(router.nextHopCacheMisses ());
+            r.append(" misses, ");
+            r.append(router.nextHopCacheInvalidations ());
+            r.append(" invalidations</td></tr>\n");
+        }
+
+        AccessLog log = AccessLog.instance ();
+        r.append("<tr><td><em>Access Log:</em></td><td></td><td>");
+        r.append(log.logged ());
+        r.append(" logged, ");
+        r.append(log.sampledOut ());
+        r.append(" sampled out, ");
+        r.append(log.dropped ());
+        r.append(" dropped</td></tr>\n");
+
+        r.append("<tr><td><em>HTTP Requests:</em></td><td></td><td>");
+        r.append(requests_served);
+        r.append(" on ");
+        r.append(connections_accepted);
+        r.append(" connections</td></tr>\n");
+
+        ASyncCoreImpl [] loops = DustDevil.event_loops ();
+        if (loops == null && acore instanceof ASyncCoreImpl)
+            loops = new ASyncCoreImpl [] {(ASyncCoreImpl) acore};
+        if (loops != null) {
+            r.append("<tr><td><em>Event Loops:</em></td><td></td><td>");
+            for (int i = 0; i < loops.length; ++i) {
+                long busy = loops [i].busyMillis ();
+                long total = busy + loops [i].idleMillis ();
+                if (i > 0)
+                    r.append("<br>");
+                r.append(i);
+                if (loops [i] == acore)
+                    r.append(" (this node)");
+                r.append(": ");
+                r.append((total == 0) ? 0 : busy * 100 / total);
+                r.append("% busy, ");
+                r.append(loops [i].passes ());
+                r.append(" passes, ");
+                r.append(loops [i].postsRun ());
+                r.append(" posted");
+            }
+            r.append("</td></tr>\n");
+        }
+
+        // The five kinds of event dispatched most often.
+        LinkedList<Map.Entry<Class,Long>> counts =
+            new LinkedList<Map.Entry<Class,Long>>(
+                    dispatch_table.counts ().entrySet ());
+        Collections.sort (counts, new Comparator<Map.Entry<Class,Long>>() {
+            public int compare (Map.Entry<Class,Long> a,
+                                Map.Entry<Class,Long> b) {
+                return b.getValue ().compareTo (a.getValue ());
+            }
+        });
+        r.append("<tr><td><em>Events Dispatched:</em></td><td></td><td>");
+        int shown = 0;
+        for (Map.Entry<Class,Long> e : counts) {
+            if (shown++ == 5)
+                break;
+            if (shown > 1)
+                r.append("<br>");
+            String name = e.getKey ().getName ();
+            r.append(name.substring (name.lastIndexOf ('.') + 1));
+            r.append(": ");
+            r.append(e.getValue ());
+        }
+        r.append("</td></tr>\n");
+
         r.append("<tr><td><em>Virtual Coordinates:</em></td><td></td><td>");
         if (coordinate != null) {
             double [] c = coordinate.getCoordinates ();
@@ -786,7 +1240,7 @@ implements StorageManager.StorageMonitor {
         r.append("</table>\n</td>\n</tr>\n</table>\n</center>\n"
                  + "</body>\n</html>\n");
 
-        state.resp = ByteBuffer.wrap (r.toString ().getBytes ());
+        return r;
     }
 
     protected Thunk2<BambooNeighborInfo[],BambooNeighborInfo[]> lsChanged = 
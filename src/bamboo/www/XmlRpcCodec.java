@@ -0,0 +1,677 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.www;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import org.apache.xmlrpc.XmlRpcException;
+
+/**
+ * Reads XML-RPC calls and writes their responses without the xmlrpc
+ * library's parser and writer.
+ *
+ * <p>The Gateway's put, get, get_details, put_removable and rm calls take
+ * only strings, ints and base64 values, and return ints, or arrays of
+ * base64 values, ints and strings.  For those the library builds a tree
+ * of objects while parsing, decodes each base64 value through a String,
+ * and writes the response through a Writer into an array that
+ * WebInterface then copies twice more.  Instead, <code>decode_call</code>
+ * scans the request bytes where they lie in the request buffer, decoding
+ * each base64 value straight into an array of its final size, and
+ * <code>encode_response</code> writes the response into a ByteBuffer whose
+ * size <code>response_size</code> has already worked out, so that it can
+ * follow the HTTP header in the same buffer.
+ *
+ * <p>Anything this codec doesn't handle is left to the library: a call
+ * using structs, arrays, dates, comments or CDATA makes
+ * <code>decode_call</code> return null, and a result of another type makes
+ * <code>response_size</code> throw an IllegalArgumentException.  What it
+ * does handle, it reads and writes as the library does: text is
+ * ISO-8859-1, strings are written as untyped values, and base64 is broken
+ * into lines of 76 characters.
+ *
+ * @version $Id$
+ */
+public class XmlRpcCodec {
+
+    /**
+     * A decoded call; its params are Strings, Integers, Booleans, Doubles
+     * and byte arrays.
+     */
+    public static class Call {
+        public String method;
+        public Object [] params;
+    }
+
+    protected static final Charset ISO_8859_1 = Charset.forName ("ISO-8859-1");
+
+    protected static byte [] ascii (String s) {
+        return s.getBytes (ISO_8859_1);
+    }
+
+    protected static final byte [] XML_DECL = ascii ("<?xml");
+    protected static final byte [] XML_DECL_END = ascii ("?>");
+    protected static final byte [] METHOD_CALL = ascii ("<methodCall>");
+    protected static final byte [] METHOD_CALL_END = ascii ("</methodCall>");
+    protected static final byte [] METHOD_NAME = ascii ("<methodName>");
+    protected static final byte [] METHOD_NAME_END = ascii ("</methodName>");
+    protected static final byte [] PARAMS = ascii ("<params>");
+    protected static final byte [] PARAMS_END = ascii ("</params>");
+    protected static final byte [] PARAM = ascii ("<param>");
+    protected static final byte [] PARAM_END = ascii ("</param>");
+    protected static final byte [] VALUE = ascii ("<value>");
+    protected static final byte [] VALUE_END = ascii ("</value>");
+    protected static final byte [] STRING = ascii ("<string>");
+    protected static final byte [] STRING_END = ascii ("</string>");
+    protected static final byte [] INT = ascii ("<int>");
+    protected static final byte [] INT_END = ascii ("</int>");
+    protected static final byte [] I4 = ascii ("<i4>");
+    protected static final byte [] I4_END = ascii ("</i4>");
+    protected static final byte [] BOOLEAN = ascii ("<boolean>");
+    protected static final byte [] BOOLEAN_END = ascii ("</boolean>");
+    protected static final byte [] DOUBLE = ascii ("<double>");
+    protected static final byte [] DOUBLE_END = ascii ("</double>");
+    protected static final byte [] BASE64 = ascii ("<base64>");
+    protected static final byte [] BASE64_END = ascii ("</base64>");
+    protected static final byte [] ARRAY = ascii ("<array><data>");
+    protected static final byte [] ARRAY_END = ascii ("</data></array>");
+    protected static final byte [] STRUCT = ascii ("<struct>");
+    protected static final byte [] STRUCT_END = ascii ("</struct>");
+    protected static final byte [] MEMBER = ascii ("<member><name>");
+    protected static final byte [] MEMBER_NAME_END = ascii ("</name>");
+    protected static final byte [] MEMBER_END = ascii ("</member>");
+
+    protected static final byte [] RESPONSE = ascii (
+            "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+            + "<methodResponse><params><param>");
+    protected static final byte [] RESPONSE_END = ascii (
+            "</param></params></methodResponse>");
+    protected static final byte [] FAULT = ascii (
+            "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+            + "<methodResponse><fault><value><struct><member>"
+            + "<name>faultString</name><value>");
+    protected static final byte [] FAULT_CODE = ascii (
+            "</value></member><member><name>faultCode</name><value><int>");
+    protected static final byte [] FAULT_END = ascii (
+            "</int></value></member></struct></value></fault>"
+            + "</methodResponse>");
+
+    protected static final byte [] BASE64_CHARS = ascii (
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+    // What each byte is in base64 text: its value, or one of these.
+    protected static final int BAD = -1, SPACE = -2, PAD = -3, TAG = -4;
+    protected static final int [] BASE64_VALUES = new int [256];
+    static {
+        for (int i = 0; i < BASE64_VALUES.length; ++i)
+            BASE64_VALUES [i] = BAD;
+        for (int i = 0; i < BASE64_CHARS.length; ++i)
+            BASE64_VALUES [BASE64_CHARS [i]] = i;
+        BASE64_VALUES [' '] = BASE64_VALUES ['\t'] = SPACE;
+        BASE64_VALUES ['\n'] = BASE64_VALUES ['\r'] = SPACE;
+        BASE64_VALUES ['='] = PAD;
+        BASE64_VALUES ['<'] = TAG;
+    }
+    protected static final int BASE64_LINE = 76;
+
+    /**
+     * Thrown inside the decoder when a call is not one it can read; it
+     * carries no stack trace, since it is always caught.
+     */
+    protected static class NotSimple extends RuntimeException {
+        public Throwable fillInStackTrace () { return this; }
+    }
+    protected static final NotSimple NOT_SIMPLE = new NotSimple ();
+
+    /////////////////////////////////////////////////////////////////
+    //                                                             //
+    //                          Decoding                           //
+    //                                                             //
+    /////////////////////////////////////////////////////////////////
+
+    protected byte [] buf;
+    protected int pos, end;
+
+    protected XmlRpcCodec (byte [] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * Decodes the call in <code>buf [offset, offset + length)</code>, or
+     * returns null if it uses anything other than the simple types above,
+     * or is malformed, in which case the library should be given it.
+     */
+    public static Call decode_call (byte [] buf, int offset, int length) {
+        try {
+            return new XmlRpcCodec (buf, offset, length).call ();
+        }
+        catch (NotSimple e) {
+            return null;
+        }
+    }
+
+    protected Call call () {
+        skip_ws ();
+        if (next_is (XML_DECL)) {
+            while (! next_is (XML_DECL_END)) {
+                if (pos == end)
+                    throw NOT_SIMPLE;
+                ++pos;
+            }
+            skip_ws ();
+        }
+        expect (METHOD_CALL);
+        skip_ws ();
+        expect (METHOD_NAME);
+        Call result = new Call ();
+        result.method = text ();
+        expect (METHOD_NAME_END);
+        skip_ws ();
+
+        Object [] params = new Object [8];
+        int count = 0;
+        if (next_is (PARAMS)) {
+            while (true) {
+                skip_ws ();
+                if (next_is (PARAMS_END))
+                    break;
+                expect (PARAM);
+                skip_ws ();
+                if (count == params.length) {
+                    Object [] bigger = new Object [count * 2];
+                    System.arraycopy (params, 0, bigger, 0, count);
+                    params = bigger;
+                }
+                params [count++] = value ();
+                skip_ws ();
+                expect (PARAM_END);
+            }
+            skip_ws ();
+        }
+        expect (METHOD_CALL_END);
+        skip_ws ();
+        if (pos != end)
+            throw NOT_SIMPLE;
+
+        result.params = new Object [count];
+        System.arraycopy (params, 0, result.params, 0, count);
+        return result;
+    }
+
+    protected Object value () {
+        expect (VALUE);
+        int start = pos;
+        skip_ws ();
+        Object result = null;
+        if ((pos < end) && (buf [pos] == '<') && (! starts_with (VALUE_END))) {
+            if (next_is (BASE64)) {
+                result = base64 ();
+                expect (BASE64_END);
+            }
+            else if (next_is (INT)) {
+                result = new Integer (integer ());
+                expect (INT_END);
+            }
+            else if (next_is (I4)) {
+                result = new Integer (integer ());
+                expect (I4_END);
+            }
+            else if (next_is (STRING)) {
+                result = text ();
+                expect (STRING_END);
+            }
+            else if (next_is (BOOLEAN)) {
+                String s = text ().trim ();
+                if (s.equals ("1"))
+                    result = Boolean.TRUE;
+                else if (s.equals ("0"))
+                    result = Boolean.FALSE;
+                else
+                    throw NOT_SIMPLE;
+                expect (BOOLEAN_END);
+            }
+            else if (next_is (DOUBLE)) {
+                try {
+                    result = Double.valueOf (text ().trim ());
+                }
+                catch (NumberFormatException e) {
+                    throw NOT_SIMPLE;
+                }
+                expect (DOUBLE_END);
+            }
+            else {
+                throw NOT_SIMPLE;
+            }
+            skip_ws ();
+        }
+        else {
+            // An untyped value is a string, whitespace and all.
+            pos = start;
+            result = text ();
+        }
+        expect (VALUE_END);
+        return result;
+    }
+
+    protected void skip_ws () {
+        while ((pos < end) && ((buf [pos] == ' ') || (buf [pos] == '\n')
+                               || (buf [pos] == '\r') || (buf [pos] == '\t')))
+            ++pos;
+    }
+
+    protected boolean starts_with (byte [] tag) {
+        if (end - pos < tag.length)
+            return false;
+        for (int i = 0; i < tag.length; ++i) {
+            if (buf [pos + i] != tag [i])
+                return false;
+        }
+        return true;
+    }
+
+    protected boolean next_is (byte [] tag) {
+        if (! starts_with (tag))
+            return false;
+        pos += tag.length;
+        return true;
+    }
+
+    protected void expect (byte [] tag) {
+        if (! next_is (tag))
+            throw NOT_SIMPLE;
+    }
+
+    /**
+     * Reads character data up to the next tag, replacing entity and
+     * character references.
+     */
+    protected String text () {
+        int start = pos;
+        boolean plain = true;
+        while ((pos < end) && (buf [pos] != '<')) {
+            if (buf [pos] == '&')
+                plain = false;
+            ++pos;
+        }
+        if (plain)
+            return new String (buf, start, pos - start, ISO_8859_1);
+
+        StringBuffer result = new StringBuffer (pos - start);
+        for (int i = start; i < pos; ) {
+            if (buf [i] != '&') {
+                result.append ((char) (buf [i++] & 0xff));
+                continue;
+            }
+            int semi = i + 1;
+            while ((semi < pos) && (buf [semi] != ';'))
+                ++semi;
+            if (semi == pos)
+                throw NOT_SIMPLE;
+            String name = new String (buf, i + 1, semi - i - 1, ISO_8859_1);
+            if (name.equals ("lt"))
+                result.append ('<');
+            else if (name.equals ("gt"))
+                result.append ('>');
+            else if (name.equals ("amp"))
+                result.append ('&');
+            else if (name.equals ("quot"))
+                result.append ('"');
+            else if (name.equals ("apos"))
+                result.append ('\'');
+            else if (name.startsWith ("#")) {
+                try {
+                    int c = name.startsWith ("#x")
+                        ? Integer.parseInt (name.substring (2), 16)
+                        : Integer.parseInt (name.substring (1));
+                    result.appendCodePoint (c);
+                }
+                catch (IllegalArgumentException e) {
+                    throw NOT_SIMPLE;
+                }
+            }
+            else {
+                throw NOT_SIMPLE;
+            }
+            i = semi + 1;
+        }
+        return result.toString ();
+    }
+
+    protected int integer () {
+        skip_ws ();
+        boolean negative = false;
+        if ((pos < end) && ((buf [pos] == '-') || (buf [pos] == '+')))
+            negative = buf [pos++] == '-';
+        int start = pos;
+        long result = 0;
+        while ((pos < end) && (buf [pos] >= '0') && (buf [pos] <= '9')) {
+            result = result * 10 + (buf [pos++] - '0');
+            if (result > 0x80000000L)
+                throw NOT_SIMPLE;
+        }
+        if (pos == start)
+            throw NOT_SIMPLE;
+        if (negative)
+            result = -result;
+        if (result > Integer.MAX_VALUE)
+            throw NOT_SIMPLE;
+        skip_ws ();
+        return (int) result;
+    }
+
+    /**
+     * Decodes base64 text up to the next tag into a new array of just the
+     * right size, skipping whitespace.
+     */
+    protected byte [] base64 () {
+        byte [] buf = this.buf;
+        int start = pos, stop = start;
+        int count = 0, padding = 0;
+        for (; stop < end; ++stop) {
+            int v = BASE64_VALUES [buf [stop] & 0xff];
+            if (v >= 0) {
+                if (padding > 0)
+                    throw NOT_SIMPLE;
+                ++count;
+            }
+            else if (v == PAD) {
+                ++padding;
+                ++count;
+            }
+            else if (v == TAG) {
+                break;
+            }
+            else if (v == BAD) {
+                throw NOT_SIMPLE;
+            }
+        }
+        pos = stop;
+        if ((count % 4 != 0) || (padding > 2))
+            throw NOT_SIMPLE;
+
+        // Each group of four characters is three bytes, but for the last
+        // group, if padded.  The first pass counted enough characters for
+        // the inner loops not to run past stop.
+        byte [] result = new byte [count / 4 * 3 - padding];
+        int groups = (padding > 0) ? count / 4 - 1 : count / 4;
+        int i = start, j = 0, a, b, c, d;
+        for (int g = 0; g < groups; ++g) {
+            while ((a = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+            while ((b = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+            while ((c = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+            while ((d = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+            result [j++] = (byte) ((a << 2) | (b >> 4));
+            result [j++] = (byte) ((b << 4) | (c >> 2));
+            result [j++] = (byte) ((c << 6) | d);
+        }
+        if (padding > 0) {
+            while ((a = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+            while ((b = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+            result [j++] = (byte) ((a << 2) | (b >> 4));
+            if (padding == 1) {
+                while ((c = BASE64_VALUES [buf [i++] & 0xff]) < 0) ;
+                result [j++] = (byte) ((b << 4) | (c >> 2));
+            }
+        }
+        return result;
+    }
+
+    /////////////////////////////////////////////////////////////////
+    //                                                             //
+    //                          Encoding                           //
+    //                                                             //
+    /////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the number of bytes <code>encode_response</code> will write
+     * for <code>result</code>, which may be an Integer, Boolean, Double,
+     * String, byte array, or a Vector or Hashtable of them.
+     *
+     * @throws IllegalArgumentException if result holds anything else, or a
+     * string with characters ISO-8859-1 XML can't carry
+     */
+    public static int response_size (Object result) {
+        return RESPONSE.length + value_size (result) + RESPONSE_END.length;
+    }
+
+    /**
+     * Writes the response to a call that returned <code>result</code>; out
+     * must have room for <code>response_size (result)</code> bytes.
+     */
+    public static void encode_response (Object result, ByteBuffer out) {
+        out.put (RESPONSE);
+        write_value (result, out);
+        out.put (RESPONSE_END);
+    }
+
+    /**
+     * The number of bytes <code>encode_fault</code> will write for
+     * <code>e</code>.
+     *
+     * @throws IllegalArgumentException if e's message has characters
+     * ISO-8859-1 XML can't carry
+     */
+    public static int fault_size (Exception e) {
+        return FAULT.length + string_size (e.toString ())
+            + FAULT_CODE.length + int_size (fault_code (e)) + FAULT_END.length;
+    }
+
+    /**
+     * Writes a fault response for a call that failed with <code>e</code>.
+     */
+    public static void encode_fault (Exception e, ByteBuffer out) {
+        out.put (FAULT);
+        write_string (e.toString (), out);
+        out.put (FAULT_CODE);
+        write_int (fault_code (e), out);
+        out.put (FAULT_END);
+    }
+
+    protected static int fault_code (Exception e) {
+        return (e instanceof XmlRpcException) ? ((XmlRpcException) e).code : 0;
+    }
+
+    protected static int value_size (Object value) {
+        int result = VALUE.length + VALUE_END.length;
+        if (value instanceof Integer) {
+            result += INT.length + int_size (((Integer) value).intValue ())
+                + INT_END.length;
+        }
+        else if (value instanceof String) {
+            result += string_size ((String) value);
+        }
+        else if (value instanceof byte []) {
+            result += BASE64.length + base64_size (((byte []) value).length)
+                + BASE64_END.length;
+        }
+        else if (value instanceof Vector) {
+            Vector v = (Vector) value;
+            result += ARRAY.length + ARRAY_END.length;
+            for (int i = 0; i < v.size (); ++i)
+                result += value_size (v.elementAt (i));
+        }
+        else if (value instanceof Boolean) {
+            result += BOOLEAN.length + 1 + BOOLEAN_END.length;
+        }
+        else if (value instanceof Double) {
+            result += DOUBLE.length + value.toString ().length ()
+                + DOUBLE_END.length;
+        }
+        else if (value instanceof Hashtable) {
+            Hashtable h = (Hashtable) value;
+            result += STRUCT.length + STRUCT_END.length;
+            for (Enumeration e = h.keys (); e.hasMoreElements (); ) {
+                Object key = e.nextElement ();
+                if (! (key instanceof String))
+                    throw new IllegalArgumentException (
+                            "struct key " + key + " is not a string");
+                result += MEMBER.length + string_size ((String) key)
+                    + MEMBER_NAME_END.length + value_size (h.get (key))
+                    + MEMBER_END.length;
+            }
+        }
+        else {
+            throw new IllegalArgumentException ("can't encode " + value);
+        }
+        return result;
+    }
+
+    protected static void write_value (Object value, ByteBuffer out) {
+        out.put (VALUE);
+        if (value instanceof Integer) {
+            out.put (INT);
+            write_int (((Integer) value).intValue (), out);
+            out.put (INT_END);
+        }
+        else if (value instanceof String) {
+            write_string ((String) value, out);
+        }
+        else if (value instanceof byte []) {
+            out.put (BASE64);
+            write_base64 ((byte []) value, out);
+            out.put (BASE64_END);
+        }
+        else if (value instanceof Vector) {
+            Vector v = (Vector) value;
+            out.put (ARRAY);
+            for (int i = 0; i < v.size (); ++i)
+                write_value (v.elementAt (i), out);
+            out.put (ARRAY_END);
+        }
+        else if (value instanceof Boolean) {
+            out.put (BOOLEAN);
+            out.put ((byte) (((Boolean) value).booleanValue () ? '1' : '0'));
+            out.put (BOOLEAN_END);
+        }
+        else if (value instanceof Double) {
+            out.put (DOUBLE);
+            out.put (ascii (value.toString ()));
+            out.put (DOUBLE_END);
+        }
+        else {
+            Hashtable h = (Hashtable) value;
+            out.put (STRUCT);
+            for (Enumeration e = h.keys (); e.hasMoreElements (); ) {
+                String key = (String) e.nextElement ();
+                out.put (MEMBER);
+                write_string (key, out);
+                out.put (MEMBER_NAME_END);
+                write_value (h.get (key), out);
+                out.put (MEMBER_END);
+            }
+            out.put (STRUCT_END);
+        }
+        out.put (VALUE_END);
+    }
+
+    protected static int int_size (int value) {
+        return (value < 0) ? 1 + digits (- (long) value) : digits (value);
+    }
+
+    protected static int digits (long v) {
+        int result = 1;
+        while (v >= 10) {
+            ++result;
+            v /= 10;
+        }
+        return result;
+    }
+
+    protected static void write_int (int value, ByteBuffer out) {
+        long v = value;
+        if (v < 0) {
+            out.put ((byte) '-');
+            v = -v;
+        }
+        int at = out.position () + digits (v);
+        out.position (at);
+        do {
+            out.put (--at, (byte) ('0' + (v % 10)));
+            v /= 10;
+        } while (v > 0);
+    }
+
+    protected static int string_size (String s) {
+        int result = 0;
+        for (int i = 0; i < s.length (); ++i) {
+            char c = s.charAt (i);
+            if (c == '<' || c == '>')
+                result += 4;
+            else if (c == '&')
+                result += 5;
+            else if ((c > 0xff)
+                     || ((c < 0x20) && (c != '\t') && (c != '\n')
+                         && (c != '\r')))
+                throw new IllegalArgumentException (
+                        "can't encode character " + (int) c);
+            else
+                ++result;
+        }
+        return result;
+    }
+
+    protected static void write_string (String s, ByteBuffer out) {
+        for (int i = 0; i < s.length (); ++i) {
+            char c = s.charAt (i);
+            if (c == '<') {
+                out.put ((byte) '&'); out.put ((byte) 'l');
+                out.put ((byte) 't'); out.put ((byte) ';');
+            }
+            else if (c == '>') {
+                out.put ((byte) '&'); out.put ((byte) 'g');
+                out.put ((byte) 't'); out.put ((byte) ';');
+            }
+            else if (c == '&') {
+                out.put ((byte) '&'); out.put ((byte) 'a');
+                out.put ((byte) 'm'); out.put ((byte) 'p');
+                out.put ((byte) ';');
+            }
+            else {
+                out.put ((byte) c);
+            }
+        }
+    }
+
+    /**
+     * The length of <code>n</code> bytes in base64, with a newline after
+     * each line of BASE64_LINE characters and after the last.
+     */
+    protected static int base64_size (int n) {
+        if (n == 0)
+            return 0;
+        int chars = (n + 2) / 3 * 4;
+        return chars + (chars + BASE64_LINE - 1) / BASE64_LINE;
+    }
+
+    protected static void write_base64 (byte [] data, ByteBuffer out) {
+        int line = 0;
+        for (int i = 0; i < data.length; i += 3) {
+            int left = data.length - i;
+            int bits = (data [i] & 0xff) << 16;
+            if (left > 1)
+                bits |= (data [i + 1] & 0xff) << 8;
+            if (left > 2)
+                bits |= data [i + 2] & 0xff;
+            out.put (BASE64_CHARS [(bits >> 18) & 0x3f]);
+            out.put (BASE64_CHARS [(bits >> 12) & 0x3f]);
+            out.put ((left > 1) ? BASE64_CHARS [(bits >> 6) & 0x3f]
+                                : (byte) '=');
+            out.put ((left > 2) ? BASE64_CHARS [bits & 0x3f] : (byte) '=');
+            line += 4;
+            if (line == BASE64_LINE) {
+                out.put ((byte) '\n');
+                line = 0;
+            }
+        }
+        if (line > 0)
+            out.put ((byte) '\n');
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2001-2003 Regents of the University of California.
+ * All rights reserved.
+ *
+ * See the file LICENSE included in this distribution for details.
+ */
+
+package bamboo.www;
+import bamboo.util.MultipleByteBufferInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+import org.apache.xmlrpc.XmlRpcRequest;
+import org.apache.xmlrpc.XmlRpcResponseProcessor;
+
+/**
+ * A microbenchmark comparing XmlRpcCodec with the xmlrpc library, on the
+ * calls the Gateway serves: decoding a put of a <code>size</code>-byte
+ * value, and encoding the responses to a get and a get_details that
+ * return <code>values</code> such values.  It first checks that the codec
+ * decodes the put to the same parameters as the library and encodes the
+ * responses to the same bytes, then prints the time and, where the JVM
+ * can count it, the memory allocated per call for each.
+ *
+ * <p>Usage: <code>XmlRpcCodecBench [size [values [iterations]]]</code>
+ *
+ * @version $Id$
+ */
+public class XmlRpcCodecBench {
+
+    protected static String base64 (byte [] data) {
+        ByteBuffer out = ByteBuffer.allocate (
+                XmlRpcCodec.base64_size (data.length));
+        XmlRpcCodec.write_base64 (data, out);
+        return new String (out.array (), XmlRpcCodec.ISO_8859_1);
+    }
+
+    /**
+     * A put call, laid out the way Python's xmlrpclib writes one.
+     */
+    protected static byte [] put_call (byte [] key, byte [] value) {
+        String call = "<?xml version='1.0'?>\n<methodCall>\n"
+            + "<methodName>put</methodName>\n<params>\n"
+            + "<param>\n<value><base64>\n" + base64 (key)
+            + "</base64></value>\n</param>\n"
+            + "<param>\n<value><base64>\n" + base64 (value)
+            + "</base64></value>\n</param>\n"
+            + "<param>\n<value><int>3600</int></value>\n</param>\n"
+            + "<param>\n<value><string>bench &amp; co</string></value>\n"
+            + "</param>\n</params>\n</methodCall>\n";
+        return call.getBytes (XmlRpcCodec.ISO_8859_1);
+    }
+
+    /**
+     * A get or get_details result, as Gateway.xml_rpc_get_done builds it.
+     */
+    protected static Vector get_result (Random rand, int size, int count,
+                                        boolean details) {
+        Vector values = new Vector (count);
+        for (int i = 0; i < count; ++i) {
+            byte [] value = new byte [size];
+            rand.nextBytes (value);
+            if (details) {
+                Vector v = new Vector (4);
+                v.add (value);
+                v.add (new Integer (rand.nextInt (3600)));
+                v.add ("SHA");
+                v.add (new byte [20]);
+                values.add (v);
+            }
+            else {
+                values.add (value);
+            }
+        }
+        Vector result = new Vector (2);
+        result.add (values);
+        result.add (new byte [0]);
+        return result;
+    }
+
+    protected static XmlRpcRequest library_decode (byte [] call)
+        throws Exception {
+        MultipleByteBufferInputStream is = new MultipleByteBufferInputStream ();
+        is.add_bb (ByteBuffer.wrap (call));
+        return new WebInterface.MyReqProc ().processRequest (is);
+    }
+
+    protected static byte [] library_encode (Object result) throws Exception {
+        return new XmlRpcResponseProcessor ().processResponse (
+                result, new WebInterface.MyReqProc ().getEncoding ());
+    }
+
+    protected static ByteBuffer codec_encode (Object result) {
+        ByteBuffer out = ByteBuffer.allocate (
+                XmlRpcCodec.response_size (result));
+        XmlRpcCodec.encode_response (result, out);
+        return out;
+    }
+
+    protected static com.sun.management.ThreadMXBean threads;
+
+    protected static long allocated () {
+        if (threads == null)
+            return 0;
+        return threads.getThreadAllocatedBytes (
+                Thread.currentThread ().getId ());
+    }
+
+    protected static void report (String what, long start_ns,
+                                  long start_bytes, int iterations) {
+        long ns = System.nanoTime () - start_ns;
+        long bytes = allocated () - start_bytes;
+        System.out.println (what + ": " + Math.round (ns / 100.0 / iterations)
+                / 10.0 + " us/call" + ((threads == null) ? "" : (", "
+                + bytes / iterations + " bytes allocated/call")));
+    }
+
+    public static void main (String [] args) throws Exception {
+        int size = (args.length > 0) ? Integer.parseInt (args [0]) : 1024;
+        int count = (args.length > 1) ? Integer.parseInt (args [1]) : 10;
+        int iterations =
+            (args.length > 2) ? Integer.parseInt (args [2]) : 20000;
+
+        try {
+            threads = (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean ();
+        }
+        catch (Throwable e) {
+            // Not a JVM that counts allocations.
+        }
+
+        Random rand = new Random (1);
+        byte [] key = new byte [20];
+        byte [] value = new byte [size];
+        rand.nextBytes (key);
+        rand.nextBytes (value);
+        byte [] put = put_call (key, value);
+        Vector get = get_result (rand, size, count, false);
+        Vector details = get_result (rand, size, count, true);
+
+        // Check that the codec agrees with the library.
+        XmlRpcRequest lib = library_decode (put);
+        XmlRpcCodec.Call call = XmlRpcCodec.decode_call (put, 0, put.length);
+        if ((call == null) || (! call.method.equals (lib.getMethodName ()))
+            || (call.params.length != lib.getParameters ().size ())
+            || (! Arrays.equals ((byte []) call.params [0], key))
+            || (! Arrays.equals ((byte []) call.params [1], value))
+            || (! call.params [2].equals (lib.getParameters ().get (2)))
+            || (! call.params [3].equals (lib.getParameters ().get (3)))) {
+            System.err.println ("codec decoded put differently");
+            System.exit (1);
+        }
+        Object [] results = { get, details, new Integer (0) };
+        for (int i = 0; i < results.length; ++i) {
+            if (! Arrays.equals (codec_encode (results [i]).array (),
+                                 library_encode (results [i]))) {
+                System.err.println ("codec encoded result " + i
+                        + " differently");
+                System.exit (1);
+            }
+        }
+        Exception fault = new Exception ("value is longer than 1024 bytes");
+        ByteBuffer out = ByteBuffer.allocate (XmlRpcCodec.fault_size (fault));
+        XmlRpcCodec.encode_fault (fault, out);
+        if (! Arrays.equals (out.array (), new XmlRpcResponseProcessor ()
+                    .processException (fault, "ISO-8859-1"))) {
+            System.err.println ("codec encoded fault differently");
+            System.exit (1);
+        }
+
+        System.out.println ("put of " + size + " bytes, get of " + count
+                + " values of " + size + " bytes");
+
+        // Warm up the JIT, then time each.
+        for (int round = 0; round < 2; ++round) {
+            boolean print = round == 1;
+            int n = print ? iterations : iterations / 4;
+
+            long start_ns = System.nanoTime (), start_bytes = allocated ();
+            for (int i = 0; i < n; ++i)
+                library_decode (put);
+            if (print) report ("library decode put", start_ns, start_bytes, n);
+
+            start_ns = System.nanoTime (); start_bytes = allocated ();
+            for (int i = 0; i < n; ++i)
+                XmlRpcCodec.decode_call (put, 0, put.length);
+            if (print) report ("codec decode put", start_ns, start_bytes, n);
+
+            start_ns = System.nanoTime (); start_bytes = allocated ();
+            for (int i = 0; i < n; ++i)
+                library_encode (get);
+            if (print) report ("library encode get", start_ns, start_bytes, n);
+
+            start_ns = System.nanoTime (); start_bytes = allocated ();
+            for (int i = 0; i < n; ++i)
+                codec_encode (get);
+            if (print) report ("codec encode get", start_ns, start_bytes, n);
+
+            start_ns = System.nanoTime (); start_bytes = allocated ();
+            for (int i = 0; i < n; ++i)
+                library_encode (details);
+            if (print) report ("library encode get_details", start_ns,
+                               start_bytes, n);
+
+            start_ns = System.nanoTime (); start_bytes = allocated ();
+            for (int i = 0; i < n; ++i)
+                codec_encode (details);
+            if (print) report ("codec encode get_details", start_ns,
+                               start_bytes, n);
+        }
+    }
+}